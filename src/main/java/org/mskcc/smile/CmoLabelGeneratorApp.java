@@ -4,6 +4,8 @@ import java.util.concurrent.CountDownLatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.service.CmoLabelRegistryService;
+import org.mskcc.smile.service.LabelTaskSchedulerService;
 import org.mskcc.smile.service.MessageHandlingService;
 import org.mskcc.smile.service.RequestReplyHandlingService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -25,6 +27,12 @@ public class CmoLabelGeneratorApp implements CommandLineRunner {
     @Autowired
     private RequestReplyHandlingService requestReplyHandlingService;
 
+    @Autowired
+    private CmoLabelRegistryService cmoLabelRegistryService;
+
+    @Autowired
+    private LabelTaskSchedulerService labelTaskSchedulerService;
+
     private Thread shutdownHook;
     final CountDownLatch cmoLabelGeneratorAppClose = new CountDownLatch(1);
 
@@ -33,6 +41,8 @@ public class CmoLabelGeneratorApp implements CommandLineRunner {
         LOG.info("Starting up CMO Label Generator application...");
         try {
             installShutdownHook();
+            cmoLabelRegistryService.initialize();
+            labelTaskSchedulerService.initialize();
             messagingGateway.connect();
             messageHandlingService.initialize(messagingGateway);
             requestReplyHandlingService.initialize(messagingGateway);
@@ -50,9 +60,13 @@ public class CmoLabelGeneratorApp implements CommandLineRunner {
                 public void run() {
                     System.err.printf("\nCaught CTRL-C, shutting down gracefully...\n");
                     try {
-                        messagingGateway.shutdown();
+                        // services drain their queued messages and publish them before the
+                        // gateway they publish through is shut down
                         messageHandlingService.shutdown();
                         requestReplyHandlingService.shutdown();
+                        labelTaskSchedulerService.shutdown();
+                        cmoLabelRegistryService.shutdown();
+                        messagingGateway.shutdown();
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
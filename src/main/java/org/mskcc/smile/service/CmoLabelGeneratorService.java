@@ -22,6 +22,7 @@ public interface CmoLabelGeneratorService {
             List<CmoLabelParts> samplesByAltId);
     String generateValidationReportLog(String originalJson, String filteredJson, Boolean isSample)
             throws JsonProcessingException;
+    String generateSampleValidationReportLog(Map<String, Object> sampleMap) throws JsonProcessingException;
     String incrementNucleicAcidCounter(String cmoLabel);
     String incrementSampleCounter(String cmoLabel);
 }
@@ -0,0 +1,19 @@
+package org.mskcc.smile.service;
+
+import java.util.Collection;
+import org.mskcc.smile.service.util.CmoLabelParts;
+import org.mskcc.smile.service.util.CmoLabelReservation;
+
+public interface CmoLabelRegistryService {
+    void initialize() throws Exception;
+    Boolean isOccupancyIndexEnabled();
+    Boolean isCmoLabelInUse(String primaryId, String cmoLabel);
+    void recordCmoLabel(String primaryId, String cmoLabel);
+    void recordIssuedCmoLabel(CmoLabelParts labelParts);
+    CmoLabelReservation reserveCmoLabel(String primaryId, String altId, String cmoLabel);
+    void releaseCmoLabel(String primaryId, String cmoLabel);
+    void acquirePatientLeases(Collection<String> cmoPatientIds) throws Exception;
+    void releasePatientLeases(Collection<String> cmoPatientIds);
+    Boolean isPatientCoordinationEnabled();
+    void shutdown() throws Exception;
+}
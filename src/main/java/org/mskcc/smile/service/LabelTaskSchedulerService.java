@@ -0,0 +1,11 @@
+package org.mskcc.smile.service;
+
+import org.mskcc.smile.service.util.WeightedFairScheduler;
+
+public interface LabelTaskSchedulerService {
+    void initialize() throws Exception;
+    Boolean isEnabled();
+    void submit(WeightedFairScheduler.PriorityClass priorityClass, Runnable task) throws Exception;
+    String getMetricsSummary();
+    void shutdown() throws Exception;
+}
@@ -1029,29 +1029,8 @@ public class CmoLabelGeneratorServiceImpl implements CmoLabelGeneratorService {
                     Object[].class);
                 for (Object s : sampleList) {
                     Map<String, Object> sampleMap = mapper.convertValue(s, Map.class);
-                    Map<String, Object> sampleStatusMap = mapper.convertValue(sampleMap.get("status"),
-                            Map.class);
-                    Map<String, String> sampleValidationReport = new HashMap<>();
-                    if (!sampleStatusMap.get("validationReport").toString().equals("{}")) {
-                        sampleValidationReport = mapper.readValue(
-                                sampleStatusMap.get("validationReport").toString(), Map.class);
-                    }
-
-                    try {
-                        String sampleId = ObjectUtils.firstNonNull(
-                                sampleMap.get("igoId"), sampleMap.get("primaryId")).toString();
-                        if (!sampleValidationReport.isEmpty()) {
-                            allValid = Boolean.FALSE;
-                            builder.append("\n[label-generator] Validation report for sample '")
-                                    .append(sampleId)
-                                    .append("': ")
-                                    .append(mapper.writeValueAsString(sampleStatusMap));
-                        }
-                    } catch (NullPointerException e) {
-                        builder.append("\n[label-generator] No known identifiers in current sample data: ")
-                                .append(mapper.writeValueAsString(sampleMap))
-                                .append(", Validation report for unknown sample: ")
-                                .append(mapper.writeValueAsString(sampleStatusMap));
+                    if (!appendSampleValidationReport(builder, sampleMap)) {
+                        allValid = Boolean.FALSE;
                     }
                 }
             }
@@ -1061,6 +1040,50 @@ public class CmoLabelGeneratorServiceImpl implements CmoLabelGeneratorService {
         return allValid ? null : builder.toString();
     }
 
+    @Override
+    public String generateSampleValidationReportLog(Map<String, Object> sampleMap)
+            throws JsonProcessingException {
+        StringBuilder builder = new StringBuilder();
+        appendSampleValidationReport(builder, sampleMap);
+        return (builder.length() == 0) ? null : builder.toString();
+    }
+
+    /**
+     * Appends the validation report of a sample in a request to the builder.
+     * @param builder
+     * @param sampleMap
+     * @return Boolean false if the sample has a validation report to log
+     * @throws JsonProcessingException
+     */
+    private Boolean appendSampleValidationReport(StringBuilder builder, Map<String, Object> sampleMap)
+            throws JsonProcessingException {
+        Map<String, Object> sampleStatusMap = mapper.convertValue(sampleMap.get("status"),
+                Map.class);
+        Map<String, String> sampleValidationReport = new HashMap<>();
+        if (!sampleStatusMap.get("validationReport").toString().equals("{}")) {
+            sampleValidationReport = mapper.readValue(
+                    sampleStatusMap.get("validationReport").toString(), Map.class);
+        }
+
+        try {
+            String sampleId = ObjectUtils.firstNonNull(
+                    sampleMap.get("igoId"), sampleMap.get("primaryId")).toString();
+            if (!sampleValidationReport.isEmpty()) {
+                builder.append("\n[label-generator] Validation report for sample '")
+                        .append(sampleId)
+                        .append("': ")
+                        .append(mapper.writeValueAsString(sampleStatusMap));
+                return Boolean.FALSE;
+            }
+        } catch (NullPointerException e) {
+            builder.append("\n[label-generator] No known identifiers in current sample data: ")
+                    .append(mapper.writeValueAsString(sampleMap))
+                    .append(", Validation report for unknown sample: ")
+                    .append(mapper.writeValueAsString(sampleStatusMap));
+        }
+        return Boolean.TRUE;
+    }
+
     private String getRequestId(String json) throws JsonProcessingException {
         if (isBlank(json)) {
             return null;
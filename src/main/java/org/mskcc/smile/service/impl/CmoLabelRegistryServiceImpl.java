@@ -0,0 +1,367 @@
+package org.mskcc.smile.service.impl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.CmoLabelRegistryService;
+import org.mskcc.smile.service.util.CmoLabelParts;
+import org.mskcc.smile.service.util.CmoLabelReservation;
+import org.mskcc.smile.service.util.CmoLabelReservationTable;
+import org.mskcc.smile.service.util.FileLockPartitionLeaseCoordinator;
+import org.mskcc.smile.service.util.InMemoryPartitionLeaseCoordinator;
+import org.mskcc.smile.service.util.LabelIssuanceJournal;
+import org.mskcc.smile.service.util.LabelIssuanceRecord;
+import org.mskcc.smile.service.util.OffHeapStringMap;
+import org.mskcc.smile.service.util.PartitionLeaseCoordinator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Process-wide registry of CMO labels issued across SMILE.
+ * When the occupancy index is enabled, label uniqueness checks are answered from an
+ * off-heap index of cmo label to primary id instead of a request to the SMILE server.
+ * The index is seeded from a snapshot file and kept current from labels published by
+ * the label generator and labels received from SMILE update events and lookups. The index
+ * only holds the labels seen by this instance, so it does not replace SMILE lookups when
+ * patients are coordinated with other instances.
+ * Labels published by the label generator are also written to an optional issuance journal
+ * which is replayed on startup to restore labels issued since the snapshot was taken.
+ * Labels in flight between label generation and publishing are claimed in a reservation table
+ * so that concurrent handlers working on the same patient cannot issue the same label.
+ * When several label generator instances are running, each instance leases the patient
+ * partitions it is generating labels for so that only one instance works on a patient at a time.
+ */
+@Service
+public class CmoLabelRegistryServiceImpl implements CmoLabelRegistryService {
+
+    @Value("${label_index.enabled:false}")
+    private Boolean LABEL_INDEX_ENABLED;
+
+    @Value("${label_index.expected_labels:1000000}")
+    private int LABEL_INDEX_EXPECTED_LABELS;
+
+    @Value("${label_index.snapshot_file:}")
+    private String LABEL_INDEX_SNAPSHOT_FILE;
+
+    @Value("${label_journal.enabled:false}")
+    private Boolean LABEL_JOURNAL_ENABLED;
+
+    @Value("${label_journal.directory:}")
+    private String LABEL_JOURNAL_DIRECTORY;
+
+    @Value("${label_journal.segment_size_mb:64}")
+    private int LABEL_JOURNAL_SEGMENT_SIZE_MB;
+
+    @Value("${label_journal.compaction_segment_threshold:8}")
+    private int LABEL_JOURNAL_COMPACTION_SEGMENT_THRESHOLD;
+
+    @Value("${label_reservation.ttl_seconds:600}")
+    private int LABEL_RESERVATION_TTL_SECONDS;
+
+    @Value("${coordination.mode:none}")
+    private String COORDINATION_MODE;
+
+    @Value("${coordination.instance_id:}")
+    private String COORDINATION_INSTANCE_ID;
+
+    @Value("${coordination.num_partitions:256}")
+    private int COORDINATION_NUM_PARTITIONS;
+
+    @Value("${coordination.lease_ttl_seconds:30}")
+    private int COORDINATION_LEASE_TTL_SECONDS;
+
+    @Value("${coordination.lease_directory:}")
+    private String COORDINATION_LEASE_DIRECTORY;
+
+    private static final Log LOG = LogFactory.getLog(CmoLabelRegistryServiceImpl.class);
+    private static final String SNAPSHOT_DELIMITER = "\t";
+
+    // cmo label => primary id of the sample holding the label
+    private OffHeapStringMap labelOccupancyIndex;
+    // primary id => cmo label, used to free a sample's previous label when it is relabeled
+    private OffHeapStringMap sampleLabelIndex;
+    private volatile boolean occupancyIndexReady = false;
+    private LabelIssuanceJournal issuanceJournal;
+    private CmoLabelReservationTable reservationTable;
+    private ScheduledExecutorService maintenanceExec;
+    private PartitionLeaseCoordinator leaseCoordinator;
+
+    @Override
+    public void initialize() throws Exception {
+        leaseCoordinator = createLeaseCoordinator();
+        reservationTable = new CmoLabelReservationTable(
+                TimeUnit.SECONDS.toMillis(LABEL_RESERVATION_TTL_SECONDS));
+        long snapshotTimestamp = LABEL_INDEX_ENABLED ? loadOccupancyIndex() : -1L;
+        if (LABEL_JOURNAL_ENABLED) {
+            openIssuanceJournal(snapshotTimestamp);
+        }
+        occupancyIndexReady = (labelOccupancyIndex != null);
+        maintenanceExec = Executors.newSingleThreadScheduledExecutor();
+        maintenanceExec.scheduleWithFixedDelay(this::performMaintenance, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Boolean isOccupancyIndexEnabled() {
+        return occupancyIndexReady;
+    }
+
+    @Override
+    public Boolean isCmoLabelInUse(String primaryId, String cmoLabel) {
+        if (!occupancyIndexReady || StringUtils.isBlank(cmoLabel)) {
+            return Boolean.FALSE;
+        }
+        String holderPrimaryId = labelOccupancyIndex.get(cmoLabel);
+        return holderPrimaryId != null && !holderPrimaryId.equals(primaryId);
+    }
+
+    @Override
+    public synchronized void recordCmoLabel(String primaryId, String cmoLabel) {
+        if (!occupancyIndexReady || StringUtils.isBlank(primaryId) || StringUtils.isBlank(cmoLabel)) {
+            return;
+        }
+        putCmoLabel(primaryId, cmoLabel);
+    }
+
+    private void putCmoLabel(String primaryId, String cmoLabel) {
+        String previousLabel = sampleLabelIndex.put(primaryId, cmoLabel);
+        if (previousLabel != null && !previousLabel.equals(cmoLabel)
+                && primaryId.equals(labelOccupancyIndex.get(previousLabel))) {
+            labelOccupancyIndex.remove(previousLabel);
+        }
+        labelOccupancyIndex.put(cmoLabel, primaryId);
+    }
+
+    @Override
+    public void recordIssuedCmoLabel(CmoLabelParts labelParts) {
+        if (issuanceJournal != null && !StringUtils.isBlank(labelParts.getCmoSampleName())) {
+            try {
+                issuanceJournal.append(LabelIssuanceRecord.fromLabelParts(labelParts));
+            } catch (Exception e) {
+                LOG.error("Failed to write label issuance journal record for sample: "
+                        + labelParts.getPrimaryId(), e);
+            }
+        }
+        recordCmoLabel(labelParts.getPrimaryId(), labelParts.getCmoSampleName());
+    }
+
+    @Override
+    public CmoLabelReservation reserveCmoLabel(String primaryId, String altId, String cmoLabel) {
+        if (reservationTable == null || StringUtils.isBlank(cmoLabel)) {
+            return null;
+        }
+        return reservationTable.tryReserve(cmoLabel, primaryId, altId);
+    }
+
+    @Override
+    public void releaseCmoLabel(String primaryId, String cmoLabel) {
+        if (reservationTable == null || StringUtils.isBlank(cmoLabel)) {
+            return;
+        }
+        reservationTable.release(cmoLabel, primaryId);
+    }
+
+    @Override
+    public void acquirePatientLeases(Collection<String> cmoPatientIds) throws Exception {
+        if (leaseCoordinator != null && !cmoPatientIds.isEmpty()) {
+            leaseCoordinator.acquire(cmoPatientIds);
+        }
+    }
+
+    @Override
+    public void releasePatientLeases(Collection<String> cmoPatientIds) {
+        if (leaseCoordinator != null && !cmoPatientIds.isEmpty()) {
+            leaseCoordinator.release(cmoPatientIds);
+        }
+    }
+
+    @Override
+    public Boolean isPatientCoordinationEnabled() {
+        return leaseCoordinator != null;
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        if (leaseCoordinator != null) {
+            leaseCoordinator.close();
+        }
+        if (maintenanceExec != null) {
+            maintenanceExec.shutdown();
+            maintenanceExec.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        if (issuanceJournal != null) {
+            issuanceJournal.close();
+        }
+        if (occupancyIndexReady) {
+            saveSnapshot(Paths.get(LABEL_INDEX_SNAPSHOT_FILE));
+        }
+    }
+
+    /**
+     * Creates the patient partition lease coordinator for the configured coordination mode.
+     * @return PartitionLeaseCoordinator or null if instances are not coordinated
+     * @throws Exception
+     */
+    private PartitionLeaseCoordinator createLeaseCoordinator() throws Exception {
+        String instanceId = StringUtils.isBlank(COORDINATION_INSTANCE_ID)
+                ? InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid()
+                : COORDINATION_INSTANCE_ID;
+        long leaseTtlMillis = TimeUnit.SECONDS.toMillis(COORDINATION_LEASE_TTL_SECONDS);
+        switch (COORDINATION_MODE.trim().toLowerCase()) {
+            case "none":
+                return null;
+            case "in_memory":
+                LOG.info("Coordinating patient partitions in memory as instance: " + instanceId);
+                return new InMemoryPartitionLeaseCoordinator(instanceId, COORDINATION_NUM_PARTITIONS,
+                        leaseTtlMillis);
+            case "file_lock":
+                if (StringUtils.isBlank(COORDINATION_LEASE_DIRECTORY)) {
+                    throw new IllegalStateException("Coordination mode 'file_lock' requires "
+                            + "'coordination.lease_directory' to be set");
+                }
+                LOG.info("Coordinating patient partitions with lock files in "
+                        + COORDINATION_LEASE_DIRECTORY + " as instance: " + instanceId);
+                return new FileLockPartitionLeaseCoordinator(Paths.get(COORDINATION_LEASE_DIRECTORY),
+                        instanceId, COORDINATION_NUM_PARTITIONS, leaseTtlMillis);
+            default:
+                throw new IllegalStateException("Unknown coordination mode: " + COORDINATION_MODE);
+        }
+    }
+
+    /**
+     * Creates the occupancy index and seeds it from the snapshot file.
+     * @return long the last modified time of the snapshot or -1 if the index could not be loaded
+     * @throws Exception
+     */
+    private long loadOccupancyIndex() throws Exception {
+        // a single instance relies on the index alone so it must start from a complete snapshot
+        if (StringUtils.isBlank(LABEL_INDEX_SNAPSHOT_FILE)
+                || !new File(LABEL_INDEX_SNAPSHOT_FILE).exists()) {
+            LOG.error("CMO label occupancy index is enabled but snapshot file could not be found: "
+                    + LABEL_INDEX_SNAPSHOT_FILE + " - falling back on SMILE server for label "
+                    + "uniqueness checks");
+            return -1L;
+        }
+        labelOccupancyIndex = new OffHeapStringMap(LABEL_INDEX_EXPECTED_LABELS);
+        sampleLabelIndex = new OffHeapStringMap(LABEL_INDEX_EXPECTED_LABELS);
+        long start = System.currentTimeMillis();
+        Path snapshotPath = Paths.get(LABEL_INDEX_SNAPSHOT_FILE);
+        loadSnapshot(snapshotPath);
+        LOG.info("Loaded CMO label occupancy index with " + labelOccupancyIndex.size()
+                + " labels in " + (System.currentTimeMillis() - start) + " ms");
+        return Files.getLastModifiedTime(snapshotPath).toMillis();
+    }
+
+    /**
+     * Opens the label issuance journal and replays the records written after the snapshot
+     * into the occupancy index. Counters are encoded in the labels themselves so restoring
+     * label occupancy also restores the sample and nucleic acid counters already issued.
+     * @param snapshotTimestamp
+     * @throws Exception
+     */
+    private void openIssuanceJournal(long snapshotTimestamp) throws Exception {
+        if (StringUtils.isBlank(LABEL_JOURNAL_DIRECTORY)) {
+            LOG.error("Label issuance journal is enabled but 'label_journal.directory' is not set");
+            return;
+        }
+        issuanceJournal = new LabelIssuanceJournal(Paths.get(LABEL_JOURNAL_DIRECTORY),
+                LABEL_JOURNAL_SEGMENT_SIZE_MB * 1024 * 1024);
+        if (labelOccupancyIndex != null) {
+            long start = System.currentTimeMillis();
+            int[] replayed = {0};
+            issuanceJournal.replay(record -> {
+                if (record.getTimestamp() >= snapshotTimestamp) {
+                    putCmoLabel(record.getPrimaryId(), record.getCmoLabel());
+                    replayed[0]++;
+                }
+            });
+            LOG.info("Replayed " + replayed[0] + " label issuance journal records in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Purges expired label reservations, flushes the journal and compacts the journal
+     * once enough sealed segments have accumulated.
+     */
+    private void performMaintenance() {
+        try {
+            int purged = reservationTable.purgeExpired();
+            if (purged > 0) {
+                LOG.warn("Purged " + purged + " expired CMO label reservations that were never released");
+            }
+            if (issuanceJournal == null) {
+                return;
+            }
+            issuanceJournal.force();
+            if (issuanceJournal.segmentCount() > LABEL_JOURNAL_COMPACTION_SEGMENT_THRESHOLD) {
+                long start = System.currentTimeMillis();
+                issuanceJournal.compact();
+                LOG.info("Compacted label issuance journal to " + issuanceJournal.segmentCount()
+                        + " segments in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (Exception e) {
+            LOG.error("Error during CMO label registry maintenance", e);
+        }
+    }
+
+    /**
+     * Loads the snapshot file. Each line contains a cmo label and primary id separated by a tab.
+     * @param snapshotPath
+     * @throws Exception
+     */
+    private void loadSnapshot(Path snapshotPath) throws Exception {
+        try (BufferedReader reader = Files.newBufferedReader(snapshotPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split(SNAPSHOT_DELIMITER);
+                if (parts.length < 2) {
+                    LOG.warn("Skipping malformed line in CMO label snapshot file: " + line);
+                    continue;
+                }
+                putCmoLabel(parts[1].trim(), parts[0].trim());
+            }
+        }
+    }
+
+    /**
+     * Writes the current contents of the occupancy index to the snapshot file.
+     * The snapshot is written to a temp file first so that a failed write never
+     * leaves a truncated snapshot behind.
+     * @param snapshotPath
+     * @throws Exception
+     */
+    private void saveSnapshot(Path snapshotPath) throws Exception {
+        Path tmpPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+            writer.write("#cmoLabel" + SNAPSHOT_DELIMITER + "primaryId");
+            writer.newLine();
+            labelOccupancyIndex.forEach((cmoLabel, primaryId) -> {
+                try {
+                    writer.write(cmoLabel + SNAPSHOT_DELIMITER + primaryId);
+                    writer.newLine();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Failed to write CMO label snapshot", e);
+                }
+            });
+        }
+        Files.move(tmpPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Saved CMO label occupancy index snapshot to: " + snapshotPath);
+    }
+}
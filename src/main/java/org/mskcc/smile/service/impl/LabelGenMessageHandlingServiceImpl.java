@@ -4,26 +4,67 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.nats.client.Message;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
 import org.mskcc.cmo.messaging.MessageConsumer;
 import org.mskcc.smile.service.CmoLabelGeneratorService;
+import org.mskcc.smile.service.CmoLabelRegistryService;
+import org.mskcc.smile.service.LabelTaskSchedulerService;
 import org.mskcc.smile.service.MessageHandlingService;
+import org.mskcc.smile.service.util.AimdConcurrencyLimiter;
+import org.mskcc.smile.service.util.ByteBoundedQueue;
 import org.mskcc.smile.service.util.CmoLabelParts;
+import org.mskcc.smile.service.util.CmoLabelReservation;
+import org.mskcc.smile.service.util.DeadLetterStore;
+import org.mskcc.smile.service.util.Deadline;
+import org.mskcc.smile.service.util.HandlerMessage;
+import org.mskcc.smile.service.util.KeyOrderedExecutor;
+import org.mskcc.smile.service.util.PipelineStage;
+import org.mskcc.smile.service.util.PipelinedPublisher;
+import org.mskcc.smile.service.util.PrefetchedContext;
+import org.mskcc.smile.service.util.QueueSpillStore;
+import org.mskcc.smile.service.util.RequestDedupWindow;
+import org.mskcc.smile.service.util.RequestWriteAheadLog;
+import org.mskcc.smile.service.util.ResilientRequester;
+import org.mskcc.smile.service.util.RetryScheduler;
+import org.mskcc.smile.service.util.RingBufferConnector;
+import org.mskcc.smile.service.util.SampleUpdateCoalescer;
+import org.mskcc.smile.service.util.StageConnector;
+import org.mskcc.smile.service.util.StreamingRequest;
+import org.mskcc.smile.service.util.VirtualThreadDispatcher;
+import org.mskcc.smile.service.util.WeightedFairScheduler;
+import org.mskcc.smile.service.util.WorkStealingDispatcher;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -53,12 +94,204 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
     @Value("${smile.sample_update_topic:}")
     private String IGO_SAMPLE_UPDATE_TOPIC;
 
+    @Value("${smile.sample_update_batch_topic:}")
+    private String IGO_SAMPLE_UPDATE_BATCH_TOPIC;
+
     @Value("${num.new_request_handler_threads:1}")
     private int NUM_NEW_REQUEST_HANDLERS;
 
     @Value("${num.promoted_request_handler_threads:1}")
     private int NUM_PROMOTED_REQUEST_HANDLERS;
 
+    @Value("${num.patient_lanes:0}")
+    private int NUM_PATIENT_LANES;
+
+    @Value("${handler.execution_mode:platform}")
+    private String HANDLER_EXECUTION_MODE;
+
+    @Value("${handler.max_inflight_requests:64}")
+    private int MAX_INFLIGHT_REQUESTS;
+
+    @Value("${handler.shared_pool_threads:0}")
+    private int SHARED_POOL_THREADS;
+
+    @Value("${handler.adaptive_concurrency:false}")
+    private Boolean ADAPTIVE_CONCURRENCY;
+
+    @Value("${handler.adaptive_min_handlers:1}")
+    private int ADAPTIVE_MIN_HANDLERS;
+
+    @Value("${handler.adaptive_max_handlers:16}")
+    private int ADAPTIVE_MAX_HANDLERS;
+
+    @Value("${handler.adaptive_target_lookup_ms:500}")
+    private long ADAPTIVE_TARGET_LOOKUP_MS;
+
+    @Value("${handler.adaptive_decrease_factor:0.5}")
+    private double ADAPTIVE_DECREASE_FACTOR;
+
+    @Value("${handler.adaptive_interval_seconds:5}")
+    private int ADAPTIVE_INTERVAL_SECONDS;
+
+    @Value("${pipeline.decode_threads:1}")
+    private int PIPELINE_DECODE_THREADS;
+
+    @Value("${pipeline.context_threads:8}")
+    private int PIPELINE_CONTEXT_THREADS;
+
+    @Value("${pipeline.assign_threads:2}")
+    private int PIPELINE_ASSIGN_THREADS;
+
+    @Value("${pipeline.serialize_threads:2}")
+    private int PIPELINE_SERIALIZE_THREADS;
+
+    @Value("${pipeline.stage_capacity:64}")
+    private int PIPELINE_STAGE_CAPACITY;
+
+    @Value("${large_request.min_samples:0}")
+    private int LARGE_REQUEST_MIN_SAMPLES;
+
+    @Value("${large_request.min_payload_kb:0}")
+    private int LARGE_REQUEST_MIN_PAYLOAD_KB;
+
+    @Value("${large_request.handler_threads:1}")
+    private int LARGE_REQUEST_HANDLER_THREADS;
+
+    @Value("${wal.enabled:false}")
+    private Boolean WAL_ENABLED;
+
+    @Value("${wal.directory:}")
+    private String WAL_DIRECTORY;
+
+    @Value("${wal.segment_size_mb:64}")
+    private int WAL_SEGMENT_SIZE_MB;
+
+    @Value("${wal.checkpoint_interval_seconds:30}")
+    private int WAL_CHECKPOINT_INTERVAL_SECONDS;
+
+    @Value("${dedup.enabled:false}")
+    private Boolean DEDUP_ENABLED;
+
+    @Value("${dedup.window_seconds:300}")
+    private int DEDUP_WINDOW_SECONDS;
+
+    @Value("${dedup.max_entries:10000}")
+    private int DEDUP_MAX_ENTRIES;
+
+    @Value("${dedup.duplicate_policy:republish}")
+    private String DEDUP_DUPLICATE_POLICY;
+
+    @Value("${sample_update.coalesce_window_ms:0}")
+    private long SAMPLE_UPDATE_COALESCE_WINDOW_MS;
+
+    @Value("${sample_update.coalesce_max_batch_samples:500}")
+    private int SAMPLE_UPDATE_COALESCE_MAX_BATCH_SAMPLES;
+
+    @Value("${sample_update.coalesce_max_pending_samples:10000}")
+    private int SAMPLE_UPDATE_COALESCE_MAX_PENDING_SAMPLES;
+
+    @Value("${sample_update.publish_lanes:0}")
+    private int SAMPLE_UPDATE_PUBLISH_LANES;
+
+    @Value("${sample_update.publish_max_outstanding:256}")
+    private int SAMPLE_UPDATE_PUBLISH_MAX_OUTSTANDING;
+
+    @Value("${sample_update.publish_retry_interval_seconds:10}")
+    private int SAMPLE_UPDATE_PUBLISH_RETRY_INTERVAL_SECONDS;
+
+    @Value("${deadline.request_ms:0}")
+    private long DEADLINE_REQUEST_MS;
+
+    @Value("${smile_lookup.resilience_enabled:false}")
+    private Boolean SMILE_LOOKUP_RESILIENCE_ENABLED;
+
+    @Value("${smile_lookup.hedge_percentile:0.95}")
+    private double SMILE_LOOKUP_HEDGE_PERCENTILE;
+
+    @Value("${smile_lookup.breaker_failure_threshold:5}")
+    private int SMILE_LOOKUP_BREAKER_FAILURE_THRESHOLD;
+
+    @Value("${smile_lookup.breaker_failure_window_ms:10000}")
+    private long SMILE_LOOKUP_BREAKER_FAILURE_WINDOW_MS;
+
+    @Value("${smile_lookup.breaker_open_ms:30000}")
+    private long SMILE_LOOKUP_BREAKER_OPEN_MS;
+
+    @Value("${smile_lookup.max_retries:1}")
+    private int SMILE_LOOKUP_MAX_RETRIES;
+
+    @Value("${smile_lookup.retry_budget_ratio:0.1}")
+    private double SMILE_LOOKUP_RETRY_BUDGET_RATIO;
+
+    @Value("${prefetch.ingress_enabled:false}")
+    private Boolean INGRESS_PREFETCH_ENABLED;
+
+    @Value("${prefetch.max_outstanding_lookups:256}")
+    private int INGRESS_PREFETCH_MAX_OUTSTANDING_LOOKUPS;
+
+    @Value("${batch.max_requests:0}")
+    private int REQUEST_BATCH_MAX_REQUESTS;
+
+    @Value("${batch.max_wait_ms:5}")
+    private long REQUEST_BATCH_MAX_WAIT_MS;
+
+    @Value("${streaming.min_payload_kb:0}")
+    private long STREAMING_MIN_PAYLOAD_KB;
+
+    @Value("${streaming.chunk_samples:100}")
+    private int STREAMING_CHUNK_SAMPLES;
+
+    @Value("${retry.enabled:false}")
+    private Boolean RETRY_ENABLED;
+
+    @Value("${retry.max_attempts:5}")
+    private int RETRY_MAX_ATTEMPTS;
+
+    @Value("${retry.base_delay_ms:1000}")
+    private long RETRY_BASE_DELAY_MS;
+
+    @Value("${retry.max_delay_ms:60000}")
+    private long RETRY_MAX_DELAY_MS;
+
+    @Value("${retry.jitter:0.5}")
+    private double RETRY_JITTER;
+
+    @Value("${dead_letter.directory:}")
+    private String DEAD_LETTER_DIRECTORY;
+
+    @Value("${dead_letter.segment_size_mb:16}")
+    private int DEAD_LETTER_SEGMENT_SIZE_MB;
+
+    @Value("${dead_letter.replay_topic:}")
+    private String DEAD_LETTER_REPLAY_TOPIC;
+
+    @Value("${dead_letter.replay_rate_per_second:10}")
+    private double DEAD_LETTER_REPLAY_RATE_PER_SECOND;
+
+    @Value("${queue.ingress_capacity_mb:0}")
+    private int INGRESS_QUEUE_CAPACITY_MB;
+
+    @Value("${queue.publisher_capacity_mb:0}")
+    private int PUBLISHER_QUEUE_CAPACITY_MB;
+
+    @Value("${queue.overflow_policy:block}")
+    private String QUEUE_OVERFLOW_POLICY;
+
+    @Value("${queue.spill_directory:}")
+    private String QUEUE_SPILL_DIRECTORY;
+
+    @Value("${queue.publisher_connector:queue}")
+    private String PUBLISHER_CONNECTOR;
+
+    @Value("${queue.ring_buffer_size:1024}")
+    private int RING_BUFFER_SIZE;
+
+    @Value("${queue.ring_buffer_wait_strategy:park}")
+    private String RING_BUFFER_WAIT_STRATEGY;
+
+    @Value("${queue.metrics_interval_seconds:60}")
+    private int QUEUE_METRICS_INTERVAL_SECONDS;
+
     @Value("${request_reply.patient_samples_topic:}")
     private String PATIENT_SAMPLES_REQUEST_TOPIC;
 
@@ -71,30 +304,71 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
     @Autowired
     private CmoLabelGeneratorService cmoLabelGeneratorService;
 
+    @Autowired
+    private CmoLabelRegistryService cmoLabelRegistryService;
+
+    @Autowired
+    private LabelTaskSchedulerService labelTaskSchedulerService;
+
     private final ObjectMapper mapper = new ObjectMapper()
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-    private static boolean initialized = false;
-    private static volatile boolean shutdownInitiated;
-    private static final ExecutorService exec = Executors.newCachedThreadPool();
-
-    private static final BlockingQueue<String> cmoLabelGeneratorQueue =
-        new LinkedBlockingQueue<String>();
-    private static final BlockingQueue<String> cmoPromotedLabelQueue =
-        new LinkedBlockingQueue<String>();
-    private static final BlockingQueue<String> igoNewRequestQueue =
-        new LinkedBlockingQueue<String>();
-    private static final BlockingQueue<String> igoPromotedRequestQueue =
-        new LinkedBlockingQueue<String>();
-    private static final BlockingQueue<List<Map<String, Object>>> cmoSampleLabelUpdateQueue =
-        new LinkedBlockingQueue<>();
-
-    private static CountDownLatch cmoLabelGeneratorShutdownLatch;
-    private static CountDownLatch cmoPromotedLabelShutdownLatch;
-    private static CountDownLatch newRequestPublisherShutdownLatch;
-    private static CountDownLatch promotedRequestPublisherShutdownLatch;
-    private static CountDownLatch cmoSampleLabelUpdateShutdownLatch;
-    private static Gateway messagingGateway;
-
+    private volatile boolean initialized = false;
+    private volatile boolean shutdownInitiated;
+    private final ExecutorService exec = Executors.newCachedThreadPool();
+
+    private ByteBoundedQueue<String> cmoLabelGeneratorQueue;
+    private ByteBoundedQueue<String> cmoPromotedLabelQueue;
+    private StageConnector<String> igoNewRequestQueue;
+    private StageConnector<String> igoPromotedRequestQueue;
+    private ByteBoundedQueue<List<Map<String, Object>>> cmoSampleLabelUpdateQueue;
+    private ByteBoundedQueue<RequestLabelContext> largeRequestQueue;
+    private ScheduledExecutorService queueMetricsExec;
+    private ScheduledExecutorService concurrencyControlExec;
+    private AimdConcurrencyLimiter concurrencyLimiter;
+    private RequestWriteAheadLog requestWriteAheadLog;
+    private RequestDedupWindow requestDedupWindow;
+    private RequestDedupWindow.DuplicatePolicy duplicatePolicy;
+    private ScheduledExecutorService walCheckpointExec;
+    private SampleUpdateCoalescer sampleUpdateCoalescer;
+    private ScheduledExecutorService sampleUpdateCoalescingExec;
+    private PipelinedPublisher sampleUpdatePublisher;
+    private ScheduledExecutorService sampleUpdatePublishRetryExec;
+    private RetryScheduler<FailedMessage> retryScheduler;
+    private DeadLetterStore deadLetterStore;
+    private final AtomicBoolean deadLetterReplayInProgress = new AtomicBoolean();
+
+    private CountDownLatch cmoLabelGeneratorShutdownLatch;
+    private CountDownLatch cmoPromotedLabelShutdownLatch;
+    private CountDownLatch newRequestPublisherShutdownLatch;
+    private CountDownLatch promotedRequestPublisherShutdownLatch;
+    private CountDownLatch cmoSampleLabelUpdateShutdownLatch;
+    private CountDownLatch largeRequestShutdownLatch;
+    private Gateway messagingGateway;
+    private KeyOrderedExecutor patientLaneExecutor;
+    private VirtualThreadDispatcher virtualThreadDispatcher;
+    private WorkStealingDispatcher sharedWorkPool;
+    private Phaser scheduledTaskPhaser;
+    private ExecutorService lookupExec;
+    private ExecutorService smileRequestExec;
+    private ResilientRequester resilientRequester;
+    private ExecutorService ingressPrefetchExec;
+    private Semaphore ingressPrefetchPermits;
+    private AtomicLongArray patientReleaseStamps;
+    private final AtomicLong prefetchReadyCount = new AtomicLong();
+    private final AtomicLong prefetchPendingCount = new AtomicLong();
+    private final AtomicLong prefetchStaleCount = new AtomicLong();
+    private final AtomicLong prefetchSkippedCount = new AtomicLong();
+    private final AtomicLong requestBatchCount = new AtomicLong();
+    private final AtomicLong batchedRequestCount = new AtomicLong();
+    // sequences of accepted requests when the write-ahead log is disabled, seeded from the clock
+    // so they do not collide with the sequences of messages spilled before a restart
+    private final AtomicLong acceptedSequence = new AtomicLong(System.currentTimeMillis() * 1000L);
+    private List<PipelineStage<RequestLabelContext>> requestPipelineStages;
+    private int numLabelGeneratorHandlers;
+    private int numPromotedLabelHandlers;
+
+    private static final int PATIENT_RELEASE_STRIPES = 1024;
+    private static final String SAMPLE_LABEL_UPDATE_FLOW = "SAMPLE_LABEL_UPDATE";
     private static final Log LOG = LogFactory.getLog(LabelGenMessageHandlingServiceImpl.class);
 
     public static enum IgoRequestDest {
@@ -108,15 +382,14 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
     private class IgoRequestHandler implements Runnable {
         final Phaser phaser;
         final IgoRequestDest igoRequestDest;
-        final BlockingQueue<String> igoRequestQueue;
+        final StageConnector<String> igoRequestQueue;
         final CountDownLatch shutdownLatch;
-        boolean interrupted = false;
 
         /**
          * IgoRequestPublisherHandler constructor.
          */
         IgoRequestHandler(Phaser phaser, IgoRequestDest igoRequestDest,
-                BlockingQueue<String> igoRequestQueue, CountDownLatch shutdownLatch) {
+                StageConnector<String> igoRequestQueue, CountDownLatch shutdownLatch) {
             this.phaser = phaser;
             this.igoRequestDest = igoRequestDest;
             this.igoRequestQueue = igoRequestQueue;
@@ -128,36 +401,36 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             phaser.arrive();
             while (true) {
                 try {
-                    String requestJson = igoRequestQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (requestJson != null) {
-                        try {
-                            switch (igoRequestDest) {
-                                case NEW_REQUEST_DEST:
-                                    LOG.info("Publishing request to: " + IGO_NEW_REQUEST_TOPIC);
-                                    messagingGateway.publish(getRequestIdFromRequestJson(requestJson),
-                                            IGO_NEW_REQUEST_TOPIC,
-                                            requestJson);
-                                    break;
-                                case PROMOTED_REQUEST_DEST:
-                                    LOG.info("Publishing request to: " + IGO_PROMOTED_REQUEST_TOPIC);
-                                    messagingGateway.publish(getRequestIdFromRequestJson(requestJson),
-                                            IGO_PROMOTED_REQUEST_TOPIC,
-                                            requestJson);
-                                    break;
-                                default:
-                                    break;
-                            }
-                        } catch (Exception e) {
-                            LOG.error("Error occurred during attempt to publish request "
-                                    + "to destination topic: TOPIC=" + igoRequestDest
-                                    + ", JSON=" + requestJson, e);
-                        }
-                    }
-                    if (interrupted && igoRequestQueue.isEmpty()) {
+                    HandlerMessage<String> message = igoRequestQueue.take();
+                    if (message.isPoisonPill()) {
                         break;
                     }
+                    String requestJson = message.getPayload();
+                    String requestId = getRequestIdFromRequestJson(requestJson);
+                    long walSequence = message.getWalSequence();
+                    Boolean published = Boolean.FALSE;
+                    try {
+                        publishToIgoRequestTopic(igoRequestDest, requestId, requestJson);
+                        published = Boolean.TRUE;
+                    } catch (Exception e) {
+                        if (retryScheduler != null) {
+                            // labels and leases are handed back during the backoff and claimed again
+                            // by the retry, the request stays pending until it is published
+                            LOG.warn("Failed to publish request " + requestId + " to destination topic "
+                                    + igoRequestDest + ", scheduling retry", e);
+                            settleRequestLabels(requestJson, Boolean.FALSE);
+                            retryScheduler.schedule(new FailedMessage(igoRequestDest.name(), requestJson,
+                                    true, walSequence), 1, e);
+                            continue;
+                        }
+                        LOG.error("Error occurred during attempt to publish request "
+                                + "to destination topic: TOPIC=" + igoRequestDest
+                                + ", JSON=" + requestJson, e);
+                    }
+                    finishPublishedRequest(igoRequestDest, requestJson, published, walSequence);
                 } catch (InterruptedException e) {
-                    interrupted = true;
+                    LOG.warn("Handler interrupted before receiving shutdown signal, stopping");
+                    break;
                 } catch (Exception e) {
                     LOG.error("Error during handling of igo request publishing queue", e);
                 }
@@ -176,15 +449,14 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
 
         final Phaser phaser;
         final IgoRequestDest igoRequestDest;
-        final BlockingQueue<String> labelGeneratorQueue;
+        final ByteBoundedQueue<String> labelGeneratorQueue;
         final CountDownLatch shutdownLatch;
-        boolean interrupted = false;
 
         /**
          * CmoLabelGeneratorHandler constructor.
          */
         CmoLabelGeneratorHandler(Phaser phaser, IgoRequestDest igoRequestDest,
-                BlockingQueue<String> labelGeneratorQueue, CountDownLatch shutdownLatch) {
+                ByteBoundedQueue<String> labelGeneratorQueue, CountDownLatch shutdownLatch) {
             this.phaser = phaser;
             this.igoRequestDest = igoRequestDest;
             this.labelGeneratorQueue = labelGeneratorQueue;
@@ -196,127 +468,68 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             phaser.arrive();
             while (true) {
                 try {
-                    String requestJson = labelGeneratorQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (requestJson != null) {
-                        String requestId = getRequestIdFromRequestJson(requestJson);
-                        LOG.info("Extracting samples from request received: " + requestId);
-                        List<Map<String, Object>> samples = getSamplesFromRequestJson(requestJson);
-                        // get is cmo request for label generator
-                        Object isCmoRequest = getIsCmoRequestFromRequestJson(requestJson);
-
-                        // get existing samples for all patients and alt ids in the request
-                        Map<String, List<CmoLabelParts>> patientSamplesMap = getPatientSamplesMap(samples);
-                        Map<String, List<CmoLabelParts>> altIdSamplesMap = getAltIdSamplesMap(samples);
-
-                        // udpated samples list will store samples which had a label generated successfully
-                        for (int i = 0; i < samples.size(); i++) {
-                            Map<String, Object> sampleMap = samples.get(i);
-                            CmoLabelParts labelParts = new CmoLabelParts(sampleMap, requestId, isCmoRequest);
-
-                            Map<String, Object> statusMap = mapper.convertValue(
-                                    sampleMap.get("status"), Map.class);
-
-                            // if validation status from validator is false then skip label generation
-                            Boolean validationStatus = (Boolean) statusMap.get("validationStatus");
-                            if (!validationStatus) {
-                                continue;
-                            }
-
-                            // get existing patient samples for cmo patient id and by sample alt id
-                            // these lists add context when resolving sample and/or nucleic acid counters
-                            List<CmoLabelParts> existingSamples =
-                                    patientSamplesMap.getOrDefault(labelParts.getCmoPatientId(),
-                                            new ArrayList<>());
-                            List<CmoLabelParts> samplesByAltId
-                                    = altIdSamplesMap.getOrDefault(labelParts.getAltId(),
-                                            new ArrayList<>());
-
-                            // bypass label generation if sample does not have applicable data updates
-                            Boolean generateLabel = cmoLabelGeneratorService.sampleHasLabelSpecificUpdates(
-                                            labelParts, existingSamples);
-                            if (!generateLabel) {
-                                LOG.info("No updates to label-specific data for sample: "
-                                        + labelParts.getPrimaryId()
-                                        + " - falling back on existing label in smile if exists");
-                                for (CmoLabelParts s : existingSamples) {
-                                    if (s.getPrimaryId().equals(labelParts.getPrimaryId())) {
-                                        sampleMap.put("cmoSampleName", s.getCmoSampleName());
-                                        samples.set(i, sampleMap);
-                                        break;
-                                    }
-                                }
-                                continue;
-                            }
-
-                            // update sample status map - if validation status is now false then
-                            // that indicates that label could not be generated from current data
-                            statusMap = cmoLabelGeneratorService.generateSampleStatus(
-                                        labelParts, existingSamples, samplesByAltId);
-                            validationStatus = (Boolean) statusMap.get("validationStatus");
-                            if (!validationStatus) {
-                                LOG.error("Unable to generate new CMO sample label for sample: "
-                                        + labelParts.getPrimaryId());
-                            }
-                            sampleMap.put("status", statusMap);
-
-                            // even if validation status is false, the label generator may be able
-                            // to fall back on an existing label from smile store
-                            String resolvedLabel = cmoLabelGeneratorService.generateCmoSampleLabel(
-                                    labelParts, existingSamples, samplesByAltId);
-                            if (resolvedLabel == null) {
-                                LOG.error("Unable to generate new CMO sample label for sample or resolve "
-                                        + "label to use from existing data: "
-                                        + labelParts.getPrimaryId());
-                                samples.set(i, sampleMap);
-                                continue;
-                            }
-                            // if incoming sample has an existing cmo label then ensure that label update is
-                            // meaningful and that label generated is not in use by another sample in smile
-                            if (!StringUtils.isBlank(labelParts.getCmoSampleName())) {
-                                resolvedLabel = resolveLabelAgainstSmileStore(resolvedLabel, labelParts);
-                            }
-                            // update patient sample map and list of updated samples for request
-                            sampleMap.put("cmoSampleName", resolvedLabel);
-                            samples.set(i, sampleMap);
-                            labelParts.setCmoSampleName(resolvedLabel);
-                            patientSamplesMap.put(labelParts.getCmoPatientId(),
-                                    updatePatientSampleList(existingSamples, labelParts));
-                            altIdSamplesMap.put(labelParts.getAltId(),
-                                    updateAltIdSampleList(samplesByAltId, labelParts));
-                        }
-                        // update contents of 'samples' in request json map to publish
-                        // and add updated request json to publisher queue
-                        Map<String, Object> requestJsonMap = mapper.readValue(requestJson, Map.class);
-                        requestJsonMap.put("samples", samples);
-                        String updatedRequestJson = mapper.writeValueAsString(requestJsonMap);
-                        // data dog log message
-                        String ddogLogMessage = cmoLabelGeneratorService.generateValidationReportLog(
-                                requestJson, updatedRequestJson, Boolean.FALSE);
-                        if (ddogLogMessage != null) {
-                            LOG.info(ddogLogMessage);
-                        }
-                        switch (igoRequestDest) {
-                            case NEW_REQUEST_DEST:
-                                igoNewRequestQueue.add(updatedRequestJson);
-                                break;
-                            case PROMOTED_REQUEST_DEST:
-                                igoPromotedRequestQueue.add(updatedRequestJson);
-                                break;
-                            default:
-                                break;
-                        }
+                    HandlerMessage<String> message = labelGeneratorQueue.take();
+                    if (message.isPoisonPill()) {
+                        break;
+                    }
+                    if (!isRequestBatchingEnabled() || isStreamedRequest(message.getPayload())) {
+                        dispatchRequest(message);
+                        continue;
+                    }
+                    List<HandlerMessage<String>> batch = new ArrayList<>();
+                    batch.add(message);
+                    boolean poisonPillTaken = drainRequestBatch(batch);
+                    if (batch.size() == 1) {
+                        dispatchRequest(message);
+                    } else {
+                        dispatchRequestTask(igoRequestDest, () -> generateCmoLabelsForBatch(batch,
+                                igoRequestDest));
                     }
-                    if (interrupted && labelGeneratorQueue.isEmpty()) {
+                    if (poisonPillTaken) {
                         break;
                     }
                 } catch (InterruptedException e) {
-                    interrupted = true;
+                    LOG.warn("Handler interrupted before receiving shutdown signal, stopping");
+                    break;
                 } catch (Exception e) {
                     LOG.error("Error during request handling", e);
                 }
             }
             shutdownLatch.countDown();
         }
+
+        private void dispatchRequest(HandlerMessage<String> message) throws Exception {
+            LabelGenMessageHandlingServiceImpl.this.dispatchRequest(igoRequestDest, message.getPayload(),
+                    getRequestDeadline(message.getCreatedNanos()), message.getPrefetchedContext(),
+                    message.getWalSequence(), 0);
+        }
+
+        /**
+         * Adds queued requests to the batch until it holds the maximum number of requests or
+         * the batch wait has passed, after which only requests already queued are added.
+         * @param batch
+         * @return boolean true if the poison pill was taken, which ends the batch
+         * @throws Exception
+         */
+        private boolean drainRequestBatch(List<HandlerMessage<String>> batch) throws Exception {
+            long batchEndNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_BATCH_MAX_WAIT_MS);
+            while (batch.size() < REQUEST_BATCH_MAX_REQUESTS) {
+                HandlerMessage<String> next = labelGeneratorQueue.poll(
+                        Math.max(0L, batchEndNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    return false;
+                }
+                if (next.isPoisonPill()) {
+                    return true;
+                }
+                if (isStreamedRequest(next.getPayload())) {
+                    dispatchRequest(next);
+                    continue;
+                }
+                batch.add(next);
+            }
+            return false;
+        }
     }
 
     /**
@@ -327,7 +540,6 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
     private class CmoSampleLabelUpdateHandler implements Runnable {
 
         final Phaser phaser;
-        boolean interrupted = false;
 
         /**
          * CmoSampleLabelUpdateHandler constructor.
@@ -342,110 +554,15 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             phaser.arrive();
             while (true) {
                 try {
-                    List<Map<String, Object>> samples
-                            = cmoSampleLabelUpdateQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (samples != null) {
-                        // get existing samples for all patients in the request
-                        Map<String, List<CmoLabelParts>> patientSamplesMap = getPatientSamplesMap(samples);
-                        Map<String, List<CmoLabelParts>> altIdSamplesMap = getAltIdSamplesMap(samples);
-
-                        // orig json map is used for ddog logging
-                        Map<String, String> origSampleJsonMap = new HashMap<>();
-                        for (int i = 0; i < samples.size(); i++) {
-                            Map<String, Object> sampleMap = samples.get(i);
-                            CmoLabelParts labelParts = new CmoLabelParts(sampleMap, null, null);
-                            origSampleJsonMap.put(labelParts.getPrimaryId(),
-                                    labelParts.getOrigSampleJsonStr());
-
-                            // if validation status from validator is false then skip label generation
-                            Map<String, Object> statusMap = mapper.convertValue(
-                                    sampleMap.get("status"), Map.class);
-                            if (statusMap != null && !(Boolean) statusMap.get("validationStatus")) {
-                                continue;
-                            }
-
-                            // get existing patient samples for cmo patient id and by sample alt id
-                            // these lists add context when resolving sample and/or nucleic acid counters
-                            List<CmoLabelParts> existingSamples =
-                                            patientSamplesMap.getOrDefault(labelParts.getCmoPatientId(),
-                                                    new ArrayList<>());
-                            List<CmoLabelParts> samplesByAltId
-                                    = altIdSamplesMap.getOrDefault(labelParts.getAltId(), new ArrayList<>());
-
-                            // bypass label generation if sample does not have applicable data updates
-                            Boolean generateLabel = cmoLabelGeneratorService.sampleHasLabelSpecificUpdates(
-                                            labelParts, existingSamples);
-                            if (!generateLabel) {
-                                LOG.info("No updates to label-specific data for sample: "
-                                        + labelParts.getPrimaryId()
-                                        + " - falling back on existing label in smile if exists");
-                                for (CmoLabelParts s : existingSamples) {
-                                    if (s.getPrimaryId().equals(labelParts.getPrimaryId())) {
-                                        sampleMap.put("cmoSampleName", s.getCmoSampleName());
-                                        samples.set(i, sampleMap);
-                                        break;
-                                    }
-                                }
-                                continue;
-                            }
-
-                            // update sample status map - if validation status is now false then
-                            // that indicates that label could not be generated from current data
-                            statusMap = cmoLabelGeneratorService.generateSampleStatus(
-                                        labelParts, existingSamples, samplesByAltId);
-                            Boolean validationStatus = (Boolean) statusMap.get("validationStatus");
-                            if (!validationStatus) {
-                                LOG.error("Unable to generate new CMO sample label for sample: "
-                                        + labelParts.getPrimaryId());
-                            }
-                            sampleMap.put("status", statusMap);
-
-                            // even if validation status is false, the label generator may be able
-                            // to fall back on an existing label from smile store
-                            String resolvedLabel = cmoLabelGeneratorService.generateCmoSampleLabel(
-                                    labelParts, existingSamples, samplesByAltId);
-                            if (resolvedLabel == null) {
-                                LOG.error("Unable to generate new CMO sample label for sample or resolve "
-                                        + "label to use from existing data: "
-                                        + labelParts.getPrimaryId());
-                                samples.set(i, sampleMap);
-                                continue;
-                            }
-                            // if incoming sample has an existing cmo label then ensure that label update is
-                            // meaningful and that label generated is not in use by another sample in smile
-                            if (!StringUtils.isBlank(labelParts.getCmoSampleName())) {
-                                resolvedLabel = resolveLabelAgainstSmileStore(resolvedLabel, labelParts);
-                            }
-                            // update the sample label for data being sent to smile server and sample lists
-                            sampleMap.put("cmoSampleName", resolvedLabel);
-                            samples.set(i, sampleMap);
-                            labelParts.setCmoSampleName(resolvedLabel);
-                            patientSamplesMap.put(labelParts.getCmoPatientId(),
-                                    updatePatientSampleList(existingSamples, labelParts));
-                            altIdSamplesMap.put(labelParts.getAltId(),
-                                    updateAltIdSampleList(samplesByAltId, labelParts));
-                        }
-
-                        // samples can still publish to the smile server individually but only after
-                        // all possible sample label updates have been completed to avoid clashes with
-                        // numbering when handling updates for samples that share the same patient
-                        for (Map<String, Object> sample : samples) {
-                            // data dog log message
-                            String origSampleJson = origSampleJsonMap.get(sample.get("primaryId").toString());
-                            String ddogLogMessage = cmoLabelGeneratorService.generateValidationReportLog(
-                                    origSampleJson, mapper.writeValueAsString(sample), Boolean.TRUE);
-                            if (ddogLogMessage != null) {
-                                LOG.info(ddogLogMessage);
-                            }
-                            messagingGateway.publish(IGO_SAMPLE_UPDATE_TOPIC,
-                                    mapper.writeValueAsString(sample));
-                        }
-                    }
-                    if (interrupted && cmoSampleLabelUpdateQueue.isEmpty()) {
+                    HandlerMessage<List<Map<String, Object>>> message = cmoSampleLabelUpdateQueue.take();
+                    if (message.isPoisonPill()) {
                         break;
                     }
+                    dispatchSampleUpdates(message.getPayload(),
+                            getRequestDeadline(message.getCreatedNanos()), 0);
                 } catch (InterruptedException e) {
-                    interrupted = true;
+                    LOG.warn("Handler interrupted before receiving shutdown signal, stopping");
+                    break;
                 } catch (Exception e) {
                     LOG.error("Error during request handling", e);
                 }
@@ -454,146 +571,1615 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
         }
     }
 
-    private List<CmoLabelParts> updateAltIdSampleList(List<CmoLabelParts> altIdSamples,
-            CmoLabelParts sample) throws JsonProcessingException {
-        Boolean foundMatching = Boolean.FALSE;
-        // if sample already exists in the existing samples list then simply replace at the matching index
-        String currentPrimaryId = sample.getPrimaryId();
-        for (CmoLabelParts existing : altIdSamples) {
-            String primaryId = existing.getPrimaryId();
-            if (primaryId.equalsIgnoreCase(currentPrimaryId)) {
-                altIdSamples.set(altIdSamples.indexOf(existing), sample);
-                foundMatching = Boolean.TRUE;
-                break;
-            }
+    /**
+     * Message handler for generating CMO labels for requests routed to the large request lane.
+     * Large requests run on their own handler threads so that they do not hold up the
+     * smaller requests queued behind them.
+     */
+    private class LargeRequestHandler implements Runnable {
+
+        final Phaser phaser;
+
+        /**
+         * LargeRequestHandler constructor.
+         * @param phaser
+         */
+        LargeRequestHandler(Phaser phaser) {
+            this.phaser = phaser;
         }
-        // if matching sample not found then append to list and return
-        if (!foundMatching) {
-            altIdSamples.add(sample);
+
+        @Override
+        public void run() {
+            phaser.arrive();
+            while (true) {
+                try {
+                    HandlerMessage<RequestLabelContext> message = largeRequestQueue.take();
+                    if (message.isPoisonPill()) {
+                        break;
+                    }
+                    RequestLabelContext request = message.getPayload();
+                    Deadline deadline = getRequestDeadline(message.getCreatedNanos());
+                    long walSequence = message.getWalSequence();
+                    retryOnFailure(new FailedMessage(request.igoRequestDest.name(), request.requestJson,
+                            false, walSequence), request.attempts,
+                            () -> generateCmoLabelsForRequest(request.requestJson,
+                                    request.igoRequestDest, deadline, null, walSequence)).run();
+                } catch (InterruptedException e) {
+                    LOG.warn("Handler interrupted before receiving shutdown signal, stopping");
+                    break;
+                } catch (Exception e) {
+                    LOG.error("Error during request handling", e);
+                }
+            }
+            largeRequestShutdownLatch.countDown();
         }
-        return altIdSamples;
     }
 
-    private List<CmoLabelParts> updatePatientSampleList(List<CmoLabelParts> existingSamples,
-            CmoLabelParts sample) throws JsonProcessingException {
-        Boolean foundMatching = Boolean.FALSE;
-        // if sample already exists in the existing samples list then simply replace at the matching index
-        String currentPrimaryId = sample.getPrimaryId();
-        for (CmoLabelParts existing : existingSamples) {
-            String primaryId = existing.getPrimaryId();
-            if (primaryId.equalsIgnoreCase(currentPrimaryId)) {
-                existingSamples.set(existingSamples.indexOf(existing), sample);
-                foundMatching = Boolean.TRUE;
-                break;
-            }
+    /**
+     * Working state of a request as it moves through label generation.
+     */
+    private class RequestLabelContext {
+        final String requestJson;
+        final IgoRequestDest igoRequestDest;
+        String requestId;
+        Object isCmoRequest;
+        List<Map<String, Object>> samples;
+        List<String> patientKeys;
+        boolean leasesAcquired = false;
+        // cmo label => primary id of each label reserved for the request's samples
+        Map<String, String> reservedLabels = new HashMap<>();
+        Map<String, List<CmoLabelParts>> patientSamplesMap;
+        Map<String, List<CmoLabelParts>> altIdSamplesMap;
+        String updatedRequestJson;
+        Deadline deadline = Deadline.none();
+        PrefetchedContext prefetchedContext;
+        long walSequence = HandlerMessage.NO_WAL_SEQUENCE;
+        // number of times handling the request has failed before
+        int attempts = 0;
+
+        RequestLabelContext(String requestJson, IgoRequestDest igoRequestDest) {
+            this.requestJson = requestJson;
+            this.igoRequestDest = igoRequestDest;
         }
-        // if matching sample not found then append to list and return
-        if (!foundMatching) {
-            existingSamples.add(sample);
+    }
+
+    /**
+     * Message whose handling failed and which is waiting to be retried. The flow is the
+     * request destination name or the sample label update flow. A labeled request only
+     * failed to publish so its retry claims its labels again and publishes it instead of
+     * generating labels. A request keeps its write-ahead log sequence across retries.
+     */
+    private static class FailedMessage {
+        final String flow;
+        final String payload;
+        final boolean labeled;
+        final long walSequence;
+
+        FailedMessage(String flow, String payload, boolean labeled, long walSequence) {
+            this.flow = flow;
+            this.payload = payload;
+            this.labeled = labeled;
+            this.walSequence = walSequence;
         }
-        return existingSamples;
     }
 
-    private Map<String, List<CmoLabelParts>> getPatientSamplesMap(List<Map<String, Object>> samples)
-            throws Exception {
-        Map<String, List<CmoLabelParts>> patientSamplesMap = new HashMap<>();
-        for (Map<String, Object> sm : samples) {
-            // get or request existing patient samples and update patient sample mapping
-            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
-            if (StringUtils.isBlank(sample.getCmoPatientId())
-                    || patientSamplesMap.containsKey(sample.getCmoPatientId())) {
-                continue;
+    /**
+     * Settles the labels of a request which left the publisher and hands back its patient
+     * leases. A published request is marked complete in the write-ahead log and dedup window.
+     * @param igoRequestDest
+     * @param requestJson
+     * @param published
+     * @param walSequence
+     * @throws Exception
+     */
+    private void finishPublishedRequest(IgoRequestDest igoRequestDest, String requestJson,
+            Boolean published, long walSequence) throws Exception {
+        settleRequestLabels(requestJson, published);
+        if (published) {
+            completeWriteAheadLogEntry(walSequence);
+        }
+        if (requestDedupWindow != null) {
+            // remember the output so an identical redelivery can be answered with it
+            if (published) {
+                requestDedupWindow.complete(walSequence, requestJson);
+            } else {
+                requestDedupWindow.forget(walSequence);
             }
-            List<CmoLabelParts> ptSamples = getExistingPatientSamples(sample.getCmoPatientId());
-            patientSamplesMap.put(sample.getCmoPatientId(),
-                    new ArrayList<>(ptSamples));
         }
-        return patientSamplesMap;
     }
 
-    private List<CmoLabelParts> getExistingPatientSamples(String cmoPatientId) throws Exception {
-        Message reply = messagingGateway.request(PATIENT_SAMPLES_REQUEST_TOPIC,
-                    cmoPatientId);
-        List<Object> sampleObjList = mapper.readValue(
-                new String(reply.getData(), StandardCharsets.UTF_8),
-                List.class);
-        List<CmoLabelParts> samples = new ArrayList<>();
-        for (Object s : sampleObjList) {
-            Map<String, Object> sm = mapper.convertValue(s, Map.class);
-            samples.add(new CmoLabelParts(sm, null, null));
+    /**
+     * Settles the labels of the samples in a request and hands back its patient leases.
+     * @param requestJson
+     * @param published
+     * @throws Exception
+     */
+    private void settleRequestLabels(String requestJson, Boolean published) throws Exception {
+        List<String> patientKeys;
+        if (isStreamedRequest(requestJson)) {
+            StreamingRequest request = StreamingRequest.scan(mapper, requestJson);
+            patientKeys = getPatientKeys(request);
+            StreamingRequest.forEachSample(mapper, requestJson,
+                    sample -> settleCmoLabel(sample, request.getRequestId(), published));
+        } else {
+            List<Map<String, Object>> samples = getSamplesFromRequestJson(requestJson);
+            String requestId = getRequestIdFromRequestJson(requestJson);
+            for (Map<String, Object> sample : samples) {
+                settleCmoLabel(sample, requestId, published);
+            }
+            patientKeys = getPatientKeys(samples, requestId);
         }
-        return samples;
+        // hand the patient partitions back once the request has left the service
+        releasePatientLeases(patientKeys);
     }
 
-    private List<CmoLabelParts> getSamplesByCmoLabel(String cmoLabel) throws Exception {
-        // return empty list if cmo label is null/empty
-        if (StringUtils.isBlank(cmoLabel)) {
-            return new ArrayList<>();
+    /**
+     * Generates CMO labels for the samples in a request and adds the updated request json
+     * to the publisher queue for the given destination.
+     * @param requestJson
+     * @param igoRequestDest
+     * @param deadline
+     * @param prefetchedContext context lookups started when the request was received, or null
+     * @param walSequence
+     * @throws Exception
+     */
+    private void generateCmoLabelsForRequest(String requestJson, IgoRequestDest igoRequestDest,
+            Deadline deadline, PrefetchedContext prefetchedContext, long walSequence) throws Exception {
+        RequestLabelContext context = new RequestLabelContext(requestJson, igoRequestDest);
+        context.deadline = deadline;
+        context.prefetchedContext = prefetchedContext;
+        context.walSequence = walSequence;
+        try {
+            if (isStreamedRequest(requestJson)) {
+                generateCmoLabelsForStreamedRequest(context);
+            } else {
+                decodeRequest(context);
+                fetchRequestContext(context);
+                assignRequestLabels(context);
+                serializeRequest(context);
+            }
+            publishRequest(context);
+        } catch (Exception e) {
+            abandonRequest(context);
+            throw e;
         }
+    }
 
-        Message reply = messagingGateway.request(SAMPLES_BY_CMO_LABEL_REQREPLY_TOPIC,
-                    cmoLabel);
-        List<Object> sampleObjList = mapper.readValue(
-                new String(reply.getData(), StandardCharsets.UTF_8),
-                List.class);
-        List<CmoLabelParts> samples = new ArrayList<>();
-        for (Object s : sampleObjList) {
-            Map<String, Object> sm = mapper.convertValue(s, Map.class);
-            samples.add(new CmoLabelParts(sm, null, null));
+    /**
+     * Generates CMO labels for a large request one chunk of samples at a time. The patients of
+     * the request are leased up front from a pass over the request which does not build the
+     * samples. Existing samples are fetched for the patients and alt ids first seen in each
+     * chunk and dropped after the last sample which needs them, so besides the request and
+     * labeled request json only the current chunk and the context of patients still to come
+     * are held while the labeled request is written.
+     * @param context
+     * @throws Exception
+     */
+    private void generateCmoLabelsForStreamedRequest(RequestLabelContext context) throws Exception {
+        StreamingRequest request = StreamingRequest.scan(mapper, context.requestJson);
+        context.requestId = request.getRequestId();
+        LOG.info("Streaming " + request.getSampleCount() + " samples from request received: "
+                + context.requestId);
+        context.isCmoRequest = request.getField(mapper, "isCmoRequest");
+        context.patientKeys = getPatientKeys(request);
+        context.deadline.check("fetching context for request " + context.requestId);
+        cmoLabelRegistryService.acquirePatientLeases(context.patientKeys);
+        context.leasesAcquired = true;
+        PrefetchedContext prefetched = takeFreshPrefetchedContext(context);
+        Map<String, Future<List<CmoLabelParts>>> patientPrefetched = (prefetched == null)
+                ? new HashMap<>() : prefetched.getPatientSamples();
+        Map<String, Future<List<CmoLabelParts>>> altIdPrefetched = (prefetched == null)
+                ? new HashMap<>() : prefetched.getAltIdSamples();
+        Map<String, Integer> patientSamplesLeft = request.getSamplesPerPatient();
+        Map<String, Integer> altIdSamplesLeft = request.getSamplesPerAltId();
+        Set<String> fetchedAltIds = new HashSet<>();
+        context.patientSamplesMap = new HashMap<>();
+        context.altIdSamplesMap = new HashMap<>();
+        StringBuilder sampleReports = new StringBuilder();
+        context.updatedRequestJson = StreamingRequest.label(mapper, context.requestJson,
+                STREAMING_CHUNK_SAMPLES, chunk -> {
+                    context.samples = chunk;
+                    fetchChunkContext(context, fetchedAltIds, patientPrefetched, altIdPrefetched);
+                    assignRequestLabels(context);
+                    for (Map<String, Object> sampleMap : chunk) {
+                        String sampleReport = cmoLabelGeneratorService.generateSampleValidationReportLog(
+                                sampleMap);
+                        if (sampleReport != null) {
+                            sampleReports.append(sampleReport);
+                        }
+                        // drop the context of patients and alt ids with no samples left to label
+                        CmoLabelParts sample = new CmoLabelParts(sampleMap, null, null);
+                        if (isLastSampleOf(patientSamplesLeft, sample.getCmoPatientId())) {
+                            context.patientSamplesMap.remove(sample.getCmoPatientId());
+                            context.altIdSamplesMap.remove(sample.getCmoPatientId());
+                            patientPrefetched.remove(sample.getCmoPatientId());
+                        }
+                        if (isLastSampleOf(altIdSamplesLeft, sample.getAltId())) {
+                            context.altIdSamplesMap.remove(sample.getAltId());
+                            altIdPrefetched.remove(sample.getAltId());
+                            fetchedAltIds.remove(sample.getAltId());
+                        }
+                    }
+                });
+        context.samples = null;
+        // data dog log message, built from the request without its samples and the sample reports
+        String envelopeJson = request.getEnvelopeJson(mapper);
+        String requestReport = cmoLabelGeneratorService.generateValidationReportLog(
+                envelopeJson, envelopeJson, Boolean.FALSE);
+        if (requestReport != null || sampleReports.length() > 0) {
+            LOG.info(Objects.toString(requestReport, "") + sampleReports);
         }
-        return samples;
     }
 
-    private Map<String, List<CmoLabelParts>> getAltIdSamplesMap(List<Map<String, Object>> samples)
-            throws Exception {
-        Map<String, List<CmoLabelParts>> altIdSamplesMap = new HashMap<>();
-        for (Map<String, Object> sm : samples) {
-            // get or request existing patient samples and update patient sample mapping
-            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
-            if (StringUtils.isBlank(sample.getAltId())
-                    || altIdSamplesMap.containsKey(sample.getAltId())) {
-                continue;
+    /**
+     * Fetches the existing samples for the patients and alt ids of the current chunk which
+     * were not fetched for an earlier chunk.
+     * @param context
+     * @param fetchedAltIds
+     * @param patientPrefetched
+     * @param altIdPrefetched
+     * @throws Exception
+     */
+    private void fetchChunkContext(RequestLabelContext context, Set<String> fetchedAltIds,
+            Map<String, Future<List<CmoLabelParts>>> patientPrefetched,
+            Map<String, Future<List<CmoLabelParts>>> altIdPrefetched) throws Exception {
+        List<Map<String, Object>> newPatientSamples = new ArrayList<>();
+        List<Map<String, Object>> newAltIdSamples = new ArrayList<>();
+        for (Map<String, Object> sampleMap : context.samples) {
+            CmoLabelParts sample = new CmoLabelParts(sampleMap, null, null);
+            if (!StringUtils.isBlank(sample.getCmoPatientId())
+                    && !context.patientSamplesMap.containsKey(sample.getCmoPatientId())) {
+                newPatientSamples.add(sampleMap);
+            }
+            if (!StringUtils.isBlank(sample.getAltId()) && fetchedAltIds.add(sample.getAltId())) {
+                newAltIdSamples.add(sampleMap);
             }
-            List<CmoLabelParts> altIdSamples = getSamplesByAltId(sample.getAltId());
-            altIdSamplesMap.put(sample.getCmoPatientId(),
-                    new ArrayList<>(altIdSamples));
         }
-        return altIdSamplesMap;
+        getPatientSamplesMap(newPatientSamples, context.deadline, patientPrefetched)
+                .forEach(context.patientSamplesMap::putIfAbsent);
+        getAltIdSamplesMap(newAltIdSamples, context.deadline, altIdPrefetched)
+                .forEach(context.altIdSamplesMap::putIfAbsent);
     }
 
-    private List<CmoLabelParts> getSamplesByAltId(String altId) throws Exception {
-        // return empty list if alt id is null/empty
-        if (StringUtils.isBlank(altId)) {
-            return new ArrayList<>();
+    /**
+     * Counts down the samples left for the key and returns true once none are left.
+     * @param samplesLeft
+     * @param key
+     * @return boolean
+     */
+    private boolean isLastSampleOf(Map<String, Integer> samplesLeft, String key) {
+        if (StringUtils.isBlank(key) || !samplesLeft.containsKey(key)) {
+            return false;
         }
+        return samplesLeft.computeIfPresent(key, (k, count) -> (count > 1) ? count - 1 : null) == null;
+    }
 
-        Message reply = messagingGateway.request(SAMPLES_BY_ALT_ID_REQREPLY_TOPIC,
-                    altId);
-        List<Object> sampleObjList = mapper.readValue(
-                new String(reply.getData(), StandardCharsets.UTF_8),
-                List.class);
-        List<CmoLabelParts> samples = new ArrayList<>();
-        for (Object s : sampleObjList) {
-            Map<String, Object> sm = mapper.convertValue(s, Map.class);
-            samples.add(new CmoLabelParts(sm, null, null));
-        }
-        return samples;
+    /**
+     * Returns true if the request is labeled in chunks because its UTF-8 payload reaches the
+     * streaming threshold.
+     * @param requestJson
+     * @return boolean
+     */
+    private boolean isStreamedRequest(String requestJson) {
+        return STREAMING_MIN_PAYLOAD_KB > 0
+                && StreamingRequest.hasUtf8BytesAtLeast(requestJson, STREAMING_MIN_PAYLOAD_KB * 1024L);
     }
 
-    private Boolean isCmoLabelAlreadyInUse(String primaryId, String cmoLabel) throws Exception {
-        List<CmoLabelParts> samplesByCmoLabel = getSamplesByCmoLabel(cmoLabel);
-        for (CmoLabelParts sm : samplesByCmoLabel) {
-            // if there are any samples returned that aren't the same primary id
-            // as the one provided then that indicates that the cmo label already exists
-            // in smile and is associated with a different sample
-            if (!sm.getPrimaryId().equals(primaryId)) {
-                return Boolean.TRUE;
+    /**
+     * Generates CMO labels for a batch of requests taken from the same queue. The union of the
+     * patients of every request is leased in one call and the existing samples for the union of
+     * their patients and alt ids are fetched at once, bounded by the earliest deadline in the
+     * batch. The requests
+     * are then labeled in arrival order against that shared context, which each request updates
+     * with the labels it issues. A request which fails is retried on its own, and so are the
+     * requests after it since the shared context may hold labels from the failed request.
+     * @param batch
+     * @param igoRequestDest
+     */
+    private void generateCmoLabelsForBatch(List<HandlerMessage<String>> batch,
+            IgoRequestDest igoRequestDest) {
+        List<RequestLabelContext> contexts = new ArrayList<>();
+        List<Map<String, Object>> batchSamples = new ArrayList<>();
+        Map<String, Future<List<CmoLabelParts>>> patientPrefetched = new HashMap<>();
+        Map<String, Future<List<CmoLabelParts>>> altIdPrefetched = new HashMap<>();
+        for (HandlerMessage<String> message : batch) {
+            RequestLabelContext context = new RequestLabelContext(message.getPayload(), igoRequestDest);
+            context.deadline = getRequestDeadline(message.getCreatedNanos());
+            context.prefetchedContext = message.getPrefetchedContext();
+            context.walSequence = message.getWalSequence();
+            try {
+                decodeRequest(context);
+                context.deadline.check("fetching context for request " + context.requestId);
+            } catch (Exception e) {
+                failBatchedRequest(context, e);
+                continue;
             }
+            contexts.add(context);
+        }
+        if (contexts.isEmpty() || !acquireBatchPatientLeases(contexts)) {
+            return;
+        }
+        Deadline batchDeadline = contexts.get(0).deadline;
+        for (RequestLabelContext context : contexts) {
+            PrefetchedContext prefetched = takeFreshPrefetchedContext(context);
+            if (prefetched != null) {
+                prefetched.getPatientSamples().forEach(patientPrefetched::putIfAbsent);
+                prefetched.getAltIdSamples().forEach(altIdPrefetched::putIfAbsent);
+            }
+            batchSamples.addAll(context.samples);
+            if (context.deadline.remainingNanos() < batchDeadline.remainingNanos()) {
+                batchDeadline = context.deadline;
+            }
+        }
+        Map<String, List<CmoLabelParts>> patientSamplesMap;
+        Map<String, List<CmoLabelParts>> altIdSamplesMap;
+        try {
+            patientSamplesMap = getPatientSamplesMap(batchSamples, batchDeadline, patientPrefetched);
+            altIdSamplesMap = getAltIdSamplesMap(batchSamples, batchDeadline, altIdPrefetched);
+        } catch (Exception e) {
+            for (RequestLabelContext context : contexts) {
+                failBatchedRequest(context, e);
+            }
+            return;
+        }
+        requestBatchCount.incrementAndGet();
+        batchedRequestCount.addAndGet(contexts.size());
+        for (int i = 0; i < contexts.size(); i++) {
+            RequestLabelContext context = contexts.get(i);
+            context.patientSamplesMap = patientSamplesMap;
+            context.altIdSamplesMap = altIdSamplesMap;
+            try {
+                assignRequestLabels(context);
+                serializeRequest(context);
+                publishRequest(context);
+            } catch (Exception e) {
+                failBatchedRequest(context, e);
+                for (RequestLabelContext remaining : contexts.subList(i + 1, contexts.size())) {
+                    releasePatientLeases(remaining.patientKeys);
+                    logFailures(retryOnFailure(new FailedMessage(igoRequestDest.name(), remaining.requestJson,
+                            false, remaining.walSequence), remaining.attempts,
+                            () -> generateCmoLabelsForRequest(remaining.requestJson, igoRequestDest,
+                                    remaining.deadline, null, remaining.walSequence))).run();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Leases the union of the patients of a batch in one call, so that its partitions are
+     * acquired in ascending order like those of a single request, then takes a reference on
+     * the leases of each request for the publisher to hand back. If the leases cannot be
+     * acquired every request in the batch is failed.
+     * @param contexts
+     * @return boolean true if the leases were acquired
+     */
+    private boolean acquireBatchPatientLeases(List<RequestLabelContext> contexts) {
+        Set<String> batchPatientKeys = new LinkedHashSet<>();
+        for (RequestLabelContext context : contexts) {
+            batchPatientKeys.addAll(context.patientKeys);
+        }
+        try {
+            cmoLabelRegistryService.acquirePatientLeases(batchPatientKeys);
+        } catch (Exception e) {
+            for (RequestLabelContext context : contexts) {
+                failBatchedRequest(context, e);
+            }
+            return false;
+        }
+        try {
+            // the partitions are already held so these only count references
+            for (RequestLabelContext context : contexts) {
+                cmoLabelRegistryService.acquirePatientLeases(context.patientKeys);
+                context.leasesAcquired = true;
+            }
+        } catch (Exception e) {
+            for (RequestLabelContext context : contexts) {
+                failBatchedRequest(context, e);
+            }
+            return false;
+        } finally {
+            // nothing was published under the batch reference so prefetches stay fresh
+            cmoLabelRegistryService.releasePatientLeases(batchPatientKeys);
+        }
+        return true;
+    }
+
+    /**
+     * Releases what a batched request holds and schedules it for retry on its own.
+     * @param context
+     * @param e
+     */
+    private void failBatchedRequest(RequestLabelContext context, Exception e) {
+        LOG.error("Failed to generate labels for batched request: " + context.requestId, e);
+        abandonRequest(context);
+        if (retryScheduler != null) {
+            retryScheduler.schedule(new FailedMessage(context.igoRequestDest.name(), context.requestJson,
+                    false, context.walSequence), context.attempts + 1, e);
+        }
+    }
+
+    /**
+     * Returns whether queued requests are labeled in batches. Batching is not combined with
+     * patient lanes or the staged pipeline, which order requests themselves.
+     * @return boolean
+     */
+    private boolean isRequestBatchingEnabled() {
+        return REQUEST_BATCH_MAX_REQUESTS > 1 && patientLaneExecutor == null
+                && requestPipelineStages == null;
+    }
+
+    /**
+     * Extracts the request id, samples and patients from the request json.
+     * @param context
+     * @throws Exception
+     */
+    private void decodeRequest(RequestLabelContext context) throws Exception {
+        context.requestId = getRequestIdFromRequestJson(context.requestJson);
+        LOG.info("Extracting samples from request received: " + context.requestId);
+        context.samples = getSamplesFromRequestJson(context.requestJson);
+        // get is cmo request for label generator
+        context.isCmoRequest = getIsCmoRequestFromRequestJson(context.requestJson);
+        context.patientKeys = getPatientKeys(context.samples, context.requestId);
+    }
+
+    /**
+     * Leases the request's patients and fetches the existing samples for all patients and
+     * alt ids in the request. Leases are released by the publisher once the updated request
+     * has been published.
+     * @param context
+     * @throws Exception
+     */
+    private void fetchRequestContext(RequestLabelContext context) throws Exception {
+        context.deadline.check("fetching context for request " + context.requestId);
+        cmoLabelRegistryService.acquirePatientLeases(context.patientKeys);
+        context.leasesAcquired = true;
+        PrefetchedContext prefetched = takeFreshPrefetchedContext(context);
+        context.patientSamplesMap = getPatientSamplesMap(context.samples, context.deadline,
+                (prefetched == null) ? null : prefetched.getPatientSamples());
+        context.altIdSamplesMap = getAltIdSamplesMap(context.samples, context.deadline,
+                (prefetched == null) ? null : prefetched.getAltIdSamples());
+    }
+
+    /**
+     * Generates and reserves a CMO label for each sample in the request.
+     * @param context
+     * @throws Exception
+     */
+    private void assignRequestLabels(RequestLabelContext context) throws Exception {
+        String requestId = context.requestId;
+        Object isCmoRequest = context.isCmoRequest;
+        List<Map<String, Object>> samples = context.samples;
+        Map<String, List<CmoLabelParts>> patientSamplesMap = context.patientSamplesMap;
+        Map<String, List<CmoLabelParts>> altIdSamplesMap = context.altIdSamplesMap;
+
+        // udpated samples list will store samples which had a label generated successfully
+        for (int i = 0; i < samples.size(); i++) {
+            context.deadline.check("labeling samples for request " + requestId);
+            Map<String, Object> sampleMap = samples.get(i);
+            CmoLabelParts labelParts = new CmoLabelParts(sampleMap, requestId, isCmoRequest);
+
+            Map<String, Object> statusMap = mapper.convertValue(
+                    sampleMap.get("status"), Map.class);
+
+            // if validation status from validator is false then skip label generation
+            Boolean validationStatus = (Boolean) statusMap.get("validationStatus");
+            if (!validationStatus) {
+                continue;
+            }
+
+            // get existing patient samples for cmo patient id and by sample alt id
+            // these lists add context when resolving sample and/or nucleic acid counters
+            List<CmoLabelParts> existingSamples =
+                    patientSamplesMap.getOrDefault(labelParts.getCmoPatientId(),
+                            new ArrayList<>());
+            List<CmoLabelParts> samplesByAltId
+                    = altIdSamplesMap.getOrDefault(labelParts.getAltId(),
+                            new ArrayList<>());
+
+            // bypass label generation if sample does not have applicable data updates
+            Boolean generateLabel = cmoLabelGeneratorService.sampleHasLabelSpecificUpdates(
+                            labelParts, existingSamples);
+            if (!generateLabel) {
+                LOG.info("No updates to label-specific data for sample: "
+                        + labelParts.getPrimaryId()
+                        + " - falling back on existing label in smile if exists");
+                for (CmoLabelParts s : existingSamples) {
+                    if (s.getPrimaryId().equals(labelParts.getPrimaryId())) {
+                        sampleMap.put("cmoSampleName", s.getCmoSampleName());
+                        samples.set(i, sampleMap);
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            // update sample status map - if validation status is now false then
+            // that indicates that label could not be generated from current data
+            statusMap = cmoLabelGeneratorService.generateSampleStatus(
+                        labelParts, existingSamples, samplesByAltId);
+            validationStatus = (Boolean) statusMap.get("validationStatus");
+            if (!validationStatus) {
+                LOG.error("Unable to generate new CMO sample label for sample: "
+                        + labelParts.getPrimaryId());
+            }
+            sampleMap.put("status", statusMap);
+
+            // even if validation status is false, the label generator may be able
+            // to fall back on an existing label from smile store
+            String resolvedLabel = cmoLabelGeneratorService.generateCmoSampleLabel(
+                    labelParts, existingSamples, samplesByAltId);
+            if (resolvedLabel == null) {
+                LOG.error("Unable to generate new CMO sample label for sample or resolve "
+                        + "label to use from existing data: "
+                        + labelParts.getPrimaryId());
+                samples.set(i, sampleMap);
+                continue;
+            }
+            // if incoming sample has an existing cmo label then ensure that label update is
+            // meaningful and that label generated is not in use by another sample in smile
+            if (!StringUtils.isBlank(labelParts.getCmoSampleName())) {
+                resolvedLabel = resolveLabelAgainstSmileStore(resolvedLabel, labelParts, context.deadline);
+            }
+            // claim the label so that no other handler issues it while it is in flight
+            resolvedLabel = reserveResolvedLabel(resolvedLabel, labelParts, context.deadline);
+            if (resolvedLabel != null) {
+                context.reservedLabels.put(resolvedLabel, labelParts.getPrimaryId());
+            }
+            // update patient sample map and list of updated samples for request
+            sampleMap.put("cmoSampleName", resolvedLabel);
+            samples.set(i, sampleMap);
+            labelParts.setCmoSampleName(resolvedLabel);
+            patientSamplesMap.put(labelParts.getCmoPatientId(),
+                    updatePatientSampleList(existingSamples, labelParts));
+            altIdSamplesMap.put(labelParts.getAltId(),
+                    updateAltIdSampleList(samplesByAltId, labelParts));
+        }
+    }
+
+    /**
+     * Writes the samples with their labels back into the request json and logs the
+     * validation report for the request.
+     * @param context
+     * @throws Exception
+     */
+    private void serializeRequest(RequestLabelContext context) throws Exception {
+        // update contents of 'samples' in request json map to publish
+        Map<String, Object> requestJsonMap = mapper.readValue(context.requestJson, Map.class);
+        requestJsonMap.put("samples", context.samples);
+        context.updatedRequestJson = mapper.writeValueAsString(requestJsonMap);
+        // data dog log message
+        String ddogLogMessage = cmoLabelGeneratorService.generateValidationReportLog(
+                context.requestJson, context.updatedRequestJson, Boolean.FALSE);
+        if (ddogLogMessage != null) {
+            LOG.info(ddogLogMessage);
+        }
+    }
+
+    /**
+     * Adds the updated request json to the publisher queue for the request destination.
+     * @param context
+     * @throws Exception
+     */
+    private void publishRequest(RequestLabelContext context) throws Exception {
+        switch (context.igoRequestDest) {
+            case NEW_REQUEST_DEST:
+                igoNewRequestQueue.put(HandlerMessage.ofJson(context.updatedRequestJson, null,
+                        context.walSequence));
+                break;
+            case PROMOTED_REQUEST_DEST:
+                igoPromotedRequestQueue.put(HandlerMessage.ofJson(context.updatedRequestJson, null,
+                        context.walSequence));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Releases what a request holds when label generation fails before it reaches the publisher.
+     * With retries enabled the request stays pending in the write-ahead log and dedup window
+     * until a retry publishes it or it is dead-lettered.
+     * @param context
+     */
+    private void abandonRequest(RequestLabelContext context) {
+        releaseCmoLabels(context.reservedLabels);
+        if (context.leasesAcquired) {
+            releasePatientLeases(context.patientKeys);
+        }
+        if (retryScheduler == null) {
+            // the failure has been logged, replaying the request after a restart would fail again
+            settleFailedRequest(context.walSequence);
+        }
+    }
+
+    /**
+     * Marks a request which will not be published complete in the write-ahead log and forgets
+     * it in the dedup window so that a redelivery is handled again.
+     * @param walSequence
+     */
+    private void settleFailedRequest(long walSequence) {
+        completeWriteAheadLogEntry(walSequence);
+        if (requestDedupWindow != null) {
+            requestDedupWindow.forget(walSequence);
+        }
+    }
+
+    /**
+     * Releases the reservations on labels which will not be published.
+     * @param reservedLabels cmo label => primary id
+     */
+    private void releaseCmoLabels(Map<String, String> reservedLabels) {
+        reservedLabels.forEach((cmoLabel, primaryId) ->
+                cmoLabelRegistryService.releaseCmoLabel(primaryId, cmoLabel));
+        reservedLabels.clear();
+    }
+
+    /**
+     * Generates new CMO labels for a list of updated samples and publishes each sample
+     * to the smile sample update topic. When the batch topic is set the samples of each patient
+     * are also published there as one message. The patients stay leased until every update
+     * queued on the pipelined publisher has been published, so that no other instance or lane
+     * labels them from smile data which does not have the updates yet.
+     * @param samples
+     * @param deadline
+     * @throws Exception
+     */
+    private void generateCmoLabelsForSampleUpdates(List<Map<String, Object>> samples, Deadline deadline)
+            throws Exception {
+        deadline.check("fetching context for sample updates");
+        List<String> patientKeys = getPatientKeys(samples, CMO_LABEL_UPDATE_TOPIC);
+        cmoLabelRegistryService.acquirePatientLeases(patientKeys);
+        Map<String, String> reservedLabels = new HashMap<>();
+        List<CompletableFuture<Void>> publishes = new ArrayList<>();
+        try {
+            updateSampleLabels(samples, deadline, reservedLabels, publishes);
+        } catch (Exception e) {
+            // labels already published were settled, releasing them again does nothing
+            releaseCmoLabels(reservedLabels);
+            throw e;
+        } finally {
+            CompletableFuture.allOf(publishes.toArray(new CompletableFuture[0]))
+                    .whenComplete((result, error) -> releasePatientLeases(patientKeys));
+        }
+    }
+
+    private void updateSampleLabels(List<Map<String, Object>> samples, Deadline deadline,
+            Map<String, String> reservedLabels, List<CompletableFuture<Void>> publishes) throws Exception {
+        // get existing samples for all patients in the request
+        Map<String, List<CmoLabelParts>> patientSamplesMap = getPatientSamplesMap(samples, deadline, null);
+        Map<String, List<CmoLabelParts>> altIdSamplesMap = getAltIdSamplesMap(samples, deadline, null);
+
+        // orig json map is used for ddog logging
+        Map<String, String> origSampleJsonMap = new HashMap<>();
+        for (int i = 0; i < samples.size(); i++) {
+            deadline.check("labeling sample updates");
+            Map<String, Object> sampleMap = samples.get(i);
+            CmoLabelParts labelParts = new CmoLabelParts(sampleMap, null, null);
+            origSampleJsonMap.put(labelParts.getPrimaryId(),
+                    labelParts.getOrigSampleJsonStr());
+            // incoming sample carries the label currently held in smile
+            cmoLabelRegistryService.recordCmoLabel(labelParts.getPrimaryId(),
+                    labelParts.getCmoSampleName());
+
+            // if validation status from validator is false then skip label generation
+            Map<String, Object> statusMap = mapper.convertValue(
+                    sampleMap.get("status"), Map.class);
+            if (statusMap != null && !(Boolean) statusMap.get("validationStatus")) {
+                continue;
+            }
+
+            // get existing patient samples for cmo patient id and by sample alt id
+            // these lists add context when resolving sample and/or nucleic acid counters
+            List<CmoLabelParts> existingSamples =
+                            patientSamplesMap.getOrDefault(labelParts.getCmoPatientId(),
+                                    new ArrayList<>());
+            List<CmoLabelParts> samplesByAltId
+                    = altIdSamplesMap.getOrDefault(labelParts.getAltId(), new ArrayList<>());
+
+            // bypass label generation if sample does not have applicable data updates
+            Boolean generateLabel = cmoLabelGeneratorService.sampleHasLabelSpecificUpdates(
+                            labelParts, existingSamples);
+            if (!generateLabel) {
+                LOG.info("No updates to label-specific data for sample: "
+                        + labelParts.getPrimaryId()
+                        + " - falling back on existing label in smile if exists");
+                for (CmoLabelParts s : existingSamples) {
+                    if (s.getPrimaryId().equals(labelParts.getPrimaryId())) {
+                        sampleMap.put("cmoSampleName", s.getCmoSampleName());
+                        samples.set(i, sampleMap);
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            // update sample status map - if validation status is now false then
+            // that indicates that label could not be generated from current data
+            statusMap = cmoLabelGeneratorService.generateSampleStatus(
+                        labelParts, existingSamples, samplesByAltId);
+            Boolean validationStatus = (Boolean) statusMap.get("validationStatus");
+            if (!validationStatus) {
+                LOG.error("Unable to generate new CMO sample label for sample: "
+                        + labelParts.getPrimaryId());
+            }
+            sampleMap.put("status", statusMap);
+
+            // even if validation status is false, the label generator may be able
+            // to fall back on an existing label from smile store
+            String resolvedLabel = cmoLabelGeneratorService.generateCmoSampleLabel(
+                    labelParts, existingSamples, samplesByAltId);
+            if (resolvedLabel == null) {
+                LOG.error("Unable to generate new CMO sample label for sample or resolve "
+                        + "label to use from existing data: "
+                        + labelParts.getPrimaryId());
+                samples.set(i, sampleMap);
+                continue;
+            }
+            // if incoming sample has an existing cmo label then ensure that label update is
+            // meaningful and that label generated is not in use by another sample in smile
+            if (!StringUtils.isBlank(labelParts.getCmoSampleName())) {
+                resolvedLabel = resolveLabelAgainstSmileStore(resolvedLabel, labelParts, deadline);
+            }
+            // claim the label so that no other handler issues it while it is in flight
+            resolvedLabel = reserveResolvedLabel(resolvedLabel, labelParts, deadline);
+            if (resolvedLabel != null) {
+                reservedLabels.put(resolvedLabel, labelParts.getPrimaryId());
+            }
+            // update the sample label for data being sent to smile server and sample lists
+            sampleMap.put("cmoSampleName", resolvedLabel);
+            samples.set(i, sampleMap);
+            labelParts.setCmoSampleName(resolvedLabel);
+            patientSamplesMap.put(labelParts.getCmoPatientId(),
+                    updatePatientSampleList(existingSamples, labelParts));
+            altIdSamplesMap.put(labelParts.getAltId(),
+                    updateAltIdSampleList(samplesByAltId, labelParts));
+        }
+
+        // samples can still publish to the smile server individually but only after
+        // all possible sample label updates have been completed to avoid clashes with
+        // numbering when handling updates for samples that share the same patient
+        Map<String, List<Map<String, Object>>> patientBatches = new LinkedHashMap<>();
+        for (Map<String, Object> sample : samples) {
+            // data dog log message
+            String sampleJson = mapper.writeValueAsString(sample);
+            String origSampleJson = origSampleJsonMap.get(sample.get("primaryId").toString());
+            String ddogLogMessage = cmoLabelGeneratorService.generateValidationReportLog(
+                    origSampleJson, sampleJson, Boolean.TRUE);
+            if (ddogLogMessage != null) {
+                LOG.info(ddogLogMessage);
+            }
+            publishes.add(publishSampleUpdate(sample.get("primaryId").toString(),
+                    IGO_SAMPLE_UPDATE_TOPIC, sampleJson, List.of(sample)));
+            patientBatches.computeIfAbsent(Objects.toString(sample.get("cmoPatientId"), ""),
+                    k -> new ArrayList<>()).add(sample);
+        }
+        if (!StringUtils.isBlank(IGO_SAMPLE_UPDATE_BATCH_TOPIC)) {
+            // one message per patient for consumers of the batched format, the labels
+            // are settled by the per-sample messages
+            for (Map.Entry<String, List<Map<String, Object>>> batch : patientBatches.entrySet()) {
+                publishes.add(publishSampleUpdate(batch.getKey(), IGO_SAMPLE_UPDATE_BATCH_TOPIC,
+                        mapper.writeValueAsString(batch.getValue()), List.of()));
+            }
+        }
+    }
+
+    /**
+     * Publishes a sample update message and settles the labels of its samples once the
+     * message is published. With the pipelined publisher the call returns without waiting for
+     * the publish and messages with the same key are published in order.
+     * @param key
+     * @param topic
+     * @param payload
+     * @param samples
+     * @return CompletableFuture completed once the labels of the samples are settled
+     * @throws Exception
+     */
+    private CompletableFuture<Void> publishSampleUpdate(String key, String topic, String payload,
+            List<Map<String, Object>> samples) throws Exception {
+        if (sampleUpdatePublisher == null) {
+            try {
+                messagingGateway.publish(topic, payload);
+            } catch (Exception e) {
+                throw new IOException("Failed to publish sample update " + key + " to " + topic, e);
+            }
+            for (Map<String, Object> sample : samples) {
+                settleCmoLabel(sample, null, Boolean.TRUE);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        return sampleUpdatePublisher.publish(key, topic, payload).thenRun(() -> {
+            for (Map<String, Object> sample : samples) {
+                try {
+                    settleCmoLabel(sample, null, Boolean.TRUE);
+                } catch (Exception e) {
+                    LOG.error("Error settling CMO label after publishing sample update", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Functional interface for label generation work run on a patient lane.
+     */
+    @FunctionalInterface
+    private interface LabelGenerationTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * Dispatches label generation for a request to the patient lanes, the request pipeline or
+     * the configured dispatcher. A failure is scheduled for retry with the given number of
+     * attempts already made.
+     * @param igoRequestDest
+     * @param requestJson
+     * @param deadline
+     * @param prefetched
+     * @param walSequence
+     * @param attempts
+     * @throws Exception
+     */
+    private void dispatchRequest(IgoRequestDest igoRequestDest, String requestJson, Deadline deadline,
+            PrefetchedContext prefetched, long walSequence, int attempts) throws Exception {
+        LabelGenerationTask task = retryOnFailure(new FailedMessage(igoRequestDest.name(), requestJson,
+                false, walSequence), attempts, () -> generateCmoLabelsForRequest(requestJson,
+                        igoRequestDest, deadline, prefetched, walSequence));
+        if (patientLaneExecutor != null) {
+            dispatchToPatientLanes(getRequestPatientKeys(requestJson), task);
+        } else if (requestPipelineStages != null && !isStreamedRequest(requestJson)) {
+            RequestLabelContext context = new RequestLabelContext(requestJson, igoRequestDest);
+            context.deadline = deadline;
+            context.prefetchedContext = prefetched;
+            context.walSequence = walSequence;
+            context.attempts = attempts;
+            requestPipelineStages.get(0).submit(context);
+        } else {
+            dispatchRequestTask(igoRequestDest, task);
+        }
+    }
+
+    /**
+     * Dispatches label generation work for a request to the configured dispatcher, or runs it
+     * on the calling thread. Failures of the work are logged rather than thrown.
+     * @param igoRequestDest
+     * @param task
+     * @throws Exception
+     */
+    private void dispatchRequestTask(IgoRequestDest igoRequestDest, LabelGenerationTask task)
+            throws Exception {
+        if (virtualThreadDispatcher != null) {
+            virtualThreadDispatcher.dispatch(logFailures(task));
+        } else if (sharedWorkPool != null) {
+            sharedWorkPool.dispatch(igoRequestDest.name(), logFailures(task));
+        } else if (scheduledTaskPhaser != null) {
+            submitToScheduler(igoRequestDest == IgoRequestDest.NEW_REQUEST_DEST
+                    ? WeightedFairScheduler.PriorityClass.NEW_REQUEST
+                    : WeightedFairScheduler.PriorityClass.PROMOTED_REQUEST, task);
+        } else {
+            runWithinConcurrencyLimit(logFailures(task)::run);
+        }
+    }
+
+    /**
+     * Dispatches label generation for sample updates to the patient lanes or the configured
+     * dispatcher, or runs it on the calling thread. A failure is scheduled for retry with the
+     * given number of attempts already made.
+     * @param samples
+     * @param deadline
+     * @param attempts
+     * @throws Exception
+     */
+    private void dispatchSampleUpdates(List<Map<String, Object>> samples, Deadline deadline,
+            int attempts) throws Exception {
+        // samples are updated in place so the retry payload is taken beforehand
+        LabelGenerationTask task = retryOnFailure(new FailedMessage(SAMPLE_LABEL_UPDATE_FLOW,
+                (retryScheduler == null) ? null : mapper.writeValueAsString(samples), false,
+                HandlerMessage.NO_WAL_SEQUENCE), attempts,
+                () -> generateCmoLabelsForSampleUpdates(samples, deadline));
+        if (patientLaneExecutor != null) {
+            dispatchToPatientLanes(getPatientKeys(samples, CMO_LABEL_UPDATE_TOPIC), task);
+        } else if (virtualThreadDispatcher != null) {
+            virtualThreadDispatcher.dispatch(logFailures(task));
+        } else if (sharedWorkPool != null) {
+            sharedWorkPool.dispatch(SAMPLE_LABEL_UPDATE_FLOW, logFailures(task));
+        } else if (scheduledTaskPhaser != null) {
+            submitToScheduler(WeightedFairScheduler.PriorityClass.SAMPLE_LABEL_UPDATE, task);
+        } else {
+            runWithinConcurrencyLimit(logFailures(task)::run);
+        }
+    }
+
+    /**
+     * Submits label generation work to the patient lanes keyed by the given patient ids so
+     * that work for the same patient runs serially in the order it was received.
+     * @param laneKeys
+     * @param task
+     */
+    private void dispatchToPatientLanes(List<String> laneKeys, LabelGenerationTask task) {
+        patientLaneExecutor.submit(laneKeys, logFailures(task));
+    }
+
+    /**
+     * Submits label generation work to the shared label task scheduler. The work is tracked
+     * so that shutdown can wait for it without shutting down the scheduler, which is
+     * shared with the request-reply service.
+     * @param priorityClass
+     * @param task
+     * @throws Exception
+     */
+    private void submitToScheduler(WeightedFairScheduler.PriorityClass priorityClass,
+            LabelGenerationTask task) throws Exception {
+        Runnable loggedTask = logFailures(task);
+        scheduledTaskPhaser.register();
+        try {
+            labelTaskSchedulerService.submit(priorityClass, () -> {
+                try {
+                    loggedTask.run();
+                } finally {
+                    scheduledTaskPhaser.arriveAndDeregister();
+                }
+            });
+        } catch (Exception e) {
+            scheduledTaskPhaser.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs label generation work on the calling handler thread, waiting for a permit from the
+     * adaptive concurrency limiter first when adaptive concurrency is enabled.
+     * @param task
+     * @throws Exception
+     */
+    private void runWithinConcurrencyLimit(LabelGenerationTask task) throws Exception {
+        if (concurrencyLimiter == null) {
+            task.run();
+            return;
+        }
+        concurrencyLimiter.acquire();
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            concurrencyLimiter.release(System.nanoTime() - start);
+        }
+    }
+
+    private Runnable logFailures(LabelGenerationTask task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                LOG.error("Error during request handling", e);
+            }
+        };
+    }
+
+    /**
+     * Returns the deadline for handling a message received at the given time.
+     * @param receivedNanos
+     * @return Deadline
+     */
+    private Deadline getRequestDeadline(long receivedNanos) {
+        return Deadline.after(receivedNanos, DEADLINE_REQUEST_MS);
+    }
+
+    /**
+     * Wraps label generation work so that the message is scheduled for retry when the work
+     * fails, counting the attempts already made.
+     * @param failedMessage
+     * @param attempts
+     * @param task
+     * @return LabelGenerationTask
+     */
+    private LabelGenerationTask retryOnFailure(FailedMessage failedMessage, int attempts,
+            LabelGenerationTask task) {
+        if (retryScheduler == null) {
+            return task;
+        }
+        return () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                retryScheduler.schedule(failedMessage, attempts + 1, e);
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Returns true if a failure is worth retrying: a lookup or publish that timed out or failed
+     * in the messaging layer, or a queue that was full. Malformed messages and label generation
+     * errors fail the same way every time.
+     * @param e
+     * @return boolean
+     */
+    private boolean isTransientFailure(Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonProcessingException) {
+                return false;
+            }
+            if (cause instanceof TimeoutException || cause instanceof IOException
+                    || cause instanceof RejectedExecutionException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retries a failed message through the same dispatch as a new message, so that it is
+     * serialized with other work for its patients. A labeled request claims its labels again
+     * and is published, anything else has its labels generated again. A failed retry is
+     * scheduled again by the dispatched work.
+     * @param failedMessage
+     * @param attempts the number of attempts made so far
+     * @throws Exception
+     */
+    private void retryFailedMessage(FailedMessage failedMessage, int attempts) throws Exception {
+        Deadline deadline = getRequestDeadline(System.nanoTime());
+        if (SAMPLE_LABEL_UPDATE_FLOW.equals(failedMessage.flow)) {
+            dispatchSampleUpdates(getSamplesFromJsonArray(failedMessage.payload), deadline, attempts);
+            return;
+        }
+        IgoRequestDest igoRequestDest = IgoRequestDest.valueOf(failedMessage.flow);
+        if (failedMessage.labeled) {
+            LabelGenerationTask task = retryOnFailure(failedMessage, attempts,
+                    () -> republishRequest(igoRequestDest, failedMessage.payload, deadline,
+                            failedMessage.walSequence));
+            if (patientLaneExecutor != null) {
+                dispatchToPatientLanes(getRequestPatientKeys(failedMessage.payload), task);
+            } else {
+                dispatchRequestTask(igoRequestDest, task);
+            }
+        } else if (isLargeRequest(failedMessage.payload)) {
+            enqueueLargeRequest(failedMessage.payload, igoRequestDest, failedMessage.walSequence,
+                    attempts);
+        } else {
+            dispatchRequest(igoRequestDest, failedMessage.payload, deadline, null,
+                    failedMessage.walSequence, attempts);
+        }
+    }
+
+    /**
+     * Publishes a labeled request again after a failed publish. The labels were handed back
+     * during the backoff so the patient leases and labels are claimed again first, moving a
+     * sample to the next available label if its label was issued in the meantime.
+     * @param igoRequestDest
+     * @param requestJson
+     * @param deadline
+     * @param walSequence
+     * @throws Exception
+     */
+    private void republishRequest(IgoRequestDest igoRequestDest, String requestJson, Deadline deadline,
+            long walSequence) throws Exception {
+        List<String> patientKeys = getRequestPatientKeys(requestJson);
+        cmoLabelRegistryService.acquirePatientLeases(patientKeys);
+        Map<String, String> reservedLabels = new HashMap<>();
+        try {
+            String updatedJson = StreamingRequest.label(mapper, requestJson, STREAMING_CHUNK_SAMPLES,
+                    chunk -> {
+                        for (Map<String, Object> sampleMap : chunk) {
+                            reclaimCmoLabel(sampleMap, deadline, reservedLabels);
+                        }
+                    });
+            publishToIgoRequestTopic(igoRequestDest, getRequestIdFromRequestJson(updatedJson), updatedJson);
+            // settling the labels hands back the patient leases
+            finishPublishedRequest(igoRequestDest, updatedJson, Boolean.TRUE, walSequence);
+        } catch (Exception e) {
+            releaseCmoLabels(reservedLabels);
+            releasePatientLeases(patientKeys);
+            throw e;
+        }
+    }
+
+    /**
+     * Reserves the label of a labeled sample again, or the next available label if the label
+     * was issued to another sample since it was handed back.
+     * @param sampleMap
+     * @param deadline
+     * @param reservedLabels cmo label => primary id
+     * @throws Exception
+     */
+    private void reclaimCmoLabel(Map<String, Object> sampleMap, Deadline deadline,
+            Map<String, String> reservedLabels) throws Exception {
+        CmoLabelParts labelParts = new CmoLabelParts(sampleMap, null, null);
+        String label = labelParts.getCmoSampleName();
+        if (StringUtils.isBlank(label)) {
+            return;
+        }
+        String cmoLabel = findNextAvailableCmoLabel(labelParts.getPrimaryId(), label,
+                labelParts.getAltId(), deadline);
+        if (cmoLabel == null) {
+            throw new IllegalStateException("Label " + label + " was issued to another sample and no "
+                    + "other label is available for sample: " + labelParts.getPrimaryId());
+        }
+        cmoLabel = reserveResolvedLabel(cmoLabel, labelParts, deadline);
+        reservedLabels.put(cmoLabel, labelParts.getPrimaryId());
+        if (!cmoLabel.equals(label)) {
+            LOG.warn("Label " + label + " was issued during the publish backoff, using " + cmoLabel
+                    + " for sample: " + labelParts.getPrimaryId());
+            sampleMap.put("cmoSampleName", cmoLabel);
+        }
+    }
+
+    /**
+     * Handles a message which ran out of retries or failed for good by storing it as a dead
+     * letter. Without a dead-letter store, or if storing fails, the message is logged instead.
+     * A request is then settled in the write-ahead log and dedup window.
+     * @param failedMessage
+     * @param attempts
+     * @param lastError
+     */
+    private void deadLetter(FailedMessage failedMessage, int attempts, Exception lastError) {
+        boolean stored = false;
+        if (deadLetterStore != null) {
+            try {
+                deadLetterStore.append(failedMessage.flow, attempts, lastError, failedMessage.payload);
+                LOG.error("Message on flow " + failedMessage.flow + " failed after " + attempts
+                        + " attempts, stored as dead letter", lastError);
+                stored = true;
+            } catch (IOException e) {
+                LOG.error("Failed to store dead letter", e);
+            }
+        }
+        if (!stored) {
+            LOG.error("Message on flow " + failedMessage.flow + " failed after " + attempts
+                    + " attempts: " + failedMessage.payload, lastError);
+        }
+        if (SAMPLE_LABEL_UPDATE_FLOW.equals(failedMessage.flow)) {
+            return;
+        }
+        // a request cut short by shutdown which could not be stored is left in the write-ahead
+        // log so that it is replayed on restart
+        settleFailedRequest((stored || !shutdownInitiated)
+                ? failedMessage.walSequence : HandlerMessage.NO_WAL_SEQUENCE);
+    }
+
+    /**
+     * Re-injects the stored dead letters at the configured rate. Requests go through ingress
+     * again while sample updates are queued directly.
+     */
+    private void replayDeadLetters() {
+        if (!deadLetterReplayInProgress.compareAndSet(false, true)) {
+            LOG.warn("Dead letter replay already in progress, ignoring replay command");
+            return;
+        }
+        try {
+            int replayed = deadLetterStore.replay(DEAD_LETTER_REPLAY_RATE_PER_SECOND, (flow, payload) -> {
+                if (shutdownInitiated) {
+                    throw new IllegalStateException(
+                            "Shutdown initiated, not replaying any more dead letters");
+                }
+                if (SAMPLE_LABEL_UPDATE_FLOW.equals(flow)) {
+                    enqueueCoalescedSampleUpdates(List.of(getSamplesFromJsonArray(payload)));
+                } else {
+                    acceptRequest(payload, IgoRequestDest.valueOf(flow));
+                }
+            });
+            LOG.info("Replayed " + replayed + " dead letter(s), " + deadLetterStore.getPendingCount()
+                    + " remaining");
+        } catch (Exception e) {
+            LOG.error("Dead letter replay stopped, " + deadLetterStore.getPendingCount()
+                    + " dead letter(s) remaining", e);
+        } finally {
+            deadLetterReplayInProgress.set(false);
+        }
+    }
+
+    /**
+     * Creates the executor which runs lookups to smile bounded by a request deadline if request
+     * deadlines are enabled. Each lookup gets its own virtual thread so that the handler can stop
+     * waiting on it, and interrupt it, once the deadline passes.
+     */
+    private void initializeRequestDeadlines() {
+        if (DEADLINE_REQUEST_MS <= 0) {
+            return;
+        }
+        smileRequestExec = Executors.newVirtualThreadPerTaskExecutor();
+        LOG.info("Messages must be handled within " + DEADLINE_REQUEST_MS
+                + "ms of being received, lookups still outstanding at the deadline are cancelled");
+    }
+
+    /**
+     * Creates the resilience layer for lookups to smile if it is enabled: lookups slower than
+     * the hedge percentile are hedged, error bursts open a circuit breaker per topic and failed
+     * lookups are retried within a retry budget.
+     */
+    private void initializeResilientLookups() {
+        if (!SMILE_LOOKUP_RESILIENCE_ENABLED) {
+            return;
+        }
+        if (smileRequestExec == null) {
+            smileRequestExec = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        resilientRequester = new ResilientRequester(messagingGateway, smileRequestExec,
+                SMILE_LOOKUP_HEDGE_PERCENTILE, SMILE_LOOKUP_BREAKER_FAILURE_THRESHOLD,
+                SMILE_LOOKUP_BREAKER_FAILURE_WINDOW_MS, SMILE_LOOKUP_BREAKER_OPEN_MS,
+                SMILE_LOOKUP_MAX_RETRIES, SMILE_LOOKUP_RETRY_BUDGET_RATIO);
+        LOG.info("Lookups to smile are hedged at the " + SMILE_LOOKUP_HEDGE_PERCENTILE
+                + " latency percentile, circuit breakers open after "
+                + SMILE_LOOKUP_BREAKER_FAILURE_THRESHOLD + " failures");
+    }
+
+    /**
+     * Creates the executor for context lookups started at ingress if ingress prefetching is
+     * enabled. Lease release times are kept in a fixed number of stripes by patient, which at
+     * worst makes a prefetch look out of date when it is not. Only this instance's releases
+     * are tracked, so prefetching is turned off when patients are coordinated across instances.
+     */
+    private void initializeIngressPrefetch() {
+        if (!INGRESS_PREFETCH_ENABLED) {
+            return;
+        }
+        if (cmoLabelRegistryService.isPatientCoordinationEnabled()) {
+            // a lookup started before the lease was acquired can miss labels another instance
+            // published for the patient in the meantime
+            LOG.warn("Patient coordination is enabled, ignoring ingress prefetching");
+            return;
+        }
+        patientReleaseStamps = new AtomicLongArray(PATIENT_RELEASE_STRIPES);
+        // every stripe starts out older than any prefetch
+        long now = System.nanoTime() - 1;
+        for (int i = 0; i < PATIENT_RELEASE_STRIPES; i++) {
+            patientReleaseStamps.set(i, now);
+        }
+        ingressPrefetchPermits = new Semaphore(INGRESS_PREFETCH_MAX_OUTSTANDING_LOOKUPS);
+        ingressPrefetchExec = Executors.newVirtualThreadPerTaskExecutor();
+        LOG.info("Prefetching request context at ingress with up to "
+                + INGRESS_PREFETCH_MAX_OUTSTANDING_LOOKUPS + " lookups outstanding");
+    }
+
+    /**
+     * Creates the retry scheduler and opens the dead-letter store if retries are enabled.
+     * @throws Exception
+     */
+    private void initializeRetries() throws Exception {
+        if (!RETRY_ENABLED) {
+            return;
+        }
+        if (!StringUtils.isBlank(DEAD_LETTER_DIRECTORY)) {
+            deadLetterStore = new DeadLetterStore(Paths.get(DEAD_LETTER_DIRECTORY),
+                    DEAD_LETTER_SEGMENT_SIZE_MB * 1024 * 1024);
+            LOG.info("Opened dead letter store with " + deadLetterStore.getPendingCount()
+                    + " dead letter(s): " + DEAD_LETTER_DIRECTORY);
+        }
+        // failures which would fail the same way again are dead-lettered without retrying
+        retryScheduler = new RetryScheduler<>("labelGeneration", RETRY_MAX_ATTEMPTS, RETRY_BASE_DELAY_MS,
+                RETRY_MAX_DELAY_MS, RETRY_JITTER, this::retryFailedMessage, this::deadLetter,
+                (failedMessage, lastError) -> isTransientFailure(lastError));
+    }
+
+    /**
+     * Starts the lookups for the given keys in parallel on virtual threads when virtual
+     * threads are enabled, except for keys already prefetched. Otherwise returns the lookups
+     * already prefetched and the others run when needed.
+     * @param keys
+     * @param alreadyPrefetched lookups started earlier, or null
+     * @param sampleLookup
+     * @return Map
+     */
+    private Map<String, Future<List<CmoLabelParts>>> prefetchSampleLookups(List<String> keys,
+            Map<String, Future<List<CmoLabelParts>>> alreadyPrefetched,
+            PrefetchedContext.SampleLookup sampleLookup) {
+        Map<String, Future<List<CmoLabelParts>>> prefetched = (alreadyPrefetched == null)
+                ? new HashMap<>() : new HashMap<>(alreadyPrefetched);
+        if (lookupExec == null) {
+            return prefetched;
+        }
+        for (String key : keys) {
+            if (!StringUtils.isBlank(key) && !prefetched.containsKey(key)) {
+                prefetched.put(key, lookupExec.submit(() -> sampleLookup.lookup(key)));
+            }
+        }
+        return prefetched;
+    }
+
+    /**
+     * Returns the prefetched result for the key, waiting no longer than the deadline, or runs
+     * the lookup if it was not prefetched. Once the deadline passes every prefetched lookup
+     * still outstanding is cancelled.
+     * @param prefetched
+     * @param key
+     * @param sampleLookup
+     * @param deadline
+     * @return List
+     * @throws Exception
+     */
+    private List<CmoLabelParts> getSampleLookupResult(Map<String, Future<List<CmoLabelParts>>> prefetched,
+            String key, PrefetchedContext.SampleLookup sampleLookup, Deadline deadline) throws Exception {
+        Future<List<CmoLabelParts>> result = prefetched.get(key);
+        try {
+            return (result != null) ? deadline.await(result, "lookup for " + key) : sampleLookup.lookup(key);
+        } catch (TimeoutException e) {
+            for (Future<List<CmoLabelParts>> outstanding : prefetched.values()) {
+                outstanding.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the cmo patient ids of the given samples, or the fallback key if none of the
+     * samples have a cmo patient id.
+     * @param samples
+     * @param fallbackKey
+     * @return List
+     * @throws Exception
+     */
+    private List<String> getPatientKeys(List<Map<String, Object>> samples, String fallbackKey)
+            throws Exception {
+        List<String> laneKeys = new ArrayList<>();
+        for (Map<String, Object> sm : samples) {
+            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
+            if (!StringUtils.isBlank(sample.getCmoPatientId())
+                    && !laneKeys.contains(sample.getCmoPatientId())) {
+                laneKeys.add(sample.getCmoPatientId());
+            }
+        }
+        if (laneKeys.isEmpty()) {
+            laneKeys.add(String.valueOf(fallbackKey));
+        }
+        return laneKeys;
+    }
+
+    /**
+     * Returns the cmo patient ids of a streamed request, or its request id if none of the
+     * samples have a cmo patient id.
+     * @param request
+     * @return List
+     */
+    private List<String> getPatientKeys(StreamingRequest request) {
+        List<String> laneKeys = request.getCmoPatientIds();
+        if (laneKeys.isEmpty()) {
+            laneKeys.add(String.valueOf(request.getRequestId()));
+        }
+        return laneKeys;
+    }
+
+    private List<CmoLabelParts> updateAltIdSampleList(List<CmoLabelParts> altIdSamples,
+            CmoLabelParts sample) throws JsonProcessingException {
+        Boolean foundMatching = Boolean.FALSE;
+        // if sample already exists in the existing samples list then simply replace at the matching index
+        String currentPrimaryId = sample.getPrimaryId();
+        for (CmoLabelParts existing : altIdSamples) {
+            String primaryId = existing.getPrimaryId();
+            if (primaryId.equalsIgnoreCase(currentPrimaryId)) {
+                altIdSamples.set(altIdSamples.indexOf(existing), sample);
+                foundMatching = Boolean.TRUE;
+                break;
+            }
+        }
+        // if matching sample not found then append to list and return
+        if (!foundMatching) {
+            altIdSamples.add(sample);
+        }
+        return altIdSamples;
+    }
+
+    private List<CmoLabelParts> updatePatientSampleList(List<CmoLabelParts> existingSamples,
+            CmoLabelParts sample) throws JsonProcessingException {
+        Boolean foundMatching = Boolean.FALSE;
+        // if sample already exists in the existing samples list then simply replace at the matching index
+        String currentPrimaryId = sample.getPrimaryId();
+        for (CmoLabelParts existing : existingSamples) {
+            String primaryId = existing.getPrimaryId();
+            if (primaryId.equalsIgnoreCase(currentPrimaryId)) {
+                existingSamples.set(existingSamples.indexOf(existing), sample);
+                foundMatching = Boolean.TRUE;
+                break;
+            }
+        }
+        // if matching sample not found then append to list and return
+        if (!foundMatching) {
+            existingSamples.add(sample);
+        }
+        return existingSamples;
+    }
+
+    private Map<String, List<CmoLabelParts>> getPatientSamplesMap(List<Map<String, Object>> samples,
+            Deadline deadline, Map<String, Future<List<CmoLabelParts>>> ingressPrefetched) throws Exception {
+        Map<String, List<CmoLabelParts>> patientSamplesMap = new HashMap<>();
+        List<String> cmoPatientIds = new ArrayList<>();
+        for (Map<String, Object> sm : samples) {
+            cmoPatientIds.add(new CmoLabelParts(sm, null, null).getCmoPatientId());
+        }
+        Map<String, Future<List<CmoLabelParts>>> prefetched = prefetchSampleLookups(cmoPatientIds,
+                ingressPrefetched, key -> getExistingPatientSamples(key, deadline));
+        for (Map<String, Object> sm : samples) {
+            // get or request existing patient samples and update patient sample mapping
+            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
+            if (StringUtils.isBlank(sample.getCmoPatientId())
+                    || patientSamplesMap.containsKey(sample.getCmoPatientId())) {
+                continue;
+            }
+            List<CmoLabelParts> ptSamples = getSampleLookupResult(prefetched, sample.getCmoPatientId(),
+                    key -> getExistingPatientSamples(key, deadline), deadline);
+            patientSamplesMap.put(sample.getCmoPatientId(),
+                    new ArrayList<>(ptSamples));
+        }
+        return patientSamplesMap;
+    }
+
+    /**
+     * Sends a lookup request to smile and records its latency for the adaptive concurrency
+     * limiter when adaptive concurrency is enabled. A lookup still waiting for its reply when
+     * the deadline passes is cancelled. Lookups go through the resilience layer when enabled.
+     * @param topic
+     * @param key
+     * @param deadline
+     * @return Message
+     * @throws Exception
+     */
+    private Message requestFromSmile(String topic, String key, Deadline deadline) throws Exception {
+        long start = System.nanoTime();
+        Message reply;
+        try {
+            if (resilientRequester != null) {
+                reply = resilientRequester.request(topic, key, deadline);
+            } else {
+                reply = deadline.call(smileRequestExec, () -> messagingGateway.request(topic, key),
+                        "lookup on " + topic + " for " + key);
+            }
+        } catch (TimeoutException | InterruptedException | IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // failures of the messaging layer are retried like timeouts
+            throw new IOException("Lookup on " + topic + " failed for " + key, e);
+        }
+        if (reply == null) {
+            throw new IOException("No reply to lookup on " + topic + " for " + key);
+        }
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.recordLookupLatency(System.nanoTime() - start);
+        }
+        return reply;
+    }
+
+    private List<CmoLabelParts> getExistingPatientSamples(String cmoPatientId, Deadline deadline)
+            throws Exception {
+        Message reply = requestFromSmile(PATIENT_SAMPLES_REQUEST_TOPIC, cmoPatientId, deadline);
+        List<Object> sampleObjList = mapper.readValue(
+                new String(reply.getData(), StandardCharsets.UTF_8),
+                List.class);
+        List<CmoLabelParts> samples = new ArrayList<>();
+        for (Object s : sampleObjList) {
+            Map<String, Object> sm = mapper.convertValue(s, Map.class);
+            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
+            cmoLabelRegistryService.recordCmoLabel(sample.getPrimaryId(), sample.getCmoSampleName());
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    private List<CmoLabelParts> getSamplesByCmoLabel(String cmoLabel, Deadline deadline)
+            throws Exception {
+        // return empty list if cmo label is null/empty
+        if (StringUtils.isBlank(cmoLabel)) {
+            return new ArrayList<>();
+        }
+
+        Message reply = requestFromSmile(SAMPLES_BY_CMO_LABEL_REQREPLY_TOPIC, cmoLabel, deadline);
+        List<Object> sampleObjList = mapper.readValue(
+                new String(reply.getData(), StandardCharsets.UTF_8),
+                List.class);
+        List<CmoLabelParts> samples = new ArrayList<>();
+        for (Object s : sampleObjList) {
+            Map<String, Object> sm = mapper.convertValue(s, Map.class);
+            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
+            cmoLabelRegistryService.recordCmoLabel(sample.getPrimaryId(), sample.getCmoSampleName());
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    private Map<String, List<CmoLabelParts>> getAltIdSamplesMap(List<Map<String, Object>> samples,
+            Deadline deadline, Map<String, Future<List<CmoLabelParts>>> ingressPrefetched) throws Exception {
+        Map<String, List<CmoLabelParts>> altIdSamplesMap = new HashMap<>();
+        List<String> altIds = new ArrayList<>();
+        for (Map<String, Object> sm : samples) {
+            altIds.add(new CmoLabelParts(sm, null, null).getAltId());
+        }
+        Map<String, Future<List<CmoLabelParts>>> prefetched = prefetchSampleLookups(altIds,
+                ingressPrefetched, key -> getSamplesByAltId(key, deadline));
+        for (Map<String, Object> sm : samples) {
+            // get or request existing patient samples and update patient sample mapping
+            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
+            if (StringUtils.isBlank(sample.getAltId())
+                    || altIdSamplesMap.containsKey(sample.getAltId())) {
+                continue;
+            }
+            List<CmoLabelParts> altIdSamples = getSampleLookupResult(prefetched, sample.getAltId(),
+                    key -> getSamplesByAltId(key, deadline), deadline);
+            altIdSamplesMap.put(sample.getCmoPatientId(),
+                    new ArrayList<>(altIdSamples));
+        }
+        return altIdSamplesMap;
+    }
+
+    private List<CmoLabelParts> getSamplesByAltId(String altId, Deadline deadline) throws Exception {
+        // return empty list if alt id is null/empty
+        if (StringUtils.isBlank(altId)) {
+            return new ArrayList<>();
+        }
+
+        Message reply = requestFromSmile(SAMPLES_BY_ALT_ID_REQREPLY_TOPIC, altId, deadline);
+        List<Object> sampleObjList = mapper.readValue(
+                new String(reply.getData(), StandardCharsets.UTF_8),
+                List.class);
+        List<CmoLabelParts> samples = new ArrayList<>();
+        for (Object s : sampleObjList) {
+            Map<String, Object> sm = mapper.convertValue(s, Map.class);
+            CmoLabelParts sample = new CmoLabelParts(sm, null, null);
+            cmoLabelRegistryService.recordCmoLabel(sample.getPrimaryId(), sample.getCmoSampleName());
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    private Boolean isCmoLabelAlreadyInUse(String primaryId, String cmoLabel, Deadline deadline)
+            throws Exception {
+        // answer from the in-process occupancy index when enabled to avoid a trip to smile
+        if (cmoLabelRegistryService.isOccupancyIndexEnabled()) {
+            if (cmoLabelRegistryService.isCmoLabelInUse(primaryId, cmoLabel)) {
+                return Boolean.TRUE;
+            }
+            // the index only holds the labels seen by this instance, so smile is still asked
+            // when patients are coordinated with other instances
+            if (!cmoLabelRegistryService.isPatientCoordinationEnabled()) {
+                return Boolean.FALSE;
+            }
+        }
+        List<CmoLabelParts> samplesByCmoLabel = getSamplesByCmoLabel(cmoLabel, deadline);
+        for (CmoLabelParts sm : samplesByCmoLabel) {
+            // if there are any samples returned that aren't the same primary id
+            // as the one provided then that indicates that the cmo label already exists
+            // in smile and is associated with a different sample
+            if (!sm.getPrimaryId().equals(primaryId)) {
+                return Boolean.TRUE;
+            }
+        }
+        return Boolean.FALSE;
+    }
+
+    /**
+     * Settles a sample's label once the sample has left the label generator. A published label
+     * is written to the issuance journal and occupancy index only then, so a label that never
+     * left the service is not restored on restart. The reservation on a published label is
+     * kept until it expires: another handler may have read the patient's samples before the
+     * publish, and smile may not have persisted the label yet. An unpublished label is released.
+     * @param sampleMap
+     * @param requestId the request of the sample, or null to read it from the sample
+     * @param published
+     * @throws Exception
+     */
+    private void settleCmoLabel(Map<String, Object> sampleMap, String requestId, Boolean published)
+            throws Exception {
+        CmoLabelParts sample = new CmoLabelParts(sampleMap, requestId, null);
+        if (published) {
+            cmoLabelRegistryService.recordIssuedCmoLabel(sample);
+        } else {
+            cmoLabelRegistryService.releaseCmoLabel(sample.getPrimaryId(), sample.getCmoSampleName());
+        }
+    }
+
+    /**
+     * Returns the patient keys of a request, reading only the sample keys of a streamed request.
+     * @param requestJson
+     * @return List
+     * @throws Exception
+     */
+    private List<String> getRequestPatientKeys(String requestJson) throws Exception {
+        return isStreamedRequest(requestJson)
+                ? getPatientKeys(StreamingRequest.scan(mapper, requestJson))
+                : getPatientKeys(getSamplesFromRequestJson(requestJson),
+                        getRequestIdFromRequestJson(requestJson));
+    }
+
+    private String getRequestIdFromRequestJson(String requestJson) throws IOException {
+        if (isStreamedRequest(requestJson)) {
+            return StreamingRequest.scan(mapper, requestJson).getRequestId();
         }
-        return Boolean.FALSE;
-    }
-
-    private String getRequestIdFromRequestJson(String requestJson) throws JsonProcessingException {
         Map<String, Object> requestJsonMap = mapper.readValue(requestJson, Map.class);
         return requestJsonMap.get("requestId").toString();
     }
@@ -603,6 +2189,16 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
         return requestJsonMap.get("isCmoRequest");
     }
 
+    private List<Map<String, Object>> getSamplesFromJsonArray(String samplesJson)
+            throws JsonProcessingException {
+        List<Object> sampleObjList = mapper.readValue(samplesJson, List.class);
+        List<Map<String, Object>> samples = new ArrayList<>();
+        for (Object s : sampleObjList) {
+            samples.add(mapper.convertValue(s, Map.class));
+        }
+        return samples;
+    }
+
     private List<Map<String, Object>> getSamplesFromRequestJson(String requestJson)
             throws JsonProcessingException {
         Map<String, Object> requestJsonMap = mapper.readValue(requestJson, Map.class);
@@ -620,10 +2216,18 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
     public void initialize(Gateway gateway) throws Exception {
         if (!initialized) {
             messagingGateway = gateway;
+            initializeRequestDeadlines();
+            initializeResilientLookups();
+            initializeIngressPrefetch();
             setupCmoLabelGeneratorHandler(messagingGateway, this);
             setupCmoPromotedLabelHandler(messagingGateway, this);
             setupCmoSampleLabelUpdateHandler(messagingGateway, this);
+            initializeRetries();
+            setupDeadLetterReplayHandler(messagingGateway);
             initializeMessageHandlers();
+            initializeSampleUpdatePublisher();
+            initializeSampleUpdateCoalescing();
+            replayWriteAheadLog();
             initialized = true;
         } else {
             LOG.error("Messaging Handler Service has already been initialized, ignoring request.");
@@ -636,7 +2240,7 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            cmoLabelGeneratorQueue.put(requestJson);
+            acceptRequest(requestJson, IgoRequestDest.NEW_REQUEST_DEST);
         } else {
             LOG.error("Shutdown initiated, not accepting request: " + requestJson);
             throw new IllegalStateException("Shutdown initiated, not handling any more requests");
@@ -649,7 +2253,7 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            cmoPromotedLabelQueue.put(requestJson);
+            acceptRequest(requestJson, IgoRequestDest.PROMOTED_REQUEST_DEST);
         } else {
             LOG.error("Shutdown initiated, not accepting request: " + requestJson);
             throw new IllegalStateException("Shutdown initiated, not handling any more requests");
@@ -662,7 +2266,13 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            cmoSampleLabelUpdateQueue.put(sampleMetadataList);
+            if (sampleUpdateCoalescer != null) {
+                coalesceSampleUpdate(sampleMetadataList);
+                return;
+            }
+            // payload size is estimated from the parsed samples since the raw message is not kept
+            enqueueIngressMessage(cmoSampleLabelUpdateQueue, HandlerMessage.of(sampleMetadataList,
+                    String.valueOf(sampleMetadataList).length()));
         } else {
             LOG.error("Shutdown initiated, not accepting update for IGO sample: "
                     + sampleMetadataList);
@@ -675,19 +2285,737 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
-        exec.shutdownNow();
+        // stop accepting messages then drain each stage in order: every handler finishes the
+        // messages queued ahead of its poison pill before the next stage is signalled
+        shutdownInitiated = true;
+        sendPoisonPills(cmoLabelGeneratorQueue, numLabelGeneratorHandlers);
+        sendPoisonPills(cmoPromotedLabelQueue, numPromotedLabelHandlers);
+        if (sampleUpdateCoalescer != null) {
+            // updates still waiting out their window are queued ahead of the poison pills
+            sampleUpdateCoalescingExec.shutdown();
+            sampleUpdateCoalescingExec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            enqueueCoalescedSampleUpdates(sampleUpdateCoalescer.drainAll());
+        }
+        sendPoisonPills(cmoSampleLabelUpdateQueue, numLabelGeneratorHandlers);
+        if (largeRequestQueue != null) {
+            sendPoisonPills(largeRequestQueue, LARGE_REQUEST_HANDLER_THREADS);
+            largeRequestShutdownLatch.await();
+        }
         cmoLabelGeneratorShutdownLatch.await();
         cmoPromotedLabelShutdownLatch.await();
+        cmoSampleLabelUpdateShutdownLatch.await();
+        if (retryScheduler != null) {
+            // retries waiting out their backoff are stored as dead letters, work dispatched
+            // from here on is dead-lettered as soon as it fails
+            retryScheduler.shutdownAndAwait();
+        }
+        if (patientLaneExecutor != null) {
+            // let the patient lanes finish the work dispatched to them before publishers stop
+            patientLaneExecutor.shutdownAndAwait(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        if (virtualThreadDispatcher != null) {
+            virtualThreadDispatcher.shutdownAndAwait(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        if (sharedWorkPool != null) {
+            sharedWorkPool.shutdownAndAwait(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        if (scheduledTaskPhaser != null) {
+            // waits for the work this service submitted to the scheduler to finish
+            scheduledTaskPhaser.arriveAndAwaitAdvance();
+        }
+        if (requestPipelineStages != null) {
+            // each stage drains into the next before the next stage is shut down
+            for (PipelineStage<RequestLabelContext> stage : requestPipelineStages) {
+                stage.shutdownAndAwait();
+            }
+        }
+        if (sampleUpdatePublisher != null) {
+            sampleUpdatePublishRetryExec.shutdown();
+            sampleUpdatePublishRetryExec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            // one last attempt for failed publishes before they are reported as lost
+            sampleUpdatePublisher.retryFailures();
+            sampleUpdatePublisher.shutdownAndAwait(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            for (PipelinedPublisher.PublishFailure failure : sampleUpdatePublisher.drainFailures()) {
+                // dead letters for sample updates always hold a list of samples
+                String payload = failure.getPayload().startsWith("[")
+                        ? failure.getPayload() : "[" + failure.getPayload() + "]";
+                deadLetter(new FailedMessage(SAMPLE_LABEL_UPDATE_FLOW, payload, false,
+                        HandlerMessage.NO_WAL_SEQUENCE),
+                        failure.getAttempts(), failure.getLastError());
+            }
+        }
+        sendPoisonPills(igoNewRequestQueue, NUM_NEW_REQUEST_HANDLERS);
+        sendPoisonPills(igoPromotedRequestQueue, NUM_PROMOTED_REQUEST_HANDLERS);
         newRequestPublisherShutdownLatch.await();
         promotedRequestPublisherShutdownLatch.await();
-        shutdownInitiated = true;
+        if (deadLetterStore != null) {
+            deadLetterStore.close();
+        }
+        if (requestWriteAheadLog != null) {
+            walCheckpointExec.shutdown();
+            walCheckpointExec.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            requestWriteAheadLog.checkpoint();
+            requestWriteAheadLog.close();
+        }
+        exec.shutdown();
+        if (lookupExec != null) {
+            lookupExec.shutdown();
+        }
+        if (ingressPrefetchExec != null) {
+            ingressPrefetchExec.shutdownNow();
+        }
+        if (smileRequestExec != null) {
+            smileRequestExec.shutdownNow();
+        }
+        if (queueMetricsExec != null) {
+            queueMetricsExec.shutdown();
+        }
+        if (concurrencyControlExec != null) {
+            concurrencyControlExec.shutdown();
+        }
+    }
+
+    /**
+     * Accepts an incoming request. When the write-ahead log is enabled the request is appended
+     * and flushed to the log before it is queued, so it is replayed after a restart if it was
+     * not published.
+     * @param requestJson
+     * @param igoRequestDest
+     * @throws Exception
+     */
+    private void acceptRequest(String requestJson, IgoRequestDest igoRequestDest) throws Exception {
+        String requestId = null;
+        if (requestDedupWindow != null || requestWriteAheadLog != null) {
+            requestId = getRequestIdFromRequestJson(requestJson);
+        }
+        String dedupKey = null;
+        if (requestDedupWindow != null) {
+            dedupKey = RequestDedupWindow.keyOf(igoRequestDest.name(), requestId, requestJson);
+            RequestDedupWindow.Entry duplicate = requestDedupWindow.checkAndRegister(dedupKey);
+            if (duplicate != null) {
+                handleDuplicateRequest(igoRequestDest, requestId, duplicate);
+                return;
+            }
+        }
+        long walSequence = HandlerMessage.NO_WAL_SEQUENCE;
+        if (requestWriteAheadLog != null) {
+            try {
+                walSequence = requestWriteAheadLog.append(igoRequestDest.name(), requestId, requestJson);
+            } catch (IOException e) {
+                if (dedupKey != null) {
+                    requestDedupWindow.forget(dedupKey);
+                }
+                throw e;
+            }
+        } else if (requestDedupWindow != null) {
+            walSequence = acceptedSequence.incrementAndGet();
+        }
+        if (dedupKey != null) {
+            // the delivery is completed or forgotten by its sequence once it finishes
+            requestDedupWindow.track(dedupKey, walSequence);
+        }
+        try {
+            routeRequest(requestJson, igoRequestDest, walSequence);
+        } catch (RejectedExecutionException e) {
+            // the sender is asked to redeliver so the request must not be replayed or deduplicated
+            completeWriteAheadLogEntry(walSequence);
+            if (requestDedupWindow != null) {
+                requestDedupWindow.forget(walSequence);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Handles a request identical to one received within the dedup window. A duplicate of a
+     * published request is answered with the previously published output when the policy is to
+     * republish; otherwise, or while the original is still being processed, it is dropped.
+     * @param igoRequestDest
+     * @param requestId
+     * @param duplicate
+     * @throws Exception
+     */
+    private void handleDuplicateRequest(IgoRequestDest igoRequestDest, String requestId,
+            RequestDedupWindow.Entry duplicate) throws Exception {
+        if (duplicate.isCompleted() && duplicatePolicy == RequestDedupWindow.DuplicatePolicy.REPUBLISH) {
+            LOG.info("Duplicate of published request, republishing previous output: " + requestId);
+            publishToIgoRequestTopic(igoRequestDest, requestId, duplicate.getOutput());
+        } else {
+            LOG.info("Duplicate of " + (duplicate.isCompleted() ? "published" : "in-flight")
+                    + " request, dropping: " + requestId);
+        }
+    }
+
+    private void publishToIgoRequestTopic(IgoRequestDest igoRequestDest, String requestId,
+            String requestJson) throws Exception {
+        String topic;
+        switch (igoRequestDest) {
+            case NEW_REQUEST_DEST:
+                topic = IGO_NEW_REQUEST_TOPIC;
+                break;
+            case PROMOTED_REQUEST_DEST:
+                topic = IGO_PROMOTED_REQUEST_TOPIC;
+                break;
+            default:
+                return;
+        }
+        LOG.info("Publishing request to: " + topic);
+        try {
+            messagingGateway.publish(requestId, topic, requestJson);
+        } catch (Exception e) {
+            throw new IOException("Failed to publish request " + requestId + " to " + topic, e);
+        }
+    }
+
+    private void routeRequest(String requestJson, IgoRequestDest igoRequestDest, long walSequence)
+            throws Exception {
+        if (isLargeRequest(requestJson)) {
+            enqueueLargeRequest(requestJson, igoRequestDest, walSequence, 0);
+            return;
+        }
+        HandlerMessage<String> message = newRequestMessage(requestJson, walSequence);
+        try {
+            enqueueIngressMessage((igoRequestDest == IgoRequestDest.NEW_REQUEST_DEST)
+                    ? cmoLabelGeneratorQueue : cmoPromotedLabelQueue, message);
+        } catch (RejectedExecutionException e) {
+            if (message.getPrefetchedContext() != null) {
+                message.getPrefetchedContext().cancel();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps a request in a handler message, first starting the lookups of its context when
+     * ingress prefetching is enabled. Prefetching is best effort: whatever is not prefetched
+     * is looked up by the handler.
+     * @param requestJson
+     * @param walSequence
+     * @return HandlerMessage
+     */
+    private HandlerMessage<String> newRequestMessage(String requestJson, long walSequence) {
+        if (ingressPrefetchExec == null) {
+            return HandlerMessage.ofJson(requestJson, null, walSequence);
+        }
+        PrefetchedContext prefetched = null;
+        try {
+            Deadline deadline = getRequestDeadline(System.nanoTime());
+            prefetched = PrefetchedContext.start(mapper.getFactory(), requestJson, ingressPrefetchExec,
+                    ingressPrefetchPermits, key -> getExistingPatientSamples(key, deadline),
+                    key -> getSamplesByAltId(key, deadline));
+        } catch (IOException e) {
+            LOG.warn("Failed to read lookup keys from request, leaving lookups to its handler", e);
+        }
+        if (prefetched == null) {
+            prefetchSkippedCount.incrementAndGet();
+        }
+        return HandlerMessage.ofJson(requestJson, prefetched, walSequence);
+    }
+
+    /**
+     * Returns the context prefetched for the request if it is still current. Lookups started
+     * before another message for one of the request's patients released its leases may miss
+     * the labels that message issued, so they are cancelled and made again. Must be called
+     * while holding the request's patient leases.
+     * @param context
+     * @return PrefetchedContext or null if nothing usable was prefetched
+     */
+    private PrefetchedContext takeFreshPrefetchedContext(RequestLabelContext context) {
+        PrefetchedContext prefetched = context.prefetchedContext;
+        context.prefetchedContext = null;
+        if (prefetched == null || patientReleaseStamps == null) {
+            return null;
+        }
+        for (String patientKey : context.patientKeys) {
+            if (patientReleaseStamps.get(getReleaseStripe(patientKey)) - prefetched.getStartedNanos() >= 0) {
+                prefetched.cancel();
+                prefetchStaleCount.incrementAndGet();
+                return null;
+            }
+        }
+        if (prefetched.isDone()) {
+            prefetchReadyCount.incrementAndGet();
+        } else {
+            prefetchPendingCount.incrementAndGet();
+        }
+        prefetched.discardFailed();
+        return prefetched;
+    }
+
+    /**
+     * Releases the patient leases, first noting the time for each patient so that context
+     * prefetched before then is known to be out of date.
+     * @param patientKeys
+     */
+    private void releasePatientLeases(List<String> patientKeys) {
+        if (patientReleaseStamps != null) {
+            long now = System.nanoTime();
+            for (String patientKey : patientKeys) {
+                patientReleaseStamps.set(getReleaseStripe(patientKey), now);
+            }
+        }
+        cmoLabelRegistryService.releasePatientLeases(patientKeys);
+    }
+
+    private int getReleaseStripe(String patientKey) {
+        return Math.floorMod(patientKey.hashCode(), patientReleaseStamps.length());
+    }
+
+    private void completeWriteAheadLogEntry(long walSequence) {
+        if (requestWriteAheadLog == null || walSequence == HandlerMessage.NO_WAL_SEQUENCE) {
+            return;
+        }
+        try {
+            requestWriteAheadLog.complete(walSequence);
+        } catch (IOException e) {
+            LOG.error("Failed to mark request complete in write-ahead log: " + walSequence, e);
+        }
+    }
+
+    /**
+     * Queues a request replayed from the write-ahead log. The request is registered in the dedup
+     * window like an incoming one, so a redelivery arriving after the restart is recognized and
+     * an identical request pending twice in the log is only processed once.
+     * @param requestJson
+     * @param igoRequestDest
+     * @param walSequence
+     * @throws Exception
+     */
+    private void replayRequest(String requestJson, IgoRequestDest igoRequestDest, long walSequence)
+            throws Exception {
+        if (requestDedupWindow != null) {
+            String dedupKey = RequestDedupWindow.keyOf(igoRequestDest.name(),
+                    getRequestIdFromRequestJson(requestJson), requestJson);
+            if (requestDedupWindow.checkAndRegister(dedupKey) != null) {
+                LOG.info("Skipping duplicate request replayed from write-ahead log: " + walSequence);
+                completeWriteAheadLogEntry(walSequence);
+                return;
+            }
+            requestDedupWindow.track(dedupKey, walSequence);
+        }
+        routeRequest(requestJson, igoRequestDest, walSequence);
+    }
+
+    /**
+     * Opens the write-ahead log and queues the requests that were accepted but not published
+     * before the service last stopped. Checkpoints are saved periodically from then on.
+     * @throws Exception
+     */
+    private void replayWriteAheadLog() throws Exception {
+        if (!WAL_ENABLED) {
+            return;
+        }
+        if (StringUtils.isBlank(WAL_DIRECTORY)) {
+            throw new IllegalStateException("Write-ahead log requires 'wal.directory' to be set");
+        }
+        requestWriteAheadLog = new RequestWriteAheadLog(Paths.get(WAL_DIRECTORY),
+                WAL_SEGMENT_SIZE_MB * 1024 * 1024);
+        int replayed = requestWriteAheadLog.replayPending((walSequence, flow, requestJson) ->
+                replayRequest(requestJson, IgoRequestDest.valueOf(flow), walSequence));
+        LOG.info("Replayed " + replayed + " request(s) from write-ahead log: " + WAL_DIRECTORY);
+        walCheckpointExec = Executors.newSingleThreadScheduledExecutor();
+        walCheckpointExec.scheduleAtFixedRate(() -> {
+            try {
+                requestWriteAheadLog.checkpoint();
+            } catch (IOException e) {
+                LOG.error("Failed to checkpoint write-ahead log", e);
+            }
+        }, WAL_CHECKPOINT_INTERVAL_SECONDS, WAL_CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns true if the request is routed to the large request lane because its payload
+     * or its number of samples reaches the configured thresholds. The payload size is checked
+     * first so that the request is only parsed when the sample count decides.
+     * @param requestJson
+     * @return Boolean
+     * @throws JsonProcessingException
+     */
+    private Boolean isLargeRequest(String requestJson) throws JsonProcessingException {
+        if (largeRequestQueue == null) {
+            return Boolean.FALSE;
+        }
+        if (LARGE_REQUEST_MIN_PAYLOAD_KB > 0
+                && StreamingRequest.hasUtf8BytesAtLeast(requestJson, LARGE_REQUEST_MIN_PAYLOAD_KB * 1024L)) {
+            return Boolean.TRUE;
+        }
+        return LARGE_REQUEST_MIN_SAMPLES > 0
+                && mapper.readTree(requestJson).path("samples").size() >= LARGE_REQUEST_MIN_SAMPLES;
+    }
+
+    private void enqueueLargeRequest(String requestJson, IgoRequestDest igoRequestDest, long walSequence,
+            int attempts) throws Exception {
+        LOG.info("Routing large request to the large request lane: " + igoRequestDest);
+        RequestLabelContext context = new RequestLabelContext(requestJson, igoRequestDest);
+        context.attempts = attempts;
+        enqueueIngressMessage(largeRequestQueue, HandlerMessage.of(context, requestJson.length(),
+                walSequence));
+    }
+
+    /**
+     * Adds an incoming message to an ingress queue. Throws a RejectedExecutionException if the
+     * queue is full and the overflow policy is to reject the message.
+     * @param <T>
+     * @param queue
+     * @param message
+     * @throws Exception
+     */
+    private <T> void enqueueIngressMessage(ByteBoundedQueue<T> queue, HandlerMessage<T> message)
+            throws Exception {
+        if (!queue.enqueue(message)) {
+            throw new RejectedExecutionException("Queue is at capacity, rejecting message: "
+                    + queue.getOccupancySummary());
+        }
+    }
+
+    /**
+     * Adds a sample update to the coalescer. When the coalescer is full the overflow policy of
+     * the sample update queue applies: the update is rejected, or the pending batches are queued
+     * early, blocking for space or spilling to disk, so that they stay ahead of the update.
+     * @param sampleMetadataList
+     * @throws Exception
+     */
+    private void coalesceSampleUpdate(List<Map<String, Object>> sampleMetadataList) throws Exception {
+        if (sampleUpdateCoalescer.offer(sampleMetadataList)) {
+            return;
+        }
+        if (cmoSampleLabelUpdateQueue.getOverflowPolicy() == ByteBoundedQueue.OverflowPolicy.REJECT) {
+            throw new RejectedExecutionException("Sample update coalescer is at capacity, rejecting "
+                    + "message: " + sampleUpdateCoalescer.getMetricsSummary());
+        }
+        enqueueCoalescedSampleUpdates(sampleUpdateCoalescer.drainAll());
+        sampleUpdateCoalescer.add(sampleMetadataList);
+    }
+
+    /**
+     * Queues batches of coalesced sample updates. The updates have already been acknowledged
+     * so a batch is never rejected: it blocks for space if the queue does not spill.
+     * @param batches
+     * @throws Exception
+     */
+    private void enqueueCoalescedSampleUpdates(List<List<Map<String, Object>>> batches)
+            throws Exception {
+        for (List<Map<String, Object>> batch : batches) {
+            HandlerMessage<List<Map<String, Object>>> message =
+                    HandlerMessage.of(batch, String.valueOf(batch).length());
+            if (!cmoSampleLabelUpdateQueue.enqueue(message)) {
+                cmoSampleLabelUpdateQueue.put(message);
+            }
+        }
+    }
+
+    /**
+     * Starts the pipelined sample update publisher if publish lanes are configured. Failed
+     * publishes are retried every retry interval.
+     */
+    private void initializeSampleUpdatePublisher() {
+        if (SAMPLE_UPDATE_PUBLISH_LANES <= 0) {
+            return;
+        }
+        sampleUpdatePublisher = new PipelinedPublisher("sampleUpdatePublisher",
+                SAMPLE_UPDATE_PUBLISH_LANES, SAMPLE_UPDATE_PUBLISH_MAX_OUTSTANDING,
+                (topic, payload) -> messagingGateway.publish(topic, payload));
+        sampleUpdatePublishRetryExec = Executors.newSingleThreadScheduledExecutor();
+        sampleUpdatePublishRetryExec.scheduleWithFixedDelay(() -> {
+            try {
+                int retried = sampleUpdatePublisher.retryFailures();
+                if (retried > 0) {
+                    LOG.warn("Retrying " + retried + " failed sample update publishes");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, SAMPLE_UPDATE_PUBLISH_RETRY_INTERVAL_SECONDS, SAMPLE_UPDATE_PUBLISH_RETRY_INTERVAL_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts coalescing sample label updates if a coalescing window is configured. Due patient
+     * batches are checked for several times per window.
+     */
+    private void initializeSampleUpdateCoalescing() {
+        if (SAMPLE_UPDATE_COALESCE_WINDOW_MS <= 0) {
+            return;
+        }
+        sampleUpdateCoalescer = new SampleUpdateCoalescer(SAMPLE_UPDATE_COALESCE_WINDOW_MS,
+                SAMPLE_UPDATE_COALESCE_MAX_BATCH_SAMPLES, SAMPLE_UPDATE_COALESCE_MAX_PENDING_SAMPLES);
+        long tickMillis = Math.max(10L, SAMPLE_UPDATE_COALESCE_WINDOW_MS / 4);
+        sampleUpdateCoalescingExec = Executors.newSingleThreadScheduledExecutor();
+        sampleUpdateCoalescingExec.scheduleWithFixedDelay(() -> {
+            try {
+                enqueueCoalescedSampleUpdates(sampleUpdateCoalescer.drainDue());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOG.error("Error queueing coalesced sample label updates", e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the spill store of a request queue. When the write-ahead log is enabled it is the
+     * authoritative record of unpublished requests: it replays every request spilled before a
+     * restart, so the spilled copies are discarded rather than processed a second time.
+     * @param directory
+     * @param codec
+     * @return QueueSpillStore
+     * @throws IOException
+     */
+    private <T> QueueSpillStore<T> openRequestSpillStore(Path directory, QueueSpillStore.Codec<T> codec)
+            throws IOException {
+        QueueSpillStore<T> spillStore = new QueueSpillStore<>(directory, codec);
+        if (WAL_ENABLED && !spillStore.isEmpty()) {
+            LOG.info("Write-ahead log is enabled, discarding " + spillStore.size()
+                    + " spilled request(s) which it replays: " + directory);
+            spillStore.clear();
+        }
+        return spillStore;
+    }
+
+    /**
+     * Creates the handler queues. Ingress queues apply the configured overflow policy while
+     * publisher queues always block the label generator when they are full.
+     * @throws Exception
+     */
+    private void initializeQueues() throws Exception {
+        if (DEDUP_ENABLED) {
+            duplicatePolicy = RequestDedupWindow.DuplicatePolicy.valueOf(
+                    DEDUP_DUPLICATE_POLICY.trim().toUpperCase());
+            requestDedupWindow = new RequestDedupWindow(DEDUP_MAX_ENTRIES, DEDUP_WINDOW_SECONDS * 1000L);
+        }
+        ByteBoundedQueue.OverflowPolicy overflowPolicy =
+                ByteBoundedQueue.OverflowPolicy.valueOf(QUEUE_OVERFLOW_POLICY.trim().toUpperCase());
+        long ingressCapacityBytes = INGRESS_QUEUE_CAPACITY_MB * 1024L * 1024L;
+        long publisherCapacityBytes = PUBLISHER_QUEUE_CAPACITY_MB * 1024L * 1024L;
+        QueueSpillStore.Codec<String> jsonCodec = new QueueSpillStore.Codec<String>() {
+            @Override
+            public byte[] encode(String payload) {
+                return payload.getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public String decode(byte[] data) {
+                return new String(data, StandardCharsets.UTF_8);
+            }
+        };
+        QueueSpillStore.Codec<List<Map<String, Object>>> samplesCodec =
+                new QueueSpillStore.Codec<List<Map<String, Object>>>() {
+            @Override
+            public byte[] encode(List<Map<String, Object>> payload) throws JsonProcessingException {
+                return mapper.writeValueAsString(payload).getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public List<Map<String, Object>> decode(byte[] data) throws JsonProcessingException {
+                return getSamplesFromJsonArray(new String(data, StandardCharsets.UTF_8));
+            }
+        };
+        boolean spill = (overflowPolicy == ByteBoundedQueue.OverflowPolicy.SPILL);
+        if (spill && StringUtils.isBlank(QUEUE_SPILL_DIRECTORY)) {
+            throw new IllegalStateException("Queue overflow policy 'spill' requires "
+                    + "'queue.spill_directory' to be set");
+        }
+        Path spillDirectory = spill ? Paths.get(QUEUE_SPILL_DIRECTORY) : null;
+        cmoLabelGeneratorQueue = new ByteBoundedQueue<>("cmoLabelGeneratorQueue", ingressCapacityBytes,
+                overflowPolicy, spill ? openRequestSpillStore(
+                        spillDirectory.resolve("cmo_label_generator"), jsonCodec) : null);
+        cmoPromotedLabelQueue = new ByteBoundedQueue<>("cmoPromotedLabelQueue", ingressCapacityBytes,
+                overflowPolicy, spill ? openRequestSpillStore(
+                        spillDirectory.resolve("cmo_promoted_label"), jsonCodec) : null);
+        cmoSampleLabelUpdateQueue = new ByteBoundedQueue<>("cmoSampleLabelUpdateQueue",
+                ingressCapacityBytes, overflowPolicy, spill ? new QueueSpillStore<>(
+                        spillDirectory.resolve("cmo_sample_label_update"), samplesCodec) : null);
+        if ((LARGE_REQUEST_MIN_SAMPLES > 0 || LARGE_REQUEST_MIN_PAYLOAD_KB > 0) && NUM_PATIENT_LANES > 0) {
+            // a separate lane would let a large request overtake earlier messages for its patients
+            LOG.warn("Patient lanes are enabled, ignoring large request routing");
+        } else if (LARGE_REQUEST_MIN_SAMPLES > 0 || LARGE_REQUEST_MIN_PAYLOAD_KB > 0) {
+            // large requests keep their destination so one lane can serve new and promoted requests,
+            // and their failed attempts so a spilled retry is not given extra attempts
+            QueueSpillStore.Codec<RequestLabelContext> largeRequestCodec =
+                    new QueueSpillStore.Codec<RequestLabelContext>() {
+                @Override
+                public byte[] encode(RequestLabelContext payload) {
+                    return (payload.igoRequestDest.name() + "\n" + payload.attempts + "\n"
+                            + payload.requestJson).getBytes(StandardCharsets.UTF_8);
+                }
+
+                @Override
+                public RequestLabelContext decode(byte[] data) {
+                    String[] parts = new String(data, StandardCharsets.UTF_8).split("\n", 3);
+                    RequestLabelContext context = new RequestLabelContext(parts[2],
+                            IgoRequestDest.valueOf(parts[0]));
+                    context.attempts = Integer.parseInt(parts[1]);
+                    return context;
+                }
+            };
+            largeRequestQueue = new ByteBoundedQueue<>("largeRequestQueue", ingressCapacityBytes,
+                    overflowPolicy, spill ? openRequestSpillStore(
+                            spillDirectory.resolve("large_request"), largeRequestCodec) : null);
+        }
+        if ("ring_buffer".equalsIgnoreCase(PUBLISHER_CONNECTOR)) {
+            RingBufferConnector.WaitStrategy waitStrategy =
+                    RingBufferConnector.WaitStrategy.valueOf(RING_BUFFER_WAIT_STRATEGY.trim().toUpperCase());
+            igoNewRequestQueue = new RingBufferConnector<>("igoNewRequestQueue", RING_BUFFER_SIZE,
+                    waitStrategy);
+            igoPromotedRequestQueue = new RingBufferConnector<>("igoPromotedRequestQueue",
+                    RING_BUFFER_SIZE, waitStrategy);
+        } else {
+            igoNewRequestQueue = new ByteBoundedQueue<>("igoNewRequestQueue", publisherCapacityBytes,
+                    ByteBoundedQueue.OverflowPolicy.BLOCK, null);
+            igoPromotedRequestQueue = new ByteBoundedQueue<>("igoPromotedRequestQueue",
+                    publisherCapacityBytes, ByteBoundedQueue.OverflowPolicy.BLOCK, null);
+        }
+
+        if (QUEUE_METRICS_INTERVAL_SECONDS > 0) {
+            queueMetricsExec = Executors.newSingleThreadScheduledExecutor();
+            queueMetricsExec.scheduleAtFixedRate(() -> {
+                for (StageConnector<?> queue : List.of(cmoLabelGeneratorQueue, cmoPromotedLabelQueue,
+                        cmoSampleLabelUpdateQueue, igoNewRequestQueue, igoPromotedRequestQueue)) {
+                    LOG.info("Queue occupancy - " + queue.getOccupancySummary());
+                }
+                if (largeRequestQueue != null) {
+                    LOG.info("Queue occupancy - " + largeRequestQueue.getOccupancySummary());
+                }
+                if (requestPipelineStages != null) {
+                    for (PipelineStage<RequestLabelContext> stage : requestPipelineStages) {
+                        LOG.info("Pipeline stage - " + stage.getMetricsSummary());
+                    }
+                }
+                if (sharedWorkPool != null) {
+                    LOG.info("Shared work pool - " + sharedWorkPool.getMetricsSummary());
+                }
+                if (scheduledTaskPhaser != null) {
+                    LOG.info("Label task scheduler - " + labelTaskSchedulerService.getMetricsSummary());
+                }
+                if (concurrencyLimiter != null) {
+                    LOG.info("Adaptive concurrency - " + concurrencyLimiter.getMetricsSummary());
+                }
+                if (requestDedupWindow != null) {
+                    LOG.info("Request dedup window - " + requestDedupWindow.getMetricsSummary());
+                }
+                if (sampleUpdateCoalescer != null) {
+                    LOG.info("Sample update coalescing - " + sampleUpdateCoalescer.getMetricsSummary());
+                }
+                if (sampleUpdatePublisher != null) {
+                    LOG.info("Pipelined publisher - " + sampleUpdatePublisher.getMetricsSummary());
+                }
+                if (REQUEST_BATCH_MAX_REQUESTS > 1) {
+                    LOG.info("Request batching - batches: " + requestBatchCount.get()
+                            + ", requests batched: " + batchedRequestCount.get());
+                }
+                if (ingressPrefetchExec != null) {
+                    LOG.info("Ingress prefetch - ready at pickup: " + prefetchReadyCount.get()
+                            + ", pending at pickup: " + prefetchPendingCount.get()
+                            + ", out of date: " + prefetchStaleCount.get()
+                            + ", not prefetched: " + prefetchSkippedCount.get()
+                            + ", lookup permits free: " + ingressPrefetchPermits.availablePermits());
+                }
+                if (resilientRequester != null) {
+                    LOG.info("Smile lookups - " + resilientRequester.getMetricsSummary());
+                }
+                if (retryScheduler != null) {
+                    LOG.info("Retry scheduler - " + retryScheduler.getMetricsSummary()
+                            + (deadLetterStore == null ? ""
+                            : ", dead letters: " + deadLetterStore.getPendingCount()));
+                }
+            }, QUEUE_METRICS_INTERVAL_SECONDS, QUEUE_METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private <T> void sendPoisonPills(StageConnector<T> queue, int numHandlers)
+            throws InterruptedException {
+        for (int i = 0; i < numHandlers; i++) {
+            queue.put(HandlerMessage.poisonPill());
+        }
     }
 
     private void initializeMessageHandlers() throws Exception {
-        cmoLabelGeneratorShutdownLatch = new CountDownLatch(NUM_NEW_REQUEST_HANDLERS);
+        initializeQueues();
+        // when patient lanes are enabled a single handler per queue dispatches to the lanes
+        // so that messages for the same patient keep the order in which they were received
+        numLabelGeneratorHandlers = NUM_NEW_REQUEST_HANDLERS;
+        numPromotedLabelHandlers = NUM_PROMOTED_REQUEST_HANDLERS;
+        if (NUM_PATIENT_LANES > 0) {
+            patientLaneExecutor = new KeyOrderedExecutor(NUM_PATIENT_LANES, "cmo-label-patient-lane");
+            numLabelGeneratorHandlers = 1;
+            numPromotedLabelHandlers = 1;
+            LOG.info("Generating CMO labels on " + NUM_PATIENT_LANES + " patient lanes");
+        }
+        if ("staged".equalsIgnoreCase(HANDLER_EXECUTION_MODE)) {
+            if (patientLaneExecutor == null) {
+                initializeRequestPipeline();
+                numLabelGeneratorHandlers = 1;
+                numPromotedLabelHandlers = 1;
+            } else {
+                LOG.warn("Patient lanes are enabled, ignoring staged execution mode");
+            }
+        }
+        if ("virtual".equalsIgnoreCase(HANDLER_EXECUTION_MODE)) {
+            // lookups to smile run in parallel on virtual threads in either case but requests are
+            // only given their own virtual threads when they are not ordered by patient lanes
+            lookupExec = Executors.newVirtualThreadPerTaskExecutor();
+            if (patientLaneExecutor == null) {
+                virtualThreadDispatcher = new VirtualThreadDispatcher(MAX_INFLIGHT_REQUESTS,
+                        "cmo-label-generator");
+                numLabelGeneratorHandlers = 1;
+                numPromotedLabelHandlers = 1;
+                LOG.info("Generating CMO labels on virtual threads with up to "
+                        + MAX_INFLIGHT_REQUESTS + " requests in flight per handler");
+            }
+        }
+        if ("work_stealing".equalsIgnoreCase(HANDLER_EXECUTION_MODE)) {
+            if (patientLaneExecutor == null) {
+                // one pool serves new requests, promoted requests and sample label updates so that
+                // capacity left idle by one flow is available to a burst on another
+                int poolThreads = (SHARED_POOL_THREADS > 0) ? SHARED_POOL_THREADS
+                        : NUM_NEW_REQUEST_HANDLERS + NUM_PROMOTED_REQUEST_HANDLERS;
+                sharedWorkPool = new WorkStealingDispatcher(poolThreads, MAX_INFLIGHT_REQUESTS,
+                        "cmo-label-shared-pool");
+                numLabelGeneratorHandlers = 1;
+                numPromotedLabelHandlers = 1;
+                LOG.info("Generating CMO labels on a shared work-stealing pool of " + poolThreads
+                        + " threads with up to " + MAX_INFLIGHT_REQUESTS + " tasks in flight");
+            } else {
+                LOG.warn("Patient lanes are enabled, ignoring work stealing execution mode");
+            }
+        }
+        if (STREAMING_MIN_PAYLOAD_KB > 0) {
+            LOG.info("Labeling requests of at least " + STREAMING_MIN_PAYLOAD_KB + " kb in chunks of "
+                    + STREAMING_CHUNK_SAMPLES + " samples");
+        }
+        if (REQUEST_BATCH_MAX_REQUESTS > 1) {
+            if (isRequestBatchingEnabled()) {
+                LOG.info("Labeling up to " + REQUEST_BATCH_MAX_REQUESTS + " queued requests per batch, "
+                        + "waiting up to " + REQUEST_BATCH_MAX_WAIT_MS + "ms to fill a batch");
+            } else {
+                LOG.warn("Request batching does not apply with patient lanes or staged execution, ignoring");
+            }
+        }
+        if (ADAPTIVE_CONCURRENCY) {
+            if (patientLaneExecutor == null && "platform".equalsIgnoreCase(HANDLER_EXECUTION_MODE)) {
+                initializeAdaptiveConcurrency();
+            } else {
+                LOG.warn("Adaptive concurrency applies to the platform execution mode without patient "
+                        + "lanes, ignoring");
+            }
+        }
+        if ("priority".equalsIgnoreCase(HANDLER_EXECUTION_MODE)) {
+            if (patientLaneExecutor == null && labelTaskSchedulerService.isEnabled()) {
+                // the scheduler workers run the label generation so one handler per queue is enough
+                scheduledTaskPhaser = new Phaser(1);
+                numLabelGeneratorHandlers = 1;
+                numPromotedLabelHandlers = 1;
+                LOG.info("Generating CMO labels on the shared priority scheduler");
+            } else {
+                LOG.warn("Patient lanes are enabled or scheduler is not running, ignoring priority "
+                        + "execution mode");
+            }
+        }
+
+        cmoLabelGeneratorShutdownLatch = new CountDownLatch(numLabelGeneratorHandlers);
         final Phaser cmoLabelGeneratorPhaser = new Phaser();
         cmoLabelGeneratorPhaser.register();
-        for (int lc = 0; lc < NUM_NEW_REQUEST_HANDLERS; lc++) {
+        for (int lc = 0; lc < numLabelGeneratorHandlers; lc++) {
             cmoLabelGeneratorPhaser.register();
             exec.execute(new CmoLabelGeneratorHandler(cmoLabelGeneratorPhaser,
                     IgoRequestDest.NEW_REQUEST_DEST, cmoLabelGeneratorQueue,
@@ -695,10 +3023,10 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
         }
         cmoLabelGeneratorPhaser.arriveAndAwaitAdvance();
 
-        cmoPromotedLabelShutdownLatch = new CountDownLatch(NUM_NEW_REQUEST_HANDLERS);
+        cmoPromotedLabelShutdownLatch = new CountDownLatch(numPromotedLabelHandlers);
         final Phaser cmoPromotedLabelPhaser = new Phaser();
         cmoPromotedLabelPhaser.register();
-        for (int lc = 0; lc < NUM_PROMOTED_REQUEST_HANDLERS; lc++) {
+        for (int lc = 0; lc < numPromotedLabelHandlers; lc++) {
             cmoPromotedLabelPhaser.register();
             exec.execute(new CmoLabelGeneratorHandler(cmoPromotedLabelPhaser,
                     IgoRequestDest.PROMOTED_REQUEST_DEST, cmoPromotedLabelQueue,
@@ -726,14 +3054,94 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
         }
         promotedRequestPhaser.arriveAndAwaitAdvance();
 
-        cmoSampleLabelUpdateShutdownLatch = new CountDownLatch(NUM_NEW_REQUEST_HANDLERS);
+        cmoSampleLabelUpdateShutdownLatch = new CountDownLatch(numLabelGeneratorHandlers);
         final Phaser cmoSampleLabelUpdatePhaser = new Phaser();
         cmoSampleLabelUpdatePhaser.register();
-        for (int lc = 0; lc < NUM_NEW_REQUEST_HANDLERS; lc++) {
+        for (int lc = 0; lc < numLabelGeneratorHandlers; lc++) {
             cmoSampleLabelUpdatePhaser.register();
             exec.execute(new CmoSampleLabelUpdateHandler(cmoSampleLabelUpdatePhaser));
         }
         cmoSampleLabelUpdatePhaser.arriveAndAwaitAdvance();
+
+        if (largeRequestQueue != null) {
+            largeRequestShutdownLatch = new CountDownLatch(LARGE_REQUEST_HANDLER_THREADS);
+            final Phaser largeRequestPhaser = new Phaser();
+            largeRequestPhaser.register();
+            for (int lc = 0; lc < LARGE_REQUEST_HANDLER_THREADS; lc++) {
+                largeRequestPhaser.register();
+                exec.execute(new LargeRequestHandler(largeRequestPhaser));
+            }
+            largeRequestPhaser.arriveAndAwaitAdvance();
+            LOG.info("Routing requests with at least " + LARGE_REQUEST_MIN_SAMPLES + " samples or "
+                    + LARGE_REQUEST_MIN_PAYLOAD_KB + " KB to " + LARGE_REQUEST_HANDLER_THREADS
+                    + " large request handler(s)");
+        }
+    }
+
+    /**
+     * Starts the maximum number of handlers for the new and promoted request queues and limits how
+     * many of them generate labels at once with an AIMD limiter shared by both flows and sample
+     * label updates. The limit is adjusted periodically from queue depth and smile lookup latency,
+     * starting from the configured number of new and promoted request handlers.
+     */
+    private void initializeAdaptiveConcurrency() {
+        concurrencyLimiter = new AimdConcurrencyLimiter(ADAPTIVE_MIN_HANDLERS, ADAPTIVE_MAX_HANDLERS,
+                NUM_NEW_REQUEST_HANDLERS + NUM_PROMOTED_REQUEST_HANDLERS, ADAPTIVE_TARGET_LOOKUP_MS,
+                ADAPTIVE_DECREASE_FACTOR);
+        numLabelGeneratorHandlers = ADAPTIVE_MAX_HANDLERS;
+        numPromotedLabelHandlers = ADAPTIVE_MAX_HANDLERS;
+        concurrencyControlExec = Executors.newSingleThreadScheduledExecutor();
+        concurrencyControlExec.scheduleAtFixedRate(() -> {
+            int previousLimit = concurrencyLimiter.getLimit();
+            int queueDepth = cmoLabelGeneratorQueue.size() + cmoPromotedLabelQueue.size()
+                    + cmoSampleLabelUpdateQueue.size();
+            int limit = concurrencyLimiter.adjust(queueDepth);
+            if (limit != previousLimit) {
+                LOG.info("Adaptive concurrency - " + concurrencyLimiter.getMetricsSummary());
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("Adaptive concurrency - " + concurrencyLimiter.getMetricsSummary());
+            }
+        }, ADAPTIVE_INTERVAL_SECONDS, ADAPTIVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        LOG.info("Generating CMO labels with adaptive concurrency between " + ADAPTIVE_MIN_HANDLERS
+                + " and " + ADAPTIVE_MAX_HANDLERS + " handlers");
+    }
+
+    /**
+     * Creates the request pipeline stages: decode, context fetch, label assignment and
+     * serialize/report. The serialize stage hands requests to the existing publisher queues.
+     * Stages are listed in pipeline order.
+     */
+    private void initializeRequestPipeline() {
+        BiConsumer<RequestLabelContext, Exception> failureHandler = (context, e) -> {
+            LOG.error("Error during request handling: " + context.requestId, e);
+            abandonRequest(context);
+            if (retryScheduler != null) {
+                retryScheduler.schedule(new FailedMessage(context.igoRequestDest.name(),
+                        context.requestJson, false, context.walSequence), context.attempts + 1, e);
+            }
+        };
+        PipelineStage<RequestLabelContext> serializeStage = new PipelineStage<>("serialize",
+                PIPELINE_SERIALIZE_THREADS, PIPELINE_STAGE_CAPACITY, context -> {
+                    serializeRequest(context);
+                    publishRequest(context);
+                }, failureHandler);
+        PipelineStage<RequestLabelContext> assignStage = new PipelineStage<>("assign",
+                PIPELINE_ASSIGN_THREADS, PIPELINE_STAGE_CAPACITY, context -> {
+                    assignRequestLabels(context);
+                    serializeStage.submit(context);
+                }, failureHandler);
+        PipelineStage<RequestLabelContext> contextStage = new PipelineStage<>("context",
+                PIPELINE_CONTEXT_THREADS, PIPELINE_STAGE_CAPACITY, context -> {
+                    fetchRequestContext(context);
+                    assignStage.submit(context);
+                }, failureHandler);
+        PipelineStage<RequestLabelContext> decodeStage = new PipelineStage<>("decode",
+                PIPELINE_DECODE_THREADS, PIPELINE_STAGE_CAPACITY, context -> {
+                    decodeRequest(context);
+                    contextStage.submit(context);
+                }, failureHandler);
+        requestPipelineStages = List.of(decodeStage, contextStage, assignStage, serializeStage);
+        LOG.info("Generating CMO labels for requests in a staged pipeline");
     }
 
     private void setupCmoLabelGeneratorHandler(Gateway gateway,
@@ -745,6 +3153,8 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
                     messageHandlingService.cmoLabelGeneratorHandler(
                             mapper.readValue(new String(msg.getData(), StandardCharsets.UTF_8),
                                     String.class));
+                } catch (RejectedExecutionException e) {
+                    rejectMessage(msg, e);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -761,6 +3171,8 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
                     messageHandlingService.cmoPromotedLabelHandler(
                             mapper.readValue(new String(msg.getData(), StandardCharsets.UTF_8),
                                     String.class));
+                } catch (RejectedExecutionException e) {
+                    rejectMessage(msg, e);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -788,6 +3200,8 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
                         sampleMetadataList.add(sm);
                     }
                     messageHandlingService.cmoSampleLabelUpdateHandler(sampleMetadataList);
+                } catch (RejectedExecutionException e) {
+                    rejectMessage(msg, e);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -795,10 +3209,50 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
         });
     }
 
+    /**
+     * Subscribes to the dead letter replay topic if one is configured. Any message received
+     * on the topic starts a replay of the stored dead letters.
+     * @param gateway
+     * @throws Exception
+     */
+    private void setupDeadLetterReplayHandler(Gateway gateway) throws Exception {
+        if (deadLetterStore == null || StringUtils.isBlank(DEAD_LETTER_REPLAY_TOPIC)) {
+            return;
+        }
+        gateway.subscribe(DEAD_LETTER_REPLAY_TOPIC, Object.class, new MessageConsumer() {
+            public void onMessage(Message msg, Object message) {
+                LOG.info("Received dead letter replay command on topic: " + DEAD_LETTER_REPLAY_TOPIC);
+                // the replay is paced so it runs off the subscription thread
+                exec.execute(() -> replayDeadLetters());
+            }
+        });
+    }
+
+    /**
+     * Negatively acknowledges a message that was rejected by a full queue so that it is
+     * redelivered later.
+     * @param msg
+     * @param e
+     */
+    private void rejectMessage(Message msg, RejectedExecutionException e) {
+        LOG.warn(e.getMessage() + " - requesting redelivery of message on topic: " + msg.getSubject());
+        try {
+            msg.nak();
+        } catch (Exception nakException) {
+            LOG.error("Failed to request redelivery of rejected message on topic: "
+                    + msg.getSubject(), nakException);
+        }
+    }
+
     private String findNextAvailableCmoLabel(String primaryId, String cmoLabel,
-            String altId) throws Exception {
-        while (isCmoLabelAlreadyInUse(primaryId, cmoLabel)) {
-            List<CmoLabelParts> samplesByCmoLabel = getSamplesByCmoLabel(cmoLabel);
+            String altId, Deadline deadline) throws Exception {
+        while (cmoLabel != null && isCmoLabelAlreadyInUse(primaryId, cmoLabel, deadline)) {
+            boolean incremented = false;
+            // with the occupancy index smile is only asked for the holder's alt id, which
+            // matters only when the sample has an alt id of its own
+            List<CmoLabelParts> samplesByCmoLabel =
+                    (cmoLabelRegistryService.isOccupancyIndexEnabled() && StringUtils.isBlank(altId))
+                    ? Collections.emptyList() : getSamplesByCmoLabel(cmoLabel, deadline);
             for (Object s : samplesByCmoLabel) {
                 // if there are any samples returned that aren't the same primary id
                 // as the one provided then that indicates that the cmo label already exists
@@ -806,7 +3260,7 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
                 // if diff alt ids then increment by sample counter otherwise increment nuc acid counter
                 Map<String, Object> sm = mapper.convertValue(s, Map.class);
                 CmoLabelParts sample = new CmoLabelParts(sm, null, null);
-                if (!sample.getPrimaryId().equals(primaryId)) {
+                if (cmoLabel != null && !sample.getPrimaryId().equals(primaryId)) {
                     String otherAltId = sample.getAltId();
                     if (!StringUtils.isBlank(altId) && !StringUtils.isBlank(otherAltId)
                             && !altId.equals(otherAltId)) {
@@ -814,8 +3268,60 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
                     } else {
                         cmoLabel = cmoLabelGeneratorService.incrementNucleicAcidCounter(cmoLabel);
                     }
+                    incremented = true;
                 }
             }
+            // the occupancy index also holds labels published but not yet persisted in smile,
+            // whose holder's alt id is not known here so the nucleic acid counter is incremented
+            if (!incremented) {
+                cmoLabel = cmoLabelGeneratorService.incrementNucleicAcidCounter(cmoLabel);
+            }
+        }
+        return cmoLabel;
+    }
+
+    /**
+     * Reserves the resolved label for the sample. If another in-flight sample has already
+     * claimed the label then the next available label is reserved instead, incrementing the
+     * sample counter when the samples have different alt ids and the nucleic acid counter
+     * otherwise. Throws an IllegalStateException rather than reuse the claimed label when
+     * the label cannot be incremented. A sample left without a label has nothing to reserve.
+     * @param resolvedLabel
+     * @param labelParts
+     * @param deadline
+     * @return String or null if the resolved label is null
+     * @throws Exception
+     */
+    private String reserveResolvedLabel(String resolvedLabel, CmoLabelParts labelParts,
+            Deadline deadline) throws Exception {
+        if (resolvedLabel == null) {
+            return null;
+        }
+        String cmoLabel = resolvedLabel;
+        CmoLabelReservation holder;
+        while ((holder = cmoLabelRegistryService.reserveCmoLabel(labelParts.getPrimaryId(),
+                labelParts.getAltId(), cmoLabel)) != null) {
+            String altId = labelParts.getAltId();
+            String nextLabel;
+            if (!StringUtils.isBlank(altId) && !StringUtils.isBlank(holder.getAltId())
+                    && !altId.equals(holder.getAltId())) {
+                nextLabel = cmoLabelGeneratorService.incrementSampleCounter(cmoLabel);
+            } else {
+                nextLabel = cmoLabelGeneratorService.incrementNucleicAcidCounter(cmoLabel);
+            }
+            // the next label may already belong to a sample persisted in smile
+            String availableLabel = (nextLabel == null) ? null
+                    : findNextAvailableCmoLabel(labelParts.getPrimaryId(), nextLabel, altId, deadline);
+            if (availableLabel == null) {
+                throw new IllegalStateException("Label " + cmoLabel + " is reserved by in-flight sample "
+                        + holder.getPrimaryId() + " and no other label is available for sample: "
+                        + labelParts.getPrimaryId());
+            }
+            cmoLabel = availableLabel;
+        }
+        if (!cmoLabel.equals(resolvedLabel)) {
+            LOG.info("Label " + resolvedLabel + " is reserved by another in-flight sample, using "
+                    + cmoLabel + " for sample: " + labelParts.getPrimaryId());
         }
         return cmoLabel;
     }
@@ -825,11 +3331,12 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
      * is not already in use by another sample in the smile store.
      * @param resolvedLabel
      * @param labelParts
+     * @param deadline
      * @return String
      * @throws Exception
      */
-    private String resolveLabelAgainstSmileStore(String resolvedLabel, CmoLabelParts labelParts)
-            throws Exception {
+    private String resolveLabelAgainstSmileStore(String resolvedLabel, CmoLabelParts labelParts,
+            Deadline deadline) throws Exception {
         Boolean hasMeaningfulUpdate =
                 cmoLabelGeneratorService.igoSampleRequiresLabelUpdate(
                         resolvedLabel,
@@ -844,11 +3351,11 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             // incoming sample check if that label already exists in smile
             // for another sample
             if (isCmoLabelAlreadyInUse(labelParts.getPrimaryId(),
-                    labelParts.getCmoSampleName())) {
+                    labelParts.getCmoSampleName(), deadline)) {
                 String nextAvailableLabel = findNextAvailableCmoLabel(
                         labelParts.getPrimaryId(),
                         labelParts.getCmoSampleName(),
-                        labelParts.getAltId());
+                        labelParts.getAltId(), deadline);
                 if (nextAvailableLabel == null) {
                     LOG.info(makeLogMsgResolvedLabelNotUsing(
                             labelParts.getPrimaryId(),
@@ -869,12 +3376,12 @@ public class LabelGenMessageHandlingServiceImpl implements MessageHandlingServic
             }
         }
         // triple check that resolved label isn't already in use by another sample
-        if (isCmoLabelAlreadyInUse(labelParts.getPrimaryId(), labelParts.getCmoSampleName())) {
+        if (isCmoLabelAlreadyInUse(labelParts.getPrimaryId(), labelParts.getCmoSampleName(), deadline)) {
             LOG.info("Resolved label " + resolvedLabel
                     + " is already in use by another sample. "
                     + "Using the next available label instead.");
             resolvedLabel = findNextAvailableCmoLabel(labelParts.getPrimaryId(),
-                    resolvedLabel, labelParts.getAltId());
+                    resolvedLabel, labelParts.getAltId(), deadline);
         }
         return resolvedLabel;
     }
@@ -0,0 +1,98 @@
+package org.mskcc.smile.service.impl;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.LabelTaskSchedulerService;
+import org.mskcc.smile.service.util.WeightedFairScheduler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Shared scheduler for label generation work from the request-reply and message handling services.
+ * When the handler execution mode is 'priority', interactive request-reply calls, sample label
+ * updates, new requests and promoted requests are queued by priority class and run on one set of
+ * worker threads with weighted fair sharing, so that interactive callers are not stuck behind a
+ * backlog of bulk requests. Tasks that wait too long are run next regardless of their weight.
+ */
+@Service
+public class LabelTaskSchedulerServiceImpl implements LabelTaskSchedulerService {
+
+    @Value("${handler.execution_mode:platform}")
+    private String HANDLER_EXECUTION_MODE;
+
+    @Value("${handler.max_inflight_requests:64}")
+    private int MAX_INFLIGHT_REQUESTS;
+
+    @Value("${num.new_request_handler_threads:1}")
+    private int NUM_NEW_REQUEST_HANDLERS;
+
+    @Value("${num.promoted_request_handler_threads:1}")
+    private int NUM_PROMOTED_REQUEST_HANDLERS;
+
+    @Value("${scheduler.threads:0}")
+    private int SCHEDULER_THREADS;
+
+    @Value("${scheduler.weight.request_reply:8}")
+    private int REQUEST_REPLY_WEIGHT;
+
+    @Value("${scheduler.weight.sample_label_update:4}")
+    private int SAMPLE_LABEL_UPDATE_WEIGHT;
+
+    @Value("${scheduler.weight.new_request:2}")
+    private int NEW_REQUEST_WEIGHT;
+
+    @Value("${scheduler.weight.promoted_request:1}")
+    private int PROMOTED_REQUEST_WEIGHT;
+
+    @Value("${scheduler.max_wait_ms:2000}")
+    private long SCHEDULER_MAX_WAIT_MS;
+
+    private WeightedFairScheduler scheduler;
+    private static final Log LOG = LogFactory.getLog(LabelTaskSchedulerServiceImpl.class);
+
+    @Override
+    public void initialize() throws Exception {
+        if (!"priority".equalsIgnoreCase(HANDLER_EXECUTION_MODE) || scheduler != null) {
+            return;
+        }
+        Map<WeightedFairScheduler.PriorityClass, Integer> weights =
+                new EnumMap<>(WeightedFairScheduler.PriorityClass.class);
+        weights.put(WeightedFairScheduler.PriorityClass.REQUEST_REPLY, REQUEST_REPLY_WEIGHT);
+        weights.put(WeightedFairScheduler.PriorityClass.SAMPLE_LABEL_UPDATE, SAMPLE_LABEL_UPDATE_WEIGHT);
+        weights.put(WeightedFairScheduler.PriorityClass.NEW_REQUEST, NEW_REQUEST_WEIGHT);
+        weights.put(WeightedFairScheduler.PriorityClass.PROMOTED_REQUEST, PROMOTED_REQUEST_WEIGHT);
+        int numWorkers = (SCHEDULER_THREADS > 0) ? SCHEDULER_THREADS
+                : NUM_NEW_REQUEST_HANDLERS + NUM_PROMOTED_REQUEST_HANDLERS;
+        scheduler = new WeightedFairScheduler(numWorkers, weights, MAX_INFLIGHT_REQUESTS,
+                SCHEDULER_MAX_WAIT_MS, "cmo-label-scheduler");
+        LOG.info("Scheduling label generation on " + numWorkers + " workers with weights " + weights);
+    }
+
+    @Override
+    public Boolean isEnabled() {
+        return scheduler != null;
+    }
+
+    @Override
+    public void submit(WeightedFairScheduler.PriorityClass priorityClass, Runnable task) throws Exception {
+        if (scheduler == null) {
+            throw new IllegalStateException("Label task scheduler has not been initialized");
+        }
+        scheduler.submit(priorityClass, task);
+    }
+
+    @Override
+    public String getMetricsSummary() {
+        return (scheduler == null) ? "disabled" : scheduler.getMetricsSummary();
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownAndAwait(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+}
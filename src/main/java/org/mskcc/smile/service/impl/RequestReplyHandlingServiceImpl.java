@@ -6,20 +6,25 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Phaser;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
 import org.mskcc.cmo.messaging.MessageConsumer;
 import org.mskcc.smile.service.CmoLabelGeneratorService;
+import org.mskcc.smile.service.LabelTaskSchedulerService;
 import org.mskcc.smile.service.RequestReplyHandlingService;
+import org.mskcc.smile.service.util.ByteBoundedQueue;
 import org.mskcc.smile.service.util.CmoLabelParts;
+import org.mskcc.smile.service.util.Deadline;
+import org.mskcc.smile.service.util.HandlerMessage;
+import org.mskcc.smile.service.util.VirtualThreadDispatcher;
+import org.mskcc.smile.service.util.WeightedFairScheduler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -44,19 +49,40 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
     @Value("${num.new_request_handler_threads:1}")
     private int NUM_NEW_REQUEST_HANDLERS;
 
+    @Value("${handler.execution_mode:platform}")
+    private String HANDLER_EXECUTION_MODE;
+
+    @Value("${handler.max_inflight_requests:64}")
+    private int MAX_INFLIGHT_REQUESTS;
+
+    @Value("${queue.ingress_capacity_mb:0}")
+    private int INGRESS_QUEUE_CAPACITY_MB;
+
+    @Value("${queue.overflow_policy:block}")
+    private String QUEUE_OVERFLOW_POLICY;
+
+    @Value("${deadline.request_reply_ms:0}")
+    private long DEADLINE_REQUEST_REPLY_MS;
+
     @Autowired
     private CmoLabelGeneratorService cmoLabelGeneratorService;
 
+    @Autowired
+    private LabelTaskSchedulerService labelTaskSchedulerService;
+
     private final ObjectMapper mapper = new ObjectMapper();
-    private static Gateway messagingGateway;
+    private Gateway messagingGateway;
     private static final Log LOG = LogFactory.getLog(RequestReplyHandlingServiceImpl.class);
-    private static boolean initialized = false;
-    private static volatile boolean shutdownInitiated;
+    private volatile boolean initialized = false;
+    private volatile boolean shutdownInitiated;
 
-    private static final ExecutorService exec = Executors.newCachedThreadPool();
-    private static final BlockingQueue<ReplyInfo> cmoLabelGeneratorReqReplyQueue =
-            new LinkedBlockingQueue<ReplyInfo>();
-    private static CountDownLatch cmoLabelGeneratorHandlerShutdownLatch;
+    private final ExecutorService exec = Executors.newCachedThreadPool();
+    private ByteBoundedQueue<ReplyInfo> cmoLabelGeneratorReqReplyQueue;
+    private CountDownLatch cmoLabelGeneratorHandlerShutdownLatch;
+    private VirtualThreadDispatcher virtualThreadDispatcher;
+    private ExecutorService deadlineLookupExec;
+    private int numReqReplyHandlers;
+    private boolean schedulerEnabled;
 
     private class ReplyInfo {
         String requestMessage;
@@ -79,7 +105,6 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
     private class CmoLabelGeneratorReqReplyHandler implements Runnable {
 
         final Phaser phaser;
-        boolean interrupted = false;
 
         CmoLabelGeneratorReqReplyHandler(Phaser phaser) {
             this.phaser = phaser;
@@ -91,27 +116,30 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
             while (true) {
                 try {
                     // reply info request message contains cmo patient id
-                    ReplyInfo replyInfo = cmoLabelGeneratorReqReplyQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (replyInfo != null) {
-                        Map<String, Object> sample = mapper.readValue(replyInfo.getRequestMessage(),
-                                Map.class);
-                        CmoLabelParts sampleLabelParts = new CmoLabelParts(sample, null, null);
-                        List<CmoLabelParts> existingPatientSamples
-                                = getExistingPatientSamples(sampleLabelParts.getCmoPatientId());
-                        List<CmoLabelParts> samplesByAltId
-                                = getSamplesByAltId(sampleLabelParts.getAltId());
-                        String updatedCmoSampleLabel =
-                                cmoLabelGeneratorService.generateCmoSampleLabel(sampleLabelParts,
-                                        existingPatientSamples, samplesByAltId);
-
-                        //log replied to the message
-                        messagingGateway.replyPublish(replyInfo.getReplyTo(), updatedCmoSampleLabel);
-                    }
-                    if (interrupted && cmoLabelGeneratorReqReplyQueue.isEmpty()) {
+                    HandlerMessage<ReplyInfo> message = cmoLabelGeneratorReqReplyQueue.take();
+                    if (message.isPoisonPill()) {
                         break;
                     }
+                    ReplyInfo replyInfo = message.getPayload();
+                    Deadline deadline = Deadline.after(message.getCreatedNanos(), DEADLINE_REQUEST_REPLY_MS);
+                    Runnable replyTask = () -> {
+                        try {
+                            replyWithCmoSampleLabel(replyInfo, deadline);
+                        } catch (Exception e) {
+                            LOG.error("Error during request handling", e);
+                        }
+                    };
+                    if (virtualThreadDispatcher != null) {
+                        virtualThreadDispatcher.dispatch(replyTask);
+                    } else if (schedulerEnabled) {
+                        labelTaskSchedulerService.submit(
+                                WeightedFairScheduler.PriorityClass.REQUEST_REPLY, replyTask);
+                    } else {
+                        replyWithCmoSampleLabel(replyInfo, deadline);
+                    }
                 } catch (InterruptedException e) {
-                    interrupted = true;
+                    LOG.warn("Handler interrupted before receiving shutdown signal, stopping");
+                    break;
                 } catch (Exception e) {
                     e.printStackTrace();
                     LOG.error("Error during request handling", e);
@@ -121,9 +149,40 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
         }
     }
 
-    private List<CmoLabelParts> getExistingPatientSamples(String cmoPatientId) throws Exception {
-        Message reply = messagingGateway.request(PATIENT_SAMPLES_REQUEST_TOPIC,
-                    cmoPatientId);
+    /**
+     * Generates the label for the sample and replies with it. The requester has given up on a
+     * reply once the deadline passes, so no reply is sent if the lookups run past it.
+     * @param replyInfo
+     * @param deadline
+     * @throws Exception
+     */
+    private void replyWithCmoSampleLabel(ReplyInfo replyInfo, Deadline deadline) throws Exception {
+        Map<String, Object> sample = mapper.readValue(replyInfo.getRequestMessage(),
+                Map.class);
+        CmoLabelParts sampleLabelParts = new CmoLabelParts(sample, null, null);
+        List<CmoLabelParts> existingPatientSamples;
+        List<CmoLabelParts> samplesByAltId;
+        try {
+            existingPatientSamples = getExistingPatientSamples(sampleLabelParts.getCmoPatientId(), deadline);
+            samplesByAltId = getSamplesByAltId(sampleLabelParts.getAltId(), deadline);
+        } catch (TimeoutException e) {
+            LOG.warn("Not replying to request for patient " + sampleLabelParts.getCmoPatientId()
+                    + ": " + e.getMessage());
+            return;
+        }
+        String updatedCmoSampleLabel =
+                cmoLabelGeneratorService.generateCmoSampleLabel(sampleLabelParts,
+                        existingPatientSamples, samplesByAltId);
+
+        //log replied to the message
+        messagingGateway.replyPublish(replyInfo.getReplyTo(), updatedCmoSampleLabel);
+    }
+
+    private List<CmoLabelParts> getExistingPatientSamples(String cmoPatientId, Deadline deadline)
+            throws Exception {
+        Message reply = deadline.call(deadlineLookupExec,
+                () -> messagingGateway.request(PATIENT_SAMPLES_REQUEST_TOPIC, cmoPatientId),
+                "patient samples lookup for " + cmoPatientId);
         List<Object> sampleObjectList = mapper.readValue(
                 new String(reply.getData(), StandardCharsets.UTF_8),
                 List.class);
@@ -135,9 +194,10 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
         return ptSamples;
     }
 
-    private List<CmoLabelParts> getSamplesByAltId(String altId) throws Exception {
-        Message reply = messagingGateway.request(SAMPLES_BY_ALT_ID_REQREPLY_TOPIC,
-                    altId);
+    private List<CmoLabelParts> getSamplesByAltId(String altId, Deadline deadline) throws Exception {
+        Message reply = deadline.call(deadlineLookupExec,
+                () -> messagingGateway.request(SAMPLES_BY_ALT_ID_REQREPLY_TOPIC, altId),
+                "alt id samples lookup for " + altId);
         List<Object> sampleObjectList = mapper.readValue(
                 new String(reply.getData(), StandardCharsets.UTF_8),
                 List.class);
@@ -167,7 +227,12 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
         if (!shutdownInitiated) {
-            cmoLabelGeneratorReqReplyQueue.put(new ReplyInfo(sampleJson, replyTo));
+            if (!cmoLabelGeneratorReqReplyQueue.enqueue(HandlerMessage.of(new ReplyInfo(sampleJson, replyTo),
+                    sampleJson.length()))) {
+                // the requester times out and can retry once the queue has drained
+                LOG.warn("Queue is at capacity, not replying to request: "
+                        + cmoLabelGeneratorReqReplyQueue.getOccupancySummary());
+            }
         } else {
             LOG.error("Shutdown initiated, not accepting samples: " + sampleJson);
             throw new IllegalStateException("Shutdown initiated, not handling any more samples");
@@ -192,10 +257,34 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
     }
 
     private void initializeRequestReplyHandlers() throws Exception {
-        cmoLabelGeneratorHandlerShutdownLatch = new CountDownLatch(NUM_NEW_REQUEST_HANDLERS);
+        // replies cannot be deferred so spilling falls back on blocking for this queue
+        ByteBoundedQueue.OverflowPolicy overflowPolicy =
+                ByteBoundedQueue.OverflowPolicy.valueOf(QUEUE_OVERFLOW_POLICY.trim().toUpperCase());
+        if (overflowPolicy == ByteBoundedQueue.OverflowPolicy.SPILL) {
+            overflowPolicy = ByteBoundedQueue.OverflowPolicy.BLOCK;
+        }
+        cmoLabelGeneratorReqReplyQueue = new ByteBoundedQueue<>("cmoLabelGeneratorReqReplyQueue",
+                INGRESS_QUEUE_CAPACITY_MB * 1024L * 1024L, overflowPolicy, null);
+        numReqReplyHandlers = NUM_NEW_REQUEST_HANDLERS;
+        if (DEADLINE_REQUEST_REPLY_MS > 0) {
+            // lookups run on their own virtual threads so they can be abandoned at the deadline
+            deadlineLookupExec = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        if ("virtual".equalsIgnoreCase(HANDLER_EXECUTION_MODE)) {
+            // a single handler hands each request to its own virtual thread
+            virtualThreadDispatcher = new VirtualThreadDispatcher(MAX_INFLIGHT_REQUESTS,
+                    "cmo-label-reqreply");
+            numReqReplyHandlers = 1;
+        }
+        if ("priority".equalsIgnoreCase(HANDLER_EXECUTION_MODE) && labelTaskSchedulerService.isEnabled()) {
+            // replies run on the shared scheduler ahead of bulk request processing
+            schedulerEnabled = true;
+            numReqReplyHandlers = 1;
+        }
+        cmoLabelGeneratorHandlerShutdownLatch = new CountDownLatch(numReqReplyHandlers);
         final Phaser cmoLabelGeneratorPhaser = new Phaser();
         cmoLabelGeneratorPhaser.register();
-        for (int lc = 0; lc < NUM_NEW_REQUEST_HANDLERS; lc++) {
+        for (int lc = 0; lc < numReqReplyHandlers; lc++) {
             cmoLabelGeneratorPhaser.register();
             exec.execute(new CmoLabelGeneratorReqReplyHandler(cmoLabelGeneratorPhaser));
         }
@@ -207,9 +296,19 @@ public class RequestReplyHandlingServiceImpl implements RequestReplyHandlingServ
         if (!initialized) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
-        exec.shutdownNow();
-        cmoLabelGeneratorHandlerShutdownLatch.await();
+        // stop accepting samples and let the handlers reply to those already queued
         shutdownInitiated = true;
+        for (int i = 0; i < numReqReplyHandlers; i++) {
+            cmoLabelGeneratorReqReplyQueue.put(HandlerMessage.poisonPill());
+        }
+        cmoLabelGeneratorHandlerShutdownLatch.await();
+        if (virtualThreadDispatcher != null) {
+            virtualThreadDispatcher.shutdownAndAwait(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        if (deadlineLookupExec != null) {
+            deadlineLookupExec.shutdownNow();
+        }
+        exec.shutdown();
     }
 
 }
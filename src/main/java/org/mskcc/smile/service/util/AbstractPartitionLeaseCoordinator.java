@@ -0,0 +1,192 @@
+package org.mskcc.smile.service.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base class for lease coordinators. Leases are reference counted within an instance so that
+ * several handler threads can work on the same partition under one lease; the lease is handed
+ * back to the lease store when the last of them releases it. Partitions are always acquired in
+ * ascending order so that instances waiting on each other's partitions cannot deadlock.
+ * Held leases are renewed in the background at a third of the lease ttl.
+ */
+public abstract class AbstractPartitionLeaseCoordinator implements PartitionLeaseCoordinator {
+    private static final Log LOG = LogFactory.getLog(AbstractPartitionLeaseCoordinator.class);
+    private static final long ACQUIRE_RETRY_MILLIS = 50L;
+    private static final long ACQUIRE_WARN_MILLIS = 10000L;
+
+    protected final String ownerId;
+    protected final long leaseTtlMillis;
+    private final int numPartitions;
+    // partition => number of in-flight tasks holding the lease in this instance
+    private final Map<Integer, Integer> leaseRefCounts = new HashMap<>();
+    private final ScheduledExecutorService renewalExec;
+
+    /**
+     * Constructor for AbstractPartitionLeaseCoordinator.
+     * @param ownerId
+     * @param numPartitions
+     * @param leaseTtlMillis
+     */
+    protected AbstractPartitionLeaseCoordinator(String ownerId, int numPartitions, long leaseTtlMillis) {
+        if (numPartitions < 1) {
+            throw new IllegalArgumentException("Number of partitions must be positive: " + numPartitions);
+        }
+        this.ownerId = ownerId;
+        this.numPartitions = numPartitions;
+        this.leaseTtlMillis = leaseTtlMillis;
+        this.renewalExec = Executors.newSingleThreadScheduledExecutor();
+        long renewalPeriod = Math.max(1L, leaseTtlMillis / 3);
+        renewalExec.scheduleWithFixedDelay(this::renewLeases, renewalPeriod, renewalPeriod,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Claims the lease on the partition for this instance if it is free, expired or already
+     * held by this instance.
+     * @param partition
+     * @param expiresAt
+     * @return boolean
+     * @throws IOException
+     */
+    protected abstract boolean tryClaim(int partition, long expiresAt) throws IOException;
+
+    /**
+     * Extends the lease held by this instance.
+     * @param partition
+     * @param expiresAt
+     * @return boolean false if the lease is no longer held by this instance
+     * @throws IOException
+     */
+    protected abstract boolean renewClaim(int partition, long expiresAt) throws IOException;
+
+    /**
+     * Hands the lease on the partition back to the lease store.
+     * @param partition
+     * @throws IOException
+     */
+    protected abstract void releaseClaim(int partition) throws IOException;
+
+    @Override
+    public int getNumPartitions() {
+        return numPartitions;
+    }
+
+    @Override
+    public int partitionFor(String key) {
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), numPartitions);
+    }
+
+    @Override
+    public void acquire(Collection<String> keys) throws InterruptedException, IOException {
+        List<Integer> acquired = new ArrayList<>();
+        try {
+            for (Integer partition : toPartitions(keys)) {
+                long start = System.currentTimeMillis();
+                long nextWarning = start + ACQUIRE_WARN_MILLIS;
+                while (!tryAcquirePartition(partition)) {
+                    if (System.currentTimeMillis() >= nextWarning) {
+                        LOG.warn("Still waiting on lease for partition " + partition + " after "
+                                + (System.currentTimeMillis() - start) + " ms");
+                        nextWarning += ACQUIRE_WARN_MILLIS;
+                    }
+                    Thread.sleep(ACQUIRE_RETRY_MILLIS);
+                }
+                acquired.add(partition);
+            }
+        } catch (InterruptedException | IOException | RuntimeException e) {
+            // hand back the partitions already acquired so they are not held until shutdown
+            for (Integer partition : acquired) {
+                releasePartition(partition);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void release(Collection<String> keys) {
+        for (Integer partition : toPartitions(keys)) {
+            releasePartition(partition);
+        }
+    }
+
+    @Override
+    public synchronized Set<Integer> getOwnedPartitions() {
+        return new HashSet<>(leaseRefCounts.keySet());
+    }
+
+    @Override
+    public void close() throws IOException {
+        renewalExec.shutdownNow();
+        synchronized (this) {
+            for (Integer partition : leaseRefCounts.keySet()) {
+                releaseClaim(partition);
+            }
+            leaseRefCounts.clear();
+        }
+    }
+
+    private synchronized void releasePartition(int partition) {
+        Integer refCount = leaseRefCounts.get(partition);
+        if (refCount == null) {
+            return;
+        }
+        if (refCount > 1) {
+            leaseRefCounts.put(partition, refCount - 1);
+            return;
+        }
+        leaseRefCounts.remove(partition);
+        try {
+            releaseClaim(partition);
+        } catch (IOException e) {
+            LOG.error("Failed to release lease on partition " + partition + " - lease will expire", e);
+        }
+    }
+
+    private synchronized boolean tryAcquirePartition(int partition) throws IOException {
+        Integer refCount = leaseRefCounts.get(partition);
+        if (refCount != null) {
+            leaseRefCounts.put(partition, refCount + 1);
+            return true;
+        }
+        if (tryClaim(partition, System.currentTimeMillis() + leaseTtlMillis)) {
+            leaseRefCounts.put(partition, 1);
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void renewLeases() {
+        for (Integer partition : leaseRefCounts.keySet()) {
+            try {
+                if (!renewClaim(partition, System.currentTimeMillis() + leaseTtlMillis)) {
+                    LOG.error("Lost lease on partition " + partition + " held by " + ownerId
+                            + " - another instance may be generating labels for its patients");
+                }
+            } catch (Exception e) {
+                LOG.error("Failed to renew lease on partition " + partition, e);
+            }
+        }
+    }
+
+    private TreeSet<Integer> toPartitions(Collection<String> keys) {
+        TreeSet<Integer> partitions = new TreeSet<>();
+        for (String key : keys) {
+            partitions.add(partitionFor(key));
+        }
+        return partitions;
+    }
+}
@@ -0,0 +1,168 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit which is adjusted at runtime with additive increase and multiplicative
+ * decrease (AIMD). Work acquires a permit before it runs and blocks while the limit is reached.
+ * Each adjustment looks at the latencies recorded since the previous adjustment: when the average
+ * lookup latency is above its target the limit is cut by the decrease factor, otherwise the limit
+ * grows by one while work is backed up and every permit is in use. The limit always stays between
+ * the configured minimum and maximum.
+ */
+public class AimdConcurrencyLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLookupNanos;
+    private final double decreaseFactor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition permitAvailable = lock.newCondition();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final LongAdder lookupCount = new LongAdder();
+    private final LongAdder taskNanos = new LongAdder();
+    private final LongAdder taskCount = new LongAdder();
+    private int limit;
+    private int inflight;
+    private int waiting;
+    private int peakInflight;
+    private String lastAdjustment = "none";
+
+    /**
+     * Constructor for AimdConcurrencyLimiter.
+     * @param minLimit
+     * @param maxLimit
+     * @param initialLimit
+     * @param targetLookupMillis
+     * @param decreaseFactor fraction of the limit kept when it is decreased
+     */
+    public AimdConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit, long targetLookupMillis,
+            double decreaseFactor) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits: min " + minLimit
+                    + ", max " + maxLimit);
+        }
+        if (decreaseFactor <= 0.0 || decreaseFactor >= 1.0) {
+            throw new IllegalArgumentException("Decrease factor must be between 0 and 1: "
+                    + decreaseFactor);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.targetLookupNanos = TimeUnit.MILLISECONDS.toNanos(targetLookupMillis);
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    /**
+     * Blocks until the number of permits in use is below the current limit.
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waiting++;
+            try {
+                while (inflight >= limit) {
+                    permitAvailable.await();
+                }
+            } finally {
+                waiting--;
+            }
+            inflight++;
+            peakInflight = Math.max(peakInflight, inflight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a permit and records how long the work holding it took.
+     * @param elapsedNanos
+     */
+    public void release(long elapsedNanos) {
+        taskNanos.add(elapsedNanos);
+        taskCount.increment();
+        lock.lock();
+        try {
+            inflight--;
+            permitAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the latency of a lookup made while holding a permit.
+     * @param elapsedNanos
+     */
+    public void recordLookupLatency(long elapsedNanos) {
+        lookupNanos.add(elapsedNanos);
+        lookupCount.increment();
+    }
+
+    /**
+     * Adjusts the limit from the latencies recorded since the last adjustment and the number
+     * of queued messages. Work blocked waiting for a permit also counts as backed up.
+     * @param queueDepth
+     * @return int the new limit
+     */
+    public int adjust(int queueDepth) {
+        long lookups = lookupCount.sumThenReset();
+        long totalLookupNanos = lookupNanos.sumThenReset();
+        long avgLookupNanos = (lookups == 0) ? 0L : totalLookupNanos / lookups;
+        long tasks = taskCount.sumThenReset();
+        long totalTaskNanos = taskNanos.sumThenReset();
+        long avgTaskNanos = (tasks == 0) ? 0L : totalTaskNanos / tasks;
+        lock.lock();
+        try {
+            int previousLimit = limit;
+            if (lookups > 0 && avgLookupNanos > targetLookupNanos) {
+                limit = Math.max(minLimit, (int) (limit * decreaseFactor));
+            } else if (queueDepth + waiting > 0 && peakInflight >= limit) {
+                limit = Math.min(maxLimit, limit + 1);
+            }
+            // waiters may proceed straight away if the limit was raised
+            permitAvailable.signalAll();
+            lastAdjustment = "limit: " + previousLimit + " -> " + limit
+                    + ", queue depth: " + queueDepth
+                    + ", waiting: " + waiting
+                    + ", peak in flight: " + peakInflight
+                    + ", avg lookup ms: " + TimeUnit.NANOSECONDS.toMillis(avgLookupNanos)
+                    + " (" + lookups + " lookups)"
+                    + ", avg task ms: " + TimeUnit.NANOSECONDS.toMillis(avgTaskNanos)
+                    + " (" + tasks + " tasks)";
+            peakInflight = inflight;
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current concurrency limit.
+     * @return int
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the most recent adjustment.
+     * @return String
+     */
+    public String getMetricsSummary() {
+        lock.lock();
+        try {
+            return "in flight: " + inflight + ", " + lastAdjustment;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.mskcc.smile.service.util;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Handler queue whose capacity is measured in payload bytes rather than message count.
+ * When the queue is full, messages offered to it are handled according to the overflow policy:
+ * BLOCK waits for capacity (pushing back on the caller), REJECT refuses the message so that it
+ * can be redelivered later and SPILL writes the message to a spill store on disk. Spilled
+ * messages are moved back into the queue in arrival order as capacity frees up; while any
+ * messages are spilled new messages are spilled behind them so that ordering is kept.
+ * A message is always admitted to an empty queue so that a single message larger than the
+ * capacity cannot stall the queue, and poison pills are never subject to the capacity.
+ * Once a poison pill has been queued spilled messages are no longer moved back into the queue,
+ * where they would sit behind the pill and be lost at shutdown, and new messages offered under
+ * the SPILL policy are spilled, so that they stay on disk for the next start.
+ * @param <T>
+ */
+public class ByteBoundedQueue<T> implements StageConnector<T> {
+    public static enum OverflowPolicy {
+        BLOCK,
+        REJECT,
+        SPILL
+    }
+
+    private final String name;
+    private final long capacityBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final QueueSpillStore<T> spillStore;
+    private final LinkedBlockingQueue<HandlerMessage<T>> queue = new LinkedBlockingQueue<>();
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition notFull = capacityLock.newCondition();
+    private long usedBytes = 0L;
+    private long peakBytes = 0L;
+    private boolean poisonPillQueued = false;
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    /**
+     * Constructor for ByteBoundedQueue.
+     * @param name
+     * @param capacityBytes capacity in bytes or zero for an unbounded queue
+     * @param overflowPolicy
+     * @param spillStore spill store, required for the SPILL policy only
+     */
+    public ByteBoundedQueue(String name, long capacityBytes, OverflowPolicy overflowPolicy,
+            QueueSpillStore<T> spillStore) {
+        if (overflowPolicy == OverflowPolicy.SPILL && spillStore == null) {
+            throw new IllegalArgumentException("Spill store is required for queue: " + name);
+        }
+        this.name = name;
+        this.capacityBytes = capacityBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.spillStore = spillStore;
+    }
+
+    /**
+     * Constructor for an unbounded ByteBoundedQueue.
+     * @param name
+     */
+    public ByteBoundedQueue(String name) {
+        this(name, 0L, OverflowPolicy.BLOCK, null);
+    }
+
+    /**
+     * Adds the message to the queue according to the overflow policy.
+     * @param message
+     * @return boolean false if the message was rejected
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public boolean enqueue(HandlerMessage<T> message) throws InterruptedException, IOException {
+        switch (overflowPolicy) {
+            case REJECT:
+                if (offer(message)) {
+                    return true;
+                }
+                rejectedCount.incrementAndGet();
+                return false;
+            case SPILL:
+                capacityLock.lock();
+                try {
+                    if (!poisonPillQueued && spillStore.isEmpty() && offer(message)) {
+                        return true;
+                    }
+                    spillStore.write(message);
+                    spilledCount.incrementAndGet();
+                    // capacity may have freed up while the message was being spilled
+                    refillFromSpillStore();
+                    return true;
+                } finally {
+                    capacityLock.unlock();
+                }
+            case BLOCK:
+            default:
+                put(message);
+                return true;
+        }
+    }
+
+    /**
+     * Adds the message to the queue, waiting for capacity if necessary.
+     * @param message
+     * @throws InterruptedException
+     */
+    @Override
+    public void put(HandlerMessage<T> message) throws InterruptedException {
+        capacityLock.lock();
+        try {
+            if (!hasCapacityFor(message)) {
+                blockedCount.incrementAndGet();
+                while (!hasCapacityFor(message)) {
+                    notFull.await();
+                }
+            }
+            add(message);
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the message to the queue if there is capacity for it.
+     * @param message
+     * @return boolean
+     */
+    public boolean offer(HandlerMessage<T> message) {
+        capacityLock.lock();
+        try {
+            if (!hasCapacityFor(message)) {
+                return false;
+            }
+            add(message);
+            return true;
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next message, waiting for one if the queue is empty.
+     * @return HandlerMessage
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @Override
+    public HandlerMessage<T> take() throws InterruptedException, IOException {
+        if (spillStore != null) {
+            capacityLock.lock();
+            try {
+                refillFromSpillStore();
+            } finally {
+                capacityLock.unlock();
+            }
+        }
+        HandlerMessage<T> message = queue.take();
+        capacityLock.lock();
+        try {
+            usedBytes -= message.getSizeBytes();
+            notFull.signalAll();
+        } finally {
+            capacityLock.unlock();
+        }
+        return message;
+    }
+
+    /**
+     * Takes the next message, waiting up to the given time for one if the queue is empty.
+     * @param timeout
+     * @param unit
+     * @return HandlerMessage or null if no message arrived in time
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public HandlerMessage<T> poll(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+        if (spillStore != null) {
+            capacityLock.lock();
+            try {
+                refillFromSpillStore();
+            } finally {
+                capacityLock.unlock();
+            }
+        }
+        HandlerMessage<T> message = queue.poll(timeout, unit);
+        if (message == null) {
+            return null;
+        }
+        capacityLock.lock();
+        try {
+            usedBytes -= message.getSizeBytes();
+            notFull.signalAll();
+        } finally {
+            capacityLock.unlock();
+        }
+        return message;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty() && (spillStore == null || spillStore.isEmpty());
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    /**
+     * Returns the bytes of payload currently held in memory by the queue.
+     * @return long
+     */
+    public long getUsedBytes() {
+        capacityLock.lock();
+        try {
+            return usedBytes;
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the queue occupancy and overflow counters.
+     * @return String
+     */
+    @Override
+    public String getOccupancySummary() {
+        capacityLock.lock();
+        try {
+            StringBuilder builder = new StringBuilder();
+            builder.append(name).append(": messages=").append(queue.size())
+                    .append(", bytes=").append(usedBytes)
+                    .append(", peakBytes=").append(peakBytes);
+            if (capacityBytes > 0) {
+                builder.append(", capacityBytes=").append(capacityBytes)
+                        .append(", occupancy=")
+                        .append(String.format("%.1f%%", 100.0 * usedBytes / capacityBytes));
+            }
+            builder.append(", blocked=").append(blockedCount.get())
+                    .append(", rejected=").append(rejectedCount.get())
+                    .append(", spilled=").append(spilledCount.get());
+            if (spillStore != null) {
+                builder.append(", pendingSpilled=").append(spillStore.size());
+            }
+            return builder.toString();
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    private boolean hasCapacityFor(HandlerMessage<T> message) {
+        return capacityBytes <= 0 || message.isPoisonPill() || queue.isEmpty()
+                || usedBytes + message.getSizeBytes() <= capacityBytes;
+    }
+
+    private void add(HandlerMessage<T> message) {
+        if (message.isPoisonPill()) {
+            poisonPillQueued = true;
+        }
+        usedBytes += message.getSizeBytes();
+        peakBytes = Math.max(peakBytes, usedBytes);
+        queue.add(message);
+    }
+
+    /**
+     * Moves spilled messages back into the queue, oldest first, while there is capacity and
+     * no poison pill has been queued. Must be called while holding the capacity lock.
+     */
+    private void refillFromSpillStore() throws IOException {
+        while (!poisonPillQueued && !spillStore.isEmpty()) {
+            long sizeBytes = spillStore.peekSizeBytes();
+            if (capacityBytes > 0 && !queue.isEmpty() && usedBytes + sizeBytes > capacityBytes) {
+                return;
+            }
+            add(spillStore.remove());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.mskcc.smile.service.util;
+
+/**
+ * Claim on a CMO label (and the sample and nucleic acid counters it encodes) held by a sample
+ * while its label is in flight between label generation and publishing.
+ */
+public class CmoLabelReservation {
+    private final String cmoLabel;
+    private final String primaryId;
+    private final String altId;
+    private final long reservedAt;
+
+    /**
+     * Constructor for CmoLabelReservation.
+     * @param cmoLabel
+     * @param primaryId
+     * @param altId
+     */
+    public CmoLabelReservation(String cmoLabel, String primaryId, String altId) {
+        this.cmoLabel = cmoLabel;
+        this.primaryId = primaryId;
+        this.altId = altId;
+        this.reservedAt = System.currentTimeMillis();
+    }
+
+    public String getCmoLabel() {
+        return cmoLabel;
+    }
+
+    public String getPrimaryId() {
+        return primaryId;
+    }
+
+    public String getAltId() {
+        return altId;
+    }
+
+    public long getReservedAt() {
+        return reservedAt;
+    }
+}
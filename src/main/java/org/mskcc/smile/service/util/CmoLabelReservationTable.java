@@ -0,0 +1,85 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide claim table of in-flight CMO labels.
+ * A label can only be reserved by one primary id at a time. Reservations of labels which were
+ * not published are released, while those of published labels are kept until they expire so
+ * that the label stays claimed until smile has it. The time-to-live also ensures that a
+ * reservation left behind by a failed request cannot block a label indefinitely.
+ */
+public class CmoLabelReservationTable {
+    private final ConcurrentHashMap<String, CmoLabelReservation> reservationsByLabel =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> labelsByPrimaryId = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    /**
+     * Constructor for CmoLabelReservationTable.
+     * @param ttlMillis
+     */
+    public CmoLabelReservationTable(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Atomically reserves the label for the given primary id.
+     * @param cmoLabel
+     * @param primaryId
+     * @param altId
+     * @return CmoLabelReservation the conflicting reservation held by another sample,
+     *      or null if the label is now reserved by the given primary id
+     */
+    public CmoLabelReservation tryReserve(String cmoLabel, String primaryId, String altId) {
+        CmoLabelReservation requested = new CmoLabelReservation(cmoLabel, primaryId, altId);
+        CmoLabelReservation holder = reservationsByLabel.compute(cmoLabel, (label, existing) ->
+                (existing == null || existing.getPrimaryId().equals(primaryId) || isExpired(existing))
+                        ? requested : existing);
+        if (holder != requested) {
+            return holder;
+        }
+        // a sample only ever needs one label so free any other label it reserved earlier
+        String previousLabel = labelsByPrimaryId.put(primaryId, cmoLabel);
+        if (previousLabel != null && !previousLabel.equals(cmoLabel)) {
+            reservationsByLabel.computeIfPresent(previousLabel, (label, existing) ->
+                    existing.getPrimaryId().equals(primaryId) ? null : existing);
+        }
+        return null;
+    }
+
+    /**
+     * Releases the reservation on the label if it is held by the given primary id.
+     * @param cmoLabel
+     * @param primaryId
+     */
+    public void release(String cmoLabel, String primaryId) {
+        reservationsByLabel.computeIfPresent(cmoLabel, (label, existing) ->
+                existing.getPrimaryId().equals(primaryId) ? null : existing);
+        labelsByPrimaryId.remove(primaryId, cmoLabel);
+    }
+
+    /**
+     * Removes reservations which have outlived the time-to-live.
+     * @return int number of reservations removed
+     */
+    public int purgeExpired() {
+        int purged = 0;
+        for (CmoLabelReservation reservation : reservationsByLabel.values()) {
+            if (isExpired(reservation)
+                    && reservationsByLabel.remove(reservation.getCmoLabel(), reservation)) {
+                labelsByPrimaryId.remove(reservation.getPrimaryId(), reservation.getCmoLabel());
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    public int size() {
+        return reservationsByLabel.size();
+    }
+
+    private boolean isExpired(CmoLabelReservation reservation) {
+        return System.currentTimeMillis() - reservation.getReservedAt() > ttlMillis;
+    }
+}
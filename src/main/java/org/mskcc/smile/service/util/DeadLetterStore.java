@@ -0,0 +1,189 @@
+package org.mskcc.smile.service.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File-backed store for messages which could not be processed after exhausting their retries,
+ * stored in a {@link MappedSegmentLog}. Each dead letter keeps the flow it belongs to, the
+ * number of attempts made, the last error and the message payload, and is flushed before
+ * {@link #append} returns. Dead letters are re-injected with {@link #replay} at a controlled
+ * rate. Replayed dead letters are removed by saving a checkpoint next to the segments; a replay
+ * interrupted by a crash is repeated from the previous checkpoint.
+ */
+public class DeadLetterStore implements Closeable {
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String CHECKPOINT_TMP_FILE = "checkpoint.tmp";
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final Path directory;
+    private final MappedSegmentLog log;
+    private final Object replayLock = new Object();
+    private long checkpoint;
+    private int pendingCount;
+
+    /**
+     * Functional interface for receiving replayed dead letters.
+     */
+    @FunctionalInterface
+    public interface DeadLetterConsumer {
+        void accept(String flow, String payload) throws Exception;
+    }
+
+    /**
+     * Dead letter read back from the store.
+     */
+    private static class DeadLetter {
+        private final long sequence;
+        private final String flow;
+        private final String payload;
+
+        DeadLetter(long sequence, String flow, String payload) {
+            this.sequence = sequence;
+            this.flow = flow;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Constructor for DeadLetterStore.
+     * @param directory
+     * @param segmentBytes
+     * @throws IOException
+     */
+    public DeadLetterStore(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.log = new MappedSegmentLog(directory, segmentBytes);
+        this.checkpoint = readCheckpoint();
+        this.pendingCount = readDeadLetters(log.getNextSequence()).size();
+    }
+
+    /**
+     * Appends a dead letter and flushes it to the storage device.
+     * @param flow
+     * @param attempts
+     * @param lastError
+     * @param payload
+     * @throws IOException
+     */
+    public void append(String flow, int attempts, Exception lastError, String payload)
+            throws IOException {
+        String error = (lastError == null) ? "" : String.valueOf(lastError);
+        if (error.length() > MAX_ERROR_LENGTH) {
+            error = error.substring(0, MAX_ERROR_LENGTH);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length() + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(flow);
+            out.writeInt(attempts);
+            out.writeUTF(error);
+            // the payload is written raw since it can be longer than writeUTF allows
+            out.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        synchronized (this) {
+            log.append(bytes.toByteArray());
+            log.force();
+            pendingCount++;
+        }
+    }
+
+    /**
+     * Re-injects every dead letter stored before the replay started, in the order they were
+     * stored and at no more than the given rate. Dead letters are removed as they are replayed;
+     * if the consumer fails the replay stops and the failed dead letter is kept.
+     * @param ratePerSecond
+     * @param consumer
+     * @return int number of dead letters replayed
+     * @throws Exception
+     */
+    public int replay(double ratePerSecond, DeadLetterConsumer consumer) throws Exception {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Replay rate must be positive: " + ratePerSecond);
+        }
+        synchronized (replayLock) {
+            List<DeadLetter> deadLetters;
+            synchronized (this) {
+                deadLetters = readDeadLetters(log.getNextSequence());
+            }
+            long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+            long nextSlotNanos = System.nanoTime();
+            int replayed = 0;
+            try {
+                for (DeadLetter deadLetter : deadLetters) {
+                    long waitNanos = nextSlotNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                    nextSlotNanos += intervalNanos;
+                    consumer.accept(deadLetter.flow, deadLetter.payload);
+                    replayed++;
+                }
+            } finally {
+                if (replayed > 0) {
+                    long next = (replayed == deadLetters.size())
+                            ? deadLetters.get(replayed - 1).sequence + 1
+                            : deadLetters.get(replayed).sequence;
+                    saveCheckpoint(next, replayed);
+                }
+            }
+            return replayed;
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    private List<DeadLetter> readDeadLetters(long toSequence) throws IOException {
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        log.replay(checkpoint, (sequence, payload) -> {
+            if (sequence >= toSequence) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                String flow = in.readUTF();
+                in.readInt();
+                in.readUTF();
+                deadLetters.add(new DeadLetter(sequence, flow,
+                        new String(in.readAllBytes(), StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to decode dead letter record", e);
+            }
+        });
+        return deadLetters;
+    }
+
+    private synchronized void saveCheckpoint(long sequence, int replayed) throws IOException {
+        Path tmpPath = directory.resolve(CHECKPOINT_TMP_FILE);
+        Files.write(tmpPath, String.valueOf(sequence).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpPath, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = sequence;
+        pendingCount -= replayed;
+        log.deleteSegmentsBefore(sequence);
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpointPath = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpointPath)) {
+            return 0L;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8).trim());
+    }
+}
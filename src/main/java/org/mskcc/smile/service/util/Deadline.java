@@ -0,0 +1,115 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Point in time by which the handling of a message must finish. A deadline is assigned when a
+ * message is received and passed along to every lookup made for it. Waiting on a lookup never
+ * goes past the deadline: a lookup still outstanding when the deadline passes is cancelled
+ * and a {@link TimeoutException} is thrown so that the rest of the work fails fast.
+ * The unbounded deadline never expires and waits on lookups as before.
+ */
+public final class Deadline {
+    private static final Deadline NONE = new Deadline(0L, false);
+
+    private final long deadlineNanos;
+    private final boolean bounded;
+
+    private Deadline(long deadlineNanos, boolean bounded) {
+        this.deadlineNanos = deadlineNanos;
+        this.bounded = bounded;
+    }
+
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * Returns the deadline the given budget after the start, or the unbounded deadline if the
+     * budget is not positive.
+     * @param startNanos start as given by System.nanoTime()
+     * @param budgetMillis
+     * @return Deadline
+     */
+    public static Deadline after(long startNanos, long budgetMillis) {
+        if (budgetMillis <= 0) {
+            return NONE;
+        }
+        return new Deadline(startNanos + TimeUnit.MILLISECONDS.toNanos(budgetMillis), true);
+    }
+
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    public boolean isExpired() {
+        return bounded && deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Returns the time left before the deadline in nanoseconds, never less than zero.
+     * @return long
+     */
+    public long remainingNanos() {
+        return bounded ? Math.max(0L, deadlineNanos - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Throws if the deadline has passed.
+     * @param operation description of the work about to start
+     * @throws TimeoutException
+     */
+    public void check(String operation) throws TimeoutException {
+        if (isExpired()) {
+            throw new TimeoutException("Deadline exceeded before " + operation);
+        }
+    }
+
+    /**
+     * Waits for the result of a lookup until the deadline, cancelling it if the deadline passes.
+     * @param <T>
+     * @param future
+     * @param operation
+     * @return T
+     * @throws Exception the exception thrown by the lookup or TimeoutException
+     */
+    public <T> T await(Future<T> future, String operation) throws Exception {
+        try {
+            return bounded ? future.get(remainingNanos(), TimeUnit.NANOSECONDS) : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new TimeoutException("Deadline exceeded waiting for " + operation);
+        } catch (CancellationException e) {
+            throw new TimeoutException("Lookup cancelled: " + operation);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a lookup on the given executor and waits for it until the deadline. Without a bound
+     * the lookup runs on the calling thread.
+     * @param <T>
+     * @param executor
+     * @param lookup
+     * @param operation
+     * @return T
+     * @throws Exception the exception thrown by the lookup or TimeoutException
+     */
+    public <T> T call(ExecutorService executor, Callable<T> lookup, String operation) throws Exception {
+        if (!bounded) {
+            return lookup.call();
+        }
+        check(operation);
+        return await(executor.submit(lookup), operation);
+    }
+}
@@ -0,0 +1,87 @@
+package org.mskcc.smile.service.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lease coordinator backed by one lock file per partition in a shared directory.
+ * A lease is held as an exclusive lock on the partition file, which the operating system
+ * releases if the holding process dies, so a crashed instance never strands its partitions.
+ * The owner and lease expiry are written to the file for troubleshooting.
+ */
+public class FileLockPartitionLeaseCoordinator extends AbstractPartitionLeaseCoordinator {
+    private final Path directory;
+    private final Map<Integer, FileLock> heldLocks = new HashMap<>();
+
+    /**
+     * Constructor for FileLockPartitionLeaseCoordinator.
+     * @param directory
+     * @param ownerId
+     * @param numPartitions
+     * @param leaseTtlMillis
+     * @throws IOException
+     */
+    public FileLockPartitionLeaseCoordinator(Path directory, String ownerId, int numPartitions,
+            long leaseTtlMillis) throws IOException {
+        super(ownerId, numPartitions, leaseTtlMillis);
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    protected synchronized boolean tryClaim(int partition, long expiresAt) throws IOException {
+        if (heldLocks.containsKey(partition)) {
+            return true;
+        }
+        FileChannel channel = FileChannel.open(
+                directory.resolve(String.format("partition-%05d.lease", partition)),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another coordinator in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            return false;
+        }
+        heldLocks.put(partition, lock);
+        writeLeaseInfo(channel, expiresAt);
+        return true;
+    }
+
+    @Override
+    protected synchronized boolean renewClaim(int partition, long expiresAt) throws IOException {
+        FileLock lock = heldLocks.get(partition);
+        if (lock == null || !lock.isValid()) {
+            return false;
+        }
+        writeLeaseInfo(lock.channel(), expiresAt);
+        return true;
+    }
+
+    @Override
+    protected synchronized void releaseClaim(int partition) throws IOException {
+        FileLock lock = heldLocks.remove(partition);
+        if (lock != null) {
+            lock.channel().close();
+        }
+    }
+
+    private void writeLeaseInfo(FileChannel channel, long expiresAt) throws IOException {
+        byte[] info = (ownerId + "\t" + expiresAt + "\n").getBytes(StandardCharsets.UTF_8);
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(info), 0);
+    }
+}
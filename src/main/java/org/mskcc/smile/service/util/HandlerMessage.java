@@ -0,0 +1,122 @@
+package org.mskcc.smile.service.util;
+
+/**
+ * Envelope for messages passed between handler queues. A poison pill envelope carries no
+ * payload and tells the handler that takes it that no more messages will follow on its queue.
+ * Each message carries the (estimated) size of its payload, which bounds queue capacity,
+ * and the time it was created, from which the deadline for handling it is measured. A request
+ * message may also carry the context lookups started for it when it was received and the
+ * sequence it was given in the write-ahead log, by which it is marked complete.
+ * @param <T>
+ */
+public final class HandlerMessage<T> {
+    public static final long NO_WAL_SEQUENCE = -1L;
+    private static final HandlerMessage<?> POISON_PILL =
+            new HandlerMessage<>(null, 0L, null, NO_WAL_SEQUENCE);
+
+    private final T payload;
+    private final long sizeBytes;
+    private final long createdNanos;
+    private final PrefetchedContext prefetchedContext;
+    private final long walSequence;
+
+    private HandlerMessage(T payload, long sizeBytes, PrefetchedContext prefetchedContext,
+            long walSequence) {
+        this.payload = payload;
+        this.sizeBytes = sizeBytes;
+        this.createdNanos = System.nanoTime();
+        this.prefetchedContext = prefetchedContext;
+        this.walSequence = walSequence;
+    }
+
+    /**
+     * Wraps the payload in a handler message.
+     * @param <T>
+     * @param payload
+     * @param sizeBytes
+     * @return HandlerMessage
+     */
+    public static <T> HandlerMessage<T> of(T payload, long sizeBytes) {
+        return of(payload, sizeBytes, NO_WAL_SEQUENCE);
+    }
+
+    /**
+     * Wraps the payload of a request logged in the write-ahead log in a handler message.
+     * @param <T>
+     * @param payload
+     * @param sizeBytes
+     * @param walSequence
+     * @return HandlerMessage
+     */
+    public static <T> HandlerMessage<T> of(T payload, long sizeBytes, long walSequence) {
+        if (payload == null) {
+            throw new IllegalArgumentException("Handler message payload cannot be null");
+        }
+        return new HandlerMessage<>(payload, sizeBytes, null, walSequence);
+    }
+
+    /**
+     * Wraps a json payload in a handler message sized by its length.
+     * @param json
+     * @return HandlerMessage
+     */
+    public static HandlerMessage<String> ofJson(String json) {
+        return ofJson(json, null, NO_WAL_SEQUENCE);
+    }
+
+    /**
+     * Wraps a json request payload in a handler message along with the context lookups
+     * started for it and its write-ahead log sequence.
+     * @param json
+     * @param prefetchedContext context lookups started for the request, or null
+     * @param walSequence
+     * @return HandlerMessage
+     */
+    public static HandlerMessage<String> ofJson(String json, PrefetchedContext prefetchedContext,
+            long walSequence) {
+        if (json == null) {
+            throw new IllegalArgumentException("Handler message payload cannot be null");
+        }
+        return new HandlerMessage<>(json, json.length(), prefetchedContext, walSequence);
+    }
+
+    /**
+     * Returns the shutdown signal for handlers. One poison pill is needed for every
+     * handler taking from a queue.
+     * @param <T>
+     * @return HandlerMessage
+     */
+    public static <T> HandlerMessage<T> poisonPill() {
+        return (HandlerMessage<T>) POISON_PILL;
+    }
+
+    public boolean isPoisonPill() {
+        return this == POISON_PILL;
+    }
+
+    public T getPayload() {
+        return payload;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public PrefetchedContext getPrefetchedContext() {
+        return prefetchedContext;
+    }
+
+    /**
+     * Returns the sequence the request was accepted with, which is its sequence in the
+     * write-ahead log when the log is enabled, or NO_WAL_SEQUENCE if the request was not
+     * tracked.
+     * @return long
+     */
+    public long getWalSequence() {
+        return walSequence;
+    }
+}
@@ -0,0 +1,74 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lease coordinator backed by a lease table in memory. Coordinators sharing the same table
+ * coordinate with each other, which is enough to run several label generator instances in
+ * one JVM for local testing.
+ */
+public class InMemoryPartitionLeaseCoordinator extends AbstractPartitionLeaseCoordinator {
+    private static final ConcurrentMap<Integer, Lease> SHARED_LEASE_TABLE = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Integer, Lease> leaseTable;
+
+    /**
+     * Lease held on a partition.
+     */
+    public static class Lease {
+        private final String ownerId;
+        private final long expiresAt;
+
+        Lease(String ownerId, long expiresAt) {
+            this.ownerId = ownerId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Constructor for InMemoryPartitionLeaseCoordinator using the lease table shared by
+     * every coordinator in this JVM.
+     * @param ownerId
+     * @param numPartitions
+     * @param leaseTtlMillis
+     */
+    public InMemoryPartitionLeaseCoordinator(String ownerId, int numPartitions, long leaseTtlMillis) {
+        this(SHARED_LEASE_TABLE, ownerId, numPartitions, leaseTtlMillis);
+    }
+
+    /**
+     * Constructor for InMemoryPartitionLeaseCoordinator.
+     * @param leaseTable
+     * @param ownerId
+     * @param numPartitions
+     * @param leaseTtlMillis
+     */
+    public InMemoryPartitionLeaseCoordinator(ConcurrentMap<Integer, Lease> leaseTable, String ownerId,
+            int numPartitions, long leaseTtlMillis) {
+        super(ownerId, numPartitions, leaseTtlMillis);
+        this.leaseTable = leaseTable;
+    }
+
+    @Override
+    protected boolean tryClaim(int partition, long expiresAt) {
+        long now = System.currentTimeMillis();
+        Lease lease = leaseTable.compute(partition, (p, current) ->
+                (current == null || current.expiresAt <= now || current.ownerId.equals(ownerId))
+                        ? new Lease(ownerId, expiresAt) : current);
+        return lease.ownerId.equals(ownerId);
+    }
+
+    @Override
+    protected boolean renewClaim(int partition, long expiresAt) {
+        Lease lease = leaseTable.computeIfPresent(partition, (p, current) ->
+                current.ownerId.equals(ownerId) ? new Lease(ownerId, expiresAt) : current);
+        return lease != null && lease.ownerId.equals(ownerId);
+    }
+
+    @Override
+    protected void releaseClaim(int partition) {
+        leaseTable.computeIfPresent(partition, (p, current) ->
+                current.ownerId.equals(ownerId) ? null : current);
+    }
+}
@@ -0,0 +1,142 @@
+package org.mskcc.smile.service.util;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor which runs tasks on a fixed number of single-threaded lanes chosen by key.
+ * Tasks that share a key always run on the same lane and therefore run one at a time in the
+ * order they were submitted, while tasks for keys on different lanes run in parallel.
+ * A task with keys on several lanes is enqueued on each of those lanes in ascending lane order.
+ * Each lane parks when it reaches the task and the last lane to arrive runs it, so the task
+ * holds every one of its lanes exclusively and keeps its place in each lane's ordering.
+ * Multi-lane tasks are enqueued atomically, so every lane sees them in the same relative order
+ * and lanes can never wait on each other in a cycle.
+ */
+public class KeyOrderedExecutor {
+    private final ExecutorService[] lanes;
+    private final Object submitLock = new Object();
+
+    /**
+     * Constructor for KeyOrderedExecutor.
+     * @param numLanes
+     * @param threadNamePrefix
+     */
+    public KeyOrderedExecutor(int numLanes, String threadNamePrefix) {
+        if (numLanes < 1) {
+            throw new IllegalArgumentException("Number of lanes must be positive: " + numLanes);
+        }
+        this.lanes = new ExecutorService[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            final String threadName = threadNamePrefix + "-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(r -> new Thread(r, threadName));
+        }
+    }
+
+    /**
+     * Returns the lane that tasks for the given key run on.
+     * @param key
+     * @return int
+     */
+    public int laneFor(String key) {
+        int h = key.hashCode();
+        // spread the high bits so that similar keys do not cluster on a few lanes
+        return Math.floorMod(h ^ (h >>> 16), lanes.length);
+    }
+
+    /**
+     * Submits a task which must run exclusively of every other task sharing one of its keys.
+     * @param keys
+     * @param task
+     * @return CompletableFuture completed when the task has run
+     */
+    public CompletableFuture<Void> submit(Collection<String> keys, Runnable task) {
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("At least one key is required to order a task");
+        }
+        TreeSet<Integer> laneIds = new TreeSet<>();
+        for (String key : keys) {
+            laneIds.add(laneFor(key));
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (laneIds.size() == 1) {
+            lanes[laneIds.first()].execute(() -> runTask(task, future));
+            return future;
+        }
+        AtomicInteger pendingLanes = new AtomicInteger(laneIds.size());
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable laneTask = () -> {
+            if (pendingLanes.decrementAndGet() == 0) {
+                try {
+                    runTask(task, future);
+                } finally {
+                    done.countDown();
+                }
+            } else {
+                awaitUninterruptibly(done);
+            }
+        };
+        synchronized (submitLock) {
+            for (Integer laneId : laneIds) {
+                lanes[laneId].execute(laneTask);
+            }
+        }
+        return future;
+    }
+
+    public int getNumLanes() {
+        return lanes.length;
+    }
+
+    /**
+     * Stops accepting new tasks and waits for the tasks already submitted to finish.
+     * @param timeout
+     * @param unit
+     * @return boolean true if every lane finished before the timeout
+     * @throws InterruptedException
+     */
+    public boolean shutdownAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (submitLock) {
+            for (ExecutorService lane : lanes) {
+                lane.shutdown();
+            }
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService lane : lanes) {
+            if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void runTask(Runnable task, CompletableFuture<Void> future) {
+        try {
+            task.run();
+            future.complete(null);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.mskcc.smile.service.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Append-only journal of the CMO labels issued by the label generator.
+ * Records are stored in a {@link MappedSegmentLog}. Compaction keeps only the most recent
+ * record for each primary id, which is all that is needed to rebuild label occupancy.
+ */
+public class LabelIssuanceJournal implements Closeable {
+    private final MappedSegmentLog log;
+
+    /**
+     * Constructor for LabelIssuanceJournal.
+     * @param directory
+     * @param segmentBytes
+     * @throws IOException
+     */
+    public LabelIssuanceJournal(Path directory, int segmentBytes) throws IOException {
+        this.log = new MappedSegmentLog(directory, segmentBytes);
+    }
+
+    /**
+     * Appends the record to the journal.
+     * @param record
+     * @throws IOException
+     */
+    public void append(LabelIssuanceRecord record) throws IOException {
+        log.append(record.toBytes());
+    }
+
+    /**
+     * Replays every record in the journal in the order that they were written.
+     * @param consumer
+     * @throws IOException
+     */
+    public void replay(Consumer<LabelIssuanceRecord> consumer) throws IOException {
+        log.replay(0L, (sequence, payload) -> consumer.accept(decode(payload)));
+    }
+
+    /**
+     * Rewrites the sealed journal segments keeping only the latest record per primary id.
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        Map<String, Long> latestSequenceByPrimaryId = new HashMap<>();
+        log.replay(0L, (sequence, payload) ->
+                latestSequenceByPrimaryId.put(decode(payload).getPrimaryId(), sequence));
+        log.compact((sequence, payload) -> {
+            Long latest = latestSequenceByPrimaryId.get(decode(payload).getPrimaryId());
+            // records appended after the scan above have higher sequences and are always kept
+            return latest == null || latest <= sequence;
+        });
+    }
+
+    public void force() {
+        log.force();
+    }
+
+    public int segmentCount() {
+        return log.segmentCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+
+    private static LabelIssuanceRecord decode(byte[] payload) {
+        try {
+            return LabelIssuanceRecord.fromBytes(payload);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to decode label issuance journal record", e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.mskcc.smile.service.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Record of a CMO label settled on by the label generator for a sample.
+ */
+public class LabelIssuanceRecord {
+    private final long timestamp;
+    private final String primaryId;
+    private final String altId;
+    private final String cmoPatientId;
+    private final String cmoLabel;
+    private final String requestId;
+
+    /**
+     * Constructor for LabelIssuanceRecord.
+     * @param timestamp
+     * @param primaryId
+     * @param altId
+     * @param cmoPatientId
+     * @param cmoLabel
+     * @param requestId
+     */
+    public LabelIssuanceRecord(long timestamp, String primaryId, String altId, String cmoPatientId,
+            String cmoLabel, String requestId) {
+        this.timestamp = timestamp;
+        this.primaryId = primaryId;
+        this.altId = altId;
+        this.cmoPatientId = cmoPatientId;
+        this.cmoLabel = cmoLabel;
+        this.requestId = requestId;
+    }
+
+    /**
+     * Creates a record for the label currently set on the given sample label parts.
+     * @param labelParts
+     * @return LabelIssuanceRecord
+     */
+    public static LabelIssuanceRecord fromLabelParts(CmoLabelParts labelParts) {
+        return new LabelIssuanceRecord(System.currentTimeMillis(), labelParts.getPrimaryId(),
+                labelParts.getAltId(), labelParts.getCmoPatientId(), labelParts.getCmoSampleName(),
+                labelParts.getIgoRequestId());
+    }
+
+    /**
+     * Serializes the record for the issuance journal.
+     * @return byte[]
+     * @throws IOException
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(timestamp);
+            writeNullableString(out, primaryId);
+            writeNullableString(out, altId);
+            writeNullableString(out, cmoPatientId);
+            writeNullableString(out, cmoLabel);
+            writeNullableString(out, requestId);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a record written by {@link #toBytes()}.
+     * @param data
+     * @return LabelIssuanceRecord
+     * @throws IOException
+     */
+    public static LabelIssuanceRecord fromBytes(byte[] data) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            return new LabelIssuanceRecord(in.readLong(), readNullableString(in),
+                    readNullableString(in), readNullableString(in), readNullableString(in),
+                    readNullableString(in));
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getPrimaryId() {
+        return primaryId;
+    }
+
+    public String getAltId() {
+        return altId;
+    }
+
+    public String getCmoPatientId() {
+        return cmoPatientId;
+    }
+
+    public String getCmoLabel() {
+        return cmoLabel;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+}
@@ -0,0 +1,304 @@
+package org.mskcc.smile.service.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only log of binary records stored in memory-mapped segment files.
+ * Each record is written as [int length][long sequence][int crc32][payload]. The length is
+ * written last so that a record torn by a crash is never read back. Sequences increase
+ * monotonically across segments and segment files are named by the first sequence they hold.
+ * Appends go to the active (last) segment; a new segment is rolled when it is full.
+ */
+public class MappedSegmentLog implements Closeable {
+    private static final Log LOG = LogFactory.getLog(MappedSegmentLog.class);
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final String COMPACTION_TMP_FILE = "compaction.tmp";
+    private static final int RECORD_HEADER_BYTES = 16;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private FileChannel activeChannel;
+    private MappedByteBuffer activeBuffer;
+    private long nextSequence = 1L;
+
+    /**
+     * Constructor for MappedSegmentLog. Opens the existing segments in the given directory
+     * and positions the log for appending after the last intact record.
+     * @param directory
+     * @param segmentBytes
+     * @throws IOException
+     */
+    public MappedSegmentLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(COMPACTION_TMP_FILE));
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+            for (Path path : stream) {
+                segments.put(parseFirstSequence(path), path);
+            }
+        }
+        if (segments.isEmpty()) {
+            openSegment(nextSequence, segmentBytes);
+        } else {
+            Map.Entry<Long, Path> last = segments.lastEntry();
+            activeChannel = FileChannel.open(last.getValue(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            activeBuffer = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, activeChannel.size());
+            nextSequence = last.getKey();
+            // scan forward to the end of the last intact record
+            int position = 0;
+            long sequence;
+            while ((sequence = readSequenceAt(activeBuffer, position)) > 0) {
+                nextSequence = sequence + 1;
+                position += RECORD_HEADER_BYTES + activeBuffer.getInt(position);
+            }
+            activeBuffer.position(position);
+        }
+    }
+
+    /**
+     * Appends the payload to the log and returns the sequence assigned to it.
+     * @param payload
+     * @return long
+     * @throws IOException
+     */
+    public synchronized long append(byte[] payload) throws IOException {
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("Cannot append an empty record to log: " + directory);
+        }
+        int required = RECORD_HEADER_BYTES + payload.length;
+        if (activeBuffer.remaining() < required) {
+            roll(required);
+        }
+        int position = activeBuffer.position();
+        long sequence = nextSequence++;
+        activeBuffer.putLong(position + 4, sequence);
+        activeBuffer.putInt(position + 12, crc(payload));
+        activeBuffer.put(position + RECORD_HEADER_BYTES, payload);
+        activeBuffer.putInt(position, payload.length);
+        activeBuffer.position(position + required);
+        return sequence;
+    }
+
+    /**
+     * Flushes the active segment to the storage device.
+     */
+    public synchronized void force() {
+        activeBuffer.force();
+    }
+
+    /**
+     * Seals the active segment and opens a new one.
+     * @throws IOException
+     */
+    public synchronized void roll() throws IOException {
+        roll(RECORD_HEADER_BYTES);
+    }
+
+    /**
+     * Replays every intact record with a sequence greater than or equal to the given sequence.
+     * Records are delivered in sequence order; a record whose sequence is not greater than
+     * one already delivered is skipped.
+     * @param fromSequence
+     * @param consumer
+     * @throws IOException
+     */
+    public void replay(long fromSequence, BiConsumer<Long, byte[]> consumer) throws IOException {
+        List<Map.Entry<Long, Path>> segmentsToRead;
+        synchronized (this) {
+            segmentsToRead = new ArrayList<>(segments.entrySet());
+        }
+        long lastDelivered = fromSequence - 1;
+        for (int i = 0; i < segmentsToRead.size(); i++) {
+            // skip segments which end before the requested sequence
+            if (i + 1 < segmentsToRead.size() && segmentsToRead.get(i + 1).getKey() <= fromSequence) {
+                continue;
+            }
+            lastDelivered = replaySegment(segmentsToRead.get(i).getValue(), lastDelivered, consumer);
+        }
+    }
+
+    /**
+     * Deletes sealed segments which only hold records with sequences lower than the one given.
+     * @param sequence
+     * @return int number of segments deleted
+     * @throws IOException
+     */
+    public synchronized int deleteSegmentsBefore(long sequence) throws IOException {
+        int deleted = 0;
+        while (segments.size() > 1) {
+            Map.Entry<Long, Path> first = segments.firstEntry();
+            Long nextFirstSequence = segments.higherKey(first.getKey());
+            if (nextFirstSequence > sequence) {
+                break;
+            }
+            Files.deleteIfExists(first.getValue());
+            segments.remove(first.getKey());
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Seals the active segment and rewrites all sealed segments into a single segment holding
+     * only the records accepted by the given predicate. The predicate is evaluated twice
+     * per record and must return the same answer both times.
+     * The compacted segment replaces the first sealed segment with an atomic move before the
+     * remaining sealed segments are deleted so that a crash never loses accepted records.
+     * @param keep
+     * @throws IOException
+     */
+    public synchronized void compact(BiPredicate<Long, byte[]> keep) throws IOException {
+        if (activeBuffer.position() > 0) {
+            roll();
+        }
+        List<Path> sealed = new ArrayList<>(segments.headMap(segments.lastKey()).values());
+        if (sealed.isEmpty()) {
+            return;
+        }
+        long[] keptBytes = new long[1];
+        for (Path path : sealed) {
+            replaySegment(path, 0L, (sequence, payload) -> {
+                if (keep.test(sequence, payload)) {
+                    keptBytes[0] += RECORD_HEADER_BYTES + payload.length;
+                }
+            });
+        }
+        if (keptBytes[0] > 0) {
+            if (keptBytes[0] > Integer.MAX_VALUE - RECORD_HEADER_BYTES) {
+                throw new IllegalStateException("Compacted log would exceed maximum segment size: "
+                        + keptBytes[0]);
+            }
+            Path tmpPath = directory.resolve(COMPACTION_TMP_FILE);
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        keptBytes[0] + RECORD_HEADER_BYTES);
+                for (Path path : sealed) {
+                    replaySegment(path, 0L, (sequence, payload) -> {
+                        if (keep.test(sequence, payload)) {
+                            int position = buffer.position();
+                            buffer.putLong(position + 4, sequence);
+                            buffer.putInt(position + 12, crc(payload));
+                            buffer.put(position + RECORD_HEADER_BYTES, payload);
+                            buffer.putInt(position, payload.length);
+                            buffer.position(position + RECORD_HEADER_BYTES + payload.length);
+                        }
+                    });
+                }
+                buffer.force();
+            }
+            Files.move(tmpPath, sealed.get(0), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            sealed.remove(0);
+        }
+        for (Path path : sealed) {
+            Files.deleteIfExists(path);
+            segments.remove(parseFirstSequence(path));
+        }
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        activeBuffer.force();
+        activeChannel.close();
+    }
+
+    private void roll(int minimumBytes) throws IOException {
+        activeBuffer.force();
+        activeChannel.close();
+        openSegment(nextSequence, Math.max(segmentBytes, minimumBytes + RECORD_HEADER_BYTES));
+    }
+
+    private void openSegment(long firstSequence, int size) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_FILE_PREFIX,
+                firstSequence, SEGMENT_FILE_SUFFIX));
+        activeChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        activeBuffer = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segments.put(firstSequence, path);
+    }
+
+    private long replaySegment(Path path, long lastDelivered, BiConsumer<Long, byte[]> consumer)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int position = 0;
+            long sequence;
+            while ((sequence = readSequenceAt(buffer, position)) > 0) {
+                int length = buffer.getInt(position);
+                if (sequence > lastDelivered) {
+                    byte[] payload = new byte[length];
+                    buffer.get(position + RECORD_HEADER_BYTES, payload);
+                    consumer.accept(sequence, payload);
+                    lastDelivered = sequence;
+                }
+                position += RECORD_HEADER_BYTES + length;
+            }
+        }
+        return lastDelivered;
+    }
+
+    /**
+     * Returns the sequence of the intact record at the given position or -1 if there is no
+     * record there (end of written data, torn write or checksum mismatch).
+     */
+    private long readSequenceAt(MappedByteBuffer buffer, int position) {
+        if (position > buffer.limit() - RECORD_HEADER_BYTES) {
+            return -1L;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.limit() - position - RECORD_HEADER_BYTES) {
+            return -1L;
+        }
+        byte[] payload = new byte[length];
+        buffer.get(position + RECORD_HEADER_BYTES, payload);
+        if (crc(payload) != buffer.getInt(position + 12)) {
+            LOG.warn("Checksum mismatch in log segment, ignoring remaining records at position: "
+                    + position);
+            return -1L;
+        }
+        return buffer.getLong(position + 4);
+    }
+
+    private static long parseFirstSequence(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(),
+                name.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,355 @@
+package org.mskcc.smile.service.util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * String to string map stored off-heap so that it can hold millions of entries
+ * without adding to garbage collection pressure.
+ * Keys are resolved through an open-addressing (linear probing) slot table held in a
+ * direct ByteBuffer. Each slot stores the 64-bit key hash and a reference into a separate
+ * direct ByteBuffer arena holding the UTF-8 encoded key and value. A Bloom filter sits in
+ * front of the slot table so that most lookups for absent keys never probe the table.
+ */
+public class OffHeapStringMap {
+    private static final int SLOT_BYTES = 16;
+    private static final int SLOT_HASH_OFFSET = 0;
+    private static final int SLOT_REF_OFFSET = 8;
+    private static final int EMPTY_REF = 0;
+    private static final int TOMBSTONE_REF = -1;
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final int MAX_ARENA_BYTES = Integer.MAX_VALUE - 8;
+    private static final int AVG_RECORD_BYTES = 48;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer slots;
+    private int capacity;
+    private ByteBuffer arena;
+    private int arenaEnd = 0;
+    private int size = 0;
+    private int tombstones = 0;
+    private volatile LabelBloomFilter bloomFilter;
+    private long bloomCapacity;
+
+    /**
+     * Constructor for OffHeapStringMap.
+     * @param expectedEntries
+     */
+    public OffHeapStringMap(int expectedEntries) {
+        this.capacity = tableSizeFor((long) Math.ceil(Math.max(1, expectedEntries) / MAX_LOAD_FACTOR));
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        this.arena = ByteBuffer.allocateDirect((int) Math.min(MAX_ARENA_BYTES,
+                Math.max(4096L, (long) expectedEntries * AVG_RECORD_BYTES)));
+        this.bloomCapacity = Math.max(expectedEntries, (long) (capacity * MAX_LOAD_FACTOR));
+        this.bloomFilter = new LabelBloomFilter(bloomCapacity, BLOOM_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Returns the value mapped to the given key or null if there is no mapping.
+     * @param key
+     * @return String
+     */
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        if (!bloomFilter.mightContain(hash)) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(hash, keyBytes);
+            return slot < 0 ? null : readValue(slotRef(slot) - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns false if the key is definitely not in the map. Does not probe the slot table.
+     * @param key
+     * @return boolean
+     */
+    public boolean mightContain(String key) {
+        return bloomFilter.mightContain(hash(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Maps the key to the given value and returns the previous value if one existed.
+     * @param key
+     * @param value
+     * @return String
+     */
+    public String put(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(hash, keyBytes);
+            if (slot >= 0) {
+                String previous = readValue(slotRef(slot) - 1);
+                if (!previous.equals(value)) {
+                    int offset = append(keyBytes, valueBytes);
+                    slots.putInt(slot * SLOT_BYTES + SLOT_REF_OFFSET, offset + 1);
+                }
+                return previous;
+            }
+            if (size + tombstones + 1 > capacity * MAX_LOAD_FACTOR) {
+                rehash();
+                slot = findSlot(hash, keyBytes);
+            }
+            int insertAt = -slot - 1;
+            if (slotRef(insertAt) == TOMBSTONE_REF) {
+                tombstones--;
+            }
+            int offset = append(keyBytes, valueBytes);
+            slots.putLong(insertAt * SLOT_BYTES + SLOT_HASH_OFFSET, hash);
+            slots.putInt(insertAt * SLOT_BYTES + SLOT_REF_OFFSET, offset + 1);
+            size++;
+            bloomFilter.put(hash);
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the mapping for the given key and returns the value removed, if any.
+     * @param key
+     * @return String
+     */
+    public String remove(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        if (!bloomFilter.mightContain(hash)) {
+            return null;
+        }
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(hash, keyBytes);
+            if (slot < 0) {
+                return null;
+            }
+            String previous = readValue(slotRef(slot) - 1);
+            slots.putInt(slot * SLOT_BYTES + SLOT_REF_OFFSET, TOMBSTONE_REF);
+            size--;
+            tombstones++;
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Visits every key-value pair in the map while holding the read lock.
+     * @param consumer
+     */
+    public void forEach(BiConsumer<String, String> consumer) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                int ref = slotRef(slot);
+                if (ref > 0) {
+                    consumer.accept(readKey(ref - 1), readValue(ref - 1));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of off-heap bytes currently allocated by the slot table and arena.
+     * @return long
+     */
+    public long allocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) slots.capacity() + arena.capacity();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the slot holding the key or -(insertion slot + 1) if the key is absent.
+     */
+    private int findSlot(long hash, byte[] keyBytes) {
+        int mask = capacity - 1;
+        int start = (int) hash & mask;
+        int firstTombstone = -1;
+        for (int probe = 0; probe < capacity; probe++) {
+            int slot = (start + probe) & mask;
+            int ref = slotRef(slot);
+            if (ref == EMPTY_REF) {
+                return -((firstTombstone >= 0 ? firstTombstone : slot) + 1);
+            }
+            if (ref == TOMBSTONE_REF) {
+                if (firstTombstone < 0) {
+                    firstTombstone = slot;
+                }
+                continue;
+            }
+            if (slots.getLong(slot * SLOT_BYTES + SLOT_HASH_OFFSET) == hash
+                    && keyEquals(ref - 1, keyBytes)) {
+                return slot;
+            }
+        }
+        return -(firstTombstone + 1);
+    }
+
+    private int slotRef(int slot) {
+        return slots.getInt(slot * SLOT_BYTES + SLOT_REF_OFFSET);
+    }
+
+    private boolean keyEquals(int offset, byte[] keyBytes) {
+        int keyLength = arena.getShort(offset);
+        if (keyLength != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (arena.get(offset + 2 + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readKey(int offset) {
+        byte[] bytes = new byte[arena.getShort(offset)];
+        arena.get(offset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readValue(int offset) {
+        int valueOffset = offset + 2 + arena.getShort(offset);
+        byte[] bytes = new byte[arena.getShort(valueOffset)];
+        arena.get(valueOffset + 2, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int recordLength(int offset) {
+        int valueOffset = offset + 2 + arena.getShort(offset);
+        return valueOffset + 2 + arena.getShort(valueOffset) - offset;
+    }
+
+    /**
+     * Appends a [key length][key][value length][value] record to the arena and returns its offset.
+     */
+    private int append(byte[] keyBytes, byte[] valueBytes) {
+        if (keyBytes.length > Short.MAX_VALUE || valueBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Keys and values are limited to "
+                    + Short.MAX_VALUE + " bytes");
+        }
+        int recordLength = 4 + keyBytes.length + valueBytes.length;
+        if ((long) arenaEnd + recordLength > arena.capacity()) {
+            growArena(recordLength);
+        }
+        int offset = arenaEnd;
+        arena.putShort(offset, (short) keyBytes.length);
+        arena.put(offset + 2, keyBytes);
+        arena.putShort(offset + 2 + keyBytes.length, (short) valueBytes.length);
+        arena.put(offset + 4 + keyBytes.length, valueBytes);
+        arenaEnd += recordLength;
+        return offset;
+    }
+
+    private void growArena(int recordLength) {
+        long required = (long) arenaEnd + recordLength;
+        if (required > MAX_ARENA_BYTES) {
+            throw new IllegalStateException("Off-heap string map arena is full: " + arenaEnd + " bytes");
+        }
+        int newCapacity = (int) Math.min(MAX_ARENA_BYTES, Math.max(required, arena.capacity() * 2L));
+        ByteBuffer grown = ByteBuffer.allocateDirect(newCapacity);
+        grown.put(0, arena, 0, arenaEnd);
+        arena = grown;
+    }
+
+    /**
+     * Rebuilds the slot table, dropping tombstones and doubling capacity when needed.
+     * The arena is compacted in the same pass so that replaced values do not accumulate.
+     */
+    private void rehash() {
+        int newCapacity = capacity;
+        if (size + 1 > capacity * MAX_LOAD_FACTOR / 2) {
+            if (capacity >= MAX_CAPACITY) {
+                throw new IllegalStateException("Off-heap string map is at maximum capacity: " + capacity);
+            }
+            newCapacity = capacity * 2;
+        }
+        ByteBuffer newSlots = ByteBuffer.allocateDirect(newCapacity * SLOT_BYTES);
+        ByteBuffer newArena = ByteBuffer.allocateDirect(Math.max(arena.capacity(), 4096));
+        int newArenaEnd = 0;
+        int mask = newCapacity - 1;
+        long newBloomCapacity = Math.max(bloomCapacity, (long) (newCapacity * MAX_LOAD_FACTOR));
+        LabelBloomFilter newBloomFilter = newBloomCapacity > bloomCapacity
+                ? new LabelBloomFilter(newBloomCapacity, BLOOM_FALSE_POSITIVE_RATE) : null;
+        for (int slot = 0; slot < capacity; slot++) {
+            int ref = slotRef(slot);
+            if (ref <= 0) {
+                continue;
+            }
+            long hash = slots.getLong(slot * SLOT_BYTES + SLOT_HASH_OFFSET);
+            int length = recordLength(ref - 1);
+            newArena.put(newArenaEnd, arena, ref - 1, length);
+            int target = (int) hash & mask;
+            while (newSlots.getInt(target * SLOT_BYTES + SLOT_REF_OFFSET) != EMPTY_REF) {
+                target = (target + 1) & mask;
+            }
+            newSlots.putLong(target * SLOT_BYTES + SLOT_HASH_OFFSET, hash);
+            newSlots.putInt(target * SLOT_BYTES + SLOT_REF_OFFSET, newArenaEnd + 1);
+            newArenaEnd += length;
+            if (newBloomFilter != null) {
+                newBloomFilter.put(hash);
+            }
+        }
+        this.slots = newSlots;
+        this.capacity = newCapacity;
+        this.arena = newArena;
+        this.arenaEnd = newArenaEnd;
+        this.tombstones = 0;
+        if (newBloomFilter != null) {
+            this.bloomCapacity = newBloomCapacity;
+            this.bloomFilter = newBloomFilter;
+        }
+    }
+
+    private static int tableSizeFor(long minimum) {
+        long size = MIN_CAPACITY;
+        while (size < minimum && size < MAX_CAPACITY) {
+            size <<= 1;
+        }
+        return (int) size;
+    }
+
+    /**
+     * 64-bit FNV-1a over the key bytes followed by the murmur3 finalizer.
+     */
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
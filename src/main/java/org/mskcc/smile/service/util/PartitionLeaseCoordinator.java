@@ -0,0 +1,21 @@
+package org.mskcc.smile.service.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Coordinates ownership of patient partitions between label generator instances.
+ * Every cmo patient id hashes to one of a fixed number of partitions and an instance must hold
+ * the lease on a patient's partition while it generates and publishes labels for that patient,
+ * so that two instances never work on the counters of the same patient at the same time.
+ * Leases are renewed while held and handed off to other instances once released.
+ */
+public interface PartitionLeaseCoordinator extends Closeable {
+    int getNumPartitions();
+    int partitionFor(String key);
+    void acquire(Collection<String> keys) throws InterruptedException, IOException;
+    void release(Collection<String> keys);
+    Set<Integer> getOwnedPartitions();
+}
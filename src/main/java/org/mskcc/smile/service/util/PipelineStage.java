@@ -0,0 +1,171 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Stage of a staged event-driven pipeline. Each stage has its own bounded input queue and its
+ * own pool of worker threads, so CPU-bound and I/O-bound stages can be sized independently.
+ * Submitting to a full stage blocks, which pushes back on the stage feeding it. A stage's
+ * handler is responsible for submitting its output to the next stage.
+ * Stages track queue depth, queue wait and service latency for their items.
+ * @param <I>
+ */
+public class PipelineStage<I> {
+    private static final Log LOG = LogFactory.getLog(PipelineStage.class);
+
+    /**
+     * Work done by the stage for each item.
+     * @param <I>
+     */
+    @FunctionalInterface
+    public interface Handler<I> {
+        void handle(I item) throws Exception;
+    }
+
+    /**
+     * Item waiting in the stage queue along with the time it was submitted.
+     * A null item tells the worker that takes it to stop.
+     */
+    private static class StageItem<I> {
+        final I item;
+        final long submittedAt;
+
+        StageItem(I item, long submittedAt) {
+            this.item = item;
+            this.submittedAt = submittedAt;
+        }
+    }
+
+    private final String name;
+    private final int numThreads;
+    private final BlockingQueue<StageItem<I>> queue;
+    private final Handler<I> handler;
+    private final BiConsumer<I, Exception> failureHandler;
+    private final CountDownLatch workersStopped;
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong totalServiceNanos = new AtomicLong();
+    private final AtomicLong maxServiceNanos = new AtomicLong();
+
+    /**
+     * Constructor for PipelineStage. Starts the stage worker threads.
+     * @param name
+     * @param numThreads
+     * @param capacity
+     * @param handler
+     * @param failureHandler called with the item and exception when the handler fails
+     */
+    public PipelineStage(String name, int numThreads, int capacity, Handler<I> handler,
+            BiConsumer<I, Exception> failureHandler) {
+        if (numThreads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Stage " + name + " requires at least one thread "
+                    + "and a positive capacity");
+        }
+        this.name = name;
+        this.numThreads = numThreads;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.handler = handler;
+        this.failureHandler = failureHandler;
+        this.workersStopped = new CountDownLatch(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            Thread worker = new Thread(this::runWorker, name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Submits an item to the stage, waiting for space in the stage queue if it is full.
+     * @param item
+     * @throws InterruptedException
+     */
+    public void submit(I item) throws InterruptedException {
+        if (item == null) {
+            throw new IllegalArgumentException("Cannot submit a null item to stage: " + name);
+        }
+        queue.put(new StageItem<>(item, System.nanoTime()));
+    }
+
+    /**
+     * Lets the workers finish the items already submitted and waits for them to stop.
+     * Items must not be submitted to the stage after this is called.
+     * @throws InterruptedException
+     */
+    public void shutdownAndAwait() throws InterruptedException {
+        for (int i = 0; i < numThreads; i++) {
+            queue.put(new StageItem<>(null, 0L));
+        }
+        workersStopped.await();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns a one-line summary of the stage queue depth and latencies.
+     * @return String
+     */
+    public String getMetricsSummary() {
+        long processed = processedCount.get();
+        StringBuilder builder = new StringBuilder();
+        builder.append(name).append(": threads=").append(numThreads)
+                .append(", queueDepth=").append(queue.size())
+                .append(", processed=").append(processed)
+                .append(", failed=").append(failedCount.get());
+        if (processed > 0) {
+            builder.append(", avgWaitMs=").append(toMillis(totalWaitNanos.get() / processed))
+                    .append(", avgServiceMs=").append(toMillis(totalServiceNanos.get() / processed))
+                    .append(", maxServiceMs=").append(toMillis(maxServiceNanos.get()));
+        }
+        return builder.toString();
+    }
+
+    private void runWorker() {
+        try {
+            while (true) {
+                StageItem<I> stageItem = queue.take();
+                if (stageItem.item == null) {
+                    break;
+                }
+                long start = System.nanoTime();
+                totalWaitNanos.addAndGet(start - stageItem.submittedAt);
+                try {
+                    handler.handle(stageItem.item);
+                } catch (Exception e) {
+                    failedCount.incrementAndGet();
+                    try {
+                        failureHandler.accept(stageItem.item, e);
+                    } catch (Exception failureHandlerException) {
+                        LOG.error("Error handling failure in pipeline stage: " + name,
+                                failureHandlerException);
+                    }
+                }
+                long serviceNanos = System.nanoTime() - start;
+                totalServiceNanos.addAndGet(serviceNanos);
+                maxServiceNanos.accumulateAndGet(serviceNanos, Math::max);
+                processedCount.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Pipeline stage " + name + " interrupted before shutdown, stopping worker");
+        } finally {
+            workersStopped.countDown();
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
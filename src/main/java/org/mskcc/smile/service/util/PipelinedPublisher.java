@@ -0,0 +1,206 @@
+package org.mskcc.smile.service.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes messages without waiting for each publish to be acknowledged before the next one
+ * is sent. Publishes run on a fixed set of lanes and messages with the same key always use the
+ * same lane, so they are published in the order they were submitted. At most the configured
+ * number of publishes are outstanding at once and {@link #publish} blocks until one completes
+ * when that limit is reached. Failed publishes are collected so they can be retried with
+ * {@link #retryFailures} or removed with {@link #drainFailures}.
+ */
+public class PipelinedPublisher {
+    private final String name;
+    private final PublishFunction publishFunction;
+    private final ExecutorService[] lanes;
+    private final Semaphore outstandingPermits;
+    private final int maxOutstanding;
+    private final ConcurrentLinkedQueue<PublishFailure> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    /**
+     * Functional interface for the call that publishes a single message.
+     */
+    @FunctionalInterface
+    public interface PublishFunction {
+        void publish(String topic, String payload) throws Exception;
+    }
+
+    /**
+     * Publish which failed, with the number of attempts made so far and the last error.
+     * The future returned for the publish completes once a retry succeeds.
+     */
+    public static class PublishFailure {
+        private final String key;
+        private final String topic;
+        private final String payload;
+        private final CompletableFuture<Void> result;
+        private int attempts;
+        private Exception lastError;
+
+        PublishFailure(String key, String topic, String payload, CompletableFuture<Void> result) {
+            this.key = key;
+            this.topic = topic;
+            this.payload = payload;
+            this.result = result;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getPayload() {
+            return payload;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public Exception getLastError() {
+            return lastError;
+        }
+    }
+
+    /**
+     * Constructor for PipelinedPublisher.
+     * @param name
+     * @param numLanes
+     * @param maxOutstanding
+     * @param publishFunction
+     */
+    public PipelinedPublisher(String name, int numLanes, int maxOutstanding,
+            PublishFunction publishFunction) {
+        if (numLanes < 1 || maxOutstanding < 1) {
+            throw new IllegalArgumentException("Lanes and maximum outstanding publishes must be positive");
+        }
+        this.name = name;
+        this.publishFunction = publishFunction;
+        this.maxOutstanding = maxOutstanding;
+        this.outstandingPermits = new Semaphore(maxOutstanding);
+        this.lanes = new ExecutorService[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * Submits a message for publishing, blocking while the maximum number of publishes
+     * is outstanding.
+     * @param key
+     * @param topic
+     * @param payload
+     * @return CompletableFuture completed once the message has been published
+     * @throws InterruptedException
+     */
+    public CompletableFuture<Void> publish(String key, String topic, String payload)
+            throws InterruptedException {
+        PublishFailure publish = new PublishFailure(key, topic, payload, new CompletableFuture<>());
+        submit(publish);
+        return publish.result;
+    }
+
+    /**
+     * Submits every failed publish again.
+     * @return int number of publishes retried
+     * @throws InterruptedException
+     */
+    public int retryFailures() throws InterruptedException {
+        int retried = 0;
+        PublishFailure failure;
+        while ((failure = failures.poll()) != null) {
+            retriedCount.incrementAndGet();
+            submit(failure);
+            retried++;
+        }
+        return retried;
+    }
+
+    /**
+     * Removes and returns the failed publishes. Their futures are completed exceptionally
+     * with the last error since they are not retried by this publisher.
+     * @return List
+     */
+    public List<PublishFailure> drainFailures() {
+        List<PublishFailure> drained = new ArrayList<>();
+        PublishFailure failure;
+        while ((failure = failures.poll()) != null) {
+            failure.result.completeExceptionally(failure.lastError);
+            drained.add(failure);
+        }
+        return drained;
+    }
+
+    public int getOutstanding() {
+        return maxOutstanding - outstandingPermits.availablePermits();
+    }
+
+    public int getPendingFailures() {
+        return failures.size();
+    }
+
+    /**
+     * Returns a one-line summary of the publishes made, outstanding and failed.
+     * @return String
+     */
+    public String getMetricsSummary() {
+        return name + " published: " + publishedCount.get() + ", outstanding: " + getOutstanding()
+                + "/" + maxOutstanding + ", failed: " + failedCount.get()
+                + ", retried: " + retriedCount.get() + ", awaiting retry: " + failures.size();
+    }
+
+    /**
+     * Waits for outstanding publishes to complete and stops the lanes.
+     * @param timeout
+     * @param unit
+     * @return boolean true if every lane stopped within the timeout
+     * @throws InterruptedException
+     */
+    public boolean shutdownAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService lane : lanes) {
+            if (!lane.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void submit(PublishFailure publish) throws InterruptedException {
+        outstandingPermits.acquire();
+        int lane = (publish.key == null) ? 0 : Math.floorMod(publish.key.hashCode(), lanes.length);
+        try {
+            lanes[lane].execute(() -> {
+                try {
+                    publishFunction.publish(publish.topic, publish.payload);
+                    publishedCount.incrementAndGet();
+                    publish.result.complete(null);
+                } catch (Exception e) {
+                    publish.attempts++;
+                    publish.lastError = e;
+                    failedCount.incrementAndGet();
+                    failures.add(publish);
+                } finally {
+                    outstandingPermits.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            outstandingPermits.release();
+            throw e;
+        }
+    }
+}
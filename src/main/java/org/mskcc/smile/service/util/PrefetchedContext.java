@@ -0,0 +1,251 @@
+package org.mskcc.smile.service.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Lookups of existing patient and alt id samples started for a request when it is received,
+ * so that they run while the request waits in the queue. The cmo patient ids and alt ids are
+ * taken from the request json with a streaming parse which skips every other field, without
+ * building the sample maps. Each lookup holds a permit from the given semaphore while it runs,
+ * which bounds the number of lookups started ahead of the handlers; if not enough permits are
+ * free no lookups are started for the request and it is looked up by its handler as usual.
+ */
+public class PrefetchedContext {
+    private final long startedNanos;
+    private final Map<String, Future<List<CmoLabelParts>>> patientSamples;
+    private final Map<String, Future<List<CmoLabelParts>>> altIdSamples;
+
+    /**
+     * Functional interface for a lookup of existing samples in smile.
+     */
+    @FunctionalInterface
+    public interface SampleLookup {
+        List<CmoLabelParts> lookup(String key) throws Exception;
+    }
+
+    /**
+     * Cmo patient ids and alt ids of the samples in a request, in the order first seen.
+     */
+    public static class LookupKeys {
+        private final Set<String> cmoPatientIds = new LinkedHashSet<>();
+        private final Set<String> altIds = new LinkedHashSet<>();
+
+        public List<String> getCmoPatientIds() {
+            return new ArrayList<>(cmoPatientIds);
+        }
+
+        public List<String> getAltIds() {
+            return new ArrayList<>(altIds);
+        }
+    }
+
+    private PrefetchedContext(long startedNanos, Map<String, Future<List<CmoLabelParts>>> patientSamples,
+            Map<String, Future<List<CmoLabelParts>>> altIdSamples) {
+        this.startedNanos = startedNanos;
+        this.patientSamples = patientSamples;
+        this.altIdSamples = altIdSamples;
+    }
+
+    /**
+     * Starts the patient and alt id lookups for the samples in the request.
+     * @param jsonFactory
+     * @param requestJson
+     * @param executor
+     * @param permits
+     * @param patientLookup
+     * @param altIdLookup
+     * @return PrefetchedContext or null if the request has no keys to look up or not enough
+     *     permits are free
+     * @throws IOException
+     */
+    public static PrefetchedContext start(JsonFactory jsonFactory, String requestJson,
+            ExecutorService executor, Semaphore permits, SampleLookup patientLookup,
+            SampleLookup altIdLookup) throws IOException {
+        LookupKeys keys = extractLookupKeys(jsonFactory, requestJson);
+        int numLookups = keys.cmoPatientIds.size() + keys.altIds.size();
+        if (numLookups == 0 || !permits.tryAcquire(numLookups)) {
+            return null;
+        }
+        long startedNanos = System.nanoTime();
+        return new PrefetchedContext(startedNanos,
+                submitLookups(keys.cmoPatientIds, executor, permits, patientLookup),
+                submitLookups(keys.altIds, executor, permits, altIdLookup));
+    }
+
+    /**
+     * Returns the cmo patient ids and alt ids of the samples in the request json. A sample's
+     * alt id is taken from 'altid', 'altId' or its additional properties, in that order.
+     * @param jsonFactory
+     * @param requestJson
+     * @return LookupKeys
+     * @throws IOException
+     */
+    public static LookupKeys extractLookupKeys(JsonFactory jsonFactory, String requestJson)
+            throws IOException {
+        LookupKeys keys = new LookupKeys();
+        try (JsonParser parser = jsonFactory.createParser(requestJson)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return keys;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("samples".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String[] sampleKeys = readSampleKeys(parser);
+                        addKey(keys.cmoPatientIds, sampleKeys[0]);
+                        addKey(keys.altIds, sampleKeys[1]);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return keys;
+    }
+
+    public long getStartedNanos() {
+        return startedNanos;
+    }
+
+    public Map<String, Future<List<CmoLabelParts>>> getPatientSamples() {
+        return patientSamples;
+    }
+
+    public Map<String, Future<List<CmoLabelParts>>> getAltIdSamples() {
+        return altIdSamples;
+    }
+
+    /**
+     * Returns whether every lookup has finished.
+     * @return boolean
+     */
+    public boolean isDone() {
+        for (Future<List<CmoLabelParts>> future : patientSamples.values()) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        for (Future<List<CmoLabelParts>> future : altIdSamples.values()) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drops the lookups which failed or were cancelled so that they are made again by the
+     * handler instead of failing the request.
+     */
+    public void discardFailed() {
+        discardFailed(patientSamples);
+        discardFailed(altIdSamples);
+    }
+
+    /**
+     * Cancels the lookups which have not finished yet.
+     */
+    public void cancel() {
+        for (Future<List<CmoLabelParts>> future : patientSamples.values()) {
+            future.cancel(true);
+        }
+        for (Future<List<CmoLabelParts>> future : altIdSamples.values()) {
+            future.cancel(true);
+        }
+    }
+
+    private static void discardFailed(Map<String, Future<List<CmoLabelParts>>> lookups) {
+        Iterator<Future<List<CmoLabelParts>>> iterator = lookups.values().iterator();
+        while (iterator.hasNext()) {
+            Future<List<CmoLabelParts>> lookup = iterator.next();
+            if (lookup.isDone() && lookup.state() != Future.State.SUCCESS) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads the sample object the parser is positioned on and returns its cmo patient id and
+     * alt id, either of which may be null. The parser is left on the end of the sample.
+     * @param parser
+     * @return String[]
+     * @throws IOException
+     */
+    static String[] readSampleKeys(JsonParser parser) throws IOException {
+        String cmoPatientId = null;
+        String altidField = null;
+        String altIdField = null;
+        String additionalAltId = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("cmoPatientId".equals(field)) {
+                cmoPatientId = getScalar(parser, value);
+            } else if ("altid".equals(field)) {
+                altidField = getScalar(parser, value);
+            } else if ("altId".equals(field)) {
+                altIdField = getScalar(parser, value);
+            } else if ("additionalProperties".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String property = parser.currentName();
+                    JsonToken propertyValue = parser.nextToken();
+                    if ("altId".equals(property)) {
+                        additionalAltId = getScalar(parser, propertyValue);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return new String[] {cmoPatientId, (altidField != null) ? altidField
+                : (altIdField != null) ? altIdField : additionalAltId};
+    }
+
+    private static String getScalar(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        return (value == JsonToken.VALUE_NULL) ? null : parser.getText();
+    }
+
+    private static void addKey(Set<String> keys, String key) {
+        if (key != null && !key.isBlank()) {
+            keys.add(key);
+        }
+    }
+
+    private static Map<String, Future<List<CmoLabelParts>>> submitLookups(Set<String> keys,
+            ExecutorService executor, Semaphore permits, SampleLookup sampleLookup) {
+        Map<String, Future<List<CmoLabelParts>>> lookups = new LinkedHashMap<>();
+        for (String key : keys) {
+            // the permit is returned on completion, which includes cancellation before the lookup ran
+            FutureTask<List<CmoLabelParts>> lookup = new FutureTask<>(() -> sampleLookup.lookup(key)) {
+                @Override
+                protected void done() {
+                    permits.release();
+                }
+            };
+            lookups.put(key, lookup);
+            executor.execute(lookup);
+        }
+        return lookups;
+    }
+}
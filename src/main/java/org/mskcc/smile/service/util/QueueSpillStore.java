@@ -0,0 +1,122 @@
+package org.mskcc.smile.service.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.TreeMap;
+
+/**
+ * First-in first-out store of queue messages spilled to disk, one file per message.
+ * Files are named by a sequence number so that messages spilled before a restart are picked
+ * up again in their original order when the store is reopened. Each file holds the
+ * write-ahead log sequence of the message followed by its encoded payload.
+ * @param <T>
+ */
+public class QueueSpillStore<T> {
+    private static final String SPILL_FILE_PREFIX = "spill-";
+    private static final String SPILL_FILE_SUFFIX = ".msg";
+
+    /**
+     * Converts spilled payloads to and from bytes.
+     * @param <T>
+     */
+    public interface Codec<T> {
+        byte[] encode(T payload) throws IOException;
+        T decode(byte[] data) throws IOException;
+    }
+
+    private final Path directory;
+    private final Codec<T> codec;
+    // sequence => size in bytes of the spilled message
+    private final TreeMap<Long, Long> spilled = new TreeMap<>();
+    private long nextSequence = 1L;
+
+    /**
+     * Constructor for QueueSpillStore.
+     * @param directory
+     * @param codec
+     * @throws IOException
+     */
+    public QueueSpillStore(Path directory, Codec<T> codec) throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SPILL_FILE_PREFIX + "*" + SPILL_FILE_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long sequence = Long.parseLong(name.substring(SPILL_FILE_PREFIX.length(),
+                        name.length() - SPILL_FILE_SUFFIX.length()));
+                spilled.put(sequence, Files.size(path) - Long.BYTES);
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+        }
+    }
+
+    /**
+     * Writes the message to the end of the store.
+     * @param message
+     * @throws IOException
+     */
+    public synchronized void write(HandlerMessage<T> message) throws IOException {
+        byte[] data = codec.encode(message.getPayload());
+        long sequence = nextSequence++;
+        Path tmpPath = directory.resolve(SPILL_FILE_PREFIX + sequence + ".tmp");
+        Files.write(tmpPath, ByteBuffer.allocate(Long.BYTES + data.length)
+                .putLong(message.getWalSequence()).put(data).array());
+        Files.move(tmpPath, pathFor(sequence), StandardCopyOption.ATOMIC_MOVE);
+        spilled.put(sequence, (long) data.length);
+    }
+
+    /**
+     * Returns the size of the oldest spilled message.
+     * @return long
+     */
+    public synchronized long peekSizeBytes() {
+        return spilled.firstEntry().getValue();
+    }
+
+    /**
+     * Removes and returns the oldest spilled message.
+     * @return HandlerMessage
+     * @throws IOException
+     */
+    public synchronized HandlerMessage<T> remove() throws IOException {
+        long sequence = spilled.firstKey();
+        Path path = pathFor(sequence);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        long walSequence = buffer.getLong();
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        T payload = codec.decode(data);
+        Files.delete(path);
+        spilled.remove(sequence);
+        return HandlerMessage.of(payload, data.length, walSequence);
+    }
+
+    /**
+     * Deletes every spilled message.
+     * @throws IOException
+     */
+    public synchronized void clear() throws IOException {
+        for (Long sequence : spilled.keySet()) {
+            Files.deleteIfExists(pathFor(sequence));
+        }
+        spilled.clear();
+    }
+
+    public synchronized boolean isEmpty() {
+        return spilled.isEmpty();
+    }
+
+    public synchronized int size() {
+        return spilled.size();
+    }
+
+    private Path pathFor(long sequence) {
+        return directory.resolve(String.format("%s%020d%s", SPILL_FILE_PREFIX, sequence, SPILL_FILE_SUFFIX));
+    }
+}
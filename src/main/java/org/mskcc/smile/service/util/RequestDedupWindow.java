@@ -0,0 +1,188 @@
+package org.mskcc.smile.service.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded window of recently accepted requests used to recognize redelivered and re-sent
+ * messages. Entries are keyed by flow, request id and a SHA-256 hash of the raw request payload,
+ * so a changed version of a request is never mistaken for a duplicate of an earlier one.
+ * An entry is in flight until the output published for it is recorded; a duplicate of a
+ * completed entry can be answered with that output instead of being processed again.
+ * In-flight entries are tracked by the sequence the request was accepted with, so that the
+ * delivery which finished is completed even when several versions of a request are in flight.
+ * The window holds at most the configured number of entries, evicting the least recently used,
+ * and entries older than the window duration are ignored.
+ */
+public class RequestDedupWindow {
+    private final int maxEntries;
+    private final long windowMillis;
+    private final LinkedHashMap<String, Entry> entries;
+    // accepted sequence => key of the in-flight entry
+    private final Map<Long, String> inflightKeys = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    /**
+     * Policy for a duplicate of a completed request.
+     */
+    public static enum DuplicatePolicy {
+        REPUBLISH,
+        DROP
+    }
+
+    /**
+     * Request seen within the window and the output published for it, if any yet.
+     */
+    public static class Entry {
+        private final long acceptedMillis;
+        private String output;
+
+        Entry(long acceptedMillis) {
+            this.acceptedMillis = acceptedMillis;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isCompleted() {
+            return output != null;
+        }
+    }
+
+    /**
+     * Constructor for RequestDedupWindow.
+     * @param maxEntries
+     * @param windowMillis
+     */
+    public RequestDedupWindow(int maxEntries, long windowMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum entries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.windowMillis = windowMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                // an entry evicted while in flight is simply not completed
+                return size() > RequestDedupWindow.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the hex encoded SHA-256 hash of the payload.
+     * @param payload
+     * @return String
+     */
+    public static String contentHash(String payload) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(payload.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Returns the key of a request: its flow, request id and payload hash.
+     * @param flow
+     * @param requestId
+     * @param payload
+     * @return String
+     */
+    public static String keyOf(String flow, String requestId, String payload) {
+        return flow + "/" + requestId + "/" + contentHash(payload);
+    }
+
+    /**
+     * Returns the entry of an identical request seen within the window, or registers the
+     * request as in flight and returns null if it has not been seen.
+     * @param key
+     * @return Entry
+     */
+    public synchronized Entry checkAndRegister(String key) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.acceptedMillis <= windowMillis) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        entries.put(key, new Entry(now));
+        return null;
+    }
+
+    /**
+     * Tracks a registered request by the sequence it was accepted with.
+     * @param key
+     * @param sequence
+     */
+    public synchronized void track(String key, long sequence) {
+        inflightKeys.put(sequence, key);
+    }
+
+    /**
+     * Records the output published for the in-flight request accepted with the sequence.
+     * A sequence which is not tracked, such as that of a replayed request, is ignored.
+     * @param sequence
+     * @param output
+     */
+    public synchronized void complete(long sequence, String output) {
+        String key = inflightKeys.remove(sequence);
+        Entry entry = (key == null) ? null : entries.get(key);
+        if (entry != null) {
+            entry.output = output;
+        }
+    }
+
+    /**
+     * Forgets the in-flight request accepted with the sequence so that a redelivery is
+     * processed again.
+     * @param sequence
+     */
+    public synchronized void forget(long sequence) {
+        String key = inflightKeys.remove(sequence);
+        if (key != null) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Forgets a registered request which was never accepted, so that a redelivery is
+     * processed again.
+     * @param key
+     */
+    public synchronized void forget(String key) {
+        entries.remove(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the fraction of checked requests which were duplicates.
+     * @return double
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return (total == 0) ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Returns a one-line summary of the window occupancy and hit rate.
+     * @return String
+     */
+    public synchronized String getMetricsSummary() {
+        return "entries: " + entries.size() + "/" + maxEntries + ", in flight: " + inflightKeys.size()
+                + ", hits: " + hits + ", misses: " + misses
+                + ", hit rate: " + String.format("%.3f", getHitRate());
+    }
+}
@@ -0,0 +1,243 @@
+package org.mskcc.smile.service.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Write-ahead log for requests accepted by the label generator, stored in a
+ * {@link MappedSegmentLog}. A request is appended before it is handed to the handler queues and
+ * {@link #append} only returns once the record has been flushed to the storage device. Appends
+ * made while a flush is in progress are covered together by the next flush, so concurrent
+ * appenders share the cost of each fsync. A request is marked complete by the sequence returned
+ * from {@link #append}, which appends a completion record once it has been published. The
+ * sequence identifies one delivery of a request, so redeliveries with the same request id are
+ * completed independently. The checkpoint is the lowest sequence that is not yet
+ * complete; it is saved to a file next to the segments and segments before it are deleted.
+ * On restart every request accepted after the checkpoint and not completed is replayed.
+ */
+public class RequestWriteAheadLog implements Closeable {
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String CHECKPOINT_TMP_FILE = "checkpoint.tmp";
+    private static final byte ACCEPTED_RECORD = 1;
+    private static final byte COMPLETED_RECORD = 2;
+
+    private final Path directory;
+    private final MappedSegmentLog log;
+    private final Object syncLock = new Object();
+    private final TreeSet<Long> pendingSequences = new TreeSet<>();
+    private long durableSequence;
+    private boolean syncInProgress;
+    private long syncCount;
+
+    /**
+     * Functional interface for receiving requests replayed from the log.
+     */
+    @FunctionalInterface
+    public interface PendingRequestConsumer {
+        void accept(long sequence, String flow, String requestJson) throws Exception;
+    }
+
+    /**
+     * Constructor for RequestWriteAheadLog.
+     * @param directory
+     * @param segmentBytes
+     * @throws IOException
+     */
+    public RequestWriteAheadLog(Path directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.log = new MappedSegmentLog(directory, segmentBytes);
+        this.durableSequence = log.getNextSequence() - 1;
+    }
+
+    /**
+     * Appends an accepted request and waits until it is durable.
+     * @param flow
+     * @param requestId
+     * @param requestJson
+     * @return long the sequence of the request in the log
+     * @throws IOException
+     */
+    public long append(String flow, String requestId, String requestJson) throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = log.append(encodeAccepted(flow, requestId, requestJson));
+            pendingSequences.add(sequence);
+        }
+        awaitDurable(sequence);
+        return sequence;
+    }
+
+    /**
+     * Marks the request appended with the given sequence as complete.
+     * Completion records are not flushed individually: if one is lost in a crash the request is
+     * replayed again, so requests are processed at least once.
+     * @param sequence
+     * @return boolean true if the request was pending
+     * @throws IOException
+     */
+    public synchronized boolean complete(long sequence) throws IOException {
+        if (!pendingSequences.remove(sequence)) {
+            return false;
+        }
+        log.append(encodeCompleted(sequence));
+        return true;
+    }
+
+    /**
+     * Saves the checkpoint and deletes segments holding only records before it.
+     * @return long the checkpoint sequence
+     * @throws IOException
+     */
+    public long checkpoint() throws IOException {
+        long checkpoint;
+        synchronized (this) {
+            checkpoint = pendingSequences.isEmpty() ? log.getNextSequence() : pendingSequences.first();
+        }
+        // flush completion records before the checkpoint that relies on them is saved
+        log.force();
+        Path tmpPath = directory.resolve(CHECKPOINT_TMP_FILE);
+        Files.write(tmpPath, String.valueOf(checkpoint).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpPath, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.deleteSegmentsBefore(checkpoint);
+        return checkpoint;
+    }
+
+    /**
+     * Replays every request accepted after the saved checkpoint which was not completed, in the
+     * order they were accepted. Replayed requests keep their sequence and stay pending until
+     * they are completed.
+     * @param consumer
+     * @return int number of requests replayed
+     * @throws Exception
+     */
+    public int replayPending(PendingRequestConsumer consumer) throws Exception {
+        long checkpoint = readCheckpoint();
+        Map<Long, String[]> accepted = new LinkedHashMap<>();
+        log.replay(checkpoint, (sequence, payload) -> {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                if (in.readByte() == ACCEPTED_RECORD) {
+                    accepted.put(sequence, new String[] {in.readUTF(), in.readUTF(),
+                            new String(in.readAllBytes(), StandardCharsets.UTF_8)});
+                } else {
+                    accepted.remove(in.readLong());
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to decode write-ahead log record", e);
+            }
+        });
+        synchronized (this) {
+            pendingSequences.addAll(accepted.keySet());
+        }
+        for (Map.Entry<Long, String[]> entry : accepted.entrySet()) {
+            consumer.accept(entry.getKey(), entry.getValue()[0], entry.getValue()[2]);
+        }
+        return accepted.size();
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingSequences.size();
+    }
+
+    /**
+     * Returns the number of flushes made to cover appends.
+     * @return long
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+    /**
+     * Waits until the record with the given sequence has been flushed. The first appender to
+     * find no flush in progress flushes everything appended so far on behalf of the others.
+     */
+    private void awaitDurable(long sequence) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long target;
+                synchronized (syncLock) {
+                    while (durableSequence < sequence && syncInProgress) {
+                        try {
+                            syncLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (durableSequence >= sequence) {
+                        return;
+                    }
+                    syncInProgress = true;
+                    target = log.getNextSequence() - 1;
+                }
+                boolean synced = false;
+                try {
+                    log.force();
+                    synced = true;
+                } finally {
+                    synchronized (syncLock) {
+                        syncInProgress = false;
+                        if (synced) {
+                            durableSequence = Math.max(durableSequence, target);
+                            syncCount++;
+                        }
+                        syncLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpointPath = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpointPath)) {
+            return 0L;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8).trim());
+    }
+
+    private static byte[] encodeAccepted(String flow, String requestId, String requestJson)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(requestJson.length() + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(ACCEPTED_RECORD);
+            out.writeUTF(flow);
+            // a request without an id is still logged, with an empty id
+            out.writeUTF((requestId == null) ? "" : requestId);
+            // the request json is written raw since it can be longer than writeUTF allows
+            out.write(requestJson.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeCompleted(long sequence) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(COMPLETED_RECORD);
+            out.writeLong(sequence);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,352 @@
+package org.mskcc.smile.service.util;
+
+import io.nats.client.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mskcc.cmo.messaging.Gateway;
+
+/**
+ * Resilience layer around request-reply lookups made through the messaging gateway. Each topic
+ * keeps its own state:
+ * - hedging: once enough latencies are recorded, a request which has not been answered within
+ *   the hedge percentile of recent latencies is sent a second time and the first reply wins
+ * - circuit breaker: a burst of failures within the failure window opens the circuit and
+ *   requests fail straight away; once the open period has passed a single probe is let through
+ *   (half-open) which closes the circuit if it succeeds and opens it again if it fails
+ * - retry budget: every request adds a fraction of a token up to a small maximum and every
+ *   retry or hedge spends a whole token, so that retries and hedges never add more than that
+ *   fraction of extra load on a struggling server
+ * Requests are sent on the given executor so that a hedge or the deadline can stop waiting on
+ * them; requests which lose to their hedge are cancelled.
+ */
+public class ResilientRequester {
+    private static final int LATENCY_WINDOW = 128;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    private static final double MAX_BUDGET_TOKENS = 10.0;
+
+    private final Gateway gateway;
+    private final ExecutorService executor;
+    private final double hedgePercentile;
+    private final int failureThreshold;
+    private final long failureWindowNanos;
+    private final long openNanos;
+    private final int maxRetries;
+    private final double retryBudgetRatio;
+    private final Map<String, TopicState> topicStates = new ConcurrentHashMap<>();
+
+    /**
+     * State of the circuit breaker for a topic.
+     */
+    public static enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Latencies, circuit breaker and retry budget for a single topic.
+     */
+    private class TopicState {
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        private int latencyCount;
+        private long hedgeDelayNanos = -1L;
+        private CircuitState circuitState = CircuitState.CLOSED;
+        private int windowFailures;
+        private long windowStartNanos;
+        private long openedNanos;
+        private boolean probeInFlight;
+        private double budgetTokens = MAX_BUDGET_TOKENS;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong hedges = new AtomicLong();
+        private final AtomicLong hedgeWins = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong budgetRejections = new AtomicLong();
+        private final AtomicLong shortCircuited = new AtomicLong();
+
+        /**
+         * Returns whether a request may be sent and whether it is the half-open probe.
+         * @return Boolean null if the circuit is open, TRUE for the probe, FALSE otherwise
+         */
+        synchronized Boolean tryAcquirePermission() {
+            if (circuitState == CircuitState.OPEN && System.nanoTime() - openedNanos >= openNanos) {
+                circuitState = CircuitState.HALF_OPEN;
+                probeInFlight = false;
+            }
+            if (circuitState == CircuitState.CLOSED) {
+                budgetTokens = Math.min(MAX_BUDGET_TOKENS, budgetTokens + retryBudgetRatio);
+                return Boolean.FALSE;
+            }
+            if (circuitState == CircuitState.HALF_OPEN && !probeInFlight) {
+                probeInFlight = true;
+                return Boolean.TRUE;
+            }
+            return null;
+        }
+
+        synchronized boolean tryWithdrawBudget() {
+            if (circuitState != CircuitState.CLOSED || budgetTokens < 1.0) {
+                return false;
+            }
+            budgetTokens -= 1.0;
+            return true;
+        }
+
+        synchronized void recordSuccess(long elapsedNanos) {
+            latencies[latencyCount % LATENCY_WINDOW] = elapsedNanos;
+            latencyCount++;
+            // the percentile is recomputed every few samples rather than on every request
+            if (latencyCount >= MIN_LATENCY_SAMPLES && latencyCount % 8 == 0) {
+                long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_WINDOW));
+                Arrays.sort(sorted);
+                hedgeDelayNanos = sorted[(int) Math.min(sorted.length - 1,
+                        Math.ceil(hedgePercentile * sorted.length) - 1)];
+            }
+            if (circuitState == CircuitState.HALF_OPEN) {
+                circuitState = CircuitState.CLOSED;
+                windowFailures = 0;
+            }
+        }
+
+        synchronized void recordFailure() {
+            failures.incrementAndGet();
+            long now = System.nanoTime();
+            if (circuitState == CircuitState.HALF_OPEN) {
+                open(now);
+                return;
+            }
+            if (windowFailures == 0 || now - windowStartNanos > failureWindowNanos) {
+                windowFailures = 0;
+                windowStartNanos = now;
+            }
+            windowFailures++;
+            if (circuitState == CircuitState.CLOSED && windowFailures >= failureThreshold) {
+                open(now);
+            }
+        }
+
+        /**
+         * Gives up the half-open probe without an outcome, for instance when it was cancelled.
+         */
+        synchronized void releaseProbe() {
+            if (circuitState == CircuitState.HALF_OPEN) {
+                probeInFlight = false;
+            }
+        }
+
+        synchronized long getHedgeDelayNanos() {
+            return (hedgePercentile > 0.0 && circuitState == CircuitState.CLOSED) ? hedgeDelayNanos : -1L;
+        }
+
+        synchronized CircuitState getCircuitState() {
+            return circuitState;
+        }
+
+        private void open(long now) {
+            circuitState = CircuitState.OPEN;
+            openedNanos = now;
+            windowFailures = 0;
+        }
+
+        synchronized String getMetricsSummary() {
+            return "circuit: " + circuitState
+                    + ", hedge ms: " + ((hedgeDelayNanos < 0) ? "n/a"
+                            : TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos))
+                    + ", requests: " + requests.get()
+                    + ", failures: " + failures.get()
+                    + ", hedges: " + hedges.get() + " (" + hedgeWins.get() + " won)"
+                    + ", retries: " + retries.get()
+                    + ", budget rejections: " + budgetRejections.get()
+                    + ", short-circuited: " + shortCircuited.get();
+        }
+    }
+
+    /**
+     * Constructor for ResilientRequester.
+     * @param gateway
+     * @param executor executor the requests are sent on
+     * @param hedgePercentile percentile of recent latencies after which a request is hedged,
+     *     0 to disable hedging
+     * @param failureThreshold number of failures within the failure window which opens the circuit
+     * @param failureWindowMillis
+     * @param openMillis time the circuit stays open before a probe is let through
+     * @param maxRetries number of times a failed request is retried
+     * @param retryBudgetRatio tokens added to the retry budget per request
+     */
+    public ResilientRequester(Gateway gateway, ExecutorService executor, double hedgePercentile,
+            int failureThreshold, long failureWindowMillis, long openMillis, int maxRetries,
+            double retryBudgetRatio) {
+        if (hedgePercentile < 0.0 || hedgePercentile >= 1.0) {
+            throw new IllegalArgumentException("Hedge percentile must be between 0 and 1: "
+                    + hedgePercentile);
+        }
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be positive: " + failureThreshold);
+        }
+        this.gateway = gateway;
+        this.executor = executor;
+        this.hedgePercentile = hedgePercentile;
+        this.failureThreshold = failureThreshold;
+        this.failureWindowNanos = TimeUnit.MILLISECONDS.toNanos(failureWindowMillis);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.maxRetries = maxRetries;
+        this.retryBudgetRatio = retryBudgetRatio;
+    }
+
+    /**
+     * Sends a request on the topic and returns the first reply, hedging and retrying it as the
+     * topic state allows.
+     * @param topic
+     * @param message
+     * @param deadline
+     * @return Message
+     * @throws Exception the last failure of the request, IllegalStateException if the circuit is
+     *     open or TimeoutException if the deadline passes
+     */
+    public Message request(String topic, Object message, Deadline deadline) throws Exception {
+        TopicState state = topicStates.computeIfAbsent(topic, t -> new TopicState());
+        String operation = "lookup on " + topic + " for " + message;
+        int attempt = 0;
+        while (true) {
+            deadline.check(operation);
+            Boolean probe = state.tryAcquirePermission();
+            if (probe == null) {
+                state.shortCircuited.incrementAndGet();
+                throw new IllegalStateException("Circuit breaker is open for topic " + topic);
+            }
+            state.requests.incrementAndGet();
+            try {
+                return hedgedRequest(state, topic, message, deadline, operation, probe);
+            } catch (TimeoutException | InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                if (!state.tryWithdrawBudget()) {
+                    state.budgetRejections.incrementAndGet();
+                    throw e;
+                }
+                attempt++;
+                state.retries.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the circuit breaker state for the topic.
+     * @param topic
+     * @return CircuitState
+     */
+    public CircuitState getCircuitState(String topic) {
+        TopicState state = topicStates.get(topic);
+        return (state == null) ? CircuitState.CLOSED : state.getCircuitState();
+    }
+
+    /**
+     * Returns a summary of the state of every topic, one topic per line.
+     * @return String
+     */
+    public String getMetricsSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, TopicState> entry : topicStates.entrySet()) {
+            if (summary.length() > 0) {
+                summary.append("\n");
+            }
+            summary.append(entry.getKey()).append(" - ").append(entry.getValue().getMetricsSummary());
+        }
+        return summary.toString();
+    }
+
+    private Message hedgedRequest(TopicState state, String topic, Object message, Deadline deadline,
+            String operation, boolean probe) throws Exception {
+        long hedgeDelayNanos = probe ? -1L : state.getHedgeDelayNanos();
+        if (hedgeDelayNanos < 0 && !deadline.isBounded()) {
+            // nothing to stop waiting for, so the request is sent on the calling thread
+            return timedRequest(state, topic, message, probe);
+        }
+        CompletionService<Message> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Message>> futures = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        futures.add(completionService.submit(() -> timedRequest(state, topic, message, probe)));
+        boolean hedgeDecided = hedgeDelayNanos < 0;
+        int outstanding = 1;
+        Exception lastError = null;
+        try {
+            while (outstanding > 0) {
+                long waitNanos = deadline.remainingNanos();
+                if (!hedgeDecided) {
+                    waitNanos = Math.min(waitNanos, startNanos + hedgeDelayNanos - System.nanoTime());
+                }
+                Future<Message> done = completionService.poll(Math.max(0L, waitNanos), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (deadline.isExpired()) {
+                        throw new TimeoutException("Deadline exceeded waiting for " + operation);
+                    }
+                    hedgeDecided = true;
+                    if (state.tryWithdrawBudget()) {
+                        state.hedges.incrementAndGet();
+                        futures.add(completionService.submit(
+                                () -> timedRequest(state, topic, message, false)));
+                        outstanding++;
+                    } else {
+                        state.budgetRejections.incrementAndGet();
+                    }
+                    continue;
+                }
+                outstanding--;
+                try {
+                    Message reply = done.get();
+                    if (done != futures.get(0)) {
+                        state.hedgeWins.incrementAndGet();
+                    }
+                    return reply;
+                } catch (ExecutionException e) {
+                    lastError = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                }
+            }
+            throw lastError;
+        } finally {
+            for (Future<Message> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Message timedRequest(TopicState state, String topic, Object message, boolean probe)
+            throws Exception {
+        long start = System.nanoTime();
+        try {
+            Message reply = gateway.request(topic, message);
+            if (reply == null) {
+                throw new IllegalStateException("No reply received on topic " + topic);
+            }
+            state.recordSuccess(System.nanoTime() - start);
+            return reply;
+        } catch (InterruptedException e) {
+            // cancelled after losing to its hedge or at the deadline, which says nothing of the server
+            if (probe) {
+                state.releaseProbe();
+            }
+            throw e;
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted()) {
+                if (probe) {
+                    state.releaseProbe();
+                }
+            } else {
+                state.recordFailure();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.mskcc.smile.service.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Retries failed work after an exponential backoff with jitter. Scheduled items wait in a
+ * {@link DelayQueue} until their backoff has passed and are then retried on a single worker
+ * thread. The backoff doubles with every failed attempt up to the maximum delay and is reduced
+ * by a random fraction of up to the jitter so that items which failed together are not all
+ * retried together. An item whose retry fails is scheduled again; once it has failed the
+ * maximum number of attempts, or fails with an error the retry policy does not retry, it is
+ * handed to the exhausted handler instead. The retry action is given the number of attempts
+ * made so far, so an action which hands the item off to run elsewhere can schedule it again
+ * itself if it fails there.
+ * @param <T> type of item retried
+ */
+public class RetryScheduler<T> {
+    private static final Log LOG = LogFactory.getLog(RetryScheduler.class);
+
+    private final String name;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final double jitter;
+    private final RetryAction<T> action;
+    private final ExhaustedHandler<T> exhaustedHandler;
+    private final RetryPolicy<T> retryPolicy;
+    private final DelayQueue<ScheduledRetry<T>> delayQueue = new DelayQueue<>();
+    private final ScheduledRetry<T> shutdownSignal = new ScheduledRetry<>(null, 0, null, 0L, true);
+    private final Thread worker;
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong succeededCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+    private volatile boolean shutdown;
+
+    /**
+     * Functional interface for retrying an item.
+     * @param <T>
+     */
+    @FunctionalInterface
+    public interface RetryAction<T> {
+        void retry(T item, int attempts) throws Exception;
+    }
+
+    /**
+     * Functional interface for handling an item which will not be retried again.
+     * @param <T>
+     */
+    @FunctionalInterface
+    public interface ExhaustedHandler<T> {
+        void exhausted(T item, int attempts, Exception lastError);
+    }
+
+    /**
+     * Functional interface for deciding whether an item which failed with an error is retried.
+     * @param <T>
+     */
+    @FunctionalInterface
+    public interface RetryPolicy<T> {
+        boolean isRetryable(T item, Exception lastError);
+    }
+
+    /**
+     * Item waiting for its backoff to pass. The shutdown signal is due at once and is taken
+     * ahead of every item, which stops the worker without interrupting a retry in progress.
+     */
+    private static class ScheduledRetry<T> implements Delayed {
+        private final T item;
+        private final int attempts;
+        private final Exception lastError;
+        private final long dueNanos;
+        private final boolean shutdownSignal;
+
+        ScheduledRetry(T item, int attempts, Exception lastError, long delayMillis,
+                boolean shutdownSignal) {
+            this.item = item;
+            this.attempts = attempts;
+            this.lastError = lastError;
+            this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            this.shutdownSignal = shutdownSignal;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return shutdownSignal ? 0L : unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            ScheduledRetry<?> otherRetry = (ScheduledRetry<?>) other;
+            if (shutdownSignal != otherRetry.shutdownSignal) {
+                return shutdownSignal ? -1 : 1;
+            }
+            return Long.compare(dueNanos, otherRetry.dueNanos);
+        }
+    }
+
+    /**
+     * Constructor for RetryScheduler which retries items whatever error they failed with.
+     * @param name
+     * @param maxAttempts
+     * @param baseDelayMillis
+     * @param maxDelayMillis
+     * @param jitter fraction of the backoff which may be randomly taken off, between 0 and 1
+     * @param action
+     * @param exhaustedHandler
+     */
+    public RetryScheduler(String name, int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+            double jitter, RetryAction<T> action, ExhaustedHandler<T> exhaustedHandler) {
+        this(name, maxAttempts, baseDelayMillis, maxDelayMillis, jitter, action, exhaustedHandler,
+                (item, lastError) -> true);
+    }
+
+    /**
+     * Constructor for RetryScheduler.
+     * @param name
+     * @param maxAttempts
+     * @param baseDelayMillis
+     * @param maxDelayMillis
+     * @param jitter fraction of the backoff which may be randomly taken off, between 0 and 1
+     * @param action
+     * @param exhaustedHandler
+     * @param retryPolicy
+     */
+    public RetryScheduler(String name, int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+            double jitter, RetryAction<T> action, ExhaustedHandler<T> exhaustedHandler,
+            RetryPolicy<T> retryPolicy) {
+        if (jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1: " + jitter);
+        }
+        this.name = name;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.jitter = jitter;
+        this.action = action;
+        this.exhaustedHandler = exhaustedHandler;
+        this.retryPolicy = retryPolicy;
+        this.worker = new Thread(this::runRetries, name + "-retry");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules an item which has failed the given number of attempts, or hands it to the
+     * exhausted handler if it has used up its attempts, its error is not retryable or the
+     * scheduler has been shut down.
+     * @param item
+     * @param attempts
+     * @param lastError
+     */
+    public void schedule(T item, int attempts, Exception lastError) {
+        boolean retryable = retryPolicy.isRetryable(item, lastError);
+        synchronized (this) {
+            if (attempts < maxAttempts && retryable && !shutdown) {
+                delayQueue.add(new ScheduledRetry<>(item, attempts, lastError, getBackoffMillis(attempts),
+                        false));
+                return;
+            }
+        }
+        exhaustedCount.incrementAndGet();
+        exhaustedHandler.exhausted(item, attempts, lastError);
+    }
+
+    /**
+     * Returns the backoff before the retry following the given number of failed attempts.
+     * @param attempts
+     * @return long
+     */
+    public long getBackoffMillis(int attempts) {
+        long backoff = baseDelayMillis << Math.min(Math.max(attempts - 1, 0), 30);
+        if (backoff <= 0 || backoff > maxDelayMillis) {
+            backoff = maxDelayMillis;
+        }
+        return backoff - (long) (backoff * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    public int getPendingCount() {
+        return delayQueue.size();
+    }
+
+    /**
+     * Returns a one-line summary of the retries made and items pending or exhausted.
+     * @return String
+     */
+    public String getMetricsSummary() {
+        return name + " pending: " + delayQueue.size() + ", retried: " + retriedCount.get()
+                + ", succeeded: " + succeededCount.get() + ", exhausted: " + exhaustedCount.get();
+    }
+
+    /**
+     * Stops the worker after the retry in progress, if any, and hands every item still waiting
+     * for its backoff to the exhausted handler.
+     * @throws InterruptedException
+     */
+    public void shutdownAndAwait() throws InterruptedException {
+        synchronized (this) {
+            if (!shutdown) {
+                shutdown = true;
+                delayQueue.add(shutdownSignal);
+            }
+        }
+        worker.join();
+        // the iterator covers items whose backoff has not passed yet, unlike drainTo
+        List<ScheduledRetry<T>> pending = new ArrayList<>(delayQueue);
+        delayQueue.clear();
+        for (ScheduledRetry<T> retry : pending) {
+            if (retry.shutdownSignal) {
+                continue;
+            }
+            exhaustedCount.incrementAndGet();
+            exhaustedHandler.exhausted(retry.item, retry.attempts, retry.lastError);
+        }
+    }
+
+    private void runRetries() {
+        while (true) {
+            ScheduledRetry<T> retry;
+            try {
+                retry = delayQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (retry.shutdownSignal) {
+                break;
+            }
+            retriedCount.incrementAndGet();
+            try {
+                action.retry(retry.item, retry.attempts);
+                succeededCount.incrementAndGet();
+            } catch (Exception e) {
+                LOG.warn("Retry attempt " + (retry.attempts + 1) + " failed for " + name, e);
+                schedule(retry.item, retry.attempts + 1, e);
+            }
+        }
+    }
+}
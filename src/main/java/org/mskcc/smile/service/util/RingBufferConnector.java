@@ -0,0 +1,173 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stage connector backed by a preallocated ring buffer with a sequence counter per slot.
+ * Producers claim slots by advancing the enqueue counter and consumers claim messages by
+ * advancing the dequeue counter, both with a compare-and-set, so no locks are taken and no
+ * nodes are allocated per message. A slot's sequence tells whether it is free to write (equal
+ * to the enqueue position), holds a message (position + 1) or is still being read.
+ * Producers and consumers that have to wait do so according to the wait strategy.
+ * @param <T>
+ */
+public class RingBufferConnector<T> implements StageConnector<T> {
+    public static enum WaitStrategy {
+        BUSY_SPIN,
+        YIELD,
+        PARK
+    }
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+    private final int capacity;
+    private final int mask;
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+    private final AtomicLong producerWaits = new AtomicLong();
+
+    /**
+     * Constructor for RingBufferConnector.
+     * @param name
+     * @param capacity rounded up to a power of two
+     * @param waitStrategy
+     */
+    public RingBufferConnector(String name, int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 2 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Ring buffer capacity out of range: " + capacity);
+        }
+        this.name = name;
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = new Object[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds the message to the ring buffer if there is a free slot.
+     * @param message
+     * @return boolean
+     */
+    public boolean offer(HandlerMessage<T> message) {
+        long position = enqueuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    buffer[index] = message;
+                    // publishing the sequence makes the message visible to consumers
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the next message if there is one.
+     * @return HandlerMessage or null if the ring buffer is empty
+     */
+    public HandlerMessage<T> poll() {
+        long position = dequeuePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    HandlerMessage<T> message = (HandlerMessage<T>) buffer[index];
+                    buffer[index] = null;
+                    // free the slot for the producer one lap ahead
+                    sequences.set(index, position + capacity);
+                    return message;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+    }
+
+    @Override
+    public void put(HandlerMessage<T> message) throws InterruptedException {
+        int attempt = 0;
+        while (!offer(message)) {
+            if (attempt == 0) {
+                producerWaits.incrementAndGet();
+            }
+            idle(attempt++);
+        }
+    }
+
+    @Override
+    public HandlerMessage<T> take() throws InterruptedException {
+        int attempt = 0;
+        HandlerMessage<T> message;
+        while ((message = poll()) == null) {
+            idle(attempt++);
+        }
+        return message;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0L, Math.min(size, capacity));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String getOccupancySummary() {
+        return name + ": messages=" + size() + ", capacity=" + capacity
+                + ", waitStrategy=" + waitStrategy + ", producerWaits=" + producerWaits.get();
+    }
+
+    private void idle(int attempt) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+            default:
+                // spin briefly before backing off to parks of up to a millisecond
+                if (attempt < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(attempt - 100, 10)));
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.mskcc.smile.service.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.ObjectUtils;
+
+/**
+ * Coalesces sample label updates received within a time window. Updates are grouped into one
+ * batch per patient and merged by primary id, so a sample updated several times within the
+ * window is only labeled once using its latest version. A patient batch is opened by the first
+ * update for that patient and becomes due once the window has passed since it was opened or
+ * once it holds the maximum number of samples. Due batches are collected by calling
+ * {@link #drainDue}, so patient context is fetched once per batch instead of once per update.
+ * The number of pending samples is bounded: {@link #offer} refuses an update which would exceed
+ * the bound so that the caller can apply its own overflow handling.
+ */
+public class SampleUpdateCoalescer {
+    private final long windowMillis;
+    private final int maxBatchSamples;
+    private final int maxPendingSamples;
+    private final LinkedHashMap<String, PatientBatch> batches = new LinkedHashMap<>();
+    private long receivedSamples;
+    private long mergedSamples;
+    private long emittedBatches;
+    private long anonymousSamples;
+    private int pendingSamples;
+
+    /**
+     * Samples pending for a single patient keyed by primary id.
+     */
+    private static class PatientBatch {
+        private final long openedMillis;
+        private final LinkedHashMap<String, Map<String, Object>> samples = new LinkedHashMap<>();
+
+        PatientBatch(long openedMillis) {
+            this.openedMillis = openedMillis;
+        }
+    }
+
+    /**
+     * Constructor for SampleUpdateCoalescer.
+     * @param windowMillis
+     * @param maxBatchSamples
+     * @param maxPendingSamples
+     */
+    public SampleUpdateCoalescer(long windowMillis, int maxBatchSamples, int maxPendingSamples) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Coalescing window must be positive: " + windowMillis);
+        }
+        if (maxBatchSamples < 1) {
+            throw new IllegalArgumentException("Maximum batch samples must be positive: "
+                    + maxBatchSamples);
+        }
+        if (maxPendingSamples < 1) {
+            throw new IllegalArgumentException("Maximum pending samples must be positive: "
+                    + maxPendingSamples);
+        }
+        this.windowMillis = windowMillis;
+        this.maxBatchSamples = maxBatchSamples;
+        this.maxPendingSamples = maxPendingSamples;
+    }
+
+    /**
+     * Constructor for a SampleUpdateCoalescer with no bound on pending samples.
+     * @param windowMillis
+     * @param maxBatchSamples
+     */
+    public SampleUpdateCoalescer(long windowMillis, int maxBatchSamples) {
+        this(windowMillis, maxBatchSamples, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds the samples of an update unless they could take the pending samples over the
+     * bound. An update is always accepted when nothing is pending.
+     * @param samples
+     * @return boolean false if the update was refused
+     */
+    public synchronized boolean offer(List<Map<String, Object>> samples) {
+        if (pendingSamples > 0 && (long) pendingSamples + samples.size() > maxPendingSamples) {
+            return false;
+        }
+        add(samples);
+        return true;
+    }
+
+    /**
+     * Adds the samples of an update to the batches of their patients. A sample replaces any
+     * pending version with the same primary id while keeping its place in the batch.
+     * @param samples
+     */
+    public synchronized void add(List<Map<String, Object>> samples) {
+        long now = System.currentTimeMillis();
+        for (Map<String, Object> sample : samples) {
+            receivedSamples++;
+            String patientId = getString(sample, "cmoPatientId");
+            PatientBatch batch = batches.computeIfAbsent(patientId == null ? "" : patientId,
+                    k -> new PatientBatch(now));
+            String primaryId = ObjectUtils.firstNonNull(getString(sample, "igoId"),
+                    getString(sample, "primaryId"));
+            if (primaryId == null) {
+                // samples without a primary id cannot be matched so they are never merged
+                primaryId = "\u0000" + anonymousSamples++;
+            }
+            if (batch.samples.put(primaryId, sample) != null) {
+                mergedSamples++;
+            } else {
+                pendingSamples++;
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the batches whose window has passed or which are full.
+     * @return List
+     */
+    public synchronized List<List<Map<String, Object>>> drainDue() {
+        long now = System.currentTimeMillis();
+        List<List<Map<String, Object>>> due = new ArrayList<>();
+        Iterator<PatientBatch> iterator = batches.values().iterator();
+        while (iterator.hasNext()) {
+            PatientBatch batch = iterator.next();
+            if (now - batch.openedMillis >= windowMillis || batch.samples.size() >= maxBatchSamples) {
+                iterator.remove();
+                pendingSamples -= batch.samples.size();
+                due.addAll(split(batch));
+            }
+        }
+        emittedBatches += due.size();
+        return due;
+    }
+
+    /**
+     * Removes and returns every pending batch regardless of its window.
+     * @return List
+     */
+    public synchronized List<List<Map<String, Object>>> drainAll() {
+        List<List<Map<String, Object>>> all = new ArrayList<>();
+        for (PatientBatch batch : batches.values()) {
+            all.addAll(split(batch));
+        }
+        batches.clear();
+        pendingSamples = 0;
+        emittedBatches += all.size();
+        return all;
+    }
+
+    /**
+     * Returns the number of samples waiting in open batches.
+     * @return int
+     */
+    public synchronized int getPendingSamples() {
+        return pendingSamples;
+    }
+
+    public synchronized long getMergedSamples() {
+        return mergedSamples;
+    }
+
+    /**
+     * Returns a one-line summary of the samples received, merged and pending.
+     * @return String
+     */
+    public synchronized String getMetricsSummary() {
+        return "received: " + receivedSamples + ", merged: " + mergedSamples
+                + ", batches emitted: " + emittedBatches + ", open batches: " + batches.size()
+                + ", pending samples: " + getPendingSamples();
+    }
+
+    /**
+     * Splits a patient batch into lists of at most the maximum batch samples.
+     */
+    private List<List<Map<String, Object>>> split(PatientBatch batch) {
+        List<List<Map<String, Object>>> lists = new ArrayList<>();
+        List<Map<String, Object>> current = new ArrayList<>();
+        for (Map<String, Object> sample : batch.samples.values()) {
+            if (current.size() == maxBatchSamples) {
+                lists.add(current);
+                current = new ArrayList<>();
+            }
+            current.add(sample);
+        }
+        if (!current.isEmpty()) {
+            lists.add(current);
+        }
+        return lists;
+    }
+
+    private static String getString(Map<String, Object> map, String key) {
+        Object value = (map == null) ? null : map.get(key);
+        return (value == null) ? null : value.toString();
+    }
+}
@@ -0,0 +1,16 @@
+package org.mskcc.smile.service.util;
+
+import java.io.IOException;
+
+/**
+ * Hand-off between two handler stages. Producers put messages and consumers take them;
+ * both wait when the connector is full or empty respectively.
+ * @param <T>
+ */
+public interface StageConnector<T> {
+    void put(HandlerMessage<T> message) throws InterruptedException;
+    HandlerMessage<T> take() throws InterruptedException, IOException;
+    boolean isEmpty();
+    int size();
+    String getOccupancySummary();
+}
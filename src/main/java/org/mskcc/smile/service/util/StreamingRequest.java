@@ -0,0 +1,279 @@
+package org.mskcc.smile.service.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Request json read and written one chunk of samples at a time, so that a request with
+ * thousands of samples is never held as sample maps all at once. A first pass over the
+ * request reads its top-level fields and counts the samples of each patient and alt id
+ * without building the samples. A second pass reads the samples in chunks, hands each chunk
+ * to be labeled and writes the labeled samples to the output before reading the next chunk.
+ * A chunk is only cut between samples of different patients, so consecutive samples of a
+ * patient are labeled together. The output has the same fields in the same order as the
+ * request. The request and output json are still held whole, as they are received and
+ * published as single messages; only the sample maps are bounded by the chunk size.
+ */
+public class StreamingRequest {
+    public static final String SAMPLES_FIELD = "samples";
+    private static final String CMO_PATIENT_ID_FIELD = "cmoPatientId";
+
+    private final ObjectNode envelope;
+    private final Map<String, Integer> samplesPerPatient = new LinkedHashMap<>();
+    private final Map<String, Integer> samplesPerAltId = new LinkedHashMap<>();
+    private int sampleCount = 0;
+
+    /**
+     * Labels a chunk of samples in place.
+     */
+    @FunctionalInterface
+    public interface ChunkLabeler {
+        void label(List<Map<String, Object>> chunk) throws Exception;
+    }
+
+    /**
+     * Consumes one sample of a request.
+     */
+    @FunctionalInterface
+    public interface SampleConsumer {
+        void accept(Map<String, Object> sample) throws Exception;
+    }
+
+    private StreamingRequest(ObjectNode envelope) {
+        this.envelope = envelope;
+    }
+
+    /**
+     * Reads the top-level fields of the request and counts the samples of each cmo patient id
+     * and alt id, skipping all other sample fields.
+     * @param mapper
+     * @param requestJson
+     * @return StreamingRequest
+     * @throws IOException
+     */
+    public static StreamingRequest scan(ObjectMapper mapper, String requestJson) throws IOException {
+        StreamingRequest request = new StreamingRequest(mapper.createObjectNode());
+        try (JsonParser parser = mapper.createParser(requestJson)) {
+            startRequest(parser);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (SAMPLES_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                    request.envelope.putArray(SAMPLES_FIELD);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String[] sampleKeys = PrefetchedContext.readSampleKeys(parser);
+                        countKey(request.samplesPerPatient, sampleKeys[0]);
+                        countKey(request.samplesPerAltId, sampleKeys[1]);
+                        request.sampleCount++;
+                    }
+                } else {
+                    request.envelope.set(field, mapper.readTree(parser));
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Labels the samples of the request in chunks of the given size and returns the request
+     * json with the labeled samples. Each chunk is written out before the next one is read.
+     * @param mapper
+     * @param requestJson
+     * @param chunkSamples
+     * @param labeler
+     * @return String
+     * @throws Exception
+     */
+    public static String label(ObjectMapper mapper, String requestJson, int chunkSamples,
+            ChunkLabeler labeler) throws Exception {
+        StringWriter writer = new StringWriter(requestJson.length());
+        try (JsonParser parser = mapper.createParser(requestJson);
+                JsonGenerator generator = mapper.createGenerator(writer)) {
+            startRequest(parser);
+            generator.writeStartObject();
+            boolean samplesWritten = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                generator.writeFieldName(field);
+                if (SAMPLES_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                    labelSamples(mapper, parser, generator, Math.max(1, chunkSamples), labeler);
+                    samplesWritten = true;
+                } else {
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            if (!samplesWritten) {
+                generator.writeFieldName(SAMPLES_FIELD);
+                generator.writeStartArray();
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Passes each sample of the request to the consumer in order, one sample at a time.
+     * @param mapper
+     * @param requestJson
+     * @param consumer
+     * @throws Exception
+     */
+    public static void forEachSample(ObjectMapper mapper, String requestJson, SampleConsumer consumer)
+            throws Exception {
+        try (JsonParser parser = mapper.createParser(requestJson)) {
+            startRequest(parser);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (SAMPLES_FIELD.equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        consumer.accept(mapper.readValue(parser, Map.class));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the json takes at least the given number of bytes encoded as UTF-8.
+     * Characters are only counted when the length alone does not decide it.
+     * @param json
+     * @param minBytes
+     * @return boolean
+     */
+    public static boolean hasUtf8BytesAtLeast(String json, long minBytes) {
+        // a character takes one to three bytes, a surrogate pair four
+        if (json.length() >= minBytes) {
+            return true;
+        }
+        if (json.length() * 3L < minBytes) {
+            return false;
+        }
+        long bytes = 0;
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+            if (bytes >= minBytes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the request id, or null if the request has none.
+     * @return String
+     */
+    public String getRequestId() {
+        JsonNode requestId = envelope.get("requestId");
+        return (requestId == null || requestId.isNull()) ? null : requestId.asText();
+    }
+
+    /**
+     * Returns the value of a top-level field of the request as read into a map, or null if
+     * the request does not have the field.
+     * @param mapper
+     * @param field
+     * @return Object
+     * @throws IOException
+     */
+    public Object getField(ObjectMapper mapper, String field) throws IOException {
+        JsonNode value = envelope.get(field);
+        return (value == null) ? null : mapper.treeToValue(value, Object.class);
+    }
+
+    /**
+     * Returns the request json without its samples.
+     * @param mapper
+     * @return String
+     * @throws IOException
+     */
+    public String getEnvelopeJson(ObjectMapper mapper) throws IOException {
+        return mapper.writeValueAsString(envelope);
+    }
+
+    public List<String> getCmoPatientIds() {
+        return new ArrayList<>(samplesPerPatient.keySet());
+    }
+
+    /**
+     * Returns the number of samples of each cmo patient id, in the order first seen.
+     * @return Map
+     */
+    public Map<String, Integer> getSamplesPerPatient() {
+        return new LinkedHashMap<>(samplesPerPatient);
+    }
+
+    /**
+     * Returns the number of samples of each alt id, in the order first seen.
+     * @return Map
+     */
+    public Map<String, Integer> getSamplesPerAltId() {
+        return new LinkedHashMap<>(samplesPerAltId);
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    private static void startRequest(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Request json is not an object");
+        }
+    }
+
+    private static void labelSamples(ObjectMapper mapper, JsonParser parser, JsonGenerator generator,
+            int chunkSamples, ChunkLabeler labeler) throws Exception {
+        generator.writeStartArray();
+        List<Map<String, Object>> chunk = new ArrayList<>(chunkSamples);
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            Map<String, Object> sample = mapper.readValue(parser, Map.class);
+            // a full chunk is extended until the samples of its last patient are all in it
+            if (chunk.size() >= chunkSamples && !Objects.equals(sample.get(CMO_PATIENT_ID_FIELD),
+                    chunk.get(chunk.size() - 1).get(CMO_PATIENT_ID_FIELD))) {
+                writeChunk(mapper, generator, chunk, labeler);
+                chunk = new ArrayList<>(chunkSamples);
+            }
+            chunk.add(sample);
+        }
+        if (!chunk.isEmpty()) {
+            writeChunk(mapper, generator, chunk, labeler);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeChunk(ObjectMapper mapper, JsonGenerator generator,
+            List<Map<String, Object>> chunk, ChunkLabeler labeler) throws Exception {
+        labeler.label(chunk);
+        for (Map<String, Object> sample : chunk) {
+            mapper.writeValue(generator, sample);
+        }
+    }
+
+    private static void countKey(Map<String, Integer> counts, String key) {
+        if (key != null && !key.isBlank()) {
+            counts.merge(key, 1, Integer::sum);
+        }
+    }
+}
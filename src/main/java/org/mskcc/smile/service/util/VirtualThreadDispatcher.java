@@ -0,0 +1,70 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each task on its own virtual thread. The number of tasks in flight is bounded by a
+ * semaphore instead of a thread count: dispatching blocks while the limit is reached, which
+ * pushes back on the handler feeding the dispatcher.
+ */
+public class VirtualThreadDispatcher {
+    private final Semaphore inflightPermits;
+    private final int maxInflight;
+    private final ExecutorService exec;
+
+    /**
+     * Constructor for VirtualThreadDispatcher.
+     * @param maxInflight
+     * @param threadNamePrefix
+     */
+    public VirtualThreadDispatcher(int maxInflight, String threadNamePrefix) {
+        if (maxInflight < 1) {
+            throw new IllegalArgumentException("Maximum in-flight tasks must be positive: " + maxInflight);
+        }
+        this.maxInflight = maxInflight;
+        this.inflightPermits = new Semaphore(maxInflight);
+        this.exec = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name(threadNamePrefix + "-", 0).factory());
+    }
+
+    /**
+     * Starts the task on a new virtual thread once an in-flight permit is available.
+     * @param task
+     * @throws InterruptedException
+     */
+    public void dispatch(Runnable task) throws InterruptedException {
+        inflightPermits.acquire();
+        try {
+            exec.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    inflightPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inflightPermits.release();
+            throw e;
+        }
+    }
+
+    public int getInflightCount() {
+        return maxInflight - inflightPermits.availablePermits();
+    }
+
+    /**
+     * Stops accepting tasks and waits for the tasks in flight to finish.
+     * @param timeout
+     * @param unit
+     * @return boolean true if every task finished before the timeout
+     * @throws InterruptedException
+     */
+    public boolean shutdownAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        exec.shutdown();
+        return exec.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,264 @@
+package org.mskcc.smile.service.util;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs tasks from several priority classes on a shared set of worker threads.
+ * Each class has its own queue and a weight; when workers are contended, every class receives
+ * a share of the workers proportional to its weight (stride scheduling: the class with the lowest
+ * pass runs next and its pass advances by the inverse of its weight). A class that was idle does
+ * not build up credit, so it cannot monopolize the workers when it becomes busy again.
+ * To protect low weight classes from starvation, a task that has waited longer than the maximum
+ * wait runs next regardless of weights. Each class queue is bounded and submitting blocks while
+ * that class is at capacity, so a backlog of one class never blocks submissions of another.
+ */
+public class WeightedFairScheduler {
+    private static final long STRIDE_BASE = 1L << 20;
+    private static final Log LOG = LogFactory.getLog(WeightedFairScheduler.class);
+
+    /**
+     * Priority classes served by the scheduler.
+     */
+    public static enum PriorityClass {
+        REQUEST_REPLY,
+        SAMPLE_LABEL_UPDATE,
+        NEW_REQUEST,
+        PROMOTED_REQUEST
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition taskAvailable = lock.newCondition();
+    private final ClassQueue[] classQueues;
+    private final Thread[] workers;
+    private final long maxWaitNanos;
+    private final int capacityPerClass;
+    private long virtualTime;
+    private long starvationPromotions;
+    private boolean shutdown;
+
+    /**
+     * Constructor for WeightedFairScheduler.
+     * @param numWorkers
+     * @param weights weight of each priority class, classes without a weight get weight 1
+     * @param capacityPerClass
+     * @param maxWaitMillis
+     * @param threadNamePrefix
+     */
+    public WeightedFairScheduler(int numWorkers, Map<PriorityClass, Integer> weights,
+            int capacityPerClass, long maxWaitMillis, String threadNamePrefix) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException("Number of workers must be positive: " + numWorkers);
+        }
+        if (capacityPerClass < 1) {
+            throw new IllegalArgumentException("Class capacity must be positive: " + capacityPerClass);
+        }
+        this.capacityPerClass = capacityPerClass;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.classQueues = new ClassQueue[PriorityClass.values().length];
+        for (PriorityClass priorityClass : PriorityClass.values()) {
+            int weight = weights.getOrDefault(priorityClass, 1);
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight for " + priorityClass + " must be positive: "
+                        + weight);
+            }
+            classQueues[priorityClass.ordinal()] = new ClassQueue(priorityClass, STRIDE_BASE / weight);
+        }
+        this.workers = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            workers[i] = new Thread(this::runWorker, threadNamePrefix + "-" + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues the task in its priority class, blocking while that class is at capacity.
+     * @param priorityClass
+     * @param task
+     * @throws InterruptedException
+     */
+    public void submit(PriorityClass priorityClass, Runnable task) throws InterruptedException {
+        ClassQueue queue = classQueues[priorityClass.ordinal()];
+        lock.lockInterruptibly();
+        try {
+            while (!shutdown && queue.tasks.size() >= capacityPerClass) {
+                queue.notFull.await();
+            }
+            if (shutdown) {
+                throw new RejectedExecutionException("Scheduler has been shut down");
+            }
+            if (queue.tasks.isEmpty()) {
+                // an idle class rejoins at the current virtual time instead of with saved credit
+                queue.pass = Math.max(queue.pass, virtualTime);
+            }
+            queue.tasks.add(new ScheduledTask(task, System.nanoTime()));
+            queue.submitted++;
+            taskAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times a task was run ahead of its turn because it waited too long.
+     * @return long
+     */
+    public long getStarvationPromotions() {
+        lock.lock();
+        try {
+            return starvationPromotions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the queued and completed tasks in each priority class.
+     * @return String
+     */
+    public String getMetricsSummary() {
+        StringBuilder builder = new StringBuilder();
+        lock.lock();
+        try {
+            builder.append("workers: ").append(workers.length)
+                    .append(", starvation promotions: ").append(starvationPromotions);
+            for (ClassQueue queue : classQueues) {
+                builder.append(", ").append(queue.priorityClass)
+                        .append(" [queued: ").append(queue.tasks.size())
+                        .append(", submitted: ").append(queue.submitted)
+                        .append(", started: ").append(queue.started).append("]");
+            }
+        } finally {
+            lock.unlock();
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Stops accepting tasks and waits for the queued tasks to finish.
+     * @param timeout
+     * @param unit
+     * @return boolean true if every task finished before the timeout
+     * @throws InterruptedException
+     */
+    public boolean shutdownAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        lock.lock();
+        try {
+            shutdown = true;
+            taskAvailable.signalAll();
+            for (ClassQueue queue : classQueues) {
+                queue.notFull.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return false;
+            }
+            worker.join(remainingMillis);
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void runWorker() {
+        while (true) {
+            ScheduledTask next;
+            try {
+                next = nextTask();
+            } catch (InterruptedException e) {
+                LOG.warn("Scheduler worker interrupted, stopping");
+                return;
+            }
+            if (next == null) {
+                return;
+            }
+            try {
+                next.task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Error running scheduled task", e);
+            }
+        }
+    }
+
+    /**
+     * Takes the next task to run, or returns null once shut down and every queue is empty.
+     */
+    private ScheduledTask nextTask() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                ClassQueue chosen = null;
+                ClassQueue starved = null;
+                long now = System.nanoTime();
+                for (ClassQueue queue : classQueues) {
+                    if (queue.tasks.isEmpty()) {
+                        continue;
+                    }
+                    if (chosen == null || queue.pass < chosen.pass) {
+                        chosen = queue;
+                    }
+                    long enqueuedNanos = queue.tasks.peek().enqueuedNanos;
+                    if (now - enqueuedNanos > maxWaitNanos
+                            && (starved == null || enqueuedNanos < starved.tasks.peek().enqueuedNanos)) {
+                        starved = queue;
+                    }
+                }
+                if (chosen == null) {
+                    if (shutdown) {
+                        return null;
+                    }
+                    taskAvailable.await();
+                    continue;
+                }
+                if (starved != null && starved != chosen) {
+                    starvationPromotions++;
+                    chosen = starved;
+                }
+                virtualTime = Math.max(virtualTime, chosen.pass);
+                chosen.pass += chosen.stride;
+                chosen.started++;
+                chosen.notFull.signal();
+                return chosen.tasks.poll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class ClassQueue {
+        final PriorityClass priorityClass;
+        final long stride;
+        final ArrayDeque<ScheduledTask> tasks = new ArrayDeque<>();
+        final Condition notFull = lock.newCondition();
+        long pass;
+        long submitted;
+        long started;
+
+        ClassQueue(PriorityClass priorityClass, long stride) {
+            this.priorityClass = priorityClass;
+            this.stride = stride;
+        }
+    }
+
+    private static class ScheduledTask {
+        final Runnable task;
+        final long enqueuedNanos;
+
+        ScheduledTask(Runnable task, long enqueuedNanos) {
+            this.task = task;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.mskcc.smile.service.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks from several flows on one shared work-stealing pool. Any idle worker picks up
+ * the next task regardless of which flow submitted it, so a burst on one flow is absorbed by
+ * the capacity the other flows are not using. The number of tasks in flight across all flows is
+ * bounded by a semaphore: dispatching blocks while the limit is reached, which pushes back on the
+ * handlers feeding the pool. Each task carries a flow tag used to report per-flow counts.
+ */
+public class WorkStealingDispatcher {
+    private final ForkJoinPool pool;
+    private final Semaphore inflightPermits;
+    private final int maxInflight;
+    private final Map<String, FlowCounts> flowCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for WorkStealingDispatcher.
+     * @param parallelism
+     * @param maxInflight
+     * @param threadNamePrefix
+     */
+    public WorkStealingDispatcher(int parallelism, int maxInflight, String threadNamePrefix) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Pool parallelism must be positive: " + parallelism);
+        }
+        if (maxInflight < 1) {
+            throw new IllegalArgumentException("Maximum in-flight tasks must be positive: " + maxInflight);
+        }
+        this.maxInflight = maxInflight;
+        this.inflightPermits = new Semaphore(maxInflight);
+        AtomicInteger threadCount = new AtomicInteger();
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory = p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName(threadNamePrefix + "-" + threadCount.getAndIncrement());
+            return thread;
+        };
+        // async mode runs submitted tasks in FIFO order which suits independent event-style tasks
+        this.pool = new ForkJoinPool(parallelism, factory, null, true);
+    }
+
+    /**
+     * Submits the task for the given flow once an in-flight permit is available.
+     * @param flow
+     * @param task
+     * @throws InterruptedException
+     */
+    public void dispatch(String flow, Runnable task) throws InterruptedException {
+        FlowCounts counts = flowCounts.computeIfAbsent(flow, f -> new FlowCounts());
+        inflightPermits.acquire();
+        try {
+            pool.execute(() -> {
+                counts.inflight.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    counts.inflight.decrementAndGet();
+                    counts.completed.incrementAndGet();
+                    inflightPermits.release();
+                }
+            });
+            counts.submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            inflightPermits.release();
+            throw e;
+        }
+    }
+
+    public int getInflightCount() {
+        return maxInflight - inflightPermits.availablePermits();
+    }
+
+    /**
+     * Returns the number of tasks of the given flow that have finished running.
+     * @param flow
+     * @return long
+     */
+    public long getCompletedCount(String flow) {
+        FlowCounts counts = flowCounts.get(flow);
+        return (counts == null) ? 0L : counts.completed.get();
+    }
+
+    /**
+     * Returns a one-line summary of pool activity and of the tasks of each flow.
+     * @return String
+     */
+    public String getMetricsSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("active workers: ").append(pool.getActiveThreadCount())
+                .append("/").append(pool.getParallelism())
+                .append(", in flight: ").append(getInflightCount()).append("/").append(maxInflight)
+                .append(", steals: ").append(pool.getStealCount());
+        for (Map.Entry<String, FlowCounts> entry : flowCounts.entrySet()) {
+            FlowCounts counts = entry.getValue();
+            builder.append(", ").append(entry.getKey())
+                    .append(" [running: ").append(counts.inflight.get())
+                    .append(", submitted: ").append(counts.submitted.get())
+                    .append(", completed: ").append(counts.completed.get()).append("]");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Stops accepting tasks and waits for the tasks already submitted to finish.
+     * @param timeout
+     * @param unit
+     * @return boolean true if every task finished before the timeout
+     * @throws InterruptedException
+     */
+    public boolean shutdownAndAwait(long timeout, TimeUnit unit) throws InterruptedException {
+        pool.shutdown();
+        return pool.awaitTermination(timeout, unit);
+    }
+
+    private static class FlowCounts {
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicInteger inflight = new AtomicInteger();
+    }
+}
@@ -0,0 +1,76 @@
+package org.mskcc.smile;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.AimdConcurrencyLimiter;
+
+public class AimdConcurrencyLimiterTest {
+
+    /**
+     * Tests that the limit grows by one per adjustment while work is backed up and every
+     * permit is in use, and that it never grows past the maximum.
+     * @throws Exception
+     */
+    @Test
+    public void testAdditiveIncrease() throws Exception {
+        AimdConcurrencyLimiter limiter = new AimdConcurrencyLimiter(1, 3, 1, 100L, 0.5);
+        limiter.acquire();
+        Assertions.assertEquals(2, limiter.adjust(5));
+        // the limit only grows again once the extra permit has been used
+        Assertions.assertEquals(2, limiter.adjust(5));
+        limiter.acquire();
+        Assertions.assertEquals(3, limiter.adjust(5));
+        limiter.acquire();
+        Assertions.assertEquals(3, limiter.adjust(5));
+        // no backlog, no growth
+        AimdConcurrencyLimiter idle = new AimdConcurrencyLimiter(1, 3, 1, 100L, 0.5);
+        idle.acquire();
+        Assertions.assertEquals(1, idle.adjust(0));
+    }
+
+    /**
+     * Tests that slow lookups cut the limit by the decrease factor down to the minimum.
+     */
+    @Test
+    public void testMultiplicativeDecrease() {
+        AimdConcurrencyLimiter limiter = new AimdConcurrencyLimiter(2, 16, 16, 100L, 0.5);
+        limiter.recordLookupLatency(TimeUnit.MILLISECONDS.toNanos(500));
+        Assertions.assertEquals(8, limiter.adjust(10));
+        limiter.recordLookupLatency(TimeUnit.MILLISECONDS.toNanos(500));
+        Assertions.assertEquals(4, limiter.adjust(10));
+        limiter.recordLookupLatency(TimeUnit.MILLISECONDS.toNanos(500));
+        Assertions.assertEquals(2, limiter.adjust(10));
+        limiter.recordLookupLatency(TimeUnit.MILLISECONDS.toNanos(500));
+        Assertions.assertEquals(2, limiter.adjust(10));
+        // latencies are only counted for the adjustment that follows them
+        limiter.recordLookupLatency(TimeUnit.MILLISECONDS.toNanos(10));
+        Assertions.assertEquals(2, limiter.adjust(0));
+    }
+
+    /**
+     * Tests that acquiring blocks at the limit and resumes when the limit is raised.
+     * @throws Exception
+     */
+    @Test
+    public void testAcquireBlocksAtLimit() throws Exception {
+        AimdConcurrencyLimiter limiter = new AimdConcurrencyLimiter(1, 2, 1, 100L, 0.5);
+        limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        Assertions.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        // the blocked waiter counts as backlog even though the queues are empty
+        Assertions.assertEquals(2, limiter.adjust(0));
+        Assertions.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+}
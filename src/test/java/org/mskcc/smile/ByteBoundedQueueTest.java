@@ -0,0 +1,178 @@
+package org.mskcc.smile;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.ByteBoundedQueue;
+import org.mskcc.smile.service.util.HandlerMessage;
+import org.mskcc.smile.service.util.QueueSpillStore;
+
+public class ByteBoundedQueueTest {
+    private static final QueueSpillStore.Codec<String> CODEC = new QueueSpillStore.Codec<String>() {
+        @Override
+        public byte[] encode(String payload) {
+            return payload.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] data) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Tests that the reject policy refuses messages once the byte capacity is reached
+     * but always admits poison pills.
+     * @throws Exception
+     */
+    @Test
+    public void testRejectPolicy() throws Exception {
+        ByteBoundedQueue<String> queue = new ByteBoundedQueue<>("test", 100L,
+                ByteBoundedQueue.OverflowPolicy.REJECT, null);
+        Assertions.assertTrue(queue.enqueue(HandlerMessage.of("request1", 60L)));
+        Assertions.assertTrue(queue.enqueue(HandlerMessage.of("request2", 40L)));
+        Assertions.assertFalse(queue.enqueue(HandlerMessage.of("request3", 1L)));
+        Assertions.assertTrue(queue.enqueue(HandlerMessage.poisonPill()));
+        Assertions.assertEquals(100L, queue.getUsedBytes());
+
+        Assertions.assertEquals("request1", queue.take().getPayload());
+        Assertions.assertTrue(queue.enqueue(HandlerMessage.of("request3", 60L)));
+    }
+
+    /**
+     * Tests that the block policy waits for capacity and that a message larger than the
+     * capacity is still admitted to an empty queue.
+     * @throws Exception
+     */
+    @Test
+    public void testBlockPolicy() throws Exception {
+        ByteBoundedQueue<String> queue = new ByteBoundedQueue<>("test", 100L,
+                ByteBoundedQueue.OverflowPolicy.BLOCK, null);
+        queue.put(HandlerMessage.of("large", 500L));
+        CountDownLatch enqueued = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put(HandlerMessage.of("small", 10L));
+                enqueued.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        Assertions.assertFalse(enqueued.await(200, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("large", queue.take().getPayload());
+        Assertions.assertTrue(enqueued.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals("small", queue.take().getPayload());
+        producer.join();
+    }
+
+    /**
+     * Tests that a timed poll returns null once the wait has passed without a message and
+     * frees the capacity held by the message it returns.
+     * @throws Exception
+     */
+    @Test
+    public void testPollWithTimeout() throws Exception {
+        ByteBoundedQueue<String> queue = new ByteBoundedQueue<>("test", 100L,
+                ByteBoundedQueue.OverflowPolicy.REJECT, null);
+        long start = System.nanoTime();
+        Assertions.assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+        Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assertions.assertTrue(queue.enqueue(HandlerMessage.of("request1", 100L)));
+        Assertions.assertFalse(queue.enqueue(HandlerMessage.of("request2", 1L)));
+        Assertions.assertEquals("request1", queue.poll(0, TimeUnit.MILLISECONDS).getPayload());
+        Assertions.assertEquals(0L, queue.getUsedBytes());
+        Assertions.assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tests that messages spilled to disk are delivered after the messages held in memory
+     * and in the order they arrived with their write-ahead log sequence, including after the
+     * spill store is reopened.
+     * @throws Exception
+     */
+    @Test
+    public void testSpillPolicyKeepsOrder() throws Exception {
+        Path spillDir = Files.createTempDirectory("queue-spill");
+        try {
+            ByteBoundedQueue<String> queue = new ByteBoundedQueue<>("test", 20L,
+                    ByteBoundedQueue.OverflowPolicy.SPILL, new QueueSpillStore<>(spillDir, CODEC));
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertTrue(queue.enqueue(HandlerMessage.ofJson("request" + i, null, i)));
+            }
+            Assertions.assertTrue(queue.getUsedBytes() <= 20L);
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertEquals("request" + i, queue.take().getPayload());
+            }
+
+            // spilled messages survive a restart
+            ByteBoundedQueue<String> reopened = new ByteBoundedQueue<>("test", 20L,
+                    ByteBoundedQueue.OverflowPolicy.SPILL, new QueueSpillStore<>(spillDir, CODEC));
+            Assertions.assertFalse(reopened.isEmpty());
+            // request3 was moved back into memory by the original queue before it went away
+            for (int i = 4; i < 10; i++) {
+                HandlerMessage<String> message = reopened.take();
+                Assertions.assertEquals("request" + i, message.getPayload());
+                Assertions.assertEquals(i, message.getWalSequence());
+            }
+            Assertions.assertTrue(reopened.isEmpty());
+        } finally {
+            try (Stream<Path> paths = Files.list(spillDir)) {
+                for (Path path : paths.toList()) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(spillDir);
+        }
+    }
+
+    /**
+     * Tests that messages still spilled when the poison pills are queued are left on disk
+     * rather than moved in behind the pills, so that none are dropped at shutdown.
+     * @throws Exception
+     */
+    @Test
+    public void testSpilledMessagesSurviveShutdown() throws Exception {
+        Path spillDir = Files.createTempDirectory("queue-spill");
+        try {
+            ByteBoundedQueue<String> queue = new ByteBoundedQueue<>("test", 20L,
+                    ByteBoundedQueue.OverflowPolicy.SPILL, new QueueSpillStore<>(spillDir, CODEC));
+            for (int i = 0; i < 10; i++) {
+                Assertions.assertTrue(queue.enqueue(HandlerMessage.ofJson("request" + i, null, i)));
+            }
+            queue.put(HandlerMessage.poisonPill());
+            // a message arriving after the pill is spilled behind the backlog
+            Assertions.assertTrue(queue.enqueue(HandlerMessage.ofJson("request10", null, 10)));
+            List<String> delivered = new ArrayList<>();
+            HandlerMessage<String> message;
+            while (!(message = queue.take()).isPoisonPill()) {
+                delivered.add(message.getPayload());
+            }
+
+            ByteBoundedQueue<String> reopened = new ByteBoundedQueue<>("test", 20L,
+                    ByteBoundedQueue.OverflowPolicy.SPILL, new QueueSpillStore<>(spillDir, CODEC));
+            while (!reopened.isEmpty()) {
+                delivered.add(reopened.take().getPayload());
+            }
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i <= 10; i++) {
+                expected.add("request" + i);
+            }
+            Assertions.assertEquals(expected, delivered);
+        } finally {
+            try (Stream<Path> paths = Files.list(spillDir)) {
+                for (Path path : paths.toList()) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(spillDir);
+        }
+    }
+}
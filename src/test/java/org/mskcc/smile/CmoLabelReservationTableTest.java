@@ -0,0 +1,88 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.CmoLabelReservation;
+import org.mskcc.smile.service.util.CmoLabelReservationTable;
+
+public class CmoLabelReservationTableTest {
+
+    /**
+     * Tests that a label reserved by one sample cannot be reserved by another
+     * until it has been released.
+     */
+    @Test
+    public void testReserveAndRelease() {
+        CmoLabelReservationTable table = new CmoLabelReservationTable(60000L);
+        Assertions.assertNull(table.tryReserve("C-MP789JR-N001-d01", "SAMPLE_1", "ABC-123"));
+        // same sample reserving the same label again is not a conflict
+        Assertions.assertNull(table.tryReserve("C-MP789JR-N001-d01", "SAMPLE_1", "ABC-123"));
+
+        CmoLabelReservation holder = table.tryReserve("C-MP789JR-N001-d01", "SAMPLE_2", "ABC-456");
+        Assertions.assertNotNull(holder);
+        Assertions.assertEquals("SAMPLE_1", holder.getPrimaryId());
+        Assertions.assertEquals("ABC-123", holder.getAltId());
+
+        // only the holder can release the reservation
+        table.release("C-MP789JR-N001-d01", "SAMPLE_2");
+        Assertions.assertNotNull(table.tryReserve("C-MP789JR-N001-d01", "SAMPLE_2", "ABC-456"));
+        table.release("C-MP789JR-N001-d01", "SAMPLE_1");
+        Assertions.assertNull(table.tryReserve("C-MP789JR-N001-d01", "SAMPLE_2", "ABC-456"));
+    }
+
+    /**
+     * Tests that reserving a new label for a sample frees the label it reserved before
+     * and that expired reservations no longer block other samples.
+     * @throws Exception
+     */
+    @Test
+    public void testRelabelAndExpiry() throws Exception {
+        CmoLabelReservationTable table = new CmoLabelReservationTable(50L);
+        Assertions.assertNull(table.tryReserve("C-MP789JR-N001-d01", "SAMPLE_1", null));
+        Assertions.assertNull(table.tryReserve("C-MP789JR-N001-d02", "SAMPLE_1", null));
+        Assertions.assertEquals(1, table.size());
+        Assertions.assertNull(table.tryReserve("C-MP789JR-N001-d01", "SAMPLE_2", null));
+
+        Thread.sleep(100L);
+        Assertions.assertNull(table.tryReserve("C-MP789JR-N001-d02", "SAMPLE_3", null));
+        Assertions.assertEquals(1, table.purgeExpired());
+        Assertions.assertEquals(1, table.size());
+    }
+
+    /**
+     * Tests that when many handler threads race for the same labels exactly one
+     * sample wins each label.
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentReservations() throws Exception {
+        CmoLabelReservationTable table = new CmoLabelReservationTable(60000L);
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final String primaryId = "SAMPLE_" + t;
+            results.add(exec.submit(() -> {
+                int won = 0;
+                for (int i = 0; i < 1000; i++) {
+                    // every thread races with the others for each label on behalf of a distinct sample
+                    if (table.tryReserve("C-MP789JR-N" + i + "-d01", primaryId + "_" + i, null) == null) {
+                        won++;
+                    }
+                }
+                return won;
+            }));
+        }
+        int totalWon = 0;
+        for (Future<Integer> result : results) {
+            totalWon += result.get();
+        }
+        exec.shutdown();
+        Assertions.assertEquals(1000, totalWon);
+        Assertions.assertEquals(1000, table.size());
+    }
+}
@@ -0,0 +1,88 @@
+package org.mskcc.smile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.DeadLetterStore;
+
+public class DeadLetterStoreTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    /**
+     * Tests that dead letters survive a reopen, are replayed in order at the given rate and
+     * are not replayed again once replayed.
+     * @throws Exception
+     */
+    @Test
+    public void testReplayAtRate() throws Exception {
+        Path dir = Files.createTempDirectory("dead-letters");
+        try {
+            try (DeadLetterStore store = new DeadLetterStore(dir, SEGMENT_BYTES)) {
+                for (int i = 0; i < 5; i++) {
+                    store.append("NEW_REQUEST_DEST", 5, new IllegalStateException("timed out"),
+                            "{\"requestId\":\"REQUEST_" + i + "\"}");
+                }
+            }
+            List<String> replayed = new ArrayList<>();
+            try (DeadLetterStore store = new DeadLetterStore(dir, SEGMENT_BYTES)) {
+                Assertions.assertEquals(5, store.getPendingCount());
+                long start = System.nanoTime();
+                Assertions.assertEquals(5, store.replay(50.0, (flow, payload) -> replayed.add(payload)));
+                // the first dead letter goes right away and the others 20ms apart
+                Assertions.assertTrue(System.nanoTime() - start >= 4 * 20_000_000L);
+                Assertions.assertEquals(0, store.getPendingCount());
+            }
+            Assertions.assertEquals("{\"requestId\":\"REQUEST_0\"}", replayed.get(0));
+            Assertions.assertEquals("{\"requestId\":\"REQUEST_4\"}", replayed.get(4));
+            try (DeadLetterStore store = new DeadLetterStore(dir, SEGMENT_BYTES)) {
+                Assertions.assertEquals(0, store.getPendingCount());
+                Assertions.assertEquals(0, store.replay(50.0, (flow, payload) -> replayed.add(payload)));
+            }
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Tests that a replay which fails keeps the failed dead letter and those after it.
+     * @throws Exception
+     */
+    @Test
+    public void testFailedReplayKeepsRemaining() throws Exception {
+        Path dir = Files.createTempDirectory("dead-letters");
+        try (DeadLetterStore store = new DeadLetterStore(dir, SEGMENT_BYTES)) {
+            for (int i = 0; i < 4; i++) {
+                store.append("SAMPLE_LABEL_UPDATE", 3, null, "[{\"primaryId\":\"MOCK_" + i + "\"}]");
+            }
+            List<String> replayed = new ArrayList<>();
+            DeadLetterStore.DeadLetterConsumer failingConsumer = (flow, payload) -> {
+                if (payload.contains("MOCK_2")) {
+                    throw new IllegalStateException("queue is at capacity");
+                }
+                replayed.add(payload);
+            };
+            Assertions.assertThrows(IllegalStateException.class, () -> store.replay(1000.0, failingConsumer));
+            Assertions.assertEquals(2, replayed.size());
+            Assertions.assertEquals(2, store.getPendingCount());
+            replayed.clear();
+            Assertions.assertEquals(2, store.replay(1000.0, (flow, payload) -> replayed.add(payload)));
+            Assertions.assertEquals("[{\"primaryId\":\"MOCK_2\"}]", replayed.get(0));
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    private void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.mskcc.smile;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.Deadline;
+
+public class DeadlineTest {
+
+    /**
+     * Tests that a deadline without a budget never expires and runs lookups on the caller.
+     * @throws Exception
+     */
+    @Test
+    public void testUnboundedDeadline() throws Exception {
+        Deadline deadline = Deadline.after(System.nanoTime() - TimeUnit.HOURS.toNanos(1), 0L);
+        Assertions.assertFalse(deadline.isBounded());
+        Assertions.assertFalse(deadline.isExpired());
+        deadline.check("lookup");
+        Thread caller = Thread.currentThread();
+        Assertions.assertTrue(deadline.call(null, () -> Thread.currentThread() == caller, "lookup"));
+    }
+
+    /**
+     * Tests that a lookup still outstanding at the deadline is cancelled and interrupted, and
+     * that no further lookups are started once the deadline has passed.
+     * @throws Exception
+     */
+    @Test
+    public void testOutstandingLookupCancelled() throws Exception {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            CountDownLatch interrupted = new CountDownLatch(1);
+            Deadline deadline = Deadline.after(System.nanoTime(), 100L);
+            Assertions.assertEquals("MOCK_PATIENT", deadline.call(executor, () -> "MOCK_PATIENT", "lookup"));
+            long start = System.nanoTime();
+            Assertions.assertThrows(TimeoutException.class, () -> deadline.call(executor, () -> {
+                try {
+                    Thread.sleep(10000L);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+                return "too late";
+            }, "slow lookup"));
+            Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            Assertions.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(deadline.isExpired());
+            Assertions.assertEquals(0L, deadline.remainingNanos());
+            Assertions.assertThrows(TimeoutException.class, () -> deadline.check("next lookup"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that the exception thrown by a lookup is passed on as is.
+     * @throws Exception
+     */
+    @Test
+    public void testLookupFailurePassedOn() throws Exception {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            Deadline deadline = Deadline.after(System.nanoTime(), 5000L);
+            Future<String> failed = executor.submit(() -> {
+                throw new IllegalStateException("no responders");
+            });
+            Assertions.assertThrows(IllegalStateException.class, () -> deadline.await(failed, "lookup"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.KeyOrderedExecutor;
+
+public class KeyOrderedExecutorTest {
+
+    /**
+     * Tests that tasks for the same patient run one at a time in submission order.
+     * @throws Exception
+     */
+    @Test
+    public void testTasksForSameKeyRunInOrder() throws Exception {
+        KeyOrderedExecutor executor = new KeyOrderedExecutor(4, "test-lane");
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 200; i++) {
+            final int taskId = i;
+            executor.submit(List.of("C-MP789JR"), () -> order.add(taskId));
+        }
+        Assertions.assertTrue(executor.shutdownAndAwait(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(200, order.size());
+        for (int i = 0; i < order.size(); i++) {
+            Assertions.assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    /**
+     * Tests that multi-patient tasks never overlap with single-patient tasks on any of their
+     * patients and that interleaved multi-patient tasks do not deadlock.
+     * @throws Exception
+     */
+    @Test
+    public void testMultiKeyTasksRunExclusively() throws Exception {
+        KeyOrderedExecutor executor = new KeyOrderedExecutor(8, "test-lane");
+        String[] patients = {"C-MP789JR", "C-ABC123", "C-XYZ987", "C-DEF456"};
+        AtomicInteger[] running = new AtomicInteger[patients.length];
+        for (int p = 0; p < patients.length; p++) {
+            running[p] = new AtomicInteger();
+        }
+        AtomicInteger overlaps = new AtomicInteger();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final int first = i % patients.length;
+            final int second = (i * 7 + 1) % patients.length;
+            List<String> keys = (i % 3 == 0) ? List.of(patients[first], patients[second])
+                    : List.of(patients[first]);
+            futures.add(executor.submit(keys, () -> {
+                for (String key : keys) {
+                    int p = List.of(patients).indexOf(key);
+                    if (running[p].incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                }
+                Thread.yield();
+                for (String key : keys) {
+                    running[List.of(patients).indexOf(key)].decrementAndGet();
+                }
+            }));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        Assertions.assertTrue(executor.shutdownAndAwait(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(0, overlaps.get());
+    }
+}
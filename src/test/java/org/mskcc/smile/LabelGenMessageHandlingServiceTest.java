@@ -0,0 +1,441 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.nats.client.Message;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.config.TestConfiguration;
+import org.mskcc.smile.service.CmoLabelGeneratorService;
+import org.mskcc.smile.service.impl.CmoLabelRegistryServiceImpl;
+import org.mskcc.smile.service.impl.LabelGenMessageHandlingServiceImpl;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Runs requests through the label generator message handling service with a mocked gateway
+ * standing in for the smile server and the NATS topics.
+ */
+@SpringBootTest(classes = LabelGeneratorTestApp.class, properties = {
+        "igo.new_request_topic=" + LabelGenMessageHandlingServiceTest.IGO_NEW_REQUEST_TOPIC,
+        "request_reply.patient_samples_topic=" + LabelGenMessageHandlingServiceTest.PATIENT_SAMPLES_TOPIC,
+        "request_reply.samples_by_cmo_label_topic=" + LabelGenMessageHandlingServiceTest.CMO_LABEL_TOPIC,
+        "request_reply.samples_by_alt_id_topic=" + LabelGenMessageHandlingServiceTest.ALT_ID_TOPIC})
+@Import(TestConfiguration.class)
+public class LabelGenMessageHandlingServiceTest {
+    static final String IGO_NEW_REQUEST_TOPIC = "IGO_NEW_REQUEST";
+    static final String PATIENT_SAMPLES_TOPIC = "PATIENT_SAMPLES";
+    static final String CMO_LABEL_TOPIC = "SAMPLES_BY_CMO_LABEL";
+    static final String ALT_ID_TOPIC = "SAMPLES_BY_ALT_ID";
+    private static final long PUBLISH_TIMEOUT_MS = 10000;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<Path> tempFiles = new ArrayList<>();
+    private CmoLabelRegistryServiceImpl cmoLabelRegistryService;
+    private LabelGenMessageHandlingServiceImpl messageHandlingService;
+
+    @Autowired
+    private AutowireCapableBeanFactory beanFactory;
+
+    @AfterEach
+    public void shutdownServices() throws Exception {
+        if (messageHandlingService != null) {
+            messageHandlingService.shutdown();
+        }
+        if (cmoLabelRegistryService != null) {
+            cmoLabelRegistryService.shutdown();
+        }
+        for (Path tempFile : tempFiles) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Tests that a label the occupancy index holds for another sample is incremented even
+     * when smile does not have a sample with the label yet, as for a label published by
+     * the label generator but not yet persisted.
+     * @throws Exception
+     */
+    @Test
+    public void testIndexHitNotConfirmedBySmile() throws Exception {
+        startRegistry("C-MP789JR-X001-d01\tMOCKREQUEST0_A_1");
+        Gateway gateway = mockGateway(new HashMap<>(), new HashMap<>());
+        startService(gateway, new HashMap<>());
+
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST1_B",
+                makeSample("MOCKREQUEST1_B_1", "C-MP789JR", "ALT-1", "C-MP789JR-X001-d01")));
+        Assertions.assertEquals(List.of("C-MP789JR-X001-d02"),
+                getPublishedLabels(gateway, "MOCKREQUEST1_B"));
+    }
+
+    /**
+     * Tests that a request labeled while another request for the same patient is waiting to
+     * publish does not issue the label reserved by that request.
+     * @throws Exception
+     */
+    @Test
+    public void testReservationContention() throws Exception {
+        startRegistry();
+        Gateway gateway = mockGateway(new HashMap<>(), new HashMap<>());
+        // the first request holds its label reservation until the second request is published
+        CountDownLatch firstPublishing = new CountDownLatch(1);
+        CountDownLatch secondPublished = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            firstPublishing.countDown();
+            secondPublished.await(PUBLISH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return null;
+        }).when(gateway).publish(Mockito.eq("MOCKREQUEST1_B"), Mockito.anyString(), Mockito.any());
+        Mockito.doAnswer(invocation -> {
+            secondPublished.countDown();
+            return null;
+        }).when(gateway).publish(Mockito.eq("MOCKREQUEST2_D"), Mockito.anyString(), Mockito.any());
+        startService(gateway, Map.of("NUM_NEW_REQUEST_HANDLERS", 2));
+
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST1_B",
+                makeSample("MOCKREQUEST1_B_1", "C-MP789JR", "ALT-1", null)));
+        Assertions.assertTrue(firstPublishing.await(PUBLISH_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST2_D",
+                makeSample("MOCKREQUEST2_D_1", "C-MP789JR", "ALT-2", null)));
+        Assertions.assertEquals(List.of("C-MP789JR-X002-d01"),
+                getPublishedLabels(gateway, "MOCKREQUEST2_D"));
+        Assertions.assertEquals(List.of("C-MP789JR-X001-d01"),
+                getPublishedLabels(gateway, "MOCKREQUEST1_B"));
+    }
+
+    /**
+     * Tests that the labels reserved by a request which fails before it is published are
+     * released so that the next request for the patient can issue them.
+     * @throws Exception
+     */
+    @Test
+    public void testReservationReleasedOnFailure() throws Exception {
+        startRegistry();
+        Map<String, Long> lookupDelaysMs = new ConcurrentHashMap<>();
+        lookupDelaysMs.put(CMO_LABEL_TOPIC, 2000L);
+        Gateway gateway = mockGateway(new HashMap<>(), lookupDelaysMs);
+        cmoLabelRegistryService = Mockito.spy(cmoLabelRegistryService);
+        startService(gateway, Map.of("DEADLINE_REQUEST_MS", 500L));
+
+        // the second sample's label lookup runs past the deadline after the first is reserved
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST1_B",
+                makeSample("MOCKREQUEST1_B_1", "C-MP789JR", "ALT-1", null),
+                makeSample("MOCKREQUEST1_B_2", "C-MP789JR", "ALT-1", "C-MP789JR-X001-d02")));
+        Mockito.verify(cmoLabelRegistryService, Mockito.timeout(PUBLISH_TIMEOUT_MS))
+                .releaseCmoLabel("MOCKREQUEST1_B_1", "C-MP789JR-X001-d01");
+        Mockito.verify(gateway, Mockito.never()).publish(Mockito.eq("MOCKREQUEST1_B"),
+                Mockito.anyString(), Mockito.any());
+        lookupDelaysMs.clear();
+
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST2_D",
+                makeSample("MOCKREQUEST2_D_1", "C-MP789JR", "ALT-2", null)));
+        Assertions.assertEquals(List.of("C-MP789JR-X001-d01"),
+                getPublishedLabels(gateway, "MOCKREQUEST2_D"));
+    }
+
+    /**
+     * Tests that a sample whose label is taken in smile and cannot be incremented is published
+     * without a label rather than failing the request.
+     * @throws Exception
+     */
+    @Test
+    public void testUnresolvableLabelPublishedUnlabeled() throws Exception {
+        startRegistry();
+        Map<String, List<Map<String, Object>>> smileSamples = new HashMap<>();
+        smileSamples.put(CMO_LABEL_TOPIC + ":C-MP789JR-X001-d01",
+                List.of(makeSample("MOCKREQUEST0_A_1", "C-MP789JR", "ALT-1", "C-MP789JR-X001-d01")));
+        Gateway gateway = mockGateway(smileSamples, new HashMap<>());
+        startService(gateway, new HashMap<>());
+        // the label taken in smile cannot be incremented
+        CmoLabelGeneratorService labelGenerator = Mockito.spy((CmoLabelGeneratorService)
+                ReflectionTestUtils.getField(messageHandlingService, "cmoLabelGeneratorService"));
+        Mockito.doReturn(null).when(labelGenerator).incrementNucleicAcidCounter(Mockito.anyString());
+        Mockito.doReturn(null).when(labelGenerator).incrementSampleCounter(Mockito.anyString());
+        ReflectionTestUtils.setField(messageHandlingService, "cmoLabelGeneratorService", labelGenerator);
+
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST1_B",
+                makeSample("MOCKREQUEST1_B_1", "C-MP789JR", "ALT-1", "C-MP789JR-X001-d01")));
+        Assertions.assertEquals(Collections.singletonList(null),
+                getPublishedLabels(gateway, "MOCKREQUEST1_B"));
+    }
+
+    /**
+     * Tests that requests for the same patient labeled in one batch lease the patient once
+     * and issue distinct labels in arrival order.
+     * @throws Exception
+     */
+    @Test
+    public void testBatchSpanningSamePatient() throws Exception {
+        startRegistry(Map.of("COORDINATION_MODE", "in_memory"));
+        Gateway gateway = mockGateway(new HashMap<>(), new HashMap<>());
+        // the batch closes once both requests are in it rather than when its wait runs out
+        startService(gateway, Map.of("REQUEST_BATCH_MAX_REQUESTS", 2,
+                "REQUEST_BATCH_MAX_WAIT_MS", PUBLISH_TIMEOUT_MS));
+
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST1_B",
+                makeSample("MOCKREQUEST1_B_1", "C-MP789JR", "ALT-1", null)));
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST2_D",
+                makeSample("MOCKREQUEST2_D_1", "C-MP789JR", "ALT-2", null)));
+        Assertions.assertEquals(List.of("C-MP789JR-X001-d01"),
+                getPublishedLabels(gateway, "MOCKREQUEST1_B"));
+        Assertions.assertEquals(List.of("C-MP789JR-X002-d01"),
+                getPublishedLabels(gateway, "MOCKREQUEST2_D"));
+        AtomicLong requestBatchCount =
+                (AtomicLong) ReflectionTestUtils.getField(messageHandlingService, "requestBatchCount");
+        Assertions.assertEquals(1L, requestBatchCount.get());
+    }
+
+    /**
+     * Tests that samples of one patient labeled in streamed chunks issue distinct labels in
+     * order, each chunk seeing the labels issued by the chunks before it.
+     * @throws Exception
+     */
+    @Test
+    public void testStreamedChunksSamePatient() throws Exception {
+        startRegistry();
+        Gateway gateway = mockGateway(new HashMap<>(), new HashMap<>());
+        startService(gateway, Map.of("STREAMING_MIN_PAYLOAD_KB", 1L, "STREAMING_CHUNK_SAMPLES", 2));
+
+        // chunks are cut between patients, so the sample of another patient splits the chunks
+        List<String> cmoPatientIds = List.of("C-MP789JR", "C-MP789JR", "C-1A2B3C", "C-MP789JR", "C-MP789JR");
+        List<Map<String, Object>> samples = new ArrayList<>();
+        for (int i = 0; i < cmoPatientIds.size(); i++) {
+            samples.add(makeSample("MOCKREQUEST1_B_" + i, cmoPatientIds.get(i), "ALT-" + i, null));
+        }
+        messageHandlingService.cmoLabelGeneratorHandler(makeRequestJson("MOCKREQUEST1_B",
+                samples.toArray(new Map[0])));
+        Assertions.assertEquals(List.of("C-MP789JR-X001-d01", "C-MP789JR-X002-d01", "C-1A2B3C-X001-d01",
+                "C-MP789JR-X003-d01", "C-MP789JR-X004-d01"), getPublishedLabels(gateway, "MOCKREQUEST1_B"));
+    }
+
+    /**
+     * Tests that two service instances sharing a lease directory issue distinct labels to
+     * concurrent requests for the same patient, each instance seeing the labels the other
+     * published once it holds the patient's lease.
+     * @throws Exception
+     */
+    @Test
+    public void testTwoInstancesSharingLeaseDirectory() throws Exception {
+        Path leaseDirectory = Files.createTempDirectory("patient-leases");
+        Map<String, List<Map<String, Object>>> smileSamples = new ConcurrentHashMap<>();
+        Gateway gateway = mockGateway(smileSamples, new HashMap<>());
+        persistPublishedRequests(gateway, smileSamples);
+        List<LabelGenMessageHandlingServiceImpl> services = new ArrayList<>();
+        List<CmoLabelRegistryServiceImpl> registries = new ArrayList<>();
+        ExecutorService senders = Executors.newFixedThreadPool(8);
+        try {
+            for (String instanceId : List.of("instance-a", "instance-b")) {
+                startRegistry(Map.of("COORDINATION_MODE", "file_lock", "COORDINATION_INSTANCE_ID", instanceId,
+                        "COORDINATION_LEASE_DIRECTORY", leaseDirectory.toString()));
+                startService(gateway, Map.of("NUM_NEW_REQUEST_HANDLERS", 2));
+                registries.add(cmoLabelRegistryService);
+                services.add(messageHandlingService);
+            }
+            // the last instance is shut down after each test, the first one below
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> sent = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                LabelGenMessageHandlingServiceImpl service = services.get(i % 2);
+                String requestJson = makeRequestJson("MOCKREQUEST" + i + "_B",
+                        makeSample("MOCKREQUEST" + i + "_B_1", "C-MP789JR", "ALT-" + i, null));
+                sent.add(senders.submit(() -> {
+                    start.await();
+                    service.cmoLabelGeneratorHandler(requestJson);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : sent) {
+                future.get();
+            }
+            Set<String> labels = new HashSet<>();
+            for (int i = 0; i < 8; i++) {
+                labels.addAll(getPublishedLabels(gateway, "MOCKREQUEST" + i + "_B"));
+            }
+            Assertions.assertEquals(8, labels.size(), "Duplicate labels issued: " + labels);
+        } finally {
+            senders.shutdownNow();
+            if (services.size() == 2) {
+                services.get(0).shutdown();
+                registries.get(0).shutdown();
+            }
+            try (Stream<Path> leaseFiles = Files.list(leaseDirectory)) {
+                leaseFiles.forEach(tempFiles::add);
+            }
+            tempFiles.add(leaseDirectory);
+        }
+    }
+
+    /**
+     * Starts a label registry, with the occupancy index seeded from the given snapshot lines
+     * if any are given.
+     * @param snapshotLines
+     * @throws Exception
+     */
+    private void startRegistry(String... snapshotLines) throws Exception {
+        startRegistry(Map.of(), snapshotLines);
+    }
+
+    /**
+     * Starts a label registry with the given settings in place of their defaults, with the
+     * occupancy index seeded from the given snapshot lines if any are given.
+     * @param settings
+     * @param snapshotLines
+     * @throws Exception
+     */
+    private void startRegistry(Map<String, Object> settings, String... snapshotLines) throws Exception {
+        cmoLabelRegistryService = beanFactory.createBean(CmoLabelRegistryServiceImpl.class);
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            ReflectionTestUtils.setField(cmoLabelRegistryService, setting.getKey(), setting.getValue());
+        }
+        if (snapshotLines.length > 0) {
+            Path snapshotFile = Files.createTempFile("label-index", ".tsv");
+            tempFiles.add(snapshotFile);
+            tempFiles.add(snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp"));
+            Files.write(snapshotFile, List.of(snapshotLines), StandardCharsets.UTF_8);
+            ReflectionTestUtils.setField(cmoLabelRegistryService, "LABEL_INDEX_ENABLED", Boolean.TRUE);
+            ReflectionTestUtils.setField(cmoLabelRegistryService, "LABEL_INDEX_SNAPSHOT_FILE",
+                    snapshotFile.toString());
+        }
+        cmoLabelRegistryService.initialize();
+    }
+
+    /**
+     * Starts a message handling service using the registry and the mocked gateway, with the
+     * given settings in place of their defaults.
+     * @param gateway
+     * @param settings
+     * @throws Exception
+     */
+    private void startService(Gateway gateway, Map<String, Object> settings) throws Exception {
+        messageHandlingService = beanFactory.createBean(LabelGenMessageHandlingServiceImpl.class);
+        ReflectionTestUtils.setField(messageHandlingService, "cmoLabelRegistryService",
+                cmoLabelRegistryService);
+        for (Map.Entry<String, Object> setting : settings.entrySet()) {
+            ReflectionTestUtils.setField(messageHandlingService, setting.getKey(), setting.getValue());
+        }
+        messageHandlingService.initialize(gateway);
+    }
+
+    /**
+     * Returns a mocked gateway which replies to smile lookups with the samples given for the
+     * lookup topic and key, and with no samples otherwise. Lookups on a topic with a delay
+     * reply after the delay.
+     * @param smileSamples samples by topic and lookup key
+     * @param lookupDelaysMs delay by topic
+     * @return Gateway
+     * @throws Exception
+     */
+    private Gateway mockGateway(Map<String, List<Map<String, Object>>> smileSamples,
+            Map<String, Long> lookupDelaysMs) throws Exception {
+        Gateway gateway = Mockito.mock(Gateway.class);
+        Mockito.when(gateway.request(Mockito.anyString(), Mockito.any())).thenAnswer(invocation -> {
+            Long delayMs = lookupDelaysMs.get(invocation.getArgument(0));
+            if (delayMs != null) {
+                Thread.sleep(delayMs);
+            }
+            String lookup = invocation.getArgument(0) + ":" + invocation.getArgument(1);
+            byte[] data = mapper.writeValueAsBytes(smileSamples.getOrDefault(lookup, new ArrayList<>()));
+            Message reply = Mockito.mock(Message.class);
+            Mockito.when(reply.getData()).thenReturn(data);
+            return reply;
+        });
+        return gateway;
+    }
+
+    /**
+     * Adds the samples of requests published to the new request topic to the smile samples,
+     * as smile persists them, so that later lookups for their patients and labels find them.
+     * @param gateway
+     * @param smileSamples samples by topic and lookup key
+     * @throws Exception
+     */
+    private void persistPublishedRequests(Gateway gateway,
+            Map<String, List<Map<String, Object>>> smileSamples) throws Exception {
+        Mockito.doAnswer(invocation -> {
+            Map<String, Object> requestMap =
+                    mapper.readValue(invocation.getArgument(2).toString(), Map.class);
+            for (Object sample : (List<Object>) requestMap.get("samples")) {
+                Map<String, Object> sampleMap = (Map<String, Object>) sample;
+                smileSamples.computeIfAbsent(PATIENT_SAMPLES_TOPIC + ":" + sampleMap.get("cmoPatientId"),
+                        k -> new CopyOnWriteArrayList<>()).add(sampleMap);
+                smileSamples.computeIfAbsent(CMO_LABEL_TOPIC + ":" + sampleMap.get("cmoSampleName"),
+                        k -> new CopyOnWriteArrayList<>()).add(sampleMap);
+            }
+            return null;
+        }).when(gateway).publish(Mockito.anyString(), Mockito.eq(IGO_NEW_REQUEST_TOPIC), Mockito.any());
+    }
+
+    /**
+     * Waits for the request to be published and returns the labels of its samples in order.
+     * @param gateway
+     * @param requestId
+     * @return List
+     * @throws Exception
+     */
+    private List<String> getPublishedLabels(Gateway gateway, String requestId) throws Exception {
+        ArgumentCaptor<Object> published = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(gateway, Mockito.timeout(PUBLISH_TIMEOUT_MS)).publish(Mockito.eq(requestId),
+                Mockito.eq(IGO_NEW_REQUEST_TOPIC), published.capture());
+        Map<String, Object> requestMap = mapper.readValue(published.getValue().toString(), Map.class);
+        List<String> labels = new ArrayList<>();
+        for (Object sample : (List<Object>) requestMap.get("samples")) {
+            labels.add((String) ((Map<String, Object>) sample).get("cmoSampleName"));
+        }
+        return labels;
+    }
+
+    private String makeRequestJson(String requestId, Map<String, Object>... samples) throws Exception {
+        Map<String, Object> requestMap = new LinkedHashMap<>();
+        requestMap.put("requestId", requestId);
+        requestMap.put("isCmoRequest", Boolean.TRUE);
+        requestMap.put("samples", List.of(samples));
+        return mapper.writeValueAsString(requestMap);
+    }
+
+    private Map<String, Object> makeSample(String igoId, String cmoPatientId, String altId,
+            String cmoSampleName) {
+        Map<String, Object> sample = new LinkedHashMap<>();
+        sample.put("igoId", igoId);
+        sample.put("cmoPatientId", cmoPatientId);
+        sample.put("altid", altId);
+        if (cmoSampleName != null) {
+            sample.put("cmoSampleName", cmoSampleName);
+        }
+        sample.put("investigatorSampleId", igoId);
+        sample.put("tumorOrNormal", "Tumor");
+        sample.put("specimenType", "PDX");
+        sample.put("sampleOrigin", "Tissue");
+        sample.put("cmoSampleClass", "Primary");
+        sample.put("baitSet", "GENESET101_BAITS");
+        sample.put("cmoSampleIdFields", Map.of("naToExtract", "", "sampleType", "Tissue",
+                "normalizedPatientId", "MRN_REDACTED", "recipe", "GENESET101_BAITS"));
+        sample.put("status", Map.of("validationStatus", Boolean.TRUE, "validationReport", "{}"));
+        return sample;
+    }
+}
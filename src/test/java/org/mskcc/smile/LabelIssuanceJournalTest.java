@@ -0,0 +1,92 @@
+package org.mskcc.smile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.LabelIssuanceJournal;
+import org.mskcc.smile.service.util.LabelIssuanceRecord;
+
+public class LabelIssuanceJournalTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    /**
+     * Tests that records written before a restart are replayed in order after the
+     * journal is reopened and that appends continue after the last record.
+     * @throws Exception
+     */
+    @Test
+    public void testReplayAfterReopen() throws Exception {
+        Path journalDir = Files.createTempDirectory("label-journal");
+        try (LabelIssuanceJournal journal = new LabelIssuanceJournal(journalDir, SEGMENT_BYTES)) {
+            for (int i = 0; i < 100; i++) {
+                journal.append(new LabelIssuanceRecord(i, "MOCKREQUEST1_B_" + i, "ABC-" + i,
+                        "C-MP789JR", "C-MP789JR-N" + String.format("%03d", i) + "-d01", "MOCKREQUEST1_B"));
+            }
+            Assertions.assertTrue(journal.segmentCount() > 1);
+        }
+        try (LabelIssuanceJournal journal = new LabelIssuanceJournal(journalDir, SEGMENT_BYTES)) {
+            journal.append(new LabelIssuanceRecord(100, "MOCKREQUEST1_B_100", null,
+                    "C-MP789JR", "C-MP789JR-N100-d01", null));
+            List<LabelIssuanceRecord> replayed = replay(journal);
+            Assertions.assertEquals(101, replayed.size());
+            for (int i = 0; i < replayed.size(); i++) {
+                Assertions.assertEquals(i, replayed.get(i).getTimestamp());
+            }
+            Assertions.assertNull(replayed.get(100).getAltId());
+            Assertions.assertEquals("MOCKREQUEST1_B", replayed.get(0).getRequestId());
+        } finally {
+            deleteDirectory(journalDir);
+        }
+    }
+
+    /**
+     * Tests that compaction keeps only the latest label issued for each primary id.
+     * @throws Exception
+     */
+    @Test
+    public void testCompactionKeepsLatestRecordPerSample() throws Exception {
+        Path journalDir = Files.createTempDirectory("label-journal");
+        try (LabelIssuanceJournal journal = new LabelIssuanceJournal(journalDir, SEGMENT_BYTES)) {
+            for (int i = 0; i < 300; i++) {
+                journal.append(new LabelIssuanceRecord(i, "MOCKREQUEST1_B_" + (i % 10), null,
+                        "C-MP789JR", "C-MP789JR-N001-d" + String.format("%02d", i % 100), null));
+            }
+            int segmentsBefore = journal.segmentCount();
+            journal.compact();
+            Assertions.assertTrue(journal.segmentCount() < segmentsBefore);
+
+            Map<String, String> latestLabels = new HashMap<>();
+            List<LabelIssuanceRecord> replayed = replay(journal);
+            for (LabelIssuanceRecord record : replayed) {
+                latestLabels.put(record.getPrimaryId(), record.getCmoLabel());
+            }
+            Assertions.assertEquals(10, replayed.size());
+            Assertions.assertEquals("C-MP789JR-N001-d99", latestLabels.get("MOCKREQUEST1_B_9"));
+            Assertions.assertEquals("C-MP789JR-N001-d90", latestLabels.get("MOCKREQUEST1_B_0"));
+        } finally {
+            deleteDirectory(journalDir);
+        }
+    }
+
+    private List<LabelIssuanceRecord> replay(LabelIssuanceJournal journal) throws IOException {
+        List<LabelIssuanceRecord> records = new ArrayList<>();
+        journal.replay(records::add);
+        return records;
+    }
+
+    private void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            for (Path path : paths.toList()) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,67 @@
+package org.mskcc.smile;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.OffHeapStringMap;
+
+public class OffHeapStringMapTest {
+
+    /**
+     * Tests basic put, get, replace and remove of cmo label mappings.
+     */
+    @Test
+    public void testPutGetAndRemove() {
+        OffHeapStringMap index = new OffHeapStringMap(16);
+        Assertions.assertNull(index.put("C-MP789JR-X001-d01", "MOCKREQUEST1_B_1"));
+        Assertions.assertEquals("MOCKREQUEST1_B_1", index.get("C-MP789JR-X001-d01"));
+        Assertions.assertNull(index.get("C-MP789JR-X002-d01"));
+
+        // replacing the value returns the previous value
+        Assertions.assertEquals("MOCKREQUEST1_B_1", index.put("C-MP789JR-X001-d01", "MOCKREQUEST1_B_2"));
+        Assertions.assertEquals("MOCKREQUEST1_B_2", index.get("C-MP789JR-X001-d01"));
+        Assertions.assertEquals(1, index.size());
+
+        Assertions.assertEquals("MOCKREQUEST1_B_2", index.remove("C-MP789JR-X001-d01"));
+        Assertions.assertNull(index.get("C-MP789JR-X001-d01"));
+        Assertions.assertEquals(0, index.size());
+    }
+
+    /**
+     * Tests that the index grows past its expected size without losing mappings
+     * and that keys which were never added are answered as absent.
+     */
+    @Test
+    public void testGrowthBeyondExpectedEntries() {
+        OffHeapStringMap index = new OffHeapStringMap(100);
+        Map<String, String> expected = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            String cmoLabel = "C-" + (i / 10) + "-T00" + (i % 10) + "-d01";
+            String primaryId = "REQ_" + i;
+            index.put(cmoLabel, primaryId);
+            expected.put(cmoLabel, primaryId);
+        }
+        // remove every third label so that lookups have to probe past tombstones
+        for (int i = 0; i < 50000; i += 3) {
+            String cmoLabel = "C-" + (i / 10) + "-T00" + (i % 10) + "-d01";
+            index.remove(cmoLabel);
+            expected.remove(cmoLabel);
+        }
+        Assertions.assertEquals(expected.size(), index.size());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            Assertions.assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        int found = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (index.get("C-ABSENT-N" + i + "-d01") != null) {
+                found++;
+            }
+        }
+        Assertions.assertEquals(0, found);
+
+        Map<String, String> visited = new HashMap<>();
+        index.forEach(visited::put);
+        Assertions.assertEquals(expected, visited);
+    }
+}
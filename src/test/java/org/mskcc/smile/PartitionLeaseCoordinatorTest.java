@@ -0,0 +1,128 @@
+package org.mskcc.smile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.FileLockPartitionLeaseCoordinator;
+import org.mskcc.smile.service.util.InMemoryPartitionLeaseCoordinator;
+import org.mskcc.smile.service.util.PartitionLeaseCoordinator;
+
+public class PartitionLeaseCoordinatorTest {
+
+    /**
+     * Tests that a patient partition is held by one instance at a time and is handed off
+     * to a waiting instance once the holder releases it.
+     * @throws Exception
+     */
+    @Test
+    public void testInMemoryLeaseHandoff() throws Exception {
+        ConcurrentMap<Integer, InMemoryPartitionLeaseCoordinator.Lease> leaseTable =
+                new ConcurrentHashMap<>();
+        try (PartitionLeaseCoordinator first =
+                new InMemoryPartitionLeaseCoordinator(leaseTable, "instance-1", 16, 60000L);
+                PartitionLeaseCoordinator second =
+                new InMemoryPartitionLeaseCoordinator(leaseTable, "instance-2", 16, 60000L)) {
+            assertHandoff(first, second);
+        }
+    }
+
+    /**
+     * Tests lease handoff between instances coordinating through lock files.
+     * @throws Exception
+     */
+    @Test
+    public void testFileLockLeaseHandoff() throws Exception {
+        Path leaseDir = Files.createTempDirectory("partition-leases");
+        try (PartitionLeaseCoordinator first =
+                new FileLockPartitionLeaseCoordinator(leaseDir, "instance-1", 16, 60000L);
+                PartitionLeaseCoordinator second =
+                new FileLockPartitionLeaseCoordinator(leaseDir, "instance-2", 16, 60000L)) {
+            assertHandoff(first, second);
+        } finally {
+            try (Stream<Path> paths = Files.list(leaseDir)) {
+                for (Path path : paths.toList()) {
+                    Files.delete(path);
+                }
+            }
+            Files.delete(leaseDir);
+        }
+    }
+
+    /**
+     * Tests that the partitions already acquired are released when acquiring the rest is
+     * interrupted.
+     * @throws Exception
+     */
+    @Test
+    public void testInterruptedAcquireReleasesAcquiredPartitions() throws Exception {
+        ConcurrentMap<Integer, InMemoryPartitionLeaseCoordinator.Lease> leaseTable =
+                new ConcurrentHashMap<>();
+        try (PartitionLeaseCoordinator first =
+                new InMemoryPartitionLeaseCoordinator(leaseTable, "instance-1", 16, 60000L);
+                PartitionLeaseCoordinator second =
+                new InMemoryPartitionLeaseCoordinator(leaseTable, "instance-2", 16, 60000L)) {
+            // find a patient in a lower partition than the one held by the first instance
+            String heldKey = "C-MP789JR";
+            String lowerKey = null;
+            for (int i = 0; lowerKey == null; i++) {
+                if (second.partitionFor("C-PATIENT" + i) < second.partitionFor(heldKey)) {
+                    lowerKey = "C-PATIENT" + i;
+                }
+            }
+            first.acquire(List.of(heldKey));
+            List<String> keys = List.of(lowerKey, heldKey);
+            CountDownLatch interrupted = new CountDownLatch(1);
+            Thread waiter = new Thread(() -> {
+                try {
+                    second.acquire(keys);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            waiter.start();
+            Thread.sleep(200);
+            Assertions.assertEquals(Set.of(second.partitionFor(lowerKey)), second.getOwnedPartitions());
+            waiter.interrupt();
+            Assertions.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(second.getOwnedPartitions().isEmpty());
+            waiter.join();
+        }
+    }
+
+    private void assertHandoff(PartitionLeaseCoordinator first, PartitionLeaseCoordinator second)
+            throws Exception {
+        int partition = first.partitionFor("C-MP789JR");
+        // two handler threads in the first instance share the lease
+        first.acquire(List.of("C-MP789JR"));
+        first.acquire(List.of("C-MP789JR"));
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                second.acquire(List.of("C-MP789JR"));
+                acquired.countDown();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        waiter.start();
+        Assertions.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        first.release(List.of("C-MP789JR"));
+        Assertions.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        first.release(List.of("C-MP789JR"));
+        Assertions.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        Assertions.assertFalse(first.getOwnedPartitions().contains(partition));
+        Assertions.assertTrue(second.getOwnedPartitions().contains(partition));
+        second.release(List.of("C-MP789JR"));
+        waiter.join();
+    }
+}
@@ -0,0 +1,44 @@
+package org.mskcc.smile;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.PipelineStage;
+
+public class PipelineStageTest {
+
+    /**
+     * Tests that items flow through chained stages, that failed items are passed to the
+     * failure handler and that shutting the stages down in order drains every item.
+     * @throws Exception
+     */
+    @Test
+    public void testChainedStagesDrainOnShutdown() throws Exception {
+        List<String> published = new CopyOnWriteArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        PipelineStage<String> publishStage = new PipelineStage<>("publish", 2, 4,
+                published::add, (item, e) -> failures.incrementAndGet());
+        PipelineStage<String> assignStage = new PipelineStage<>("assign", 4, 4, item -> {
+            if (item.endsWith("13")) {
+                throw new IllegalStateException("Unable to generate label for " + item);
+            }
+            publishStage.submit(item + "-labeled");
+        }, (item, e) -> failures.incrementAndGet());
+
+        for (int i = 0; i < 100; i++) {
+            assignStage.submit("request" + i);
+        }
+        assignStage.shutdownAndAwait();
+        publishStage.shutdownAndAwait();
+
+        Assertions.assertEquals(99, published.size());
+        Assertions.assertEquals(1, failures.get());
+        Assertions.assertTrue(published.contains("request42-labeled"));
+        Assertions.assertFalse(published.contains("request13-labeled"));
+        Assertions.assertEquals(0, assignStage.getQueueDepth());
+        Assertions.assertTrue(assignStage.getMetricsSummary().contains("processed=100"));
+        Assertions.assertTrue(assignStage.getMetricsSummary().contains("failed=1"));
+    }
+}
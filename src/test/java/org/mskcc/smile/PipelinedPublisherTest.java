@@ -0,0 +1,112 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.PipelinedPublisher;
+
+public class PipelinedPublisherTest {
+
+    /**
+     * Tests that publishes are not serialized behind each other's round trips and that
+     * messages with the same key keep their order.
+     * @throws Exception
+     */
+    @Test
+    public void testPipelinedPublishesKeepKeyOrder() throws Exception {
+        List<String> published = Collections.synchronizedList(new ArrayList<>());
+        PipelinedPublisher publisher = new PipelinedPublisher("test", 4, 16, (topic, payload) -> {
+            Thread.sleep(50L);
+            published.add(payload);
+        });
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            for (String key : List.of("MOCK_A", "MOCK_B", "MOCK_C", "MOCK_D")) {
+                results.add(publisher.publish(key, "SAMPLE_UPDATE", key + "_" + i));
+            }
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        // 16 round trips of 50ms spread over 4 lanes
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 16 * 50);
+        List<String> keyA = new ArrayList<>();
+        for (String payload : published) {
+            if (payload.startsWith("MOCK_A")) {
+                keyA.add(payload);
+            }
+        }
+        Assertions.assertEquals(List.of("MOCK_A_0", "MOCK_A_1", "MOCK_A_2", "MOCK_A_3"), keyA);
+        Assertions.assertTrue(publisher.shutdownAndAwait(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that the number of outstanding publishes is bounded.
+     * @throws Exception
+     */
+    @Test
+    public void testOutstandingPublishesBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        PipelinedPublisher publisher = new PipelinedPublisher("test", 4, 2,
+                (topic, payload) -> release.await());
+        publisher.publish("MOCK_A", "SAMPLE_UPDATE", "1");
+        publisher.publish("MOCK_B", "SAMPLE_UPDATE", "2");
+        CountDownLatch thirdSubmitted = new CountDownLatch(1);
+        Thread submitter = new Thread(() -> {
+            try {
+                publisher.publish("MOCK_C", "SAMPLE_UPDATE", "3");
+                thirdSubmitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        Assertions.assertFalse(thirdSubmitted.await(200, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(2, publisher.getOutstanding());
+        release.countDown();
+        Assertions.assertTrue(thirdSubmitted.await(5, TimeUnit.SECONDS));
+        submitter.join();
+        Assertions.assertTrue(publisher.shutdownAndAwait(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that failed publishes are collected, complete once a retry succeeds and are
+     * completed exceptionally when drained.
+     * @throws Exception
+     */
+    @Test
+    public void testFailuresRetriedAndDrained() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        PipelinedPublisher publisher = new PipelinedPublisher("test", 1, 4, (topic, payload) -> {
+            if (payload.equals("always_fails") || calls.incrementAndGet() == 1) {
+                throw new IllegalStateException("publish timed out");
+            }
+        });
+        CompletableFuture<Void> retried = publisher.publish("MOCK_A", "SAMPLE_UPDATE", "1");
+        CompletableFuture<Void> dropped = publisher.publish("MOCK_A", "SAMPLE_UPDATE", "always_fails");
+        waitForFailures(publisher, 2);
+        Assertions.assertFalse(retried.isDone());
+
+        Assertions.assertEquals(2, publisher.retryFailures());
+        retried.get(5, TimeUnit.SECONDS);
+        waitForFailures(publisher, 1);
+        List<PipelinedPublisher.PublishFailure> failures = publisher.drainFailures();
+        Assertions.assertEquals(1, failures.size());
+        Assertions.assertEquals(2, failures.get(0).getAttempts());
+        Assertions.assertTrue(dropped.isCompletedExceptionally());
+        Assertions.assertTrue(publisher.shutdownAndAwait(5, TimeUnit.SECONDS));
+    }
+
+    private void waitForFailures(PipelinedPublisher publisher, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (publisher.getPendingFailures() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        Assertions.assertEquals(expected, publisher.getPendingFailures());
+    }
+}
@@ -0,0 +1,104 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.CmoLabelParts;
+import org.mskcc.smile.service.util.PrefetchedContext;
+
+public class PrefetchedContextTest {
+    private static final String REQUEST_JSON = "{\"requestId\":\"MOCKREQUEST1_B\","
+            + "\"projectManagerName\":{\"first\":\"Jane\",\"last\":[\"Doe\"]},"
+            + "\"samples\":["
+            + "{\"igoId\":\"MOCKREQUEST1_B_1\",\"cmoPatientId\":\"C-MP789JR\",\"altid\":\"ABC-DEF\","
+            + "\"cmoSampleIdFields\":{\"naToExtract\":\"RNA\",\"cmoPatientId\":\"C-NESTED\"},"
+            + "\"qcReports\":[{\"altId\":\"NOT-THIS-ONE\"}]},"
+            + "{\"igoId\":\"MOCKREQUEST1_B_2\",\"cmoPatientId\":\"C-MP789JR\",\"altid\":null,"
+            + "\"altId\":\"GHI-JKL\"},"
+            + "{\"igoId\":\"MOCKREQUEST1_B_3\",\"cmoPatientId\":\"C-8VK0V7\","
+            + "\"additionalProperties\":{\"isCmoSample\":\"true\",\"altId\":\"MNO-PQR\"}},"
+            + "{\"igoId\":\"MOCKREQUEST1_B_4\",\"cmoPatientId\":\"\"}],"
+            + "\"isCmoRequest\":true}";
+
+    /**
+     * Tests that the streaming parse picks the cmo patient ids and alt ids of the samples the
+     * same way sample label parts do and ignores nested fields with the same names.
+     * @throws Exception
+     */
+    @Test
+    public void testExtractLookupKeys() throws Exception {
+        PrefetchedContext.LookupKeys keys = PrefetchedContext.extractLookupKeys(new JsonFactory(),
+                REQUEST_JSON);
+        Assertions.assertEquals(List.of("C-MP789JR", "C-8VK0V7"), keys.getCmoPatientIds());
+        Assertions.assertEquals(List.of("ABC-DEF", "GHI-JKL", "MNO-PQR"), keys.getAltIds());
+        PrefetchedContext.LookupKeys noSamples = PrefetchedContext.extractLookupKeys(new JsonFactory(),
+                "{\"requestId\":\"MOCKREQUEST2_D\"}");
+        Assertions.assertTrue(noSamples.getCmoPatientIds().isEmpty());
+    }
+
+    /**
+     * Tests that lookups are started for every key, that each holds a permit until it has
+     * finished or been cancelled, and that nothing is started without enough free permits.
+     * @throws Exception
+     */
+    @Test
+    public void testLookupsBoundedByPermits() throws Exception {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            Semaphore permits = new Semaphore(6);
+            CountDownLatch release = new CountDownLatch(1);
+            PrefetchedContext.SampleLookup blockedLookup = key -> {
+                release.await();
+                return new ArrayList<>();
+            };
+            PrefetchedContext prefetched = PrefetchedContext.start(new JsonFactory(), REQUEST_JSON,
+                    executor, permits, blockedLookup, blockedLookup);
+            Assertions.assertEquals(2, prefetched.getPatientSamples().size());
+            Assertions.assertEquals(3, prefetched.getAltIdSamples().size());
+            Assertions.assertEquals(1, permits.availablePermits());
+            Assertions.assertFalse(prefetched.isDone());
+            Assertions.assertNull(PrefetchedContext.start(new JsonFactory(), REQUEST_JSON,
+                    executor, permits, blockedLookup, blockedLookup));
+
+            prefetched.cancel();
+            Assertions.assertEquals(6, permits.availablePermits());
+            prefetched.discardFailed();
+            Assertions.assertTrue(prefetched.getPatientSamples().isEmpty());
+            release.countDown();
+
+            PrefetchedContext.SampleLookup patientLookup = key -> {
+                List<CmoLabelParts> samples = new ArrayList<>();
+                if (key.equals("C-8VK0V7")) {
+                    throw new IllegalStateException("no responders");
+                }
+                return samples;
+            };
+            PrefetchedContext completed = PrefetchedContext.start(new JsonFactory(), REQUEST_JSON,
+                    executor, permits, patientLookup, key -> new ArrayList<>());
+            for (String patientId : List.of("C-MP789JR", "C-8VK0V7")) {
+                try {
+                    completed.getPatientSamples().get(patientId).get(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    // the failed lookup is discarded below
+                }
+            }
+            Assertions.assertTrue(completed.isDone());
+            completed.discardFailed();
+            Assertions.assertEquals(List.of("C-MP789JR"),
+                    new ArrayList<>(completed.getPatientSamples().keySet()));
+            for (String altId : List.of("ABC-DEF", "GHI-JKL", "MNO-PQR")) {
+                completed.getAltIdSamples().get(altId).get(5, TimeUnit.SECONDS);
+            }
+            Assertions.assertEquals(6, permits.availablePermits());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.mskcc.smile;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.RequestDedupWindow;
+
+public class RequestDedupWindowTest {
+    private static final String REQUEST_JSON = "{\"requestId\":\"MOCKREQUEST1_B\",\"samples\":[]}";
+    private static final String UPDATED_REQUEST_JSON = REQUEST_JSON.replace("[]", "[{}]");
+
+    /**
+     * Tests that an identical request is recognized while in flight and after it has been
+     * published, and that a changed payload for the same request is not a duplicate.
+     */
+    @Test
+    public void testDuplicateDetection() {
+        RequestDedupWindow window = new RequestDedupWindow(100, 60000L);
+        String key = RequestDedupWindow.keyOf("NEW_REQUEST_DEST", "MOCKREQUEST1_B", REQUEST_JSON);
+        Assertions.assertNull(window.checkAndRegister(key));
+        window.track(key, 1L);
+
+        RequestDedupWindow.Entry inflight = window.checkAndRegister(key);
+        Assertions.assertNotNull(inflight);
+        Assertions.assertFalse(inflight.isCompleted());
+
+        window.complete(1L, "{\"published\":true}");
+        RequestDedupWindow.Entry published = window.checkAndRegister(key);
+        Assertions.assertEquals("{\"published\":true}", published.getOutput());
+
+        // a new version of the request and the same request on another flow are processed
+        Assertions.assertNull(window.checkAndRegister(
+                RequestDedupWindow.keyOf("NEW_REQUEST_DEST", "MOCKREQUEST1_B", UPDATED_REQUEST_JSON)));
+        Assertions.assertNull(window.checkAndRegister(
+                RequestDedupWindow.keyOf("PROMOTED_REQUEST_DEST", "MOCKREQUEST1_B", REQUEST_JSON)));
+        Assertions.assertEquals(0.4, window.getHitRate(), 0.0001);
+    }
+
+    /**
+     * Tests that two versions of a request in flight at once are each completed or forgotten
+     * by the delivery that finished, and that untracked sequences leave them in flight.
+     */
+    @Test
+    public void testVersionsCompletedByDelivery() {
+        RequestDedupWindow window = new RequestDedupWindow(100, 60000L);
+        String firstKey = RequestDedupWindow.keyOf("NEW_REQUEST_DEST", "MOCKREQUEST1_B", REQUEST_JSON);
+        String secondKey = RequestDedupWindow.keyOf("NEW_REQUEST_DEST", "MOCKREQUEST1_B",
+                UPDATED_REQUEST_JSON);
+        Assertions.assertNull(window.checkAndRegister(firstKey));
+        window.track(firstKey, 1L);
+        Assertions.assertNull(window.checkAndRegister(secondKey));
+        window.track(secondKey, 2L);
+
+        // a replayed request was never tracked and must not settle a live delivery
+        window.complete(7L, "{\"replayed\":true}");
+        window.forget(8L);
+        Assertions.assertFalse(window.checkAndRegister(firstKey).isCompleted());
+        Assertions.assertFalse(window.checkAndRegister(secondKey).isCompleted());
+
+        // the second version finishes first
+        window.complete(2L, "{\"version\":2}");
+        Assertions.assertFalse(window.checkAndRegister(firstKey).isCompleted());
+        Assertions.assertEquals("{\"version\":2}", window.checkAndRegister(secondKey).getOutput());
+
+        window.forget(1L);
+        Assertions.assertNull(window.checkAndRegister(firstKey));
+        Assertions.assertEquals("{\"version\":2}", window.checkAndRegister(secondKey).getOutput());
+    }
+
+    /**
+     * Tests that forgotten requests are processed again and that the window is bounded
+     * and expires old entries.
+     * @throws Exception
+     */
+    @Test
+    public void testForgetEvictionAndExpiry() throws Exception {
+        RequestDedupWindow window = new RequestDedupWindow(3, 60000L);
+        String key = RequestDedupWindow.keyOf("NEW_REQUEST_DEST", "MOCKREQUEST1_B", REQUEST_JSON);
+        Assertions.assertNull(window.checkAndRegister(key));
+        window.track(key, 1L);
+        window.forget(1L);
+        Assertions.assertNull(window.checkAndRegister(key));
+        window.forget(key);
+        Assertions.assertNull(window.checkAndRegister(key));
+
+        for (int i = 0; i < 5; i++) {
+            window.checkAndRegister(RequestDedupWindow.keyOf("NEW_REQUEST_DEST", "REQUEST_" + i,
+                    REQUEST_JSON));
+        }
+        Assertions.assertEquals(3, window.size());
+        Assertions.assertNull(window.checkAndRegister(key));
+
+        RequestDedupWindow shortWindow = new RequestDedupWindow(10, 20L);
+        shortWindow.checkAndRegister(key);
+        Thread.sleep(50L);
+        Assertions.assertNull(shortWindow.checkAndRegister(key));
+    }
+}
@@ -0,0 +1,159 @@
+package org.mskcc.smile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.RequestWriteAheadLog;
+
+public class RequestWriteAheadLogTest {
+    private static final int SEGMENT_BYTES = 4096;
+
+    /**
+     * Tests that requests which were accepted but not completed are replayed in the order
+     * they were accepted after the log is reopened.
+     * @throws Exception
+     */
+    @Test
+    public void testReplayPendingAfterReopen() throws Exception {
+        Path walDir = Files.createTempDirectory("request-wal");
+        try {
+            List<Long> sequences = new ArrayList<>();
+            try (RequestWriteAheadLog wal = new RequestWriteAheadLog(walDir, SEGMENT_BYTES)) {
+                for (int i = 0; i < 5; i++) {
+                    sequences.add(wal.append("NEW_REQUEST_DEST", "MOCKREQUEST1_B",
+                            "{\"requestId\":\"MOCKREQUEST1_B\",\"n\":" + i + "}"));
+                }
+                wal.append("PROMOTED_REQUEST_DEST", "MOCKREQUEST2_D", "{\"requestId\":\"MOCKREQUEST2_D\"}");
+                // redeliveries of the same request id are completed by their own sequence
+                Assertions.assertTrue(wal.complete(sequences.get(0)));
+                Assertions.assertTrue(wal.complete(sequences.get(2)));
+                Assertions.assertFalse(wal.complete(sequences.get(2)));
+                Assertions.assertEquals(4, wal.getPendingCount());
+            }
+            List<String> replayed = new ArrayList<>();
+            try (RequestWriteAheadLog wal = new RequestWriteAheadLog(walDir, SEGMENT_BYTES)) {
+                Assertions.assertEquals(4, wal.replayPending(
+                        (sequence, flow, json) -> replayed.add(sequence + " " + flow + " " + json)));
+                Assertions.assertEquals(4, wal.getPendingCount());
+                // replayed requests are completed by the sequence they were replayed with
+                Assertions.assertTrue(wal.complete(sequences.get(1)));
+                Assertions.assertEquals(3, wal.getPendingCount());
+            }
+            Assertions.assertEquals(sequences.get(1) + " NEW_REQUEST_DEST "
+                    + "{\"requestId\":\"MOCKREQUEST1_B\",\"n\":1}", replayed.get(0));
+            Assertions.assertEquals(sequences.get(3) + " NEW_REQUEST_DEST "
+                    + "{\"requestId\":\"MOCKREQUEST1_B\",\"n\":3}", replayed.get(1));
+            Assertions.assertTrue(replayed.get(3).endsWith(
+                    " PROMOTED_REQUEST_DEST {\"requestId\":\"MOCKREQUEST2_D\"}"));
+        } finally {
+            deleteDirectory(walDir);
+        }
+    }
+
+    /**
+     * Tests that a request without a request id is logged and replayed.
+     * @throws Exception
+     */
+    @Test
+    public void testNullRequestId() throws Exception {
+        Path walDir = Files.createTempDirectory("request-wal");
+        try {
+            long sequence;
+            try (RequestWriteAheadLog wal = new RequestWriteAheadLog(walDir, SEGMENT_BYTES)) {
+                sequence = wal.append("NEW_REQUEST_DEST", null, "{\"samples\":[]}");
+            }
+            List<String> replayed = new ArrayList<>();
+            try (RequestWriteAheadLog wal = new RequestWriteAheadLog(walDir, SEGMENT_BYTES)) {
+                Assertions.assertEquals(1, wal.replayPending(
+                        (replayedSequence, flow, json) -> replayed.add(replayedSequence + " " + json)));
+                Assertions.assertTrue(wal.complete(sequence));
+            }
+            Assertions.assertEquals(sequence + " {\"samples\":[]}", replayed.get(0));
+        } finally {
+            deleteDirectory(walDir);
+        }
+    }
+
+    /**
+     * Tests that checkpoints remove segments holding only completed requests and that
+     * completed requests are not replayed.
+     * @throws Exception
+     */
+    @Test
+    public void testCheckpointDeletesCompletedSegments() throws Exception {
+        Path walDir = Files.createTempDirectory("request-wal");
+        try {
+            String payload = "{\"requestId\":\"MOCKREQUEST1_B\",\"samples\":[" + "0,".repeat(200) + "0]}";
+            try (RequestWriteAheadLog wal = new RequestWriteAheadLog(walDir, SEGMENT_BYTES)) {
+                List<Long> sequences = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    sequences.add(wal.append("NEW_REQUEST_DEST", "REQUEST_" + i, payload));
+                }
+                for (int i = 0; i < 49; i++) {
+                    wal.complete(sequences.get(i));
+                }
+                long segmentsBefore = countSegments(walDir);
+                wal.checkpoint();
+                Assertions.assertTrue(countSegments(walDir) < segmentsBefore);
+            }
+            try (RequestWriteAheadLog wal = new RequestWriteAheadLog(walDir, SEGMENT_BYTES)) {
+                Assertions.assertEquals(1, wal.replayPending((sequence, flow, json) -> { }));
+            }
+        } finally {
+            deleteDirectory(walDir);
+        }
+    }
+
+    /**
+     * Tests that concurrent appends are durable when they return and share flushes.
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        Path walDir = Files.createTempDirectory("request-wal");
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        try (RequestWriteAheadLog wal = new RequestWriteAheadLog(walDir, 1024 * 1024)) {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                results.add(exec.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        wal.append("NEW_REQUEST_DEST", "REQUEST_" + thread + "_" + i, "{}");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+            Assertions.assertEquals(400, wal.getPendingCount());
+            Assertions.assertTrue(wal.getSyncCount() <= 400);
+        } finally {
+            exec.shutdown();
+            deleteDirectory(walDir);
+        }
+    }
+
+    private long countSegments(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(".log")).count();
+        }
+    }
+
+    private void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
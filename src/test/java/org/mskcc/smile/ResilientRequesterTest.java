@@ -0,0 +1,169 @@
+package org.mskcc.smile;
+
+import io.nats.client.Message;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.service.util.Deadline;
+import org.mskcc.smile.service.util.ResilientRequester;
+
+public class ResilientRequesterTest {
+    private static final String TOPIC = "MOCK_PATIENT_SAMPLES_TOPIC";
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, AtomicInteger> callsByKey = new ConcurrentHashMap<>();
+    private final AtomicInteger totalCalls = new AtomicInteger();
+
+    /**
+     * Injected latency and failures of the stub gateway, given the key requested and how many
+     * times it has been requested so far.
+     */
+    @FunctionalInterface
+    private interface StubBehavior {
+        void apply(String key, int call) throws Exception;
+    }
+
+    @AfterEach
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Tests that a request not answered within the hedge percentile of recent latencies is sent
+     * again and answered by the hedge.
+     * @throws Exception
+     */
+    @Test
+    public void testSlowRequestHedged() throws Exception {
+        Gateway gateway = stubGateway((key, call) -> {
+            if (key.equals("SLOW_PATIENT") && call == 1) {
+                Thread.sleep(10000L);
+            } else {
+                Thread.sleep(2L);
+            }
+        });
+        ResilientRequester requester = new ResilientRequester(gateway, executor, 0.95, 5, 10000L,
+                1000L, 0, 0.1);
+        for (int i = 0; i < 40; i++) {
+            requester.request(TOPIC, "FAST_PATIENT_" + i, Deadline.none());
+        }
+        long start = System.nanoTime();
+        Message reply = requester.request(TOPIC, "SLOW_PATIENT", Deadline.none());
+        Assertions.assertEquals("SLOW_PATIENT", new String(reply.getData(), StandardCharsets.UTF_8));
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        Assertions.assertEquals(2, callsByKey.get("SLOW_PATIENT").get());
+    }
+
+    /**
+     * Tests that a burst of failures opens the circuit, that requests then fail without reaching
+     * the gateway, and that a failed probe opens the circuit again while a successful probe
+     * closes it.
+     * @throws Exception
+     */
+    @Test
+    public void testCircuitBreakerHalfOpenProbe() throws Exception {
+        AtomicInteger failuresLeft = new AtomicInteger(4);
+        Gateway gateway = stubGateway((key, call) -> {
+            if (failuresLeft.getAndDecrement() > 0) {
+                throw new IllegalStateException("no responders");
+            }
+        });
+        ResilientRequester requester = new ResilientRequester(gateway, executor, 0.0, 3, 10000L,
+                200L, 0, 0.1);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertThrows(IllegalStateException.class,
+                    () -> requester.request(TOPIC, "MOCK_PATIENT", Deadline.none()));
+        }
+        Assertions.assertEquals(ResilientRequester.CircuitState.OPEN, requester.getCircuitState(TOPIC));
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> requester.request(TOPIC, "MOCK_PATIENT", Deadline.none()));
+        Assertions.assertEquals(3, totalCalls.get());
+
+        // the first probe fails and opens the circuit again
+        Thread.sleep(250L);
+        Assertions.assertThrows(IllegalStateException.class,
+                () -> requester.request(TOPIC, "MOCK_PATIENT", Deadline.none()));
+        Assertions.assertEquals(4, totalCalls.get());
+        Assertions.assertEquals(ResilientRequester.CircuitState.OPEN, requester.getCircuitState(TOPIC));
+
+        Thread.sleep(250L);
+        requester.request(TOPIC, "MOCK_PATIENT", Deadline.none());
+        Assertions.assertEquals(ResilientRequester.CircuitState.CLOSED, requester.getCircuitState(TOPIC));
+        requester.request(TOPIC, "MOCK_PATIENT", Deadline.none());
+        Assertions.assertEquals(6, totalCalls.get());
+    }
+
+    /**
+     * Tests that failed requests are retried until the retry budget is spent and are then
+     * failed without retrying.
+     * @throws Exception
+     */
+    @Test
+    public void testRetryBudget() throws Exception {
+        Gateway gateway = stubGateway((key, call) -> {
+            if (!key.equals("FLAKY_PATIENT") || call == 1) {
+                throw new IllegalStateException("timed out");
+            }
+        });
+        ResilientRequester requester = new ResilientRequester(gateway, executor, 0.0, 1000, 10000L,
+                1000L, 3, 0.0);
+        Message reply = requester.request(TOPIC, "FLAKY_PATIENT", Deadline.none());
+        Assertions.assertEquals("FLAKY_PATIENT", new String(reply.getData(), StandardCharsets.UTF_8));
+        Assertions.assertEquals(2, totalCalls.get());
+
+        // the 9 tokens left cover three requests with three retries each, the rest fail straight away
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertThrows(IllegalStateException.class,
+                    () -> requester.request(TOPIC, "BROKEN_PATIENT", Deadline.none()));
+        }
+        Assertions.assertEquals(2 + 4 + 4 + 4 + 1 + 1, totalCalls.get());
+        Assertions.assertTrue(requester.getMetricsSummary().contains("retries: 10"));
+    }
+
+    /**
+     * Tests that a request still outstanding at the deadline is given up on.
+     * @throws Exception
+     */
+    @Test
+    public void testDeadlineExceeded() throws Exception {
+        Gateway gateway = stubGateway((key, call) -> Thread.sleep(10000L));
+        ResilientRequester requester = new ResilientRequester(gateway, executor, 0.95, 5, 10000L,
+                1000L, 3, 0.1);
+        Deadline deadline = Deadline.after(System.nanoTime(), 100L);
+        long start = System.nanoTime();
+        Assertions.assertThrows(TimeoutException.class,
+                () -> requester.request(TOPIC, "MOCK_PATIENT", deadline));
+        Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        Assertions.assertEquals(ResilientRequester.CircuitState.CLOSED, requester.getCircuitState(TOPIC));
+    }
+
+    /**
+     * Returns a gateway whose requests reply with the requested key after applying the given
+     * latency and failures.
+     * @param behavior
+     * @return Gateway
+     */
+    private Gateway stubGateway(StubBehavior behavior) {
+        return Mockito.mock(Gateway.class, invocation -> {
+            if (!invocation.getMethod().getName().equals("request")) {
+                return null;
+            }
+            String key = invocation.getArgument(1);
+            totalCalls.incrementAndGet();
+            behavior.apply(key, callsByKey.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet());
+            byte[] data = key.getBytes(StandardCharsets.UTF_8);
+            return Mockito.mock(Message.class,
+                    reply -> reply.getMethod().getName().equals("getData") ? data : null);
+        });
+    }
+}
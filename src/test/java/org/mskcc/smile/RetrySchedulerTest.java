@@ -0,0 +1,111 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.RetryScheduler;
+
+public class RetrySchedulerTest {
+
+    /**
+     * Tests that the backoff doubles per attempt, is capped at the maximum delay and that
+     * jitter only ever shortens it.
+     * @throws Exception
+     */
+    @Test
+    public void testExponentialBackoffWithJitter() throws Exception {
+        RetryScheduler<String> noJitter = new RetryScheduler<>("test", 10, 100L, 1000L, 0.0,
+                (item, attempts) -> { }, (item, attempts, error) -> { });
+        Assertions.assertEquals(100L, noJitter.getBackoffMillis(1));
+        Assertions.assertEquals(200L, noJitter.getBackoffMillis(2));
+        Assertions.assertEquals(800L, noJitter.getBackoffMillis(4));
+        Assertions.assertEquals(1000L, noJitter.getBackoffMillis(5));
+        Assertions.assertEquals(1000L, noJitter.getBackoffMillis(64));
+        noJitter.shutdownAndAwait();
+
+        RetryScheduler<String> jittered = new RetryScheduler<>("test", 10, 100L, 1000L, 0.5,
+                (item, attempts) -> { }, (item, attempts, error) -> { });
+        for (int i = 0; i < 100; i++) {
+            long backoff = jittered.getBackoffMillis(3);
+            Assertions.assertTrue(backoff > 200L && backoff <= 400L);
+        }
+        jittered.shutdownAndAwait();
+    }
+
+    /**
+     * Tests that an item is retried until it succeeds and that an item which keeps failing
+     * is handed to the exhausted handler after the maximum attempts.
+     * @throws Exception
+     */
+    @Test
+    public void testRetryUntilSuccessOrExhausted() throws Exception {
+        AtomicInteger flakyCalls = new AtomicInteger();
+        CountDownLatch succeeded = new CountDownLatch(1);
+        CountDownLatch exhausted = new CountDownLatch(1);
+        List<String> exhaustedItems = Collections.synchronizedList(new ArrayList<>());
+        RetryScheduler<String> scheduler = new RetryScheduler<>("test", 3, 10L, 50L, 0.0,
+                (item, attempts) -> {
+                    if (item.equals("broken") || flakyCalls.incrementAndGet() < 2) {
+                        throw new IllegalStateException("timed out");
+            }
+            succeeded.countDown();
+        }, (item, attempts, error) -> {
+            exhaustedItems.add(item + " " + attempts + " " + error.getMessage());
+            exhausted.countDown();
+        });
+        scheduler.schedule("flaky", 1, new IllegalStateException("timed out"));
+        scheduler.schedule("broken", 1, new IllegalStateException("timed out"));
+        Assertions.assertTrue(succeeded.await(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(exhausted.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("broken 3 timed out"), exhaustedItems);
+        scheduler.shutdownAndAwait();
+    }
+
+    /**
+     * Tests that an item whose error the retry policy does not retry is handed straight to the
+     * exhausted handler, including when a retry fails with such an error.
+     * @throws Exception
+     */
+    @Test
+    public void testRetryPolicy() throws Exception {
+        CountDownLatch exhausted = new CountDownLatch(2);
+        List<String> exhaustedItems = Collections.synchronizedList(new ArrayList<>());
+        RetryScheduler<String> scheduler = new RetryScheduler<>("test", 5, 10L, 50L, 0.0,
+                (item, attempts) -> {
+                    throw new IllegalArgumentException("malformed");
+        }, (item, attempts, error) -> {
+            exhaustedItems.add(item + " " + attempts + " " + error.getMessage());
+            exhausted.countDown();
+        }, (item, error) -> !(error instanceof IllegalArgumentException));
+        scheduler.schedule("MOCKREQUEST1_B", 1, new IllegalArgumentException("malformed"));
+        Assertions.assertEquals(List.of("MOCKREQUEST1_B 1 malformed"), exhaustedItems);
+        scheduler.schedule("MOCKREQUEST2_D", 1, new IllegalStateException("timed out"));
+        Assertions.assertTrue(exhausted.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(List.of("MOCKREQUEST1_B 1 malformed", "MOCKREQUEST2_D 2 malformed"),
+                exhaustedItems);
+        scheduler.shutdownAndAwait();
+    }
+
+    /**
+     * Tests that items waiting for their backoff at shutdown, and items scheduled after it,
+     * are handed to the exhausted handler.
+     * @throws Exception
+     */
+    @Test
+    public void testShutdownExhaustsPending() throws Exception {
+        List<String> exhaustedItems = Collections.synchronizedList(new ArrayList<>());
+        RetryScheduler<String> scheduler = new RetryScheduler<>("test", 5, 60000L, 60000L, 0.0,
+                (item, attempts) -> { }, (item, attempts, error) -> exhaustedItems.add(item));
+        scheduler.schedule("MOCKREQUEST1_B", 1, null);
+        Assertions.assertEquals(1, scheduler.getPendingCount());
+        scheduler.shutdownAndAwait();
+        scheduler.schedule("MOCKREQUEST2_D", 1, null);
+        Assertions.assertEquals(List.of("MOCKREQUEST1_B", "MOCKREQUEST2_D"), exhaustedItems);
+        Assertions.assertEquals(0, scheduler.getPendingCount());
+    }
+}
@@ -0,0 +1,92 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.SampleUpdateCoalescer;
+
+public class SampleUpdateCoalescerTest {
+
+    /**
+     * Tests that updates received within the window are merged by primary id keeping the
+     * latest version and grouped into one batch per patient.
+     * @throws Exception
+     */
+    @Test
+    public void testMergeAndGroupByPatient() throws Exception {
+        SampleUpdateCoalescer coalescer = new SampleUpdateCoalescer(50L, 100);
+        coalescer.add(List.of(sample("C-MP789JR", "MOCK_1", "v1"), sample("C-MP789JR", "MOCK_2", "v1")));
+        coalescer.add(List.of(sample("C-1A2B3C", "MOCK_3", "v1")));
+        coalescer.add(List.of(sample("C-MP789JR", "MOCK_1", "v2")));
+        Assertions.assertEquals(3, coalescer.getPendingSamples());
+        Assertions.assertEquals(1L, coalescer.getMergedSamples());
+        // nothing is due before the window has passed
+        Assertions.assertTrue(coalescer.drainDue().isEmpty());
+
+        Thread.sleep(100L);
+        List<List<Map<String, Object>>> batches = coalescer.drainDue();
+        Assertions.assertEquals(2, batches.size());
+        List<Map<String, Object>> patientBatch = batches.get(0);
+        Assertions.assertEquals(2, patientBatch.size());
+        Assertions.assertEquals("MOCK_1", patientBatch.get(0).get("primaryId"));
+        Assertions.assertEquals("v2", patientBatch.get(0).get("version"));
+        Assertions.assertEquals(0, coalescer.getPendingSamples());
+    }
+
+    /**
+     * Tests that full batches are due before their window passes and are split at the
+     * maximum batch size, and that draining all ignores the window.
+     */
+    @Test
+    public void testFullBatchesAndDrainAll() {
+        SampleUpdateCoalescer coalescer = new SampleUpdateCoalescer(60000L, 2);
+        List<Map<String, Object>> samples = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            samples.add(sample("C-MP789JR", "MOCK_" + i, "v1"));
+        }
+        coalescer.add(samples);
+        coalescer.add(List.of(sample("C-1A2B3C", "MOCK_9", "v1")));
+        List<List<Map<String, Object>>> due = coalescer.drainDue();
+        Assertions.assertEquals(3, due.size());
+        Assertions.assertEquals(1, due.get(2).size());
+        Assertions.assertEquals(1, coalescer.getPendingSamples());
+        Assertions.assertEquals(1, coalescer.drainAll().size());
+        Assertions.assertEquals(0, coalescer.getPendingSamples());
+    }
+
+    /**
+     * Tests that updates which would take the pending samples over the bound are refused
+     * until pending batches are drained.
+     */
+    @Test
+    public void testPendingSamplesBound() {
+        SampleUpdateCoalescer coalescer = new SampleUpdateCoalescer(60000L, 100, 3);
+        Assertions.assertTrue(coalescer.offer(List.of(sample("C-MP789JR", "MOCK_1", "v1"),
+                sample("C-MP789JR", "MOCK_2", "v1"))));
+        Assertions.assertFalse(coalescer.offer(List.of(sample("C-1A2B3C", "MOCK_3", "v1"),
+                sample("C-1A2B3C", "MOCK_4", "v1"))));
+        Assertions.assertTrue(coalescer.offer(List.of(sample("C-1A2B3C", "MOCK_3", "v1"))));
+        Assertions.assertEquals(3, coalescer.getPendingSamples());
+        Assertions.assertFalse(coalescer.offer(List.of(sample("C-1A2B3C", "MOCK_4", "v1"))));
+
+        Assertions.assertEquals(2, coalescer.drainAll().size());
+        // an update larger than the bound is still accepted when nothing is pending
+        List<Map<String, Object>> samples = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            samples.add(sample("C-MP789JR", "MOCK_" + i, "v2"));
+        }
+        Assertions.assertTrue(coalescer.offer(samples));
+        Assertions.assertEquals(5, coalescer.getPendingSamples());
+    }
+
+    private Map<String, Object> sample(String cmoPatientId, String primaryId, String version) {
+        Map<String, Object> sample = new HashMap<>();
+        sample.put("cmoPatientId", cmoPatientId);
+        sample.put("primaryId", primaryId);
+        sample.put("version", version);
+        return sample;
+    }
+}
@@ -0,0 +1,133 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.ByteBoundedQueue;
+import org.mskcc.smile.service.util.HandlerMessage;
+import org.mskcc.smile.service.util.RingBufferConnector;
+import org.mskcc.smile.service.util.StageConnector;
+
+/**
+ * Compares the hand-off between the label generator and publisher handlers through the
+ * queue-based connector and the ring buffer connector. Each run pushes a burst of messages
+ * from the label generator threads to the publisher threads and logs the throughput.
+ * The throughput run is tagged as a benchmark and is skipped by the default test run.
+ */
+public class StageConnectorBenchmarkTest {
+    private static final Log LOG = LogFactory.getLog(StageConnectorBenchmarkTest.class);
+    private static final int NUM_MESSAGES = 200000;
+    private static final int NUM_DELIVERY_CHECK_MESSAGES = 2000;
+    private static final int NUM_PRODUCERS = 2;
+    private static final int NUM_CONSUMERS = 2;
+    private static final String REQUEST_JSON = "{\"requestId\":\"MOCKREQUEST1_B\",\"samples\":[]}";
+
+    /**
+     * Tests that every message is delivered exactly once through each connector.
+     * @throws Exception
+     */
+    @Test
+    public void testExactlyOnceDelivery() throws Exception {
+        for (StageConnector<String> connector : makeConnectors()) {
+            Map<String, Integer> deliveries = new ConcurrentHashMap<>();
+            Assertions.assertEquals(NUM_DELIVERY_CHECK_MESSAGES, runBurst(connector,
+                    NUM_DELIVERY_CHECK_MESSAGES, deliveries));
+            Assertions.assertEquals(NUM_DELIVERY_CHECK_MESSAGES, deliveries.size());
+            for (Map.Entry<String, Integer> delivery : deliveries.entrySet()) {
+                Assertions.assertEquals(1, delivery.getValue().intValue(), delivery.getKey());
+            }
+            Assertions.assertTrue(connector.isEmpty());
+        }
+    }
+
+    /**
+     * Logs the throughput of each connector.
+     * @throws Exception
+     */
+    @Test
+    @Tag("benchmark")
+    public void testConnectorThroughput() throws Exception {
+        for (StageConnector<String> connector : makeConnectors()) {
+            // warm up before measuring
+            runBurst(connector, NUM_MESSAGES / 10, null);
+            long start = System.nanoTime();
+            long delivered = runBurst(connector, NUM_MESSAGES, null);
+            long elapsedNanos = System.nanoTime() - start;
+            Assertions.assertEquals(NUM_MESSAGES, delivered);
+            Assertions.assertTrue(connector.isEmpty());
+            LOG.info(String.format("%s: %d messages in %.1f ms (%.0f messages/s)",
+                    connector.getOccupancySummary(), NUM_MESSAGES, elapsedNanos / 1e6,
+                    NUM_MESSAGES / (elapsedNanos / 1e9)));
+        }
+    }
+
+    private List<StageConnector<String>> makeConnectors() {
+        return List.of(
+                new ByteBoundedQueue<>("queue", 1024L * 1024L, ByteBoundedQueue.OverflowPolicy.BLOCK, null),
+                new RingBufferConnector<>("ring_buffer_park", 1024, RingBufferConnector.WaitStrategy.PARK),
+                new RingBufferConnector<>("ring_buffer_yield", 1024, RingBufferConnector.WaitStrategy.YIELD));
+    }
+
+    /**
+     * Pushes the messages through the connector and returns the number delivered. Each
+     * producer sends distinct payloads, which are counted in the deliveries map if one is given.
+     * @param connector
+     * @param numMessages
+     * @param deliveries payload => number of times delivered, or null
+     * @return long
+     * @throws Exception
+     */
+    private long runBurst(StageConnector<String> connector, int numMessages,
+            Map<String, Integer> deliveries) throws Exception {
+        AtomicLong delivered = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < NUM_CONSUMERS; c++) {
+            threads.add(new Thread(() -> {
+                try {
+                    HandlerMessage<String> message;
+                    while (!(message = connector.take()).isPoisonPill()) {
+                        delivered.incrementAndGet();
+                        if (deliveries != null) {
+                            deliveries.merge(message.getPayload(), 1, Integer::sum);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < NUM_PRODUCERS; p++) {
+            String producerId = String.valueOf(p);
+            producers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < numMessages / NUM_PRODUCERS; i++) {
+                        connector.put(HandlerMessage.ofJson((deliveries == null) ? REQUEST_JSON
+                                : "{\"requestId\":\"MOCKREQUEST" + producerId + "_" + i + "\"}"));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        for (int c = 0; c < NUM_CONSUMERS; c++) {
+            connector.put(HandlerMessage.poisonPill());
+        }
+        for (Thread consumer : threads) {
+            consumer.join();
+        }
+        return delivered.get();
+    }
+}
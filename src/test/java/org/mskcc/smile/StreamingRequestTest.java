@@ -0,0 +1,113 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.StreamingRequest;
+
+public class StreamingRequestTest {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Tests that the first pass reads the top-level fields and counts the samples of each
+     * patient and alt id without keeping the samples.
+     * @throws Exception
+     */
+    @Test
+    public void testScan() throws Exception {
+        StreamingRequest request = StreamingRequest.scan(mapper, makeRequestJson(5));
+        Assertions.assertEquals("MOCKREQUEST1_B", request.getRequestId());
+        Assertions.assertEquals(Boolean.TRUE, request.getField(mapper, "isCmoRequest"));
+        Assertions.assertNull(request.getField(mapper, "piEmail"));
+        Assertions.assertEquals(5, request.getSampleCount());
+        Assertions.assertEquals(List.of("C-PATIENT0", "C-PATIENT1"), request.getCmoPatientIds());
+        Assertions.assertEquals(Map.of("C-PATIENT0", 3, "C-PATIENT1", 2), request.getSamplesPerPatient());
+        Assertions.assertEquals(Map.of("ALT-0", 3, "ALT-1", 2), request.getSamplesPerAltId());
+        Assertions.assertEquals("{\"requestId\":\"MOCKREQUEST1_B\",\"samples\":[],"
+                + "\"status\":{\"validationStatus\":true},\"isCmoRequest\":true}",
+                request.getEnvelopeJson(mapper));
+    }
+
+    /**
+     * Tests that samples are labeled in chunks of at most the chunk size and that the output
+     * is the same as writing the labeled samples back into the request read as a map.
+     * @throws Exception
+     */
+    @Test
+    public void testLabelInChunks() throws Exception {
+        String requestJson = makeRequestJson(5);
+        List<Integer> chunkSizes = new ArrayList<>();
+        String updatedJson = StreamingRequest.label(mapper, requestJson, 2, chunk -> {
+            chunkSizes.add(chunk.size());
+            for (Map<String, Object> sample : chunk) {
+                sample.put("cmoSampleName", sample.get("igoId") + "_LABEL");
+            }
+        });
+        Assertions.assertEquals(List.of(2, 2, 1), chunkSizes);
+
+        Map<String, Object> requestMap = mapper.readValue(requestJson, Map.class);
+        List<Map<String, Object>> samples = (List<Map<String, Object>>) requestMap.get("samples");
+        for (Map<String, Object> sample : samples) {
+            sample.put("cmoSampleName", sample.get("igoId") + "_LABEL");
+        }
+        Assertions.assertEquals(mapper.writeValueAsString(requestMap), updatedJson);
+
+        List<String> labels = new ArrayList<>();
+        StreamingRequest.forEachSample(mapper, updatedJson,
+                sample -> labels.add(sample.get("cmoSampleName").toString()));
+        Assertions.assertEquals(List.of("MOCKREQUEST1_B_0_LABEL", "MOCKREQUEST1_B_1_LABEL",
+                "MOCKREQUEST1_B_2_LABEL", "MOCKREQUEST1_B_3_LABEL", "MOCKREQUEST1_B_4_LABEL"), labels);
+    }
+
+    /**
+     * Tests that a full chunk is extended until it holds every consecutive sample of its
+     * last patient.
+     * @throws Exception
+     */
+    @Test
+    public void testChunksKeepPatientRuns() throws Exception {
+        List<Map<String, Object>> samples = new ArrayList<>();
+        for (String cmoPatientId : List.of("C-PATIENT0", "C-PATIENT0", "C-PATIENT0", "C-PATIENT1",
+                "C-PATIENT1", "C-PATIENT2")) {
+            samples.add(Map.of("igoId", "MOCKREQUEST1_B_" + samples.size(), "cmoPatientId", cmoPatientId));
+        }
+        String requestJson = mapper.writeValueAsString(Map.of("requestId", "MOCKREQUEST1_B",
+                "samples", samples));
+        List<Integer> chunkSizes = new ArrayList<>();
+        StreamingRequest.label(mapper, requestJson, 2, chunk -> chunkSizes.add(chunk.size()));
+        Assertions.assertEquals(List.of(3, 2, 1), chunkSizes);
+    }
+
+    /**
+     * Tests that payload sizes are measured in UTF-8 bytes rather than characters.
+     */
+    @Test
+    public void testUtf8Bytes() {
+        Assertions.assertTrue(StreamingRequest.hasUtf8BytesAtLeast("abcd", 4));
+        Assertions.assertFalse(StreamingRequest.hasUtf8BytesAtLeast("abcd", 5));
+        // two bytes for \u00e9, three for \u20ac and four for the surrogate pair
+        String json = "\u00e9\u20ac\ud83d\ude00";
+        Assertions.assertTrue(StreamingRequest.hasUtf8BytesAtLeast(json, 9));
+        Assertions.assertFalse(StreamingRequest.hasUtf8BytesAtLeast(json, 10));
+        Assertions.assertFalse(StreamingRequest.hasUtf8BytesAtLeast("a", 4));
+    }
+
+    private String makeRequestJson(int numSamples) {
+        StringBuilder builder = new StringBuilder("{\"requestId\":\"MOCKREQUEST1_B\",\"samples\":[");
+        for (int i = 0; i < numSamples; i++) {
+            if (i > 0) {
+                builder.append(",");
+            }
+            builder.append("{\"igoId\":\"MOCKREQUEST1_B_").append(i)
+                    .append("\",\"cmoPatientId\":\"C-PATIENT").append(i % 2)
+                    .append("\",\"altid\":\"ALT-").append(i % 2)
+                    .append("\",\"cmoSampleIdFields\":{\"naToExtract\":\"DNA\",\"sampleType\":null},")
+                    .append("\"status\":{\"validationStatus\":true,\"validationReport\":\"{}\"},")
+                    .append("\"qcReports\":[1.5,2]}");
+        }
+        return builder.append("],\"status\":{\"validationStatus\":true},\"isCmoRequest\":true}").toString();
+    }
+}
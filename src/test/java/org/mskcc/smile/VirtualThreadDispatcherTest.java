@@ -0,0 +1,71 @@
+package org.mskcc.smile;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.VirtualThreadDispatcher;
+
+public class VirtualThreadDispatcherTest {
+
+    /**
+     * Tests that no more than the configured number of tasks are ever in flight and that
+     * every dispatched task runs before shutdown completes.
+     * @throws Exception
+     */
+    @Test
+    public void testInflightLimit() throws Exception {
+        VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(4, "test-dispatcher");
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    // simulate a blocking lookup
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                completed.incrementAndGet();
+            });
+        }
+        Assertions.assertTrue(dispatcher.shutdownAndAwait(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(100, completed.get());
+        Assertions.assertTrue(maxRunning.get() <= 4);
+        Assertions.assertEquals(0, dispatcher.getInflightCount());
+    }
+
+    /**
+     * Tests that dispatching blocks while the in-flight limit is reached.
+     * @throws Exception
+     */
+    @Test
+    public void testDispatchBlocksAtLimit() throws Exception {
+        VirtualThreadDispatcher dispatcher = new VirtualThreadDispatcher(1, "test-dispatcher");
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.dispatch(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        CountDownLatch dispatched = new CountDownLatch(1);
+        Thread.ofVirtual().start(() -> {
+            try {
+                dispatcher.dispatch(() -> { });
+                dispatched.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Assertions.assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assertions.assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(dispatcher.shutdownAndAwait(10, TimeUnit.SECONDS));
+    }
+}
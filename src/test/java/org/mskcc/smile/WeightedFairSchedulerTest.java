@@ -0,0 +1,113 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.WeightedFairScheduler;
+
+public class WeightedFairSchedulerTest {
+
+    /**
+     * Tests that contended classes are served in proportion to their weights.
+     * @throws Exception
+     */
+    @Test
+    public void testWeightedShares() throws Exception {
+        Map<WeightedFairScheduler.PriorityClass, Integer> weights =
+                new EnumMap<>(WeightedFairScheduler.PriorityClass.class);
+        weights.put(WeightedFairScheduler.PriorityClass.REQUEST_REPLY, 3);
+        weights.put(WeightedFairScheduler.PriorityClass.NEW_REQUEST, 1);
+        WeightedFairScheduler scheduler = new WeightedFairScheduler(1, weights, 100, 60000L,
+                "test-scheduler");
+        CountDownLatch gateRunning = new CountDownLatch(1);
+        CountDownLatch openGate = new CountDownLatch(1);
+        scheduler.submit(WeightedFairScheduler.PriorityClass.NEW_REQUEST, () -> {
+            gateRunning.countDown();
+            awaitQuietly(openGate);
+        });
+        Assertions.assertTrue(gateRunning.await(5, TimeUnit.SECONDS));
+
+        // queue both classes while the only worker is busy so that every task is contended
+        List<WeightedFairScheduler.PriorityClass> order =
+                Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 40; i++) {
+            for (WeightedFairScheduler.PriorityClass priorityClass : List.of(
+                    WeightedFairScheduler.PriorityClass.NEW_REQUEST,
+                    WeightedFairScheduler.PriorityClass.REQUEST_REPLY)) {
+                scheduler.submit(priorityClass, () -> order.add(priorityClass));
+            }
+        }
+        openGate.countDown();
+        Assertions.assertTrue(scheduler.shutdownAndAwait(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(80, order.size());
+        int requestReplyCount = 0;
+        for (WeightedFairScheduler.PriorityClass priorityClass : order.subList(0, 40)) {
+            if (priorityClass == WeightedFairScheduler.PriorityClass.REQUEST_REPLY) {
+                requestReplyCount++;
+            }
+        }
+        // three of every four contended slots go to the request-reply class
+        Assertions.assertTrue(requestReplyCount >= 29 && requestReplyCount <= 31,
+                "request-reply tasks in first 40: " + requestReplyCount);
+        Assertions.assertEquals(0L, scheduler.getStarvationPromotions());
+    }
+
+    /**
+     * Tests that a task of a low weight class runs once it has waited longer than the
+     * maximum wait even while a higher weight class still has work queued.
+     * @throws Exception
+     */
+    @Test
+    public void testStarvationProtection() throws Exception {
+        Map<WeightedFairScheduler.PriorityClass, Integer> weights =
+                new EnumMap<>(WeightedFairScheduler.PriorityClass.class);
+        weights.put(WeightedFairScheduler.PriorityClass.REQUEST_REPLY, 1000);
+        weights.put(WeightedFairScheduler.PriorityClass.PROMOTED_REQUEST, 1);
+        WeightedFairScheduler scheduler = new WeightedFairScheduler(1, weights, 1000, 20L,
+                "test-scheduler");
+        CountDownLatch gateRunning = new CountDownLatch(1);
+        CountDownLatch openGate = new CountDownLatch(1);
+        scheduler.submit(WeightedFairScheduler.PriorityClass.PROMOTED_REQUEST, () -> {
+            gateRunning.countDown();
+            awaitQuietly(openGate);
+        });
+        Assertions.assertTrue(gateRunning.await(5, TimeUnit.SECONDS));
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        scheduler.submit(WeightedFairScheduler.PriorityClass.PROMOTED_REQUEST, () -> order.add("promoted"));
+        for (int i = 0; i < 100; i++) {
+            scheduler.submit(WeightedFairScheduler.PriorityClass.REQUEST_REPLY, () -> {
+                order.add("reply");
+                sleepQuietly(2L);
+            });
+        }
+        openGate.countDown();
+        Assertions.assertTrue(scheduler.shutdownAndAwait(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(101, order.size());
+        // by weight alone the promoted task would run after every reply
+        Assertions.assertTrue(order.indexOf("promoted") < 100);
+        Assertions.assertTrue(scheduler.getStarvationPromotions() >= 1L);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
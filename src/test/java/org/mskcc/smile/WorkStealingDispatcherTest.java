@@ -0,0 +1,69 @@
+package org.mskcc.smile;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.WorkStealingDispatcher;
+
+public class WorkStealingDispatcherTest {
+
+    /**
+     * Tests that a burst on a single flow is spread over every worker in the pool
+     * even though other flows share the pool.
+     * @throws Exception
+     */
+    @Test
+    public void testBurstUsesWholePool() throws Exception {
+        WorkStealingDispatcher dispatcher = new WorkStealingDispatcher(4, 16, "test-pool");
+        dispatcher.dispatch("PROMOTED_REQUEST_DEST", () -> { });
+        CountDownLatch allRunning = new CountDownLatch(4);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) {
+            dispatcher.dispatch("NEW_REQUEST_DEST", () -> {
+                allRunning.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        // every worker must be running a new request task at the same time for this to succeed
+        Assertions.assertTrue(allRunning.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        Assertions.assertTrue(dispatcher.shutdownAndAwait(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(4L, dispatcher.getCompletedCount("NEW_REQUEST_DEST"));
+        Assertions.assertEquals(1L, dispatcher.getCompletedCount("PROMOTED_REQUEST_DEST"));
+        Assertions.assertEquals(0, dispatcher.getInflightCount());
+    }
+
+    /**
+     * Tests that no more than the configured number of tasks are in flight across all flows.
+     * @throws Exception
+     */
+    @Test
+    public void testInflightLimitAcrossFlows() throws Exception {
+        WorkStealingDispatcher dispatcher = new WorkStealingDispatcher(8, 3, "test-pool");
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        String[] flows = {"NEW_REQUEST_DEST", "PROMOTED_REQUEST_DEST", "SAMPLE_LABEL_UPDATE"};
+        for (int i = 0; i < 60; i++) {
+            dispatcher.dispatch(flows[i % flows.length], () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            });
+        }
+        Assertions.assertTrue(dispatcher.shutdownAndAwait(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(maxRunning.get() <= 3);
+        for (String flow : flows) {
+            Assertions.assertEquals(20L, dispatcher.getCompletedCount(flow));
+        }
+    }
+}